@@ -17,15 +17,8 @@
 package net.dreamlu.iot.mqtt.benchmark;
 
 import net.dreamlu.iot.mqtt.core.client.MqttClient;
-import org.tio.utils.Threads;
+import net.dreamlu.iot.mqtt.core.client.MqttClientBatchStarter;
 import org.tio.utils.hutool.StrUtil;
-import org.tio.utils.thread.pool.SynThreadPoolExecutor;
-import org.tio.utils.timer.DefaultTimerTaskService;
-import org.tio.utils.timer.TimerTaskService;
-
-import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * mqtt 压力测试
@@ -39,32 +32,18 @@ public class MqttBenchmark {
 		// 《修改Windows服务器最大的Tcp连接数》：https://www.jianshu.com/p/00136a97d2d8
 		int connCount = 5_0000;
 		String ip = "127.0.0.1";
-		final List<MqttClient> clientList = new CopyOnWriteArrayList<>();
-		SynThreadPoolExecutor tioExecutor = Threads.getTioExecutor();
-		ThreadPoolExecutor groupExecutor = Threads.getGroupExecutor();
-		// 自定义全局 taskService，避免每个 client new，创建过多线程
-		TimerTaskService taskService = new DefaultTimerTaskService(200L, 60);
-		for (int i = 0; i < connCount; i++) {
-			newClient(ip, i, clientList, tioExecutor, groupExecutor, taskService);
-		}
-	}
-
-	private static void newClient(String ip, int i, final List<MqttClient> clientList,
-								  SynThreadPoolExecutor tioExecutor,
-								  ThreadPoolExecutor groupExecutor,
-								  TimerTaskService taskService) {
-		MqttClient client = MqttClient.create()
-			.ip(ip)
-			.clientId(StrUtil.getNanoId() + i)
-			.readBufferSize(128)
-			// 取消自动重连
-			.reconnect(false)
-			.tioExecutor(tioExecutor)
-			.groupExecutor(groupExecutor)
-			.mqttExecutor(tioExecutor)
-			.taskService(taskService)
-			.connect();
-		clientList.add(client);
+		// 批量启动，限制连接速率和并发数，所有客户端共享线程池和 taskService，避免创建过多线程
+		MqttClientBatchStarter.create()
+			.rate(2000)
+			.concurrency(1000)
+			.start(connCount, (i) -> MqttClient.create()
+				.ip(ip)
+				.clientId(StrUtil.getNanoId() + i)
+				.readBufferSize(128)
+				// 取消自动重连
+				.reconnect(false))
+			.thenAccept(System.out::println)
+			.join();
 	}
 
 }
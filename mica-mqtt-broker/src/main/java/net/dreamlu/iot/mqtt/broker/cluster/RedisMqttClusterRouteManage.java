@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterClientRegistry;
+import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterRouteTable;
+import net.dreamlu.iot.mqtt.core.server.session.IMqttSessionManager;
+import net.dreamlu.iot.mqtt.core.server.session.IMqttTopicFilterListener;
+import net.dreamlu.mica.core.utils.StringPool;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * mqtt 集群订阅路由管理，消息只转发到存在订阅者的节点。
+ *
+ * <p>
+ * 本节点的订阅摘要保存在 redis set 中，topicFilter 增删时 SADD/SREM 并递增版本号，再通过 redis pub/sub 广播增量变更。
+ * 其他节点按版本号顺序应用变更，只有启动、发现新节点或版本号不连续（pub/sub 丢失了消息）时才全量加载该节点的摘要。
+ * 节点列表保存在一个 set 中，节点启动时的全量摘要通知和停止时的离开通知会立即更新其他节点的节点列表。定时任务只读取节点 set
+ * 和各节点的版本号，用于补偿丢失的通知，开销和节点数相关，和 keyspace 大小、订阅数无关。
+ * 还未同步到摘要的节点按广播处理，节点列表未知时（未完成首次检查或读取失败）所有消息都广播。
+ * </p>
+ *
+ * @author L.cm
+ */
+@Slf4j
+public class RedisMqttClusterRouteManage implements SmartInitializingSingleton, DisposableBean, IMqttTopicFilterListener {
+	/**
+	 * 匹配所有 topic，session 管理不支持 topicFilter 变化监听时使用
+	 */
+	private static final Set<String> MATCH_ALL = Collections.singleton("#");
+	private static final char OP_ADD = '+';
+	private static final char OP_REMOVE = '-';
+	/**
+	 * 节点重新写入了全量摘要
+	 */
+	private static final char OP_RESET = '*';
+	/**
+	 * 节点停止
+	 */
+	private static final char OP_LEAVE = '!';
+	private static final char SEPARATOR = '\n';
+	private final StringRedisTemplate redisTemplate;
+	private final IMqttSessionManager sessionManager;
+	private final String nodeName;
+	private final long syncInterval;
+	private final MqttClusterRouteTable routeTable = new MqttClusterRouteTable();
+	/**
+	 * 集群客户端注册表，节点离开时删除该节点的客户端，可为 null
+	 */
+	private final MqttClusterClientRegistry clientRegistry;
+	/**
+	 * 单线程，保证本节点变更的顺序
+	 */
+	private final ScheduledExecutorService scheduler;
+	/**
+	 * 上一次检查时落后的节点和版本号，连续两次落后才全量加载，避免和正在传输的增量变更重复
+	 */
+	private final Map<String, Long> behindNodes = new ConcurrentHashMap<>();
+	/**
+	 * 其他节点，只在 scheduler 线程中替换
+	 */
+	private volatile Set<String> clusterNodes = Collections.emptySet();
+	/**
+	 * 节点列表是否可信，为 false 时可能存在未知的节点
+	 */
+	private volatile boolean membershipKnown;
+	private RedisMessageListenerContainer listenerContainer;
+
+	public RedisMqttClusterRouteManage(StringRedisTemplate redisTemplate, MqttServer mqttServer,
+									   MqttClusterClientRegistry clientRegistry) {
+		this(redisTemplate, mqttServer, clientRegistry, 1000L);
+	}
+
+	public RedisMqttClusterRouteManage(StringRedisTemplate redisTemplate, MqttServer mqttServer,
+									   MqttClusterClientRegistry clientRegistry, long syncInterval) {
+		this.redisTemplate = redisTemplate;
+		this.clientRegistry = clientRegistry;
+		this.sessionManager = mqttServer.getServerCreator().getSessionManager();
+		this.nodeName = mqttServer.getServerCreator().getNodeName();
+		this.syncInterval = syncInterval;
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "mqtt-cluster-route");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * 获取需要转发的其他节点，本节点的消息在转发前已经处理
+	 *
+	 * @param topic topic
+	 * @return 节点集合，节点列表未知时为 null，需要广播
+	 */
+	public Set<String> getTargetNodes(String topic) {
+		if (!membershipKnown) {
+			return null;
+		}
+		Set<String> nodes = routeTable.match(topic);
+		for (String node : clusterNodes) {
+			if (!routeTable.contains(node)) {
+				nodes.add(node);
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * 是否为在线的其他集群节点
+	 *
+	 * @param node 节点名
+	 * @return 是否在线
+	 */
+	public boolean isClusterNode(String node) {
+		return clusterNodes.contains(node);
+	}
+
+	/**
+	 * 获取路由表
+	 *
+	 * @return MqttClusterRouteTable
+	 */
+	public MqttClusterRouteTable getRouteTable() {
+		return routeTable;
+	}
+
+	@Override
+	public void onAdded(String topicFilter) {
+		scheduler.execute(() -> publishChange(OP_ADD, topicFilter));
+	}
+
+	@Override
+	public void onRemoved(String topicFilter) {
+		scheduler.execute(() -> publishChange(OP_REMOVE, topicFilter));
+	}
+
+	/**
+	 * 写入本节点的全量摘要，启动时调用
+	 */
+	private void publishSnapshot() {
+		try {
+			Set<String> topicFilters = sessionManager.getTopicFilters();
+			if (topicFilters == null) {
+				topicFilters = MATCH_ALL;
+			}
+			String routeKey = RedisKeys.CLUSTER_ROUTE.getKey(nodeName);
+			// 先加入节点 set，其他节点收到全量摘要通知后再检查时一定能读到本节点
+			redisTemplate.opsForSet().add(RedisKeys.CLUSTER_ROUTE_NODES.getKey(), nodeName);
+			redisTemplate.delete(routeKey);
+			if (!topicFilters.isEmpty()) {
+				redisTemplate.opsForSet().add(routeKey, topicFilters.toArray(new String[0]));
+			}
+			// 先写摘要再写版本号，读取到新版本号时摘要已经是新的
+			Long version = redisTemplate.opsForValue().increment(RedisKeys.CLUSTER_ROUTE_VERSION.getKey(nodeName));
+			redisTemplate.convertAndSend(RedisKeys.REDIS_CHANNEL_ROUTE.getKey(), encode(OP_RESET, nodeName, version, StringPool.EMPTY));
+		} catch (Throwable e) {
+			log.error("Mqtt cluster route snapshot error.", e);
+		}
+	}
+
+	private void publishChange(char op, String topicFilter) {
+		try {
+			String routeKey = RedisKeys.CLUSTER_ROUTE.getKey(nodeName);
+			if (OP_ADD == op) {
+				redisTemplate.opsForSet().add(routeKey, topicFilter);
+			} else {
+				redisTemplate.opsForSet().remove(routeKey, topicFilter);
+			}
+			Long version = redisTemplate.opsForValue().increment(RedisKeys.CLUSTER_ROUTE_VERSION.getKey(nodeName));
+			redisTemplate.convertAndSend(RedisKeys.REDIS_CHANNEL_ROUTE.getKey(), encode(op, nodeName, version, topicFilter));
+		} catch (Throwable e) {
+			// 其他节点会在版本号检查时发现不一致并全量加载
+			log.error("Mqtt cluster route publish topicFilter:{} error.", topicFilter, e);
+		}
+	}
+
+	/**
+	 * 收到其他节点的增量变更
+	 *
+	 * @param body 消息
+	 */
+	private void onChange(String body) {
+		int nodeEnd = body.indexOf(SEPARATOR, 2);
+		int versionEnd = body.indexOf(SEPARATOR, nodeEnd + 1);
+		if (body.length() < 2 || nodeEnd < 0 || versionEnd < 0) {
+			log.warn("Mqtt cluster route change is invalid:{}", body);
+			return;
+		}
+		char op = body.charAt(0);
+		String node = body.substring(2, nodeEnd);
+		if (nodeName.equals(node)) {
+			return;
+		}
+		if (OP_LEAVE == op) {
+			scheduler.execute(() -> leave(node));
+			return;
+		}
+		// 全量摘要通知即新节点的加入通知，收到未知节点的变更时同样加入
+		if (!clusterNodes.contains(node)) {
+			scheduler.execute(() -> join(node));
+		}
+		long version = Long.parseLong(body.substring(nodeEnd + 1, versionEnd));
+		String topicFilter = body.substring(versionEnd + 1);
+		if (OP_RESET == op || !routeTable.apply(node, version, topicFilter, OP_ADD == op)) {
+			scheduler.execute(() -> load(node));
+		}
+	}
+
+	/**
+	 * 全量加载节点的摘要，先读版本号再读摘要，摘要可能包含更新的变更，之后的增量变更重复应用不影响结果
+	 *
+	 * @param node 节点名
+	 */
+	private void load(String node) {
+		try {
+			String value = redisTemplate.opsForValue().get(RedisKeys.CLUSTER_ROUTE_VERSION.getKey(node));
+			if (value == null) {
+				routeTable.remove(node);
+				return;
+			}
+			long version = Long.parseLong(value);
+			Set<String> topicFilters = redisTemplate.opsForSet().members(RedisKeys.CLUSTER_ROUTE.getKey(node));
+			routeTable.remove(node);
+			routeTable.update(node, version, topicFilters == null ? Collections.emptySet() : topicFilters);
+			behindNodes.remove(node);
+		} catch (Throwable e) {
+			log.error("Mqtt cluster route load node:{} error.", node, e);
+		}
+	}
+
+	/**
+	 * 节点加入
+	 *
+	 * @param node 节点名
+	 */
+	private void join(String node) {
+		if (clusterNodes.contains(node)) {
+			return;
+		}
+		Set<String> nodes = new HashSet<>(clusterNodes);
+		nodes.add(node);
+		this.clusterNodes = Collections.unmodifiableSet(nodes);
+	}
+
+	/**
+	 * 节点离开，清理节点的摘要和客户端
+	 *
+	 * @param node 节点名
+	 */
+	private void leave(String node) {
+		if (clientRegistry != null) {
+			clientRegistry.removeNode(node);
+		}
+		routeTable.remove(node);
+		behindNodes.remove(node);
+		// 最后移出节点列表，期间该节点按广播处理
+		if (clusterNodes.contains(node)) {
+			Set<String> nodes = new HashSet<>(clusterNodes);
+			nodes.remove(node);
+			this.clusterNodes = Collections.unmodifiableSet(nodes);
+		}
+	}
+
+	/**
+	 * 检查节点列表和版本号，补偿丢失的 pub/sub 通知
+	 */
+	private void check() {
+		try {
+			Set<String> members = redisTemplate.opsForSet().members(RedisKeys.CLUSTER_ROUTE_NODES.getKey());
+			Set<String> nodes = members == null ? new HashSet<>() : new HashSet<>(members);
+			nodes.remove(nodeName);
+			// 1. 清理已经下线的节点
+			for (String node : clusterNodes) {
+				if (!nodes.contains(node)) {
+					leave(node);
+				}
+			}
+			for (String node : routeTable.getNodes()) {
+				if (!nodes.contains(node)) {
+					leave(node);
+				}
+			}
+			// 2. 新节点全量加载，版本号连续两次落后时说明丢失了变更，也全量加载
+			List<String> nodeList = new ArrayList<>(nodes);
+			List<String> versionKeys = new ArrayList<>(nodeList.size());
+			for (String node : nodeList) {
+				versionKeys.add(RedisKeys.CLUSTER_ROUTE_VERSION.getKey(node));
+			}
+			List<String> versions = versionKeys.isEmpty() ? Collections.emptyList() : redisTemplate.opsForValue().multiGet(versionKeys);
+			for (int i = 0; i < nodeList.size(); i++) {
+				String node = nodeList.get(i);
+				long localVersion = routeTable.getVersion(node);
+				if (localVersion == MqttClusterRouteTable.UNKNOWN_VERSION) {
+					load(node);
+					continue;
+				}
+				String value = versions == null ? null : versions.get(i);
+				if (value == null || Long.parseLong(value) <= localVersion) {
+					behindNodes.remove(node);
+				} else if (Objects.equals(behindNodes.put(node, localVersion), localVersion)) {
+					load(node);
+				}
+			}
+			this.clusterNodes = Collections.unmodifiableSet(nodes);
+			this.membershipKnown = true;
+		} catch (Throwable e) {
+			// 读取失败时可能有未知的节点，改为广播
+			this.membershipKnown = false;
+			log.error("Mqtt cluster route check error.", e);
+		}
+	}
+
+	private static String encode(char op, String node, Long version, String topicFilter) {
+		return String.valueOf(op) + SEPARATOR + node + SEPARATOR + version + SEPARATOR + topicFilter;
+	}
+
+	@Override
+	public void afterSingletonsInstantiated() {
+		// 1. 订阅其他节点的变更
+		this.listenerContainer = new RedisMessageListenerContainer();
+		this.listenerContainer.setConnectionFactory(Objects.requireNonNull(redisTemplate.getConnectionFactory()));
+		this.listenerContainer.addMessageListener((message, pattern) -> onChange(new String(message.getBody(), StandardCharsets.UTF_8)),
+			new ChannelTopic(RedisKeys.REDIS_CHANNEL_ROUTE.getKey()));
+		this.listenerContainer.afterPropertiesSet();
+		this.listenerContainer.start();
+		// 2. 先注册监听再写全量摘要，之间的变更排在全量摘要之前或之后，结果都一致
+		if (!sessionManager.setTopicFilterListener(this)) {
+			log.warn("Mqtt session manager not support topicFilter listener, all messages will be routed to this node.");
+		}
+		scheduler.execute(this::publishSnapshot);
+		scheduler.scheduleWithFixedDelay(this::check, 0, syncInterval, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		sessionManager.setTopicFilterListener(null);
+		scheduler.shutdownNow();
+		if (listenerContainer != null) {
+			listenerContainer.destroy();
+		}
+		redisTemplate.opsForSet().remove(RedisKeys.CLUSTER_ROUTE_NODES.getKey(), nodeName);
+		redisTemplate.delete(RedisKeys.CLUSTER_ROUTE_VERSION.getKey(nodeName));
+		redisTemplate.delete(RedisKeys.CLUSTER_ROUTE.getKey(nodeName));
+		// 先移出节点 set 再通知，其他节点之后的检查不会再把本节点加回来
+		redisTemplate.convertAndSend(RedisKeys.REDIS_CHANNEL_ROUTE.getKey(), encode(OP_LEAVE, nodeName, 0L, StringPool.EMPTY));
+	}
+
+}
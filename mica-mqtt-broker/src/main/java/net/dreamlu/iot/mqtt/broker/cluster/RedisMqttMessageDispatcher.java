@@ -16,38 +16,109 @@
 
 package net.dreamlu.iot.mqtt.broker.cluster;
 
-import net.dreamlu.iot.mqtt.core.server.dispatcher.IMqttMessageDispatcher;
+import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterClientRegistry;
+import net.dreamlu.iot.mqtt.core.server.dispatcher.AbstractMqttMessageDispatcher;
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
 import net.dreamlu.iot.mqtt.core.server.model.Message;
 import net.dreamlu.iot.mqtt.core.server.serializer.IMessageSerializer;
-import net.dreamlu.mica.redis.stream.RStreamTemplate;
 
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
 
 /**
- * redis 消息转发器
+ * redis 消息转发器，先处理本节点，再由 {@link RedisStreamBatchWriter} 异步批量写入 redis stream 转发到其他节点
  *
  * @author L.cm
  */
-public class RedisMqttMessageDispatcher implements IMqttMessageDispatcher {
-	private final RStreamTemplate streamTemplate;
+public class RedisMqttMessageDispatcher extends AbstractMqttMessageDispatcher {
+	private final RedisStreamBatchWriter streamWriter;
 	private final IMessageSerializer messageSerializer;
 	private final String channel;
+	private final Supplier<RedisMqttClusterRouteManage> routeManageSupplier;
+	private final MqttClusterClientRegistry clientRegistry;
+	private RedisMqttClusterRouteManage routeManage;
 
-	public RedisMqttMessageDispatcher(RStreamTemplate streamTemplate,
+	public RedisMqttMessageDispatcher(RedisStreamBatchWriter streamWriter,
 									  IMessageSerializer messageSerializer,
 									  String channel) {
-		this.streamTemplate = streamTemplate;
+		this(streamWriter, messageSerializer, channel, null, null);
+	}
+
+	public RedisMqttMessageDispatcher(RedisStreamBatchWriter streamWriter,
+									  IMessageSerializer messageSerializer,
+									  String channel,
+									  Supplier<RedisMqttClusterRouteManage> routeManageSupplier,
+									  MqttClusterClientRegistry clientRegistry) {
+		this.streamWriter = streamWriter;
 		this.messageSerializer = messageSerializer;
 		this.channel = Objects.requireNonNull(channel, "Redis pub/sub channel is null.");
+		this.routeManageSupplier = routeManageSupplier;
+		this.clientRegistry = clientRegistry;
 	}
 
 	@Override
-	public boolean send(Message message) {
+	public void sendAll(Message message) {
 		// 手动序列化和反序列化，避免 redis 序列化不一致问题
 		String topic = message.getTopic();
-		String key = topic == null ? message.getClientId() : topic;
-		streamTemplate.send(channel, key, message, messageSerializer::serialize);
-		return true;
+		String nodeName = message.getNode();
+		MessageType messageType = message.getMessageType();
+		RedisMqttClusterRouteManage routeManage = getRouteManage();
+		String clientId = message.getClientId();
+		if (clientRegistry != null && clientId != null) {
+			if (MessageType.CONNECT == messageType) {
+				// 本节点的连接，广播给所有节点更新注册表
+				message.setTimestamp(clientRegistry.nextVersion());
+				clientRegistry.update(clientId, nodeName, message.getTimestamp());
+			} else if (MessageType.OFFLINE == messageType) {
+				clientRegistry.remove(clientId, nodeName, message.getTimestamp());
+			} else if (MessageType.DOWN_STREAM == messageType || MessageType.DISCONNECT == messageType) {
+				// 指定了 clientId 的消息只发送到客户端所在节点的 stream，本节点已处理过
+				String clientNode = clientRegistry.getNode(clientId);
+				if (nodeName.equals(clientNode)) {
+					return;
+				}
+				if (clientNode != null && routeManage != null && routeManage.isClusterNode(clientNode)) {
+					streamWriter.send(getNodeChannel(channel, clientNode), nodeName, messageSerializer.serialize(message));
+					return;
+				}
+			}
+		}
+		// 上下行消息按订阅摘要只转发到存在订阅者的其他节点，其他消息和节点列表未知时仍然广播
+		Set<String> nodes = null;
+		if (routeManage != null && topic != null
+			&& (MessageType.UP_STREAM == messageType || MessageType.DOWN_STREAM == messageType)) {
+			nodes = routeManage.getTargetNodes(topic);
+		}
+		if (nodes != null) {
+			byte[] messageBytes = null;
+			for (String node : nodes) {
+				if (messageBytes == null) {
+					messageBytes = messageSerializer.serialize(message);
+				}
+				streamWriter.send(getNodeChannel(channel, node), nodeName, messageBytes);
+			}
+			return;
+		}
+		streamWriter.send(channel, nodeName, messageSerializer.serialize(message));
+	}
+
+	private RedisMqttClusterRouteManage getRouteManage() {
+		if (routeManage == null && routeManageSupplier != null) {
+			routeManage = routeManageSupplier.get();
+		}
+		return routeManage;
+	}
+
+	/**
+	 * 节点的 stream 名称
+	 *
+	 * @param channel  channel
+	 * @param nodeName 节点名
+	 * @return stream 名称
+	 */
+	public static String getNodeChannel(String channel, String nodeName) {
+		return channel + ':' + nodeName;
 	}
 
 }
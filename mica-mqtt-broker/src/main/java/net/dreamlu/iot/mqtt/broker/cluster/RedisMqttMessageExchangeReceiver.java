@@ -18,6 +18,7 @@ package net.dreamlu.iot.mqtt.broker.cluster;
 
 import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
 import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterClientRegistry;
 import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterMessageListener;
 import net.dreamlu.iot.mqtt.core.server.model.Message;
 import net.dreamlu.iot.mqtt.core.server.serializer.IMessageSerializer;
@@ -41,9 +42,10 @@ public class RedisMqttMessageExchangeReceiver {
 	private final MqttClusterMessageListener clusterMessageListener;
 
 	public RedisMqttMessageExchangeReceiver(IMessageSerializer messageSerializer,
-											MqttServer mqttServer) {
+											MqttServer mqttServer,
+											MqttClusterClientRegistry clientRegistry) {
 		this.messageSerializer = messageSerializer;
-		this.clusterMessageListener = new MqttClusterMessageListener(mqttServer);
+		this.clusterMessageListener = new MqttClusterMessageListener(mqttServer, null, clientRegistry);
 	}
 
 	@RStreamListener(
@@ -54,7 +56,11 @@ public class RedisMqttMessageExchangeReceiver {
 	public void mqttMessageUpReceiver(MapRecord<String, String, byte[]> mapRecord) {
 		// 手动序列化和反序列化，避免 redis 序列化不一致问题
 		Map<String, byte[]> recordValue = mapRecord.getValue();
-		recordValue.forEach((key, messageBody) -> {
+		recordValue.forEach((field, messageBody) -> {
+			// 按字段中的来源节点跳过本节点的消息，无需反序列化
+			if (clusterMessageListener.isLocalNode(RedisStreamBatchWriter.getNode(field))) {
+				return;
+			}
 			// 手动序列化和反序列化，避免 redis 序列化不一致问题
 			Message mqttMessage = messageSerializer.deserialize(messageBody);
 			if (mqttMessage == null) {
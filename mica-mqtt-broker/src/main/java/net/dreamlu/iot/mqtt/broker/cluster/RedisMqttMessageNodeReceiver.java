@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterClientRegistry;
+import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterMessageListener;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.serializer.IMessageSerializer;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.stream.StreamMessageListenerContainer;
+import org.springframework.data.redis.stream.StreamMessageListenerContainer.StreamMessageListenerContainerOptions;
+
+import java.time.Duration;
+
+/**
+ * 本节点的 stream，接收按订阅路由转发过来的上下行消息
+ *
+ * @author L.cm
+ */
+@Slf4j
+public class RedisMqttMessageNodeReceiver implements SmartInitializingSingleton, DisposableBean {
+	private final RedisConnectionFactory connectionFactory;
+	private final IMessageSerializer messageSerializer;
+	private final MqttClusterMessageListener clusterMessageListener;
+	private final String streamKey;
+	private StreamMessageListenerContainer<String, MapRecord<String, String, byte[]>> container;
+
+	public RedisMqttMessageNodeReceiver(RedisConnectionFactory connectionFactory,
+										IMessageSerializer messageSerializer,
+										MqttServer mqttServer,
+										MqttClusterClientRegistry clientRegistry) {
+		this.connectionFactory = connectionFactory;
+		this.messageSerializer = messageSerializer;
+		this.clusterMessageListener = new MqttClusterMessageListener(mqttServer, null, clientRegistry);
+		String nodeName = mqttServer.getServerCreator().getNodeName();
+		this.streamKey = RedisMqttMessageDispatcher.getNodeChannel(RedisKeys.REDIS_CHANNEL_EXCHANGE_KEY, nodeName);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	@Override
+	public void afterSingletonsInstantiated() {
+		// 手动序列化和反序列化，避免 redis 序列化不一致问题
+		StreamMessageListenerContainerOptions<String, MapRecord<String, String, byte[]>> options =
+			(StreamMessageListenerContainerOptions) StreamMessageListenerContainerOptions.builder()
+				.pollTimeout(Duration.ofSeconds(1))
+				.keySerializer(RedisSerializer.string())
+				.hashKeySerializer(RedisSerializer.string())
+				.hashValueSerializer(RedisSerializer.byteArray())
+				.build();
+		this.container = StreamMessageListenerContainer.create(connectionFactory, options);
+		// latest 每次轮询都从 $ 开始，两次轮询之间写入的记录会丢失，lastConsumed 从上次读到的记录之后继续读取
+		this.container.receive(StreamOffset.create(streamKey, ReadOffset.lastConsumed()), this::onRecord);
+		this.container.start();
+	}
+
+	private void onRecord(MapRecord<String, String, byte[]> mapRecord) {
+		mapRecord.getValue().forEach((field, messageBody) -> {
+			// 按字段中的来源节点跳过本节点的消息，无需反序列化
+			if (clusterMessageListener.isLocalNode(RedisStreamBatchWriter.getNode(field))) {
+				return;
+			}
+			try {
+				Message mqttMessage = messageSerializer.deserialize(messageBody);
+				if (mqttMessage != null) {
+					clusterMessageListener.onMessage(mqttMessage);
+				}
+			} catch (Throwable e) {
+				log.error("Mqtt node stream:{} message handle error.", streamKey, e);
+			}
+		});
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if (container != null) {
+			container.stop();
+		}
+	}
+
+}
@@ -16,27 +16,110 @@
 
 package net.dreamlu.iot.mqtt.broker.cluster;
 
-import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
 import net.dreamlu.iot.mqtt.broker.util.RedisUtil;
 import net.dreamlu.iot.mqtt.core.server.model.Message;
 import net.dreamlu.iot.mqtt.core.server.serializer.IMessageSerializer;
 import net.dreamlu.iot.mqtt.core.server.store.IMqttMessageStore;
 import net.dreamlu.iot.mqtt.core.util.TopicUtil;
+import net.dreamlu.mica.core.utils.CharPool;
+import net.dreamlu.mica.core.utils.StringPool;
 import net.dreamlu.mica.redis.cache.MicaRedisCache;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.data.redis.connection.DataType;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * redis mqtt 遗嘱和保留消息存储
  *
+ * <p>
+ * 保留消息按 topic 第一级分成多个 hash，并用 zset 保存 topic 索引。查询时按 topicFilter 通配符前的前缀做字典序范围查询，
+ * 再用 HMGET 批量获取，开销和匹配到的 topic 数相关，而不是整个 keyspace。查询结果缓存在本节点，保留消息变更时通过
+ * redis pub/sub 通知所有节点失效。本地缓存按 topicFilter 的第一级建立索引，失效时只检查 topic 第一级和以通配符开头的 topicFilter。
+ * 本地缓存限制条数、每条缓存的消息数和过期时间，pub/sub 丢失通知时最多读到过期时间内的旧数据。
+ * 启动时把旧版本按 topic 单独存储的保留消息迁移到新结构。设置了过期时间的保留消息同时记录到按过期时间排序的 zset，
+ * 由服务端定时分批清理。
+ * </p>
+ *
  * @author L.cm
  */
-@RequiredArgsConstructor
-public class RedisMqttMessageStore implements IMqttMessageStore {
+@Slf4j
+public class RedisMqttMessageStore implements IMqttMessageStore, InitializingBean, DisposableBean {
+	/**
+	 * utf-8 编码中不会出现 0xff，前缀加上 0xff 作为字典序范围的上界
+	 */
+	private static final byte LEX_MAX = (byte) 0xff;
+	/**
+	 * 匹配到的保留消息超过该数量时不缓存
+	 */
+	private static final int NEAR_CACHE_MAX_MESSAGES = 1000;
+	private static final String WILDCARD_ONE = "+";
+	private static final String WILDCARD_MORE = "#";
 	private final MicaRedisCache redisCache;
+	private final StringRedisTemplate redisTemplate;
 	private final IMessageSerializer messageSerializer;
+	private final int nearCacheSize;
+	private final long nearCacheTtlMillis;
+	/**
+	 * 本地缓存 topicFilter: 保留消息
+	 */
+	private final Map<String, CacheEntry> nearCache;
+	/**
+	 * 本地缓存索引 topicFilter 第一级: topicFilter 集合，和 nearCache 一起在 nearCache 锁内修改
+	 */
+	private final Map<String, Set<String>> nearCacheIndex = new HashMap<>();
+	/**
+	 * 失效次数，加载期间有失效时不写缓存，避免写入旧数据
+	 */
+	private final AtomicLong invalidateVersion = new AtomicLong();
+	private RedisMessageListenerContainer listenerContainer;
+
+	public RedisMqttMessageStore(MicaRedisCache redisCache,
+								 StringRedisTemplate redisTemplate,
+								 IMessageSerializer messageSerializer) {
+		this(redisCache, redisTemplate, messageSerializer, 10_000, 60_000L);
+	}
+
+	/**
+	 * 构造器
+	 *
+	 * @param redisCache         MicaRedisCache
+	 * @param redisTemplate      StringRedisTemplate
+	 * @param messageSerializer  IMessageSerializer
+	 * @param nearCacheSize      本地缓存最大条数
+	 * @param nearCacheTtlMillis 本地缓存过期时间，单位毫秒
+	 */
+	public RedisMqttMessageStore(MicaRedisCache redisCache,
+								 StringRedisTemplate redisTemplate,
+								 IMessageSerializer messageSerializer,
+								 int nearCacheSize,
+								 long nearCacheTtlMillis) {
+		this.redisCache = redisCache;
+		this.redisTemplate = redisTemplate;
+		this.messageSerializer = messageSerializer;
+		this.nearCacheSize = nearCacheSize;
+		this.nearCacheTtlMillis = nearCacheTtlMillis;
+		this.nearCache = new LinkedHashMap<String, CacheEntry>(256, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > RedisMqttMessageStore.this.nearCacheSize) {
+					unindex(eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
 
 	@Override
 	public boolean addWillMessage(String clientId, Message message) {
@@ -57,33 +140,300 @@ public class RedisMqttMessageStore implements IMqttMessageStore {
 
 	@Override
 	public boolean addRetainMessage(String topic, Message message) {
-		redisCache.set(RedisKeys.MESSAGE_STORE_RETAIN.getKey(topic), message, messageSerializer::serialize);
+		String firstLevel = RedisUtil.getFirstLevel(topic);
+		byte[] hashKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN.getKey(firstLevel));
+		byte[] topicsKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN_TOPICS.getKey(firstLevel));
+		byte[] levelsKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN_LEVELS.getKey());
+		byte[] expiryKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN_EXPIRY.getKey());
+		byte[] topicBytes = bytes(topic);
+		byte[] messageBytes = messageSerializer.serialize(message);
+		Long expiryAt = message.getExpiryAt();
+		redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+			connection.hashCommands().hSet(hashKey, topicBytes, messageBytes);
+			connection.zSetCommands().zAdd(topicsKey, 0, topicBytes);
+			connection.setCommands().sAdd(levelsKey, bytes(firstLevel));
+			// 覆盖旧的保留消息时也要更新过期索引
+			if (expiryAt == null) {
+				connection.zSetCommands().zRem(expiryKey, topicBytes);
+			} else {
+				connection.zSetCommands().zAdd(expiryKey, expiryAt, topicBytes);
+			}
+			return null;
+		});
+		invalidate(topic);
 		return true;
 	}
 
 	@Override
 	public boolean clearRetainMessage(String topic) {
-		redisCache.del(RedisKeys.MESSAGE_STORE_RETAIN.getKey(topic));
+		String firstLevel = RedisUtil.getFirstLevel(topic);
+		byte[] hashKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN.getKey(firstLevel));
+		byte[] topicsKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN_TOPICS.getKey(firstLevel));
+		byte[] expiryKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN_EXPIRY.getKey());
+		byte[] topicBytes = bytes(topic);
+		redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+			connection.hashCommands().hDel(hashKey, topicBytes);
+			connection.zSetCommands().zRem(topicsKey, topicBytes);
+			connection.zSetCommands().zRem(expiryKey, topicBytes);
+			return null;
+		});
+		invalidate(topic);
 		return true;
 	}
 
+	@Override
+	public int removeExpiredRetainMessage(long now, int limit) {
+		byte[] expiryKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN_EXPIRY.getKey());
+		Set<byte[]> topics = redisTemplate.execute((RedisCallback<Set<byte[]>>) connection ->
+			connection.zSetCommands().zRangeByScore(expiryKey, 0, now, 0, limit));
+		if (topics == null || topics.isEmpty()) {
+			return 0;
+		}
+		int removed = 0;
+		for (byte[] topicBytes : topics) {
+			String topic = new String(topicBytes, StandardCharsets.UTF_8);
+			byte[] hashKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN.getKey(RedisUtil.getFirstLevel(topic)));
+			byte[] value = redisTemplate.execute((RedisCallback<byte[]>) connection -> connection.hashCommands().hGet(hashKey, topicBytes));
+			Message message = value == null ? null : messageSerializer.deserialize(value);
+			// 索引读取之后可能被新的保留消息覆盖，再检查一次，未过期的只修正索引
+			if (message != null && !message.isExpired(now)) {
+				Long expiryAt = message.getExpiryAt();
+				redisTemplate.execute((RedisCallback<Object>) connection -> {
+					if (expiryAt == null) {
+						connection.zSetCommands().zRem(expiryKey, topicBytes);
+					} else {
+						connection.zSetCommands().zAdd(expiryKey, expiryAt, topicBytes);
+					}
+					return null;
+				});
+				continue;
+			}
+			clearRetainMessage(topic);
+			removed++;
+		}
+		return removed;
+	}
+
 	@Override
 	public List<Message> getRetainMessage(String topicFilter) {
+		long now = System.currentTimeMillis();
+		CacheEntry cached;
+		synchronized (nearCache) {
+			cached = nearCache.get(topicFilter);
+			if (cached != null && cached.expireAt <= now) {
+				nearCache.remove(topicFilter);
+				unindex(topicFilter);
+				cached = null;
+			}
+		}
+		if (cached != null) {
+			return new ArrayList<>(cached.messages);
+		}
+		long version = invalidateVersion.get();
+		List<Message> retainMessageList = loadRetainMessage(topicFilter);
+		if (retainMessageList.size() > NEAR_CACHE_MAX_MESSAGES) {
+			return retainMessageList;
+		}
+		synchronized (nearCache) {
+			if (version == invalidateVersion.get()) {
+				nearCache.put(topicFilter, new CacheEntry(new ArrayList<>(retainMessageList), now + nearCacheTtlMillis));
+				nearCacheIndex.computeIfAbsent(RedisUtil.getFirstLevel(topicFilter), (key) -> new HashSet<>()).add(topicFilter);
+			}
+		}
+		return retainMessageList;
+	}
+
+	private List<Message> loadRetainMessage(String topicFilter) {
+		// 1. 普通 topic，直接获取
+		String literalPrefix = RedisUtil.getLiteralPrefix(topicFilter);
+		if (literalPrefix.length() == topicFilter.length()) {
+			return getRetainMessage(RedisUtil.getFirstLevel(topicFilter), Collections.singletonList(topicFilter));
+		}
+		// 2. 第一级是通配符时需要遍历所有的第一级，否则只查该级下的前缀范围
+		Collection<String> firstLevels;
+		if (literalPrefix.indexOf(CharPool.SLASH) < 0) {
+			Set<String> levels = redisTemplate.opsForSet().members(RedisKeys.MESSAGE_STORE_RETAIN_LEVELS.getKey());
+			firstLevels = levels == null ? Collections.emptySet() : levels;
+		} else {
+			firstLevels = Collections.singletonList(RedisUtil.getFirstLevel(literalPrefix));
+		}
+		// 按原始字节做字典序范围查询：[prefix, prefix + 0xff]，前缀为空时查询全部
+		RedisZSetCommands.Range range;
+		if (literalPrefix.isEmpty()) {
+			range = RedisZSetCommands.Range.unbounded();
+		} else {
+			byte[] prefixBytes = bytes(literalPrefix);
+			byte[] maxBytes = Arrays.copyOf(prefixBytes, prefixBytes.length + 1);
+			maxBytes[prefixBytes.length] = LEX_MAX;
+			range = RedisZSetCommands.Range.range().gte(prefixBytes).lte(maxBytes);
+		}
+		List<Message> retainMessageList = new ArrayList<>();
+		for (String firstLevel : firstLevels) {
+			byte[] topicsKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN_TOPICS.getKey(firstLevel));
+			Set<byte[]> topics = redisTemplate.execute((RedisCallback<Set<byte[]>>) connection -> connection.zSetCommands().zRangeByLex(topicsKey, range));
+			List<String> matchedTopics = new ArrayList<>();
+			if (topics != null) {
+				for (byte[] topicBytes : topics) {
+					String topic = new String(topicBytes, StandardCharsets.UTF_8);
+					if (TopicUtil.match(topicFilter, topic)) {
+						matchedTopics.add(topic);
+					}
+				}
+			}
+			// a/# 也匹配 a，不在 a/ 的前缀范围内
+			if (topicFilter.endsWith("/#")) {
+				String parentTopic = topicFilter.substring(0, topicFilter.length() - 2);
+				if (literalPrefix.length() == parentTopic.length() + 1) {
+					matchedTopics.add(parentTopic);
+				}
+			}
+			retainMessageList.addAll(getRetainMessage(firstLevel, matchedTopics));
+		}
+		return retainMessageList;
+	}
+
+	private List<Message> getRetainMessage(String firstLevel, List<String> topics) {
+		if (topics.isEmpty()) {
+			return new ArrayList<>();
+		}
+		byte[] hashKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN.getKey(firstLevel));
+		byte[][] fields = new byte[topics.size()][];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = bytes(topics.get(i));
+		}
+		List<byte[]> values = redisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.hashCommands().hMGet(hashKey, fields));
 		List<Message> retainMessageList = new ArrayList<>();
-		RedisKeys redisKey = RedisKeys.MESSAGE_STORE_RETAIN;
-		String redisKeyPrefix = redisKey.getKey();
-		String redisKeyPattern = redisKeyPrefix.concat(RedisUtil.getTopicPattern(topicFilter));
-		int keyPrefixLength = redisKeyPrefix.length();
-		redisCache.scan(redisKeyPattern, (key) -> {
-			String keySuffix = key.substring(keyPrefixLength);
-			if (TopicUtil.match(topicFilter, keySuffix)) {
-				Message message = redisCache.get(key, messageSerializer::deserialize);
+		if (values == null) {
+			return retainMessageList;
+		}
+		for (byte[] value : values) {
+			if (value != null) {
+				Message message = messageSerializer.deserialize(value);
 				if (message != null) {
 					retainMessageList.add(message);
 				}
 			}
-		});
+		}
 		return retainMessageList;
 	}
 
+	/**
+	 * 失效本节点缓存并通知其他节点
+	 *
+	 * @param topic topic
+	 */
+	private void invalidate(String topic) {
+		invalidateLocal(topic);
+		redisTemplate.convertAndSend(RedisKeys.REDIS_CHANNEL_RETAIN_INVALIDATE.getKey(), topic);
+	}
+
+	private void invalidateLocal(String topic) {
+		synchronized (nearCache) {
+			invalidateVersion.incrementAndGet();
+			// 能匹配 topic 的 topicFilter 第一级只能是 topic 的第一级或者通配符
+			invalidateLocal(RedisUtil.getFirstLevel(topic), topic);
+			invalidateLocal(WILDCARD_ONE, topic);
+			invalidateLocal(WILDCARD_MORE, topic);
+		}
+	}
+
+	private void invalidateLocal(String firstLevel, String topic) {
+		Set<String> topicFilters = nearCacheIndex.get(firstLevel);
+		if (topicFilters == null) {
+			return;
+		}
+		Iterator<String> iterator = topicFilters.iterator();
+		while (iterator.hasNext()) {
+			String topicFilter = iterator.next();
+			if (TopicUtil.match(topicFilter, topic)) {
+				nearCache.remove(topicFilter);
+				iterator.remove();
+			}
+		}
+		if (topicFilters.isEmpty()) {
+			nearCacheIndex.remove(firstLevel);
+		}
+	}
+
+	/**
+	 * 从本地缓存索引中删除，需要持有 nearCache 锁
+	 *
+	 * @param topicFilter topicFilter
+	 */
+	private void unindex(String topicFilter) {
+		String firstLevel = RedisUtil.getFirstLevel(topicFilter);
+		Set<String> topicFilters = nearCacheIndex.get(firstLevel);
+		if (topicFilters != null && topicFilters.remove(topicFilter) && topicFilters.isEmpty()) {
+			nearCacheIndex.remove(firstLevel);
+		}
+	}
+
+	/**
+	 * 迁移旧版本的保留消息，旧版本每个 topic 一个 string 类型的 key：前缀:topic
+	 */
+	private void migrateLegacyRetainMessage() {
+		String legacyKeyPrefix = RedisKeys.MESSAGE_STORE_RETAIN_LEGACY.getKey();
+		byte[] levelsKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN_LEVELS.getKey());
+		AtomicLong count = new AtomicLong();
+		redisCache.scan(legacyKeyPrefix.concat(StringPool.STAR), key -> {
+			// 新结构的 hash、zset、set 使用相同的前缀，只迁移 string 类型
+			if (DataType.STRING != redisTemplate.type(key)) {
+				return;
+			}
+			Message message = redisCache.get(key, messageSerializer::deserialize);
+			String topic = key.substring(legacyKeyPrefix.length());
+			if (message != null) {
+				String firstLevel = RedisUtil.getFirstLevel(topic);
+				byte[] hashKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN.getKey(firstLevel));
+				byte[] topicsKey = bytes(RedisKeys.MESSAGE_STORE_RETAIN_TOPICS.getKey(firstLevel));
+				byte[] topicBytes = bytes(topic);
+				byte[] messageBytes = messageSerializer.serialize(message);
+				// 新结构中已有的保留消息更新，不覆盖
+				redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+					connection.hashCommands().hSetNX(hashKey, topicBytes, messageBytes);
+					connection.zSetCommands().zAdd(topicsKey, 0, topicBytes);
+					connection.setCommands().sAdd(levelsKey, bytes(firstLevel));
+					return null;
+				});
+			}
+			redisCache.del(key);
+			count.incrementAndGet();
+		});
+		if (count.get() > 0) {
+			log.info("Mqtt retain message migrated {} legacy keys.", count.get());
+		}
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		migrateLegacyRetainMessage();
+		this.listenerContainer = new RedisMessageListenerContainer();
+		this.listenerContainer.setConnectionFactory(Objects.requireNonNull(redisTemplate.getConnectionFactory()));
+		this.listenerContainer.addMessageListener((message, pattern) -> invalidateLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+			new ChannelTopic(RedisKeys.REDIS_CHANNEL_RETAIN_INVALIDATE.getKey()));
+		this.listenerContainer.afterPropertiesSet();
+		this.listenerContainer.start();
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		if (listenerContainer != null) {
+			listenerContainer.destroy();
+		}
+	}
+
+	private static class CacheEntry {
+		private final List<Message> messages;
+		private final long expireAt;
+
+		private CacheEntry(List<Message> messages, long expireAt) {
+			this.messages = messages;
+			this.expireAt = expireAt;
+		}
+	}
+
 }
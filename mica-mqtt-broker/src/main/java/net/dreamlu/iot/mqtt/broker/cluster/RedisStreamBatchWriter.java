@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.cluster;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStreamCommands.XAddOptions;
+import org.springframework.data.redis.connection.stream.MapRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * redis stream 异步批量写入：
+ *
+ * <p>
+ * 1. 调用线程只把消息放入无锁队列，不等待 redis 往返。
+ * 2. 写入线程在攒够 maxBatchSize 条或等待 linger 时间后刷新，同一个 stream 的消息合并成一条多字段的记录，多个 stream 使用 pipeline 一次发送。
+ * 3. 队列达到 maxQueueSize 时调用线程最多等待 offerTimeout，超时后丢弃消息，以此限制内存并向上游施加背压。
+ * 4. 写入时使用 MAXLEN ~ 近似裁剪 stream，限制 redis 内存，近似裁剪只删除整个节点，开销很小。
+ * </p>
+ *
+ * @author L.cm
+ */
+@Slf4j
+public class RedisStreamBatchWriter implements MeterBinder, InitializingBean, DisposableBean {
+	private final RedisConnectionFactory connectionFactory;
+	private final int maxBatchSize;
+	private final long lingerNanos;
+	private final int maxQueueSize;
+	private final long offerTimeoutNanos;
+	private final XAddOptions addOptions;
+	private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger queueSize = new AtomicInteger();
+	private final LongAdder flushCount = new LongAdder();
+	private final LongAdder flushedMessages = new LongAdder();
+	private final LongAdder failedMessages = new LongAdder();
+	private final LongAdder droppedMessages = new LongAdder();
+	private final LongAdder flushNanos = new LongAdder();
+	private final AtomicLong maxFlushNanos = new AtomicLong();
+	private volatile int lastFlushSize;
+	private volatile boolean running;
+	private Thread flushThread;
+
+	public RedisStreamBatchWriter(RedisConnectionFactory connectionFactory) {
+		this(connectionFactory, 512, 2, 100_000, 100, 10_000);
+	}
+
+	public RedisStreamBatchWriter(RedisConnectionFactory connectionFactory, int maxBatchSize, long lingerMillis,
+								  int maxQueueSize, long offerTimeoutMillis) {
+		this(connectionFactory, maxBatchSize, lingerMillis, maxQueueSize, offerTimeoutMillis, 10_000);
+	}
+
+	/**
+	 * 构造器
+	 *
+	 * @param connectionFactory  RedisConnectionFactory
+	 * @param maxBatchSize       每批最多消息条数
+	 * @param lingerMillis       攒批等待时间，单位毫秒
+	 * @param maxQueueSize       队列最大消息条数
+	 * @param offerTimeoutMillis 队列满时调用线程最长等待时间，单位毫秒
+	 * @param maxLen             stream 近似保留的最大记录数，每条记录为一批消息，小于等于 0 时不裁剪
+	 */
+	public RedisStreamBatchWriter(RedisConnectionFactory connectionFactory, int maxBatchSize, long lingerMillis,
+								  int maxQueueSize, long offerTimeoutMillis, long maxLen) {
+		this.connectionFactory = connectionFactory;
+		this.maxBatchSize = maxBatchSize;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		this.maxQueueSize = maxQueueSize;
+		this.offerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+		this.addOptions = maxLen > 0 ? XAddOptions.maxlen(maxLen).approximateTrimming(true) : XAddOptions.none();
+	}
+
+	/**
+	 * 写入消息
+	 *
+	 * @param stream stream 名称
+	 * @param node   消息来源节点，写入字段名，接收方无需反序列化即可跳过本节点的消息
+	 * @param data   消息体
+	 * @return 是否成功入队，队列满且等待超时后返回 false
+	 */
+	public boolean send(String stream, String node, byte[] data) {
+		if (!running) {
+			droppedMessages.increment();
+			return false;
+		}
+		// 队列满时等待写入线程消费，背压到调用线程
+		if (queueSize.get() >= maxQueueSize) {
+			long deadline = System.nanoTime() + offerTimeoutNanos;
+			while (queueSize.get() >= maxQueueSize) {
+				if (System.nanoTime() >= deadline) {
+					droppedMessages.increment();
+					log.warn("Redis stream:{} batch writer queue is full, message from node:{} dropped.", stream, node);
+					return false;
+				}
+				LockSupport.unpark(flushThread);
+				LockSupport.parkNanos(100_000L);
+			}
+		}
+		queue.offer(new Entry(stream, node, data));
+		int size = queueSize.incrementAndGet();
+		// 队列由空变为非空或攒够一批时唤醒写入线程
+		if (size == 1 || size == maxBatchSize) {
+			LockSupport.unpark(flushThread);
+		}
+		return true;
+	}
+
+	private void flushLoop() {
+		List<Entry> batch = new ArrayList<>(maxBatchSize);
+		while (running || queueSize.get() > 0) {
+			if (queueSize.get() == 0) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+				continue;
+			}
+			// 攒批：等待凑够一批或者 linger 超时
+			long deadline = System.nanoTime() + lingerNanos;
+			long remaining;
+			while (running && queueSize.get() < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(remaining);
+			}
+			Entry entry;
+			while (batch.size() < maxBatchSize && (entry = queue.poll()) != null) {
+				batch.add(entry);
+			}
+			queueSize.addAndGet(-batch.size());
+			try {
+				flush(batch);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void flush(List<Entry> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		// 同一个 stream 的消息合并成一条记录，字段名为 序号:来源节点
+		Map<String, Map<byte[], byte[]>> streamRecords = new LinkedHashMap<>();
+		for (int i = 0; i < batch.size(); i++) {
+			Entry entry = batch.get(i);
+			byte[] field = getField(i, entry.node).getBytes(StandardCharsets.UTF_8);
+			streamRecords.computeIfAbsent(entry.stream, (key) -> new LinkedHashMap<>()).put(field, entry.data);
+		}
+		long startTime = System.nanoTime();
+		RedisConnection connection = connectionFactory.getConnection();
+		try {
+			connection.openPipeline();
+			streamRecords.forEach((stream, fields) -> {
+				byte[] streamKey = stream.getBytes(StandardCharsets.UTF_8);
+				connection.streamCommands().xAdd(MapRecord.create(streamKey, fields), addOptions);
+			});
+			connection.closePipeline();
+			flushedMessages.add(batch.size());
+		} catch (Throwable e) {
+			failedMessages.add(batch.size());
+			log.error("Redis stream batch writer flush {} messages error.", batch.size(), e);
+		} finally {
+			connection.close();
+		}
+		long cost = System.nanoTime() - startTime;
+		flushCount.increment();
+		flushNanos.add(cost);
+		maxFlushNanos.accumulateAndGet(cost, Math::max);
+		lastFlushSize = batch.size();
+	}
+
+	@Override
+	public void afterPropertiesSet() {
+		this.running = true;
+		this.flushThread = new Thread(this::flushLoop, "mqtt-redis-stream-writer");
+		this.flushThread.setDaemon(true);
+		this.flushThread.start();
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		// 停止接收新消息，写入剩余的消息后退出
+		this.running = false;
+		if (flushThread != null) {
+			LockSupport.unpark(flushThread);
+			flushThread.join(TimeUnit.SECONDS.toMillis(10));
+		}
+	}
+
+	@Override
+	public void bindTo(MeterRegistry registry) {
+		Gauge.builder("mqtt.redis.stream.writer.queue.size", queueSize, AtomicInteger::get)
+			.description("redis stream 待写入消息数")
+			.register(registry);
+		FunctionCounter.builder("mqtt.redis.stream.writer.flushes", flushCount, LongAdder::sum)
+			.description("redis stream 刷新次数")
+			.register(registry);
+		FunctionCounter.builder("mqtt.redis.stream.writer.messages", flushedMessages, LongAdder::sum)
+			.tag("result", "success")
+			.register(registry);
+		FunctionCounter.builder("mqtt.redis.stream.writer.messages", failedMessages, LongAdder::sum)
+			.tag("result", "failed")
+			.register(registry);
+		FunctionCounter.builder("mqtt.redis.stream.writer.messages", droppedMessages, LongAdder::sum)
+			.tag("result", "dropped")
+			.register(registry);
+		Gauge.builder("mqtt.redis.stream.writer.flush.size", this, RedisStreamBatchWriter::getAvgFlushSize)
+			.description("redis stream 平均每次刷新的消息数")
+			.register(registry);
+		Gauge.builder("mqtt.redis.stream.writer.flush.latency", this, RedisStreamBatchWriter::getAvgFlushMillis)
+			.description("redis stream 平均每次刷新耗时，单位毫秒")
+			.register(registry);
+		Gauge.builder("mqtt.redis.stream.writer.flush.latency.max", this, RedisStreamBatchWriter::getMaxFlushMillis)
+			.description("redis stream 最大刷新耗时，单位毫秒")
+			.register(registry);
+	}
+
+	public int getQueueSize() {
+		return queueSize.get();
+	}
+
+	public long getFlushCount() {
+		return flushCount.sum();
+	}
+
+	public long getFlushedMessages() {
+		return flushedMessages.sum();
+	}
+
+	public long getFailedMessages() {
+		return failedMessages.sum();
+	}
+
+	public long getDroppedMessages() {
+		return droppedMessages.sum();
+	}
+
+	public int getLastFlushSize() {
+		return lastFlushSize;
+	}
+
+	public double getAvgFlushSize() {
+		long count = flushCount.sum();
+		return count == 0 ? 0 : (double) (flushedMessages.sum() + failedMessages.sum()) / count;
+	}
+
+	public double getAvgFlushMillis() {
+		long count = flushCount.sum();
+		return count == 0 ? 0 : flushNanos.sum() / 1e6 / count;
+	}
+
+	public double getMaxFlushMillis() {
+		return maxFlushNanos.get() / 1e6;
+	}
+
+	/**
+	 * 记录的字段名
+	 *
+	 * @param index 序号
+	 * @param node  来源节点
+	 * @return 字段名
+	 */
+	public static String getField(int index, String node) {
+		return index + ":" + node;
+	}
+
+	/**
+	 * 从字段名中获取来源节点
+	 *
+	 * @param field 字段名
+	 * @return 来源节点
+	 */
+	public static String getNode(String field) {
+		return field.substring(field.indexOf(':') + 1);
+	}
+
+	private static class Entry {
+		private final String stream;
+		private final String node;
+		private final byte[] data;
+
+		private Entry(String stream, String node, byte[] data) {
+			this.stream = stream;
+			this.node = node;
+			this.data = data;
+		}
+	}
+
+}
@@ -20,15 +20,20 @@ import net.dreamlu.iot.mqtt.broker.cluster.*;
 import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
 import net.dreamlu.iot.mqtt.broker.listener.RedisMqttConnectStatusListener;
 import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterClientRegistry;
 import net.dreamlu.iot.mqtt.core.server.dispatcher.IMqttMessageDispatcher;
 import net.dreamlu.iot.mqtt.core.server.event.IMqttConnectStatusListener;
+import net.dreamlu.iot.mqtt.core.server.serializer.BinaryMessageSerializer;
 import net.dreamlu.iot.mqtt.core.server.serializer.IMessageSerializer;
 import net.dreamlu.iot.mqtt.core.server.store.IMqttMessageStore;
 import net.dreamlu.mica.redis.cache.MicaRedisCache;
-import net.dreamlu.mica.redis.stream.RStreamTemplate;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
 /**
  * mica mqtt broker 配置
@@ -38,27 +43,39 @@ import org.springframework.context.annotation.Configuration;
 @Configuration(proxyBeanMethods = false)
 public class MqttBrokerConfiguration {
 
+	/**
+	 * 集群消息序列化，集群内所有节点需一致
+	 *
+	 * @param serializer jackson（默认）或 binary（紧凑二进制）
+	 * @return IMessageSerializer
+	 */
 	@Bean
-	public IMessageSerializer messageSerializer() {
+	public IMessageSerializer messageSerializer(@Value("${mqtt.broker.message-serializer:jackson}") String serializer) {
+		if ("binary".equalsIgnoreCase(serializer)) {
+			return BinaryMessageSerializer.INSTANCE;
+		}
 		return new JacksonMessageSerializer();
 	}
 
 	@Bean
 	public IMqttConnectStatusListener mqttBrokerConnectListener(ApplicationContext context,
-																MicaRedisCache redisCache) {
-		return new RedisMqttConnectStatusListener(context, redisCache);
+																MicaRedisCache redisCache,
+																RedisConnectionFactory connectionFactory) {
+		return new RedisMqttConnectStatusListener(context, redisCache, connectionFactory);
 	}
 
 	@Bean
 	public IMqttMessageStore mqttMessageStore(MicaRedisCache redisCache,
+											  StringRedisTemplate stringRedisTemplate,
 											  IMessageSerializer messageSerializer) {
-		return new RedisMqttMessageStore(redisCache, messageSerializer);
+		return new RedisMqttMessageStore(redisCache, stringRedisTemplate, messageSerializer);
 	}
 
 	@Bean
 	public RedisMqttMessageExchangeReceiver mqttMessageUpReceiver(IMessageSerializer messageSerializer,
-																  MqttServer mqttServer) {
-		return new RedisMqttMessageExchangeReceiver(messageSerializer, mqttServer);
+																  MqttServer mqttServer,
+																  MqttClusterClientRegistry clientRegistry) {
+		return new RedisMqttMessageExchangeReceiver(messageSerializer, mqttServer, clientRegistry);
 	}
 
 	@Bean
@@ -68,9 +85,39 @@ public class MqttBrokerConfiguration {
 	}
 
 	@Bean
-	public IMqttMessageDispatcher mqttMessageDispatcher(RStreamTemplate streamTemplate,
-														IMessageSerializer messageSerializer) {
-		return new RedisMqttMessageDispatcher(streamTemplate, messageSerializer, RedisKeys.REDIS_CHANNEL_EXCHANGE.getKey());
+	public RedisMqttMessageNodeReceiver mqttMessageNodeReceiver(RedisConnectionFactory connectionFactory,
+																IMessageSerializer messageSerializer,
+																MqttServer mqttServer,
+																MqttClusterClientRegistry clientRegistry) {
+		return new RedisMqttMessageNodeReceiver(connectionFactory, messageSerializer, mqttServer, clientRegistry);
+	}
+
+	@Bean
+	public RedisMqttClusterRouteManage mqttClusterRouteManage(StringRedisTemplate stringRedisTemplate,
+															  MqttServer mqttServer,
+															  MqttClusterClientRegistry clientRegistry) {
+		return new RedisMqttClusterRouteManage(stringRedisTemplate, mqttServer, clientRegistry);
+	}
+
+	@Bean
+	public RedisStreamBatchWriter redisStreamBatchWriter(RedisConnectionFactory connectionFactory,
+														 @Value("${mqtt.broker.stream-max-len:10000}") long streamMaxLen) {
+		return new RedisStreamBatchWriter(connectionFactory, 512, 2, 100_000, 100, streamMaxLen);
+	}
+
+	@Bean
+	public MqttClusterClientRegistry mqttClusterClientRegistry() {
+		return new MqttClusterClientRegistry();
+	}
+
+	@Bean
+	public IMqttMessageDispatcher mqttMessageDispatcher(RedisStreamBatchWriter streamWriter,
+														IMessageSerializer messageSerializer,
+														ObjectProvider<RedisMqttClusterRouteManage> routeManageProvider,
+														MqttClusterClientRegistry clientRegistry) {
+		// routeManage 依赖 MqttServer，MqttServer 依赖 dispatcher，这里延迟获取避免循环依赖
+		return new RedisMqttMessageDispatcher(streamWriter, messageSerializer, RedisKeys.REDIS_CHANNEL_EXCHANGE.getKey(),
+			routeManageProvider::getIfAvailable, clientRegistry);
 	}
 
 	@Bean
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.controller;
+
+import lombok.RequiredArgsConstructor;
+import net.dreamlu.iot.mqtt.broker.model.OnlineClientPage;
+import net.dreamlu.iot.mqtt.broker.model.ServerNode;
+import net.dreamlu.iot.mqtt.broker.service.IMqttBrokerService;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * mqtt broker 集群信息接口
+ *
+ * @author L.cm
+ */
+@RestController
+@RequestMapping("/mqtt/broker")
+@RequiredArgsConstructor
+public class MqttBrokerController {
+	/**
+	 * 每页最大数量
+	 */
+	private static final int MAX_PAGE_SIZE = 1000;
+	private final IMqttBrokerService brokerService;
+
+	/**
+	 * 集群节点
+	 *
+	 * @return 节点集合
+	 */
+	@GetMapping("/nodes")
+	public List<ServerNode> nodes() {
+		return brokerService.getNodes();
+	}
+
+	/**
+	 * 在线客户端数
+	 *
+	 * @param nodeName 节点名，为空时为整个集群
+	 * @return 在线数
+	 */
+	@GetMapping("/clients/count")
+	public long clientCount(@RequestParam(required = false) String nodeName) {
+		if (nodeName == null || nodeName.isEmpty()) {
+			return brokerService.getOnlineClientSize();
+		}
+		return brokerService.getOnlineClientSize(nodeName);
+	}
+
+	/**
+	 * 分页获取在线客户端，使用上一页返回的 cursor 获取下一页
+	 *
+	 * @param nodeName 节点名，为空时为整个集群
+	 * @param cursor   游标，第一页不传
+	 * @param size     每页数量，最大 1000
+	 * @return 客户端分页
+	 */
+	@GetMapping("/clients")
+	public OnlineClientPage clients(@RequestParam(required = false) String nodeName,
+									@RequestParam(required = false) String cursor,
+									@RequestParam(defaultValue = "100") int size) {
+		int pageSize = Math.max(1, Math.min(size, MAX_PAGE_SIZE));
+		if (nodeName == null || nodeName.isEmpty()) {
+			return brokerService.getOnlineClients(cursor, pageSize);
+		}
+		return brokerService.getOnlineClients(nodeName, cursor, pageSize);
+	}
+
+	/**
+	 * 参数不合法，例如游标被篡改，返回 400
+	 *
+	 * @param e IllegalArgumentException
+	 * @return 错误信息
+	 */
+	@ExceptionHandler(IllegalArgumentException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public String badRequest(IllegalArgumentException e) {
+		return e.getMessage();
+	}
+
+}
@@ -41,17 +41,57 @@ public enum RedisKeys {
 	 */
 	REDIS_CHANNEL_DOWN(RedisKeys.REDIS_CHANNEL_DOWN_KEY),
 	/**
-	 * 连接状态存储
+	 * 连接状态存储，key 的值为 前缀:nodeName:epoch
 	 */
 	CONNECT_STATUS("mqtt:connect:status:"),
+	/**
+	 * 节点连接状态的 epoch，节点每次启动递增，key 的值为 前缀:nodeName
+	 */
+	CONNECT_STATUS_EPOCH("mqtt:connect:epoch:"),
 	/**
 	 * 遗嘱消息存储
 	 */
 	MESSAGE_STORE_WILL("mqtt:messages:will:"),
 	/**
-	 * 保留消息存储
+	 * 旧版本的保留消息存储，string 结构，key 的值为 前缀:topic，启动时迁移到 hash 结构
+	 */
+	MESSAGE_STORE_RETAIN_LEGACY("mqtt:messages:retain:"),
+	/**
+	 * 保留消息存储，hash 结构，key 的值为 前缀:topic 第一级，field 为 topic
+	 */
+	MESSAGE_STORE_RETAIN("mqtt:messages:retain:hash:"),
+	/**
+	 * 保留消息 topic 索引，zset 结构，key 的值为 前缀:topic 第一级，按字典序做前缀查询
+	 */
+	MESSAGE_STORE_RETAIN_TOPICS("mqtt:messages:retain:topics:"),
+	/**
+	 * 保留消息 topic 第一级集合，topicFilter 以通配符开头时使用
+	 */
+	MESSAGE_STORE_RETAIN_LEVELS("mqtt:messages:retain:levels"),
+	/**
+	 * 带过期时间的保留消息索引，zset 结构，member 为 topic，score 为过期时间 (ms)
+	 */
+	MESSAGE_STORE_RETAIN_EXPIRY("mqtt:messages:retain:expiry"),
+	/**
+	 * 保留消息变更通知，用于失效各节点的本地缓存
+	 */
+	REDIS_CHANNEL_RETAIN_INVALIDATE("mqtt:channel:retain:invalidate"),
+	/**
+	 * 集群节点订阅摘要，set 结构，key 的值为 前缀:nodeName
+	 */
+	CLUSTER_ROUTE("mqtt:cluster:route:set:"),
+	/**
+	 * 集群节点订阅摘要版本号，每次变更递增，key 的值为 前缀:nodeName
+	 */
+	CLUSTER_ROUTE_VERSION("mqtt:cluster:route:seq:"),
+	/**
+	 * 集群路由的节点集合，set 结构，节点启动时加入，停止时移除
+	 */
+	CLUSTER_ROUTE_NODES("mqtt:cluster:route:nodes"),
+	/**
+	 * 集群节点订阅摘要的增量变更通知
 	 */
-	MESSAGE_STORE_RETAIN("mqtt:messages:retain:"),
+	REDIS_CHANNEL_ROUTE("mqtt:channel:route"),
 	;
 
 
@@ -16,7 +16,7 @@
 
 package net.dreamlu.iot.mqtt.broker.listener;
 
-import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
 import net.dreamlu.iot.mqtt.core.server.MqttServerCreator;
 import net.dreamlu.iot.mqtt.core.server.event.IMqttConnectStatusListener;
@@ -24,46 +24,236 @@ import net.dreamlu.mica.redis.cache.MicaRedisCache;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.context.ApplicationContext;
+import org.springframework.data.redis.connection.DefaultTuple;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisZSetCommands.Tuple;
 import org.tio.core.ChannelContext;
 
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * mqtt 连接监听，此处也可以添加发送到 mq 的逻辑，方便影子服务处理
  *
+ * <p>
+ * 上下线不直接访问 redis，只记录 clientId 的最新状态，同一个 clientId 的多次上下线会合并成一次。写入线程在攒够
+ * maxBatchSize 个或等待 linger 时间后用 pipeline 批量 ZADD/ZREM。在线集合使用 score 相同的 zset，ZCARD 即在线数，
+ * 并可按 clientId 字典序分页查询。
+ * 在线集合按节点的 epoch 区分，节点启动时递增 epoch 并异步 UNLINK 上一个 epoch 的集合，避免宕机后 del 大集合阻塞 redis。
+ * </p>
+ *
  * @author L.cm
  */
-@RequiredArgsConstructor
+@Slf4j
 public class RedisMqttConnectStatusListener implements IMqttConnectStatusListener, SmartInitializingSingleton, DisposableBean {
 	private final ApplicationContext context;
 	private final MicaRedisCache redisCache;
+	private final RedisConnectionFactory connectionFactory;
+	private final int maxBatchSize;
+	private final long lingerNanos;
+	/**
+	 * 待写入的状态，clientId: 是否在线
+	 */
+	private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+	private final LongAdder flushedCount = new LongAdder();
+	private final LongAdder failedCount = new LongAdder();
 	private MqttServerCreator serverCreator;
+	private volatile byte[] redisKey;
+	private volatile boolean running;
+	private Thread flushThread;
+
+	public RedisMqttConnectStatusListener(ApplicationContext context,
+										  MicaRedisCache redisCache,
+										  RedisConnectionFactory connectionFactory) {
+		this(context, redisCache, connectionFactory, 1000, 10);
+	}
+
+	/**
+	 * 构造器
+	 *
+	 * @param context           ApplicationContext
+	 * @param redisCache        MicaRedisCache
+	 * @param connectionFactory RedisConnectionFactory
+	 * @param maxBatchSize      每批最多写入的 clientId 数
+	 * @param lingerMillis      攒批等待时间，单位毫秒
+	 */
+	public RedisMqttConnectStatusListener(ApplicationContext context,
+										  MicaRedisCache redisCache,
+										  RedisConnectionFactory connectionFactory,
+										  int maxBatchSize,
+										  long lingerMillis) {
+		this.context = context;
+		this.redisCache = redisCache;
+		this.connectionFactory = connectionFactory;
+		this.maxBatchSize = maxBatchSize;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+	}
 
 	@Override
 	public void online(ChannelContext context, String clientId, String username) {
-		redisCache.sAdd(getRedisKey(), clientId);
+		change(clientId, Boolean.TRUE);
 	}
 
 	@Override
 	public void offline(ChannelContext context, String clientId, String username, String reason) {
-		redisCache.sRem(getRedisKey(), clientId);
+		change(clientId, Boolean.FALSE);
+	}
+
+	private void change(String clientId, Boolean online) {
+		// 同一个 clientId 只保留最新状态
+		if (pending.put(clientId, online) == null && pending.size() >= maxBatchSize) {
+			LockSupport.unpark(flushThread);
+		}
+	}
+
+	private void flushLoop() {
+		List<String> onlineList = new ArrayList<>();
+		List<String> offlineList = new ArrayList<>();
+		while (running || !pending.isEmpty()) {
+			if (pending.isEmpty()) {
+				LockSupport.parkNanos(lingerNanos);
+				continue;
+			}
+			// 攒批：等待凑够一批或者 linger 超时
+			long deadline = System.nanoTime() + lingerNanos;
+			long remaining;
+			while (running && pending.size() < maxBatchSize && (remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(remaining);
+			}
+			Iterator<Map.Entry<String, Boolean>> iterator = pending.entrySet().iterator();
+			while (iterator.hasNext() && onlineList.size() + offlineList.size() < maxBatchSize) {
+				Map.Entry<String, Boolean> entry = iterator.next();
+				String clientId = entry.getKey();
+				Boolean online = entry.getValue();
+				// 只在状态没有再次变化时移除，变化了的留到下一批
+				if (pending.remove(clientId, online)) {
+					(online ? onlineList : offlineList).add(clientId);
+				}
+			}
+			try {
+				flush(onlineList, offlineList);
+			} finally {
+				onlineList.clear();
+				offlineList.clear();
+			}
+		}
+	}
+
+	private void flush(List<String> onlineList, List<String> offlineList) {
+		if (onlineList.isEmpty() && offlineList.isEmpty()) {
+			return;
+		}
+		byte[] key = this.redisKey;
+		RedisConnection connection = connectionFactory.getConnection();
+		try {
+			connection.openPipeline();
+			if (!onlineList.isEmpty()) {
+				connection.zSetCommands().zAdd(key, toTuples(onlineList));
+			}
+			if (!offlineList.isEmpty()) {
+				connection.zSetCommands().zRem(key, toBytes(offlineList));
+			}
+			connection.closePipeline();
+			flushedCount.add(onlineList.size() + offlineList.size());
+		} catch (Throwable e) {
+			failedCount.add(onlineList.size() + offlineList.size());
+			log.error("Mqtt connect status flush online:{} offline:{} error.", onlineList.size(), offlineList.size(), e);
+			// 重新放回，期间有更新的状态时以新状态为准
+			if (running) {
+				onlineList.forEach(clientId -> pending.putIfAbsent(clientId, Boolean.TRUE));
+				offlineList.forEach(clientId -> pending.putIfAbsent(clientId, Boolean.FALSE));
+			}
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static Set<Tuple> toTuples(List<String> list) {
+		Set<Tuple> tuples = new HashSet<>(list.size() * 4 / 3 + 1);
+		for (String clientId : list) {
+			tuples.add(new DefaultTuple(clientId.getBytes(StandardCharsets.UTF_8), 0D));
+		}
+		return tuples;
+	}
+
+	private static byte[][] toBytes(List<String> list) {
+		byte[][] values = new byte[list.size()][];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = list.get(i).getBytes(StandardCharsets.UTF_8);
+		}
+		return values;
 	}
 
 	/**
-	 * 设备上下线存储，key 的值为 前缀:nodeName
+	 * 待写入的 clientId 数
 	 *
-	 * @return redis key
+	 * @return 待写入数
 	 */
-	private String getRedisKey() {
-		return RedisKeys.CONNECT_STATUS.getKey(serverCreator.getNodeName());
+	public int getPendingSize() {
+		return pending.size();
+	}
+
+	public long getFlushedCount() {
+		return flushedCount.sum();
+	}
+
+	public long getFailedCount() {
+		return failedCount.sum();
 	}
 
 	@Override
 	public void afterSingletonsInstantiated() {
 		this.serverCreator = context.getBean(MqttServerCreator.class);
+		String nodeName = serverCreator.getNodeName();
+		// 递增 epoch，上一个 epoch 的集合为宕机遗留数据，使用 UNLINK 由 redis 后台释放
+		Long epoch = redisCache.incr(RedisKeys.CONNECT_STATUS_EPOCH.getKey(nodeName));
+		this.redisKey = getRedisKey(nodeName, epoch).getBytes(StandardCharsets.UTF_8);
+		if (epoch > 1) {
+			unlink(getRedisKey(nodeName, epoch - 1));
+		}
+		this.running = true;
+		this.flushThread = new Thread(this::flushLoop, "mqtt-connect-status-writer");
+		this.flushThread.setDaemon(true);
+		this.flushThread.start();
+	}
+
+	/**
+	 * 设备上下线存储，key 的值为 前缀:nodeName:epoch
+	 *
+	 * @param nodeName nodeName
+	 * @param epoch    epoch
+	 * @return redis key
+	 */
+	public static String getRedisKey(String nodeName, long epoch) {
+		return RedisKeys.CONNECT_STATUS.getKey(nodeName) + ':' + epoch;
+	}
+
+	private void unlink(String key) {
+		RedisConnection connection = connectionFactory.getConnection();
+		try {
+			connection.keyCommands().unlink(key.getBytes(StandardCharsets.UTF_8));
+		} catch (Throwable e) {
+			log.error("Mqtt connect status unlink key:{} error.", key, e);
+		} finally {
+			connection.close();
+		}
 	}
 
 	@Override
 	public void destroy() throws Exception {
+		this.running = false;
+		if (flushThread != null) {
+			LockSupport.unpark(flushThread);
+			flushThread.join(TimeUnit.SECONDS.toMillis(10));
+		}
 		// 停机时删除集合
-		redisCache.del(getRedisKey());
+		if (redisKey != null) {
+			unlink(new String(redisKey, StandardCharsets.UTF_8));
+		}
 	}
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * 在线客户端分页
+ *
+ * @author L.cm
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class OnlineClientPage {
+
+	/**
+	 * 本页客户端 id
+	 */
+	private List<String> clients;
+	/**
+	 * 下一页的游标，为 null 时表示没有更多数据
+	 */
+	private String cursor;
+
+}
@@ -16,6 +16,7 @@
 
 package net.dreamlu.iot.mqtt.broker.service;
 
+import net.dreamlu.iot.mqtt.broker.model.OnlineClientPage;
 import net.dreamlu.iot.mqtt.broker.model.ServerNode;
 
 import java.util.List;
@@ -35,19 +36,29 @@ public interface IMqttBrokerService {
 	List<ServerNode> getNodes();
 
 	/**
-	 * 获取所有在线的客户端
+	 * 获取所有在线的客户端数，结果会短时间缓存
 	 *
 	 * @return 在线数
 	 */
 	long getOnlineClientSize();
 
 	/**
-	 * 获取所有在线的客户端
+	 * 获取所有在线的客户端，客户端较多时请使用分页查询
 	 *
 	 * @return 客户端集合
 	 */
 	List<String> getOnlineClients();
 
+	/**
+	 * 分页获取所有在线的客户端
+	 *
+	 * @param cursor 游标，第一页为 null
+	 * @param size   每页数量
+	 * @return 客户端分页
+	 * @throws IllegalArgumentException 游标不合法
+	 */
+	OnlineClientPage getOnlineClients(String cursor, int size);
+
 	/**
 	 * 获取所有在线的客户端
 	 *
@@ -64,4 +75,14 @@ public interface IMqttBrokerService {
 	 */
 	List<String> getOnlineClients(String nodeName);
 
+	/**
+	 * 分页获取节点在线的客户端，按 clientId 字典序
+	 *
+	 * @param nodeName 集群节点
+	 * @param cursor   游标，第一页为 null
+	 * @param size     每页数量
+	 * @return 客户端分页
+	 */
+	OnlineClientPage getOnlineClients(String nodeName, String cursor, int size);
+
 }
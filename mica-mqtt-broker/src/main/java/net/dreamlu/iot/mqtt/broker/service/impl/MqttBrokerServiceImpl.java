@@ -17,27 +17,49 @@
 package net.dreamlu.iot.mqtt.broker.service.impl;
 
 import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
+import net.dreamlu.iot.mqtt.broker.listener.RedisMqttConnectStatusListener;
+import net.dreamlu.iot.mqtt.broker.model.OnlineClientPage;
 import net.dreamlu.iot.mqtt.broker.model.ServerNode;
 import net.dreamlu.iot.mqtt.broker.service.IMqttBrokerService;
 import net.dreamlu.mica.core.utils.StringPool;
 import net.dreamlu.mica.redis.cache.MicaRedisCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Set;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * mqtt broker 服务
  *
+ * <p>
+ * 每个节点的在线客户端保存在 score 相同的 zset 中，节点在线数为 ZCARD，集群在线数为各节点之和，只和节点数相关并短时间缓存。
+ * 客户端列表使用 clientId 作为游标按字典序分页，不会一次加载整个集合。
+ * </p>
+ *
  * @author L.cm
  */
 @Service
 public class MqttBrokerServiceImpl implements IMqttBrokerService {
+	/**
+	 * 集群统计缓存时间
+	 */
+	private static final long CACHE_MILLIS = TimeUnit.SECONDS.toMillis(3);
+	/**
+	 * 集群游标中节点名和 clientId 的分隔符
+	 */
+	private static final char CURSOR_SEPARATOR = '\n';
 	@Autowired
 	private MicaRedisCache redisCache;
+	@Autowired
+	private StringRedisTemplate redisTemplate;
+	private volatile long onlineClientSize;
+	private volatile long onlineClientSizeExpireAt;
 
 	@Override
 	public List<ServerNode> getNodes() {
@@ -56,49 +78,201 @@ public class MqttBrokerServiceImpl implements IMqttBrokerService {
 
 	@Override
 	public long getOnlineClientSize() {
-		Set<String> keySet = redisCache.scan(RedisKeys.CONNECT_STATUS.getKey(StringPool.STAR));
-		if (keySet.isEmpty()) {
-			return 0L;
+		long now = System.currentTimeMillis();
+		if (now < onlineClientSizeExpireAt) {
+			return onlineClientSize;
 		}
+		List<String> redisKeys = getConnectStatusKeys(getNodeNames());
 		long result = 0;
-		for (String redisKey : keySet) {
-			Long count = redisCache.getSetOps().size(redisKey);
-			if (count != null) {
-				result += count;
+		if (!redisKeys.isEmpty()) {
+			// 各节点 ZCARD 使用 pipeline 一次发送
+			List<Object> counts = redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+				StringRedisConnection stringConnection = (StringRedisConnection) connection;
+				redisKeys.forEach(stringConnection::zCard);
+				return null;
+			});
+			for (Object count : counts) {
+				if (count instanceof Long) {
+					result += (Long) count;
+				}
 			}
 		}
+		this.onlineClientSize = result;
+		this.onlineClientSizeExpireAt = now + CACHE_MILLIS;
 		return result;
 	}
 
 	@Override
 	public List<String> getOnlineClients() {
-		Set<String> keySet = redisCache.scan(RedisKeys.CONNECT_STATUS.getKey(StringPool.STAR));
-		if (keySet.isEmpty()) {
-			return Collections.emptyList();
-		}
 		List<String> clientList = new ArrayList<>();
-		for (String redisKey : keySet) {
-			Set<String> members = redisCache.sMembers(redisKey);
-			if (members != null && !members.isEmpty()) {
-				clientList.addAll(members);
+		String cursor = null;
+		do {
+			OnlineClientPage page = getOnlineClients(cursor, 1000);
+			clientList.addAll(page.getClients());
+			cursor = page.getCursor();
+		} while (cursor != null);
+		return clientList;
+	}
+
+	@Override
+	public OnlineClientPage getOnlineClients(String cursor, int size) {
+		List<String> nodeNames = getNodeNames();
+		// 游标为 节点名\nclientId 的 base64
+		String cursorNode = null;
+		String cursorClientId = null;
+		if (cursor != null && !cursor.isEmpty()) {
+			String value = decodeCursor(cursor);
+			int index = value.indexOf(CURSOR_SEPARATOR);
+			if (index < 1) {
+				throw new IllegalArgumentException("Invalid cursor:" + cursor);
 			}
+			cursorNode = value.substring(0, index);
+			cursorClientId = value.substring(index + 1);
 		}
-		return clientList;
+		List<String> clientList = new ArrayList<>(size);
+		for (String nodeName : nodeNames) {
+			if (cursorNode != null) {
+				int compare = nodeName.compareTo(cursorNode);
+				if (compare < 0) {
+					continue;
+				}
+				if (compare > 0) {
+					cursorClientId = null;
+				}
+			}
+			OnlineClientPage page = getOnlineClients(nodeName, cursorClientId, size - clientList.size());
+			clientList.addAll(page.getClients());
+			if (clientList.size() >= size) {
+				String lastClientId = clientList.get(clientList.size() - 1);
+				String nextCursor = page.getCursor() == null ? null : Base64.getUrlEncoder().encodeToString(
+					(nodeName + CURSOR_SEPARATOR + lastClientId).getBytes(StandardCharsets.UTF_8));
+				// 当前节点已读完，下一页从后一个节点开始
+				if (nextCursor == null && nodeNames.indexOf(nodeName) < nodeNames.size() - 1) {
+					String nextNode = nodeNames.get(nodeNames.indexOf(nodeName) + 1);
+					nextCursor = Base64.getUrlEncoder().encodeToString(
+						(nextNode + CURSOR_SEPARATOR).getBytes(StandardCharsets.UTF_8));
+				}
+				return new OnlineClientPage(clientList, nextCursor);
+			}
+			cursorNode = null;
+			cursorClientId = null;
+		}
+		return new OnlineClientPage(clientList, null);
 	}
 
 	@Override
 	public long getOnlineClientSize(String nodeName) {
-		Long count = redisCache.getSetOps().size(RedisKeys.CONNECT_STATUS.getKey(nodeName));
+		String redisKey = getConnectStatusKey(nodeName);
+		if (redisKey == null) {
+			return 0L;
+		}
+		Long count = redisTemplate.opsForZSet().zCard(redisKey);
 		return count == null ? 0L : count;
 	}
 
 	@Override
 	public List<String> getOnlineClients(String nodeName) {
-		Set<String> members = redisCache.sMembers(RedisKeys.CONNECT_STATUS.getKey(nodeName));
+		List<String> clientList = new ArrayList<>();
+		String cursor = null;
+		do {
+			OnlineClientPage page = getOnlineClients(nodeName, cursor, 1000);
+			clientList.addAll(page.getClients());
+			cursor = page.getCursor();
+		} while (cursor != null);
+		return clientList;
+	}
+
+	@Override
+	public OnlineClientPage getOnlineClients(String nodeName, String cursor, int size) {
+		String redisKey = getConnectStatusKey(nodeName);
+		if (redisKey == null || size < 1) {
+			return new OnlineClientPage(Collections.emptyList(), null);
+		}
+		// clientId 作为游标，按字典序取下一页，集合变化时不会重复或遗漏未变化的成员
+		RedisZSetCommands.Range range = RedisZSetCommands.Range.range();
+		if (cursor != null && !cursor.isEmpty()) {
+			range = range.gt(cursor);
+		}
+		RedisZSetCommands.Limit limit = RedisZSetCommands.Limit.limit().count(size);
+		Set<String> members = redisTemplate.opsForZSet().rangeByLex(redisKey, range, limit);
 		if (members == null || members.isEmpty()) {
+			return new OnlineClientPage(Collections.emptyList(), null);
+		}
+		List<String> clientList = new ArrayList<>(members);
+		String nextCursor = clientList.size() < size ? null : clientList.get(clientList.size() - 1);
+		return new OnlineClientPage(clientList, nextCursor);
+	}
+
+	/**
+	 * 解码游标
+	 *
+	 * @param cursor 游标
+	 * @return 节点名\nclientId
+	 */
+	private static String decodeCursor(String cursor) {
+		try {
+			return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid cursor:" + cursor, e);
+		}
+	}
+
+	/**
+	 * 获取排序后的节点名
+	 *
+	 * @return 节点名集合
+	 */
+	private List<String> getNodeNames() {
+		Set<String> nodeKeySet = redisCache.scan(RedisKeys.SERVER_NODES.getKey(StringPool.STAR));
+		int beginIndex = RedisKeys.SERVER_NODES.getKey().length();
+		List<String> nodeNames = new ArrayList<>(nodeKeySet.size());
+		for (String nodeKey : nodeKeySet) {
+			nodeNames.add(nodeKey.substring(beginIndex));
+		}
+		Collections.sort(nodeNames);
+		return nodeNames;
+	}
+
+	/**
+	 * 批量获取节点当前 epoch 的连接状态 key
+	 *
+	 * @param nodeNames 节点名集合
+	 * @return redis key 集合
+	 */
+	private List<String> getConnectStatusKeys(List<String> nodeNames) {
+		if (nodeNames.isEmpty()) {
 			return Collections.emptyList();
 		}
-		return new ArrayList<>(members);
+		List<String> epochKeys = new ArrayList<>(nodeNames.size());
+		for (String nodeName : nodeNames) {
+			epochKeys.add(RedisKeys.CONNECT_STATUS_EPOCH.getKey(nodeName));
+		}
+		List<String> epochs = redisTemplate.opsForValue().multiGet(epochKeys);
+		List<String> redisKeys = new ArrayList<>(nodeNames.size());
+		if (epochs == null) {
+			return redisKeys;
+		}
+		for (int i = 0; i < nodeNames.size(); i++) {
+			String epoch = epochs.get(i);
+			if (epoch != null) {
+				redisKeys.add(RedisMqttConnectStatusListener.getRedisKey(nodeNames.get(i), Long.parseLong(epoch)));
+			}
+		}
+		return redisKeys;
+	}
+
+	/**
+	 * 获取节点当前 epoch 的连接状态 key
+	 *
+	 * @param nodeName nodeName
+	 * @return redis key，节点不存在时为 null
+	 */
+	private String getConnectStatusKey(String nodeName) {
+		String epoch = redisTemplate.opsForValue().get(RedisKeys.CONNECT_STATUS_EPOCH.getKey(nodeName));
+		if (epoch == null) {
+			return null;
+		}
+		return RedisMqttConnectStatusListener.getRedisKey(nodeName, Long.parseLong(epoch));
 	}
 
 }
@@ -37,4 +37,31 @@ public class RedisUtil {
 			.replace(CharPool.HASH, CharPool.STAR);
 	}
 
+	/**
+	 * 获取 topic 的第一级
+	 *
+	 * @param topic topic 或 topicFilter
+	 * @return 第一级
+	 */
+	public static String getFirstLevel(String topic) {
+		int index = topic.indexOf(CharPool.SLASH);
+		return index < 0 ? topic : topic.substring(0, index);
+	}
+
+	/**
+	 * 获取 topicFilter 中第一个通配符之前的前缀，例如：device/123/+ 为 device/123/
+	 *
+	 * @param topicFilter topicFilter
+	 * @return 前缀
+	 */
+	public static String getLiteralPrefix(String topicFilter) {
+		for (int i = 0; i < topicFilter.length(); i++) {
+			char ch = topicFilter.charAt(i);
+			if (ch == CharPool.PLUS || ch == CharPool.HASH) {
+				return topicFilter.substring(0, i);
+			}
+		}
+		return topicFilter;
+	}
+
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker;
+
+import net.dreamlu.mica.redis.cache.MicaRedisCache;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import redis.embedded.RedisServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * 内嵌 redis，用于 redis 冒烟测试，每个实例使用随机的空闲端口
+ *
+ * @author L.cm
+ */
+public class RedisTestServer implements Closeable {
+	private static final String HOST = "127.0.0.1";
+	private final RedisServer redisServer;
+	private final LettuceConnectionFactory connectionFactory;
+	private final StringRedisTemplate redisTemplate;
+	private final MicaRedisCache redisCache;
+
+	public RedisTestServer() throws IOException {
+		int port = getFreePort();
+		this.redisServer = RedisServer.newRedisServer()
+			.bind(HOST)
+			.port(port)
+			.setting("save \"\"")
+			.setting("appendonly no")
+			.build();
+		this.redisServer.start();
+		this.connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(HOST, port));
+		this.connectionFactory.afterPropertiesSet();
+		this.redisTemplate = new StringRedisTemplate(connectionFactory);
+		RedisTemplate<String, Object> template = new RedisTemplate<>();
+		template.setConnectionFactory(connectionFactory);
+		template.setKeySerializer(RedisSerializer.string());
+		template.setHashKeySerializer(RedisSerializer.string());
+		template.setValueSerializer(RedisSerializer.java());
+		template.afterPropertiesSet();
+		this.redisCache = new MicaRedisCache(template);
+	}
+
+	public LettuceConnectionFactory getConnectionFactory() {
+		return connectionFactory;
+	}
+
+	public StringRedisTemplate getRedisTemplate() {
+		return redisTemplate;
+	}
+
+	public MicaRedisCache getRedisCache() {
+		return redisCache;
+	}
+
+	@Override
+	public void close() throws IOException {
+		connectionFactory.destroy();
+		redisServer.stop();
+	}
+
+	private static int getFreePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.cluster;
+
+import net.dreamlu.iot.mqtt.broker.RedisTestServer;
+import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterClientRegistry;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 集群订阅路由冒烟测试，使用内嵌 redis
+ *
+ * @author L.cm
+ */
+class RedisMqttClusterRouteManageTest {
+
+	@Test
+	void testMembership() throws Exception {
+		try (RedisTestServer redis = new RedisTestServer()) {
+			MqttServer server1 = MqttServer.create().nodeName("n1").websocketEnable(false).build();
+			MqttServer server2 = MqttServer.create().nodeName("n2").websocketEnable(false).build();
+			// 检查间隔足够长，节点列表只能通过 pub/sub 通知更新
+			RedisMqttClusterRouteManage route1 = new RedisMqttClusterRouteManage(redis.getRedisTemplate(), server1, new MqttClusterClientRegistry(), 60_000L);
+			RedisMqttClusterRouteManage route2 = new RedisMqttClusterRouteManage(redis.getRedisTemplate(), server2, new MqttClusterClientRegistry(), 60_000L);
+			try {
+				// 1. 首次检查之前节点列表未知，广播
+				Assertions.assertNull(route1.getTargetNodes("/a"));
+				route1.afterSingletonsInstantiated();
+				waitFor(() -> route1.getTargetNodes("/a") != null);
+				Assertions.assertEquals(Collections.emptySet(), route1.getTargetNodes("/a"));
+				// 2. 新节点的全量摘要通知即加入通知，不依赖定时检查
+				server2.getServerCreator().getSessionManager().addSubscribe("/b/+", "c1", 0);
+				route2.afterSingletonsInstantiated();
+				waitFor(() -> route1.isClusterNode("n2"));
+				waitFor(() -> route1.getRouteTable().contains("n2"));
+				Assertions.assertEquals(Collections.singleton("n2"), route1.getTargetNodes("/b/1"));
+				Assertions.assertEquals(Collections.emptySet(), route1.getTargetNodes("/a"));
+				Set<String> nodes = redis.getRedisTemplate().opsForSet().members(RedisKeys.CLUSTER_ROUTE_NODES.getKey());
+				Assertions.assertEquals(2, nodes.size());
+				// 3. 节点停止时通知离开
+				route2.destroy();
+				waitFor(() -> !route1.isClusterNode("n2"));
+				Assertions.assertEquals(Collections.emptySet(), route1.getTargetNodes("/b/1"));
+				Assertions.assertFalse(route1.getRouteTable().contains("n2"));
+			} finally {
+				route1.destroy();
+				route2.destroy();
+				server1.stop();
+				server2.stop();
+			}
+		}
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assertions.assertTrue(condition.getAsBoolean());
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.cluster;
+
+import net.dreamlu.iot.mqtt.broker.RedisTestServer;
+import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.cluster.MqttClusterClientRegistry;
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.serializer.BinaryMessageSerializer;
+import net.dreamlu.iot.mqtt.core.server.serializer.IMessageSerializer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * 节点 stream 接收冒烟测试，使用内嵌 redis
+ *
+ * @author L.cm
+ */
+class RedisMqttMessageNodeReceiverTest {
+	private static final IMessageSerializer SERIALIZER = BinaryMessageSerializer.INSTANCE;
+
+	@Test
+	void testReceive() throws Exception {
+		try (RedisTestServer redis = new RedisTestServer()) {
+			MqttServer mqttServer = MqttServer.create().nodeName("n1").websocketEnable(false).build();
+			MqttClusterClientRegistry clientRegistry = new MqttClusterClientRegistry();
+			RedisMqttMessageNodeReceiver receiver = new RedisMqttMessageNodeReceiver(redis.getConnectionFactory(), SERIALIZER, mqttServer, clientRegistry);
+			// 小批次，每批一次 XADD，轮询之间会写入多条记录
+			RedisStreamBatchWriter streamWriter = new RedisStreamBatchWriter(redis.getConnectionFactory(), 10, 1, 10_000, 100, 0);
+			String streamKey = RedisMqttMessageDispatcher.getNodeChannel(RedisKeys.REDIS_CHANNEL_EXCHANGE_KEY, "n1");
+			receiver.afterSingletonsInstantiated();
+			streamWriter.afterPropertiesSet();
+			try {
+				// 1. 首次轮询从 $ 开始，之前写入的记录收不到，重试直到开始接收
+				int probe = 0;
+				long deadline = System.currentTimeMillis() + 5000;
+				do {
+					String clientId = "probe" + probe++;
+					clientRegistry.update(clientId, "n2", 1);
+					streamWriter.send(streamKey, "n2", offline(clientId, "n2"));
+					Thread.sleep(50);
+				} while (clientRegistry.getNode("probe" + (probe - 1)) != null && System.currentTimeMillis() < deadline);
+				// 2. 连续写入，两次轮询之间写入的记录不能丢失
+				int size = clientRegistry.size();
+				for (int i = 0; i < 1000; i++) {
+					String clientId = "c" + i;
+					clientRegistry.update(clientId, "n2", 1);
+					streamWriter.send(streamKey, "n2", offline(clientId, "n2"));
+				}
+				waitFor(() -> clientRegistry.size() == size);
+				// 3. 字段中的来源节点为本节点时跳过
+				clientRegistry.update("local", "n2", 1);
+				streamWriter.send(streamKey, "n1", offline("local", "n2"));
+				clientRegistry.update("remote", "n2", 1);
+				streamWriter.send(streamKey, "n2", offline("remote", "n2"));
+				waitFor(() -> clientRegistry.getNode("remote") == null);
+				Assertions.assertEquals("n2", clientRegistry.getNode("local"));
+			} finally {
+				streamWriter.destroy();
+				receiver.destroy();
+			}
+		}
+	}
+
+	private static byte[] offline(String clientId, String node) {
+		Message message = new Message();
+		message.setMessageType(MessageType.OFFLINE);
+		message.setClientId(clientId);
+		message.setNode(node);
+		message.setTimestamp(2);
+		return SERIALIZER.serialize(message);
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assertions.assertTrue(condition.getAsBoolean());
+	}
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.cluster;
+
+import net.dreamlu.iot.mqtt.broker.RedisTestServer;
+import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.serializer.BinaryMessageSerializer;
+import net.dreamlu.iot.mqtt.core.server.serializer.IMessageSerializer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 保留消息索引冒烟测试，使用内嵌 redis
+ *
+ * @author L.cm
+ */
+class RedisMqttMessageStoreTest {
+	private static final IMessageSerializer SERIALIZER = BinaryMessageSerializer.INSTANCE;
+
+	@Test
+	void testRetainMessage() throws Exception {
+		try (RedisTestServer redis = new RedisTestServer()) {
+			// 旧版本按 topic 单独存储的保留消息，启动时迁移
+			redis.getRedisCache().set(RedisKeys.MESSAGE_STORE_RETAIN_LEGACY.getKey("old/1"), message("old/1"), SERIALIZER::serialize);
+			RedisMqttMessageStore store = new RedisMqttMessageStore(redis.getRedisCache(), redis.getRedisTemplate(), SERIALIZER);
+			store.afterPropertiesSet();
+			try {
+				Assertions.assertNotEquals(Boolean.TRUE, redis.getRedisTemplate().hasKey(RedisKeys.MESSAGE_STORE_RETAIN_LEGACY.getKey("old/1")));
+				for (String topic : Arrays.asList("a", "a/b/c", "a/b/d", "a/x", "b/1", "ab/1")) {
+					store.addRetainMessage(topic, message(topic));
+				}
+				Assertions.assertEquals(topics("a/x"), getTopics(store, "a/x"));
+				Assertions.assertEquals(topics("a/b/c", "a/b/d"), getTopics(store, "a/b/+"));
+				// a/# 也匹配 a，前缀范围不包含 ab/1
+				Assertions.assertEquals(topics("a", "a/b/c", "a/b/d", "a/x"), getTopics(store, "a/#"));
+				Assertions.assertEquals(topics("b/1", "ab/1", "old/1"), getTopics(store, "+/1"));
+				Assertions.assertEquals(topics("a", "a/b/c", "a/b/d", "a/x", "b/1", "ab/1", "old/1"), getTopics(store, "#"));
+				// 本地缓存在变更后失效，只影响能匹配的 topicFilter
+				store.addRetainMessage("a/y", message("a/y"));
+				Assertions.assertEquals(topics("a", "a/b/c", "a/b/d", "a/x", "a/y"), getTopics(store, "a/#"));
+				Assertions.assertEquals(topics("b/1", "ab/1", "old/1"), getTopics(store, "+/1"));
+				store.clearRetainMessage("a/x");
+				Assertions.assertEquals(topics("a", "a/b/c", "a/b/d", "a/y"), getTopics(store, "a/#"));
+				Assertions.assertEquals(Collections.emptySet(), getTopics(store, "a/x"));
+				// 过期的保留消息定时分批清理
+				Message expired = message("b/2");
+				expired.setExpiryAt(System.currentTimeMillis() - 1);
+				store.addRetainMessage("b/2", expired);
+				Assertions.assertEquals(1, store.removeExpiredRetainMessage(System.currentTimeMillis(), 100));
+				Assertions.assertEquals(Collections.emptySet(), getTopics(store, "b/2"));
+			} finally {
+				store.destroy();
+			}
+		}
+	}
+
+	@Test
+	void testInvalidateOtherNode() throws Exception {
+		try (RedisTestServer redis = new RedisTestServer()) {
+			RedisMqttMessageStore store1 = new RedisMqttMessageStore(redis.getRedisCache(), redis.getRedisTemplate(), SERIALIZER);
+			RedisMqttMessageStore store2 = new RedisMqttMessageStore(redis.getRedisCache(), redis.getRedisTemplate(), SERIALIZER);
+			store1.afterPropertiesSet();
+			store2.afterPropertiesSet();
+			try {
+				// 节点 2 缓存查询结果，节点 1 变更后通过 pub/sub 失效，订阅生效前的通知会丢失，所以重试
+				AtomicInteger counter = new AtomicInteger();
+				waitFor(() -> {
+					String topic = "c/" + counter.incrementAndGet();
+					getTopics(store2, "c/+");
+					store1.addRetainMessage(topic, message(topic));
+					long deadline = System.currentTimeMillis() + 200;
+					while (System.currentTimeMillis() < deadline) {
+						if (getTopics(store2, "c/+").contains(topic)) {
+							return true;
+						}
+					}
+					return false;
+				});
+				store1.addRetainMessage("d/1", message("d/1"));
+				Assertions.assertEquals(topics("d/1"), getTopics(store2, "d/+"));
+				Set<String> all = getTopics(store2, "+/+");
+				store1.addRetainMessage("d/2", message("d/2"));
+				waitFor(() -> getTopics(store2, "d/+").size() == 2);
+				waitFor(() -> getTopics(store2, "+/+").size() == all.size() + 1);
+			} finally {
+				store1.destroy();
+				store2.destroy();
+			}
+		}
+	}
+
+	private static Message message(String topic) {
+		Message message = new Message();
+		message.setTopic(topic);
+		message.setMessageType(MessageType.UP_STREAM);
+		message.setRetain(true);
+		message.setPayload(topic.getBytes(StandardCharsets.UTF_8));
+		return message;
+	}
+
+	private static Set<String> topics(String... topics) {
+		return new HashSet<>(Arrays.asList(topics));
+	}
+
+	private static Set<String> getTopics(RedisMqttMessageStore store, String topicFilter) {
+		Set<String> topics = new HashSet<>();
+		for (Message message : store.getRetainMessage(topicFilter)) {
+			Assertions.assertEquals(message.getTopic(), new String(message.getPayload(), StandardCharsets.UTF_8));
+			topics.add(message.getTopic());
+		}
+		return topics;
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assertions.assertTrue(condition.getAsBoolean());
+	}
+
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.broker.cluster;
+
+import net.dreamlu.iot.mqtt.broker.RedisTestServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.RedisStreamCommands.XAddOptions;
+import org.springframework.data.redis.connection.stream.MapRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * redis stream 批量写入测试，批量和 linger 触发、按 stream 合并、队列满丢弃、停止时写入剩余消息和内嵌 redis 冒烟测试
+ *
+ * @author L.cm
+ */
+class RedisStreamBatchWriterTest {
+
+	@Test
+	void testMaxLen() throws Exception {
+		ArgumentCaptor<XAddOptions> captor = ArgumentCaptor.forClass(XAddOptions.class);
+		RedisStreamCommands streamCommands = write(1000);
+		Mockito.verify(streamCommands, Mockito.atLeastOnce()).xAdd(Mockito.any(MapRecord.class), captor.capture());
+		for (XAddOptions options : captor.getAllValues()) {
+			Assertions.assertEquals(Long.valueOf(1000L), options.getMaxlen());
+			Assertions.assertTrue(options.isApproximateTrimming());
+		}
+	}
+
+	@Test
+	void testNoMaxLen() throws Exception {
+		ArgumentCaptor<XAddOptions> captor = ArgumentCaptor.forClass(XAddOptions.class);
+		RedisStreamCommands streamCommands = write(0);
+		Mockito.verify(streamCommands, Mockito.atLeastOnce()).xAdd(Mockito.any(MapRecord.class), captor.capture());
+		for (XAddOptions options : captor.getAllValues()) {
+			Assertions.assertFalse(options.hasMaxlen());
+		}
+	}
+
+	@Test
+	void testBatchSize() throws Exception {
+		RedisStreamCommands streamCommands = Mockito.mock(RedisStreamCommands.class);
+		// linger 足够长，只能由攒够一批触发刷新
+		RedisStreamBatchWriter writer = new RedisStreamBatchWriter(connectionFactory(streamCommands), 10, 60_000, 1000, 100, 0);
+		writer.afterPropertiesSet();
+		try {
+			for (int i = 0; i < 10; i++) {
+				Assertions.assertTrue(writer.send("mqtt:stream:test", "node1", new byte[]{(byte) i}));
+			}
+			waitFor(() -> writer.getFlushedMessages() == 10);
+			Assertions.assertEquals(1, writer.getFlushCount());
+			Assertions.assertEquals(10, writer.getLastFlushSize());
+		} finally {
+			writer.destroy();
+		}
+	}
+
+	@Test
+	void testLinger() throws Exception {
+		RedisStreamCommands streamCommands = Mockito.mock(RedisStreamCommands.class);
+		// 不足一批，等待 linger 后刷新
+		RedisStreamBatchWriter writer = new RedisStreamBatchWriter(connectionFactory(streamCommands), 1000, 50, 1000, 100, 0);
+		writer.afterPropertiesSet();
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < 3; i++) {
+				Assertions.assertTrue(writer.send("mqtt:stream:test", "node1", new byte[]{(byte) i}));
+			}
+			waitFor(() -> writer.getFlushedMessages() == 3);
+			Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+			Assertions.assertEquals(1, writer.getFlushCount());
+			Assertions.assertEquals(3, writer.getLastFlushSize());
+		} finally {
+			writer.destroy();
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void testMergePerStream() throws Exception {
+		RedisStreamCommands streamCommands = Mockito.mock(RedisStreamCommands.class);
+		RedisStreamBatchWriter writer = new RedisStreamBatchWriter(connectionFactory(streamCommands), 1000, 60_000, 1000, 100, 0);
+		writer.afterPropertiesSet();
+		writer.send("mqtt:stream:a", "node1", new byte[]{1});
+		writer.send("mqtt:stream:b", "node1", new byte[]{2});
+		writer.send("mqtt:stream:a", "node2", new byte[]{3});
+		writer.destroy();
+		// 同一批中每个 stream 一条记录，字段名为 序号:来源节点
+		ArgumentCaptor<MapRecord<byte[], byte[], byte[]>> captor = ArgumentCaptor.forClass(MapRecord.class);
+		Mockito.verify(streamCommands, Mockito.times(2)).xAdd(captor.capture(), Mockito.any(XAddOptions.class));
+		Map<String, Map<String, byte[]>> records = new HashMap<>();
+		for (MapRecord<byte[], byte[], byte[]> record : captor.getAllValues()) {
+			Map<String, byte[]> fields = new LinkedHashMap<>();
+			record.getValue().forEach((field, value) -> fields.put(new String(field, StandardCharsets.UTF_8), value));
+			records.put(new String(record.getStream(), StandardCharsets.UTF_8), fields);
+		}
+		Assertions.assertEquals(Arrays.asList("0:node1", "2:node2"), new ArrayList<>(records.get("mqtt:stream:a").keySet()));
+		Assertions.assertArrayEquals(new byte[]{3}, records.get("mqtt:stream:a").get("2:node2"));
+		Assertions.assertEquals(Collections.singletonList("1:node1"), new ArrayList<>(records.get("mqtt:stream:b").keySet()));
+		Assertions.assertEquals("node2", RedisStreamBatchWriter.getNode("2:node2"));
+	}
+
+	@Test
+	void testQueueFull() throws Exception {
+		RedisStreamCommands streamCommands = Mockito.mock(RedisStreamCommands.class);
+		CountDownLatch release = new CountDownLatch(1);
+		// 阻塞写入线程，队列不会被消费
+		Mockito.when(streamCommands.xAdd(Mockito.any(MapRecord.class), Mockito.any(XAddOptions.class))).thenAnswer(invocation -> {
+			release.await();
+			return null;
+		});
+		RedisStreamBatchWriter writer = new RedisStreamBatchWriter(connectionFactory(streamCommands), 1, 0, 2, 50, 0);
+		writer.afterPropertiesSet();
+		try {
+			// 第一条被写入线程取走并阻塞，之后两条占满队列
+			Assertions.assertTrue(writer.send("mqtt:stream:test", "node1", new byte[]{0}));
+			waitFor(() -> writer.getQueueSize() == 0);
+			Assertions.assertTrue(writer.send("mqtt:stream:test", "node1", new byte[]{1}));
+			Assertions.assertTrue(writer.send("mqtt:stream:test", "node1", new byte[]{2}));
+			long start = System.nanoTime();
+			Assertions.assertFalse(writer.send("mqtt:stream:test", "node1", new byte[]{3}));
+			// 丢弃前等待 offerTimeout
+			Assertions.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+			Assertions.assertEquals(1, writer.getDroppedMessages());
+			Assertions.assertEquals(2, writer.getQueueSize());
+		} finally {
+			release.countDown();
+			writer.destroy();
+		}
+		Assertions.assertEquals(3, writer.getFlushedMessages());
+		// 停止后不再接收
+		Assertions.assertFalse(writer.send("mqtt:stream:test", "node1", new byte[]{4}));
+		Assertions.assertEquals(2, writer.getDroppedMessages());
+	}
+
+	@Test
+	void testDrainOnShutdown() throws Exception {
+		RedisStreamCommands streamCommands = Mockito.mock(RedisStreamCommands.class);
+		// 不足一批且 linger 足够长，只能由停止时写入
+		RedisStreamBatchWriter writer = new RedisStreamBatchWriter(connectionFactory(streamCommands), 1000, 60_000, 10_000, 100, 0);
+		writer.afterPropertiesSet();
+		for (int i = 0; i < 500; i++) {
+			Assertions.assertTrue(writer.send("mqtt:stream:test", "node1", new byte[]{(byte) i}));
+		}
+		Thread.sleep(100);
+		Assertions.assertEquals(0, writer.getFlushedMessages());
+		writer.destroy();
+		Assertions.assertEquals(0, writer.getQueueSize());
+		Assertions.assertEquals(500, writer.getFlushedMessages());
+		Assertions.assertEquals(1, writer.getFlushCount());
+		Assertions.assertEquals(0, writer.getDroppedMessages());
+	}
+
+	@Test
+	void testRedis() throws Exception {
+		try (RedisTestServer redis = new RedisTestServer()) {
+			RedisStreamBatchWriter writer = new RedisStreamBatchWriter(redis.getConnectionFactory(), 1000, 60_000, 1000, 100, 1000);
+			writer.afterPropertiesSet();
+			writer.send("mqtt:stream:a", "node1", "a1".getBytes(StandardCharsets.UTF_8));
+			writer.send("mqtt:stream:b", "node1", "b1".getBytes(StandardCharsets.UTF_8));
+			writer.send("mqtt:stream:a", "node2", "a2".getBytes(StandardCharsets.UTF_8));
+			writer.destroy();
+			Assertions.assertEquals(0, writer.getFailedMessages());
+			List<MapRecord<String, Object, Object>> records = redis.getRedisTemplate().opsForStream().range("mqtt:stream:a", Range.unbounded());
+			Assertions.assertEquals(1, records.size());
+			Map<Object, Object> fields = records.get(0).getValue();
+			Assertions.assertEquals("a1", fields.get("0:node1"));
+			Assertions.assertEquals("a2", fields.get("2:node2"));
+			Assertions.assertEquals(Long.valueOf(1L), redis.getRedisTemplate().opsForStream().size("mqtt:stream:b"));
+		}
+	}
+
+	private static RedisStreamCommands write(long maxLen) throws Exception {
+		RedisStreamCommands streamCommands = Mockito.mock(RedisStreamCommands.class);
+		RedisStreamBatchWriter writer = new RedisStreamBatchWriter(connectionFactory(streamCommands), 16, 1, 1000, 100, maxLen);
+		writer.afterPropertiesSet();
+		for (int i = 0; i < 100; i++) {
+			Assertions.assertTrue(writer.send("mqtt:stream:test", "node1", new byte[]{(byte) i}));
+		}
+		// 停止时写入剩余的消息
+		writer.destroy();
+		Assertions.assertEquals(100, writer.getFlushedMessages());
+		return streamCommands;
+	}
+
+	private static RedisConnectionFactory connectionFactory(RedisStreamCommands streamCommands) {
+		RedisConnection connection = Mockito.mock(RedisConnection.class);
+		Mockito.when(connection.streamCommands()).thenReturn(streamCommands);
+		RedisConnectionFactory connectionFactory = Mockito.mock(RedisConnectionFactory.class);
+		Mockito.when(connectionFactory.getConnection()).thenReturn(connection);
+		return connectionFactory;
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Assertions.assertTrue(condition.getAsBoolean());
+	}
+
+}
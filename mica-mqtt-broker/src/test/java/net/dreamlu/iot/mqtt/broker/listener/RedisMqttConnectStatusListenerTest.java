@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.listener;
+
+import net.dreamlu.iot.mqtt.broker.RedisTestServer;
+import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.MqttServerCreator;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 连接状态批量写入冒烟测试，使用内嵌 redis
+ *
+ * @author L.cm
+ */
+class RedisMqttConnectStatusListenerTest {
+
+	@Test
+	void testConnectStatus() throws Exception {
+		try (RedisTestServer redis = new RedisTestServer();
+			 GenericApplicationContext context = context("n1")) {
+			StringRedisTemplate redisTemplate = redis.getRedisTemplate();
+			// 上一次宕机遗留的 epoch 和在线集合
+			redisTemplate.opsForValue().set(RedisKeys.CONNECT_STATUS_EPOCH.getKey("n1"), "1");
+			redisTemplate.opsForZSet().add(RedisMqttConnectStatusListener.getRedisKey("n1", 1), "stale", 0);
+			RedisMqttConnectStatusListener listener = new RedisMqttConnectStatusListener(context, redis.getRedisCache(), redis.getConnectionFactory());
+			listener.afterSingletonsInstantiated();
+			String redisKey = RedisMqttConnectStatusListener.getRedisKey("n1", 2);
+			Assertions.assertEquals("2", redisTemplate.opsForValue().get(RedisKeys.CONNECT_STATUS_EPOCH.getKey("n1")));
+			Assertions.assertNotEquals(Boolean.TRUE, redisTemplate.hasKey(RedisMqttConnectStatusListener.getRedisKey("n1", 1)));
+			// 同一个 clientId 的多次上下线只写入最新状态
+			listener.online(null, "c1", null);
+			listener.online(null, "c2", null);
+			listener.online(null, "c3", null);
+			listener.offline(null, "c2", null, "close");
+			listener.online(null, "c4", null);
+			listener.offline(null, "c4", null, "close");
+			listener.online(null, "c4", null);
+			waitFor(() -> listener.getPendingSize() == 0 && members(redisTemplate, redisKey).size() == 3);
+			Assertions.assertEquals(new HashSet<>(Arrays.asList("c1", "c3", "c4")), members(redisTemplate, redisKey));
+			listener.offline(null, "c1", null, "close");
+			waitFor(() -> members(redisTemplate, redisKey).size() == 2);
+			Assertions.assertEquals(0, listener.getFailedCount());
+			// 停机时删除在线集合
+			listener.destroy();
+			Assertions.assertNotEquals(Boolean.TRUE, redisTemplate.hasKey(redisKey));
+		}
+	}
+
+	@Test
+	void testBatchSize() throws Exception {
+		try (RedisTestServer redis = new RedisTestServer();
+			 GenericApplicationContext context = context("n1")) {
+			// linger 足够长，只有攒够一批才会写入
+			RedisMqttConnectStatusListener listener = new RedisMqttConnectStatusListener(context, redis.getRedisCache(), redis.getConnectionFactory(), 100, 60_000);
+			listener.afterSingletonsInstantiated();
+			String redisKey = RedisMqttConnectStatusListener.getRedisKey("n1", 1);
+			for (int i = 0; i < 250; i++) {
+				listener.online(null, "c" + i, null);
+			}
+			waitFor(() -> listener.getFlushedCount() == 200);
+			Assertions.assertEquals(200, members(redis.getRedisTemplate(), redisKey).size());
+			Assertions.assertEquals(50, listener.getPendingSize());
+			// 停机时写完剩余的状态再删除集合
+			listener.destroy();
+			Assertions.assertEquals(250, listener.getFlushedCount());
+			Assertions.assertNotEquals(Boolean.TRUE, redis.getRedisTemplate().hasKey(redisKey));
+		}
+	}
+
+	private static GenericApplicationContext context(String nodeName) {
+		MqttServerCreator serverCreator = MqttServer.create().nodeName(nodeName);
+		GenericApplicationContext context = new GenericApplicationContext();
+		context.registerBean(MqttServerCreator.class, () -> serverCreator);
+		context.refresh();
+		return context;
+	}
+
+	private static Set<String> members(StringRedisTemplate redisTemplate, String redisKey) {
+		return redisTemplate.opsForZSet().range(redisKey, 0, -1);
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assertions.assertTrue(condition.getAsBoolean());
+	}
+
+}
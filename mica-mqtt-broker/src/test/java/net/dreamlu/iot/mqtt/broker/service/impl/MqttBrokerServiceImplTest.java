@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.broker.service.impl;
+
+import net.dreamlu.iot.mqtt.broker.RedisTestServer;
+import net.dreamlu.iot.mqtt.broker.enums.RedisKeys;
+import net.dreamlu.iot.mqtt.broker.listener.RedisMqttConnectStatusListener;
+import net.dreamlu.iot.mqtt.broker.model.OnlineClientPage;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * 在线客户端分页冒烟测试，使用内嵌 redis
+ *
+ * @author L.cm
+ */
+class MqttBrokerServiceImplTest {
+
+	@Test
+	void testOnlineClients() throws Exception {
+		try (RedisTestServer redis = new RedisTestServer()) {
+			MqttBrokerServiceImpl brokerService = new MqttBrokerServiceImpl();
+			ReflectionTestUtils.setField(brokerService, "redisCache", redis.getRedisCache());
+			ReflectionTestUtils.setField(brokerService, "redisTemplate", redis.getRedisTemplate());
+			// n2 没有在线客户端，n4 没有 epoch，n1 的上一个 epoch 不计入
+			addNode(redis, "n1", 2, "c", "a", "e", "b", "d");
+			addNode(redis, "n2", 1);
+			addNode(redis, "n3", 1, "z", "x", "y");
+			redis.getRedisCache().set(RedisKeys.SERVER_NODES.getKey("n4"), "127.0.0.1:1883");
+			redis.getRedisTemplate().opsForZSet().add(RedisMqttConnectStatusListener.getRedisKey("n1", 1), "stale", 0);
+			List<String> allClients = Arrays.asList("a", "b", "c", "d", "e", "x", "y", "z");
+			Assertions.assertEquals(8, brokerService.getOnlineClientSize());
+			Assertions.assertEquals(5, brokerService.getOnlineClientSize("n1"));
+			Assertions.assertEquals(0, brokerService.getOnlineClientSize("n4"));
+			Assertions.assertEquals(allClients, brokerService.getOnlineClients());
+			// 集群分页，跨节点时不重复也不遗漏
+			for (int size = 1; size <= 9; size++) {
+				Assertions.assertEquals(allClients, getAllPages(brokerService, size), "size:" + size);
+			}
+			// 节点分页
+			OnlineClientPage page = brokerService.getOnlineClients("n1", null, 2);
+			Assertions.assertEquals(Arrays.asList("a", "b"), page.getClients());
+			page = brokerService.getOnlineClients("n1", page.getCursor(), 2);
+			Assertions.assertEquals(Arrays.asList("c", "d"), page.getClients());
+			page = brokerService.getOnlineClients("n1", page.getCursor(), 2);
+			Assertions.assertEquals(Arrays.asList("e"), page.getClients());
+			Assertions.assertNull(page.getCursor());
+			Assertions.assertTrue(brokerService.getOnlineClients("n4", null, 2).getClients().isEmpty());
+			// 翻页期间上线的客户端，在游标之后的会出现在后续页
+			page = brokerService.getOnlineClients(null, 2);
+			Assertions.assertEquals(Arrays.asList("a", "b"), page.getClients());
+			redis.getRedisTemplate().opsForZSet().add(RedisMqttConnectStatusListener.getRedisKey("n1", 2), "bb", 0);
+			page = brokerService.getOnlineClients(page.getCursor(), 2);
+			Assertions.assertEquals(Arrays.asList("bb", "c"), page.getClients());
+			// 集群在线数短时间缓存
+			Assertions.assertEquals(8, brokerService.getOnlineClientSize());
+			// 非法游标
+			Assertions.assertThrows(IllegalArgumentException.class, () -> brokerService.getOnlineClients("!!", 2));
+			String noSeparator = Base64.getUrlEncoder().encodeToString("n1".getBytes(StandardCharsets.UTF_8));
+			Assertions.assertThrows(IllegalArgumentException.class, () -> brokerService.getOnlineClients(noSeparator, 2));
+		}
+	}
+
+	private static void addNode(RedisTestServer redis, String nodeName, long epoch, String... clientIds) {
+		StringRedisTemplate redisTemplate = redis.getRedisTemplate();
+		redis.getRedisCache().set(RedisKeys.SERVER_NODES.getKey(nodeName), "127.0.0.1:1883");
+		redisTemplate.opsForValue().set(RedisKeys.CONNECT_STATUS_EPOCH.getKey(nodeName), String.valueOf(epoch));
+		String redisKey = RedisMqttConnectStatusListener.getRedisKey(nodeName, epoch);
+		for (String clientId : clientIds) {
+			redisTemplate.opsForZSet().add(redisKey, clientId, 0);
+		}
+	}
+
+	private static List<String> getAllPages(MqttBrokerServiceImpl brokerService, int size) {
+		List<String> clientList = new ArrayList<>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			OnlineClientPage page = brokerService.getOnlineClients(cursor, size);
+			Assertions.assertTrue(page.getClients().size() <= size);
+			clientList.addAll(page.getClients());
+			cursor = page.getCursor();
+			Assertions.assertTrue(++pages <= 10, "too many pages");
+		} while (cursor != null);
+		return clientList;
+	}
+
+}
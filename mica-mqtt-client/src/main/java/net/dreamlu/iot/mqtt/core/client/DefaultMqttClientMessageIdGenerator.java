@@ -16,24 +16,33 @@
 
 package net.dreamlu.iot.mqtt.core.client;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import net.dreamlu.iot.mqtt.core.common.MqttMessageIdAllocator;
 
 /**
- * 默认的 mqtt 客户端的消息 id 生成器
+ * 默认的 mqtt 客户端的消息 id 生成器，跳过还在等待 ack 的消息 id
  *
  * @author L.cm
  */
 public final class DefaultMqttClientMessageIdGenerator implements IMqttClientMessageIdGenerator {
-	private final AtomicInteger value;
+	private final MqttMessageIdAllocator allocator;
 
 	public DefaultMqttClientMessageIdGenerator() {
-		this.value = new AtomicInteger(1);
+		this.allocator = new MqttMessageIdAllocator();
 	}
 
 	@Override
 	public int getId() {
-		this.value.compareAndSet(0xffff, 1);
-		return this.value.getAndIncrement();
+		return allocator.allocate();
+	}
+
+	@Override
+	public void release(int messageId) {
+		allocator.release(messageId);
+	}
+
+	@Override
+	public boolean isExhausted() {
+		return allocator.isExhausted();
 	}
 
 }
@@ -19,16 +19,19 @@ package net.dreamlu.iot.mqtt.core.client;
 import net.dreamlu.iot.mqtt.codec.*;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingPublish;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingQos2Publish;
+import net.dreamlu.iot.mqtt.core.common.MqttTopicAliases;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tio.core.ChannelContext;
 import org.tio.core.Node;
 import org.tio.core.Tio;
 import org.tio.utils.hutool.CollUtil;
+import org.tio.utils.timer.TimerTask;
 import org.tio.utils.timer.TimerTaskService;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.stream.Collectors;
 
@@ -40,6 +43,8 @@ import java.util.stream.Collectors;
 public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 	private static final Logger logger = LoggerFactory.getLogger(DefaultMqttClientProcessor.class);
 	private final int reSubscribeBatchSize;
+	private final long reSubscribeInterval;
+	private final int topicAliasMaximum;
 	private final IMqttClientSession clientSession;
 	private final IMqttClientConnectListener connectListener;
 	private final IMqttClientMessageIdGenerator messageIdGenerator;
@@ -48,6 +53,8 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 
 	public DefaultMqttClientProcessor(MqttClientCreator mqttClientCreator) {
 		this.reSubscribeBatchSize = mqttClientCreator.getReSubscribeBatchSize();
+		this.reSubscribeInterval = mqttClientCreator.getReSubscribeInterval();
+		this.topicAliasMaximum = MqttVersion.MQTT_5 == mqttClientCreator.getVersion() ? mqttClientCreator.getTopicAliasMaximum() : 0;
 		this.clientSession = mqttClientCreator.getClientSession();
 		this.connectListener = mqttClientCreator.getConnectListener();
 		this.messageIdGenerator = mqttClientCreator.getMessageIdGenerator();
@@ -72,9 +79,15 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 					Node node = context.getServerNode();
 					logger.info("MqttClient contextId:{} connection:{}:{} succeeded!", context.getId(), node.getIp(), node.getPort());
 				}
-				// 2. 发布连接通知
+				// 2. mqtt5 topic alias，发布时 alias 数取双方的最小值
+				if (topicAliasMaximum > 0) {
+					int serverAliasMaximum = MqttTopicAliases.getTopicAliasMaximum(connAckVariableHeader.properties());
+					MqttClient.setTopicAliases(context, new MqttTopicAliases(topicAliasMaximum, Math.min(serverAliasMaximum, topicAliasMaximum)));
+				}
+				// 3. 发布连接通知
 				publishConnectEvent(context);
-				// 3. 如果 session 不存在重连时发送重新订阅，更改 ip、端口之后需要重新发送订阅
+				MqttClient.notifyConnect(context, null);
+				// 4. 如果 session 不存在重连时发送重新订阅，更改 ip、端口之后需要重新发送订阅
 				if (!connAckVariableHeader.isSessionPresent() || MqttClient.isNeedReSub(context)) {
 					reSendSubscription(context);
 				}
@@ -86,6 +99,7 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 			case CONNECTION_REFUSED_UNACCEPTABLE_PROTOCOL_VERSION:
 			default:
 				String remark = "MqttClient connect error error ReturnCode:" + returnCode;
+				MqttClient.notifyConnect(context, new IllegalStateException(remark));
 				Tio.close(context, remark);
 				break;
 		}
@@ -128,8 +142,30 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 			reSendSubscription(context, reSubscriptionList);
 		} else {
 			List<List<MqttClientSubscription>> partitionList = CollUtil.partition(reSubscriptionList, reSubscribeBatchSize);
-			for (List<MqttClientSubscription> partition : partitionList) {
-				reSendSubscription(context, partition);
+			if (reSubscribeInterval <= 0) {
+				for (List<MqttClientSubscription> partition : partitionList) {
+					reSendSubscription(context, partition);
+				}
+			} else {
+				// 3. 第一批立即发送，后续批次按间隔加随机抖动延迟发送，避免大量客户端重连时订阅风暴
+				reSendSubscription(context, partitionList.get(0));
+				long delay = 0;
+				for (int i = 1; i < partitionList.size(); i++) {
+					List<MqttClientSubscription> partition = partitionList.get(i);
+					delay += reSubscribeInterval + ThreadLocalRandom.current().nextLong(reSubscribeInterval / 2 + 1);
+					long taskDelay = delay;
+					taskService.addTask(systemTimer -> new TimerTask(taskDelay) {
+						@Override
+						public void run() {
+							// 延迟期间断开，放回订阅列表，等下次连接成功后重新订阅
+							if (context.isClosed || context.isRemoved) {
+								clientSession.addSubscriptionList(partition);
+							} else {
+								reSendSubscription(context, partition);
+							}
+						}
+					});
+				}
 			}
 		}
 	}
@@ -144,12 +180,18 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 		// 2. 批量重新订阅
 		List<MqttTopicSubscription> topicSubscriptionList = reSubscriptionList.stream().map(MqttClientSubscription::toTopicSubscription).collect(Collectors.toList());
 		int messageId = messageIdGenerator.getId();
+		// messageId 耗尽，放回订阅列表，等下次连接成功后重新订阅
+		if (messageId == 0) {
+			logger.error("MQTT subscriptionList:{} resubscribing failed, messageId exhausted.", reSubscriptionList);
+			clientSession.addSubscriptionList(reSubscriptionList);
+			return;
+		}
 		MqttSubscribeMessage message = MqttMessageBuilders.subscribe().addSubscriptions(topicSubscriptionList).messageId(messageId).build();
 		MqttPendingSubscription pendingSubscription = new MqttPendingSubscription(reSubscriptionList, message);
+		clientSession.addPaddingSubscribe(messageId, pendingSubscription);
+		pendingSubscription.startRetransmitTimer(taskService, (msg) -> Tio.send(context, msg));
 		Boolean result = Tio.send(context, message);
 		logger.info("MQTT subscriptionList:{} messageId:{} resubscribing result:{}", reSubscriptionList, messageId, result);
-		pendingSubscription.startRetransmitTimer(taskService, (msg) -> Tio.send(context, msg));
-		clientSession.addPaddingSubscribe(messageId, pendingSubscription);
 	}
 
 	@Override
@@ -158,6 +200,10 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 		logger.debug("MqttClient SubAck messageId:{}", messageId);
 		MqttPendingSubscription paddingSubscribe = clientSession.getPaddingSubscribe(messageId);
 		if (paddingSubscribe == null) {
+			// 订阅过程中已经取消订阅，过程数据已清除，只有此时 messageId 确定不再使用，才释放
+			if (clientSession.removeCancelledSubscribe(messageId)) {
+				messageIdGenerator.release(messageId);
+			}
 			return;
 		}
 		List<MqttClientSubscription> subscriptionList = paddingSubscribe.getSubscriptionList();
@@ -184,6 +230,7 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 		logger.info("MQTT subscriptionList:{} subscribed successfully messageId:{}", subscribedList, messageId);
 		paddingSubscribe.onSubAckReceived();
 		clientSession.removePaddingSubscribe(messageId);
+		messageIdGenerator.release(messageId);
 		clientSession.addSubscriptionList(subscribedList);
 		// 触发已经监听的事件
 		subscribedList.forEach(clientSubscription -> {
@@ -202,6 +249,24 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 
 	@Override
 	public void processPublish(ChannelContext context, MqttPublishMessage message) {
+		// mqtt5 topic alias
+		if (message.variableHeader().properties().getProperty(MqttProperties.MqttPropertyType.TOPIC_ALIAS) != null) {
+			MqttTopicAliases topicAliases = MqttClient.getTopicAliases(context);
+			try {
+				if (topicAliases == null) {
+					throw new IllegalArgumentException("Mqtt topic alias not supported.");
+				}
+				message = topicAliases.resolve(message);
+			} catch (IllegalArgumentException e) {
+				logger.error("MqttClient received publish {}", e.getMessage());
+				MqttMessage disconnect = MqttMessageBuilders.disconnect()
+					.reasonCode(MqttDisconnectReasonCode.TOPIC_ALIAS_INVALID.value())
+					.build();
+				Tio.bSend(context, disconnect);
+				Tio.close(context, e.getMessage());
+				return;
+			}
+		}
 		MqttFixedHeader mqttFixedHeader = message.fixedHeader();
 		MqttPublishVariableHeader variableHeader = message.variableHeader();
 		String topicName = variableHeader.topicName();
@@ -249,6 +314,7 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 		}
 		pendingUnSubscription.onUnSubAckReceived();
 		clientSession.removePaddingUnSubscribe(messageId);
+		messageIdGenerator.release(messageId);
 		clientSession.removeSubscriptions(unSubscriptionTopics);
 	}
 
@@ -266,6 +332,7 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 		}
 		pendingPublish.onPubAckReceived();
 		clientSession.removePendingPublish(messageId);
+		messageIdGenerator.release(messageId);
 	}
 
 	@Override
@@ -317,6 +384,7 @@ public class DefaultMqttClientProcessor implements IMqttClientProcessor {
 		}
 		pendingPublish.onPubCompReceived();
 		clientSession.removePendingPublish(messageId);
+		messageIdGenerator.release(messageId);
 	}
 
 	/**
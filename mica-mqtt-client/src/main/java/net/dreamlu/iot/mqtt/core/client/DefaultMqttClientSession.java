@@ -26,6 +26,7 @@ import org.tio.utils.collection.IntObjectMap;
 import org.tio.utils.collection.MultiValueMap;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
@@ -40,6 +41,10 @@ public final class DefaultMqttClientSession implements IMqttClientSession {
 	 */
 	private final MultiValueMap<String, MqttClientSubscription> subscriptions = new MultiValueMap<>();
 	private final IntObjectMap<MqttPendingSubscription> pendingSubscriptions = new IntObjectHashMap<>();
+	/**
+	 * 订阅过程中被取消订阅清除的 messageId，等待 SubAck 到达后释放
+	 */
+	private final Set<Integer> cancelledSubscriptions = ConcurrentHashMap.newKeySet();
 	private final IntObjectMap<MqttPendingUnSubscription> pendingUnSubscriptions = new IntObjectHashMap<>();
 	private final IntObjectMap<MqttPendingPublish> pendingPublishData = new IntObjectHashMap<>();
 	private final IntObjectMap<MqttPendingQos2Publish> pendingQos2PublishData = new IntObjectHashMap<>();
@@ -71,6 +76,12 @@ public final class DefaultMqttClientSession implements IMqttClientSession {
 		});
 		// 清除 messageId 的过程订阅
 		needToRemove.forEach(pendingSubscriptions::remove);
+		cancelledSubscriptions.addAll(needToRemove);
+	}
+
+	@Override
+	public boolean removeCancelledSubscribe(int messageId) {
+		return cancelledSubscriptions.remove(messageId);
 	}
 
 	@Override
@@ -193,6 +204,7 @@ public final class DefaultMqttClientSession implements IMqttClientSession {
 	public void clean() {
 		subscriptions.clear();
 		pendingSubscriptions.clear();
+		cancelledSubscriptions.clear();
 		pendingUnSubscriptions.clear();
 		pendingPublishData.clear();
 		pendingQos2PublishData.clear();
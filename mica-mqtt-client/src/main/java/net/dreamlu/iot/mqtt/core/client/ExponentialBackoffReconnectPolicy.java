@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 指数退避重连策略，支持随机抖动，避免服务端重启后大量客户端同一时刻重连
+ *
+ * <p>
+ * delay = min(maxDelay, baseDelay * 2^attempts)，再按 {@link Jitter} 打散。
+ * </p>
+ *
+ * @author L.cm
+ */
+public class ExponentialBackoffReconnectPolicy implements IMqttClientReconnectPolicy {
+	/**
+	 * 基础等待时间，单位毫秒
+	 */
+	private final long baseDelay;
+	/**
+	 * 最大等待时间，单位毫秒
+	 */
+	private final long maxDelay;
+	/**
+	 * 抖动方式
+	 */
+	private final Jitter jitter;
+
+	public ExponentialBackoffReconnectPolicy(long baseDelay, long maxDelay) {
+		this(baseDelay, maxDelay, Jitter.FULL);
+	}
+
+	public ExponentialBackoffReconnectPolicy(long baseDelay, long maxDelay, Jitter jitter) {
+		if (baseDelay <= 0) {
+			throw new IllegalArgumentException("baseDelay must be greater than 0.");
+		}
+		if (maxDelay < baseDelay) {
+			throw new IllegalArgumentException("maxDelay must be greater than or equal to baseDelay.");
+		}
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+		this.jitter = jitter == null ? Jitter.NONE : jitter;
+	}
+
+	@Override
+	public long nextDelay(int attempts, long previousDelay) {
+		long delay;
+		switch (jitter) {
+			case FULL:
+				// [0, exp]，分布最分散，首次重连也会被打散
+				delay = randomBetween(0, exponential(attempts));
+				break;
+			case DECORRELATED:
+				// [baseDelay, previousDelay * 3]，与上一次的等待时间关联，分布更分散
+				long previous = Math.max(baseDelay, previousDelay);
+				long upper = Math.min(maxDelay, saturatedMultiply(previous, 3));
+				delay = randomBetween(baseDelay, upper);
+				break;
+			case NONE:
+			default:
+				delay = exponential(attempts);
+				break;
+		}
+		return Math.max(1L, Math.min(maxDelay, delay));
+	}
+
+	/**
+	 * 计算指数等待时间 baseDelay * 2^attempts，不超过 maxDelay
+	 *
+	 * @param attempts attempts
+	 * @return delay
+	 */
+	private long exponential(int attempts) {
+		if (attempts <= 0) {
+			return baseDelay;
+		}
+		// 防止溢出
+		if (attempts >= Long.numberOfLeadingZeros(baseDelay) - 1) {
+			return maxDelay;
+		}
+		return Math.min(maxDelay, baseDelay << attempts);
+	}
+
+	private static long randomBetween(long min, long max) {
+		if (max <= min) {
+			return min;
+		}
+		return ThreadLocalRandom.current().nextLong(min, max + 1);
+	}
+
+	private static long saturatedMultiply(long value, int multiplier) {
+		return value > Long.MAX_VALUE / multiplier ? Long.MAX_VALUE : value * multiplier;
+	}
+
+	public long getBaseDelay() {
+		return baseDelay;
+	}
+
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	public Jitter getJitter() {
+		return jitter;
+	}
+
+	/**
+	 * 抖动方式
+	 */
+	public enum Jitter {
+		/**
+		 * 不抖动，纯指数退避
+		 */
+		NONE,
+		/**
+		 * 全抖动，在 [0, 指数等待时间] 之间随机
+		 */
+		FULL,
+		/**
+		 * 去相关抖动，在 [baseDelay, 上一次等待时间 * 3] 之间随机，首次上一次等待时间按 baseDelay 计算
+		 */
+		DECORRELATED
+	}
+
+}
@@ -26,8 +26,25 @@ public interface IMqttClientMessageIdGenerator {
 	/**
 	 * 获取 messageId
 	 *
-	 * @return messageId
+	 * @return messageId，0 表示 messageId 已耗尽
 	 */
 	int getId();
 
+	/**
+	 * 释放 messageId，收到 ack 之后调用
+	 *
+	 * @param messageId messageId
+	 */
+	default void release(int messageId) {
+	}
+
+	/**
+	 * messageId 是否已经耗尽，即所有 messageId 都在等待 ack，可用于背压
+	 *
+	 * @return 是否耗尽
+	 */
+	default boolean isExhausted() {
+		return false;
+	}
+
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.client;
+
+/**
+ * mqtt client 重连策略，用于计算下一次重连的等待时间
+ *
+ * @author L.cm
+ */
+@FunctionalInterface
+public interface IMqttClientReconnectPolicy {
+
+	/**
+	 * 计算下一次重连前的等待时间
+	 *
+	 * @param attempts      已连续失败的重连次数，首次断开时为 0，连接成功后归零
+	 * @param previousDelay 上一次的等待时间，单位毫秒，首次为 0
+	 * @return 等待时间，单位毫秒，必须大于 0
+	 */
+	long nextDelay(int attempts, long previousDelay);
+
+}
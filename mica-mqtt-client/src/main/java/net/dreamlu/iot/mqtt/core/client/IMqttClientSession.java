@@ -51,6 +51,14 @@ public interface IMqttClientSession {
 	 */
 	void removePaddingSubscribes(List<String> topicFilters);
 
+	/**
+	 * 移除订阅过程中被取消订阅清除的 messageId
+	 *
+	 * @param messageId messageId
+	 * @return 是否为已取消的过程订阅
+	 */
+	boolean removeCancelledSubscribe(int messageId);
+
 	/**
 	 * 删除过程订阅
 	 *
@@ -17,7 +17,9 @@
 package net.dreamlu.iot.mqtt.core.client;
 
 import net.dreamlu.iot.mqtt.codec.*;
+import net.dreamlu.iot.mqtt.core.common.MqttMessageExpiry;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingPublish;
+import net.dreamlu.iot.mqtt.core.common.MqttTopicAliases;
 import net.dreamlu.iot.mqtt.core.util.TopicUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,9 +32,11 @@ import org.tio.core.ChannelContext;
 import org.tio.core.Node;
 import org.tio.core.Tio;
 import org.tio.core.intf.Packet;
+import org.tio.utils.hutool.StrUtil;
 import org.tio.utils.timer.TimerTaskService;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -48,6 +52,14 @@ public final class MqttClient {
 	 * 是否需要重新订阅
 	 */
 	private static final String MQTT_NEED_RE_SUB = "MQTT_NEED_RE_SUB";
+	/**
+	 * 异步连接时，TioClientConfig 中保存的 MqttClient
+	 */
+	private static final String MQTT_CLIENT = "MQTT_CLIENT";
+	/**
+	 * mqtt5 topic alias，connAck 时创建
+	 */
+	private static final String MQTT_TOPIC_ALIAS = "MQTT_TOPIC_ALIAS";
 	private final TioClient tioClient;
 	private final MqttClientCreator config;
 	private final TioClientConfig clientTioConfig;
@@ -55,6 +67,8 @@ public final class MqttClient {
 	private final TimerTaskService taskService;
 	private final IMqttClientMessageIdGenerator messageIdGenerator;
 	private ClientChannelContext context;
+	private volatile MqttClientRequestManager requestManager;
+	private volatile CompletableFuture<MqttClient> connectFuture;
 
 	public static MqttClientCreator create() {
 		return new MqttClientCreator();
@@ -205,20 +219,21 @@ public final class MqttClient {
 		List<MqttTopicSubscription> topicSubscriptionList = needSubscriptionList.stream()
 			.map(MqttClientSubscription::toTopicSubscription)
 			.collect(Collectors.toList());
-		// 3. 没有订阅过
-		int messageId = messageIdGenerator.getId();
-		MqttSubscribeMessage message = MqttMessageBuilders.subscribe()
-			.addSubscriptions(topicSubscriptionList)
-			.messageId(messageId)
-			.properties(properties)
-			.build();
-		// 4. 已经连接成功，直接订阅逻辑，未连接成功的添加到订阅列表，连接成功时会重连。
+		// 3. 已经连接成功，直接订阅逻辑，未连接成功的添加到订阅列表，连接成功时会重连。
 		if (isConnected()) {
-			Boolean result = Tio.send(getContext(), message);
-			logger.info("MQTT subscriptionList:{} messageId:{} subscribing result:{}", needSubscriptionList, messageId, result);
+			// 消息 id 只在发送时分配，避免离线时占用
+			int messageId = nextMessageId();
+			MqttSubscribeMessage message = MqttMessageBuilders.subscribe()
+				.addSubscriptions(topicSubscriptionList)
+				.messageId(messageId)
+				.properties(properties)
+				.build();
+			// 先登记过程订阅再发送，避免 SubAck 先于登记到达
 			MqttPendingSubscription pendingSubscription = new MqttPendingSubscription(needSubscriptionList, message);
-			pendingSubscription.startRetransmitTimer(taskService, (msg) -> Tio.send(getContext(), message));
 			clientSession.addPaddingSubscribe(messageId, pendingSubscription);
+			pendingSubscription.startRetransmitTimer(taskService, (msg) -> Tio.send(getContext(), message));
+			Boolean result = Tio.send(getContext(), message);
+			logger.info("MQTT subscriptionList:{} messageId:{} subscribing result:{}", needSubscriptionList, messageId, result);
 		} else {
 			clientSession.addSubscriptionList(needSubscriptionList);
 		}
@@ -248,17 +263,17 @@ public final class MqttClient {
 		clientSession.removePaddingSubscribes(topicFilters);
 		clientSession.removeSubscriptions(topicFilters);
 		// 3. 发送取消订阅到服务端
-		int messageId = messageIdGenerator.getId();
+		int messageId = nextMessageId();
 		MqttUnsubscribeMessage message = MqttMessageBuilders.unsubscribe()
 			.addTopicFilters(topicFilters)
 			.messageId(messageId)
 			.build();
+		// 4. 先登记过程取消订阅并启动重试，再发送，避免 UnSubAck 先于登记到达
 		MqttPendingUnSubscription pendingUnSubscription = new MqttPendingUnSubscription(topicFilters, message);
-		Boolean result = Tio.send(getContext(), message);
-		logger.info("MQTT Topic:{} messageId:{} unSubscribing result:{}", topicFilters, messageId, result);
-		// 4. 启动取消订阅线程
 		clientSession.addPaddingUnSubscribe(messageId, pendingUnSubscription);
 		pendingUnSubscription.startRetransmissionTimer(taskService, msg -> Tio.send(getContext(), msg));
+		Boolean result = Tio.send(getContext(), message);
+		logger.info("MQTT Topic:{} messageId:{} unSubscribing result:{}", topicFilters, messageId, result);
 		return this;
 	}
 
@@ -339,6 +354,11 @@ public final class MqttClient {
 		// qos 判断
 		boolean isHighLevelQoS = MqttQoS.AT_LEAST_ONCE == qos || MqttQoS.EXACTLY_ONCE == qos;
 		int messageId = isHighLevelQoS ? messageIdGenerator.getId() : -1;
+		// messageId 耗尽，所有 messageId 都在等待 ack，不再发送
+		if (messageId == 0) {
+			logger.warn("MQTT Topic:{} qos:{} publish failed, messageId exhausted.", topic, qos);
+			return false;
+		}
 		MqttMessageBuilders.PublishBuilder publishBuilder = MqttMessageBuilders.publish();
 		// 自定义配置
 		builder.accept(publishBuilder);
@@ -348,16 +368,126 @@ public final class MqttClient {
 			.messageId(messageId)
 			.qos(qos);
 		MqttPublishMessage message = publishBuilder.build();
-		boolean result = Tio.send(getContext(), message);
+		boolean result = send(getContext(), message);
 		logger.debug("MQTT Topic:{} qos:{} retain:{} publish result:{}", topic, qos, publishBuilder.isRetained(), result);
 		if (isHighLevelQoS) {
-			MqttPendingPublish pendingPublish = new MqttPendingPublish(payload, message, qos);
+			// mqtt5 消息过期后不再重发
+			long expiryAt = MqttMessageExpiry.getExpiryAt(message.variableHeader().properties(), System.currentTimeMillis());
+			MqttPendingPublish pendingPublish = new MqttPendingPublish(payload, message, qos, expiryAt);
 			clientSession.addPendingPublish(messageId, pendingPublish);
-			pendingPublish.startPublishRetransmissionTimer(taskService, msg -> Tio.send(getContext(), msg));
+			pendingPublish.startPublishRetransmissionTimer(taskService, msg -> Tio.send(getContext(), msg),
+				() -> {
+					clientSession.removePendingPublish(messageId);
+					messageIdGenerator.release(messageId);
+				});
 		}
 		return result;
 	}
 
+	/**
+	 * 发送 publish，使用 mqtt5 topic alias 时分配 alias 和写入发送队列在同一把锁内，保证顺序。
+	 * 重发的消息使用完整的 topic，避免 alias 被复用后发错 topic
+	 *
+	 * @param context ChannelContext
+	 * @param message MqttPublishMessage
+	 * @return 是否发送成功
+	 */
+	private static boolean send(ChannelContext context, MqttPublishMessage message) {
+		MqttTopicAliases topicAliases = getTopicAliases(context);
+		if (topicAliases == null || topicAliases.getOutboundMaximum() == 0) {
+			return Tio.send(context, message);
+		}
+		synchronized (topicAliases) {
+			return Tio.send(context, topicAliases.alias(message));
+		}
+	}
+
+	/**
+	 * mqtt5 请求响应，默认 qos1，超时 10 秒，限制见 {@link #request(String, byte[], MqttQoS, long)}
+	 *
+	 * @param topic   topic
+	 * @param payload 消息体
+	 * @return 响应消息
+	 */
+	public CompletableFuture<MqttPublishMessage> request(String topic, byte[] payload) {
+		return request(topic, payload, MqttQoS.AT_LEAST_ONCE, TimeUnit.SECONDS.toMillis(10));
+	}
+
+	/**
+	 * mqtt5 请求响应，自动生成 Correlation Data，携带 Response Topic 发布，收到对应的响应时完成
+	 *
+	 * <p>
+	 * 注意：mica-mqtt-server 转发消息时不会携带 mqtt5 属性，订阅方收不到 Response Topic 和 Correlation Data，
+	 * 响应方需直接在服务端处理请求（例如 IMqttMessageListener 中读取请求属性并回复），或使用会转发属性的 broker。
+	 * </p>
+	 *
+	 * @param topic         topic
+	 * @param payload       消息体
+	 * @param qos           MqttQoS
+	 * @param timeoutMillis 超时时间，单位毫秒，超时以 TimeoutException 结束
+	 * @return 响应消息
+	 */
+	public CompletableFuture<MqttPublishMessage> request(String topic, byte[] payload, MqttQoS qos, long timeoutMillis) {
+		if (MqttVersion.MQTT_5 != config.getVersion()) {
+			throw new IllegalStateException("MqttClient request requires mqtt version 5.");
+		}
+		TopicUtil.validateTopicName(topic);
+		return getRequestManager().request(topic, payload, qos, timeoutMillis);
+	}
+
+	/**
+	 * 响应 mqtt5 请求，发布到请求的 Response Topic 并携带 Correlation Data
+	 *
+	 * @param request 请求消息
+	 * @param payload 响应的消息体
+	 * @param qos     MqttQoS
+	 * @return 是否发送成功，请求中没有 Response Topic 时返回 false
+	 */
+	public boolean response(MqttPublishMessage request, byte[] payload, MqttQoS qos) {
+		MqttProperties requestProperties = request.variableHeader().properties();
+		String responseTopic = requestProperties.getPropertyValue(MqttProperties.MqttPropertyType.RESPONSE_TOPIC);
+		if (responseTopic == null) {
+			return false;
+		}
+		MqttProperties properties = new MqttProperties();
+		byte[] correlationData = requestProperties.getPropertyValue(MqttProperties.MqttPropertyType.CORRELATION_DATA);
+		if (correlationData != null) {
+			properties.add(new MqttProperties.BinaryProperty(MqttProperties.MqttPropertyType.CORRELATION_DATA.value(), correlationData));
+		}
+		return publish(responseTopic, payload, qos, publishBuilder -> publishBuilder.properties(properties));
+	}
+
+	private MqttClientRequestManager getRequestManager() {
+		MqttClientRequestManager manager = this.requestManager;
+		if (manager == null) {
+			synchronized (this) {
+				manager = this.requestManager;
+				if (manager == null) {
+					String responseTopic = config.getResponseTopic();
+					if (StrUtil.isBlank(responseTopic)) {
+						responseTopic = "response/" + config.getClientId();
+					}
+					manager = new MqttClientRequestManager(this, taskService, responseTopic);
+					this.requestManager = manager;
+				}
+			}
+		}
+		return manager;
+	}
+
+	/**
+	 * 获取 messageId，耗尽时抛出异常
+	 *
+	 * @return messageId
+	 */
+	private int nextMessageId() {
+		int messageId = messageIdGenerator.getId();
+		if (messageId == 0) {
+			throw new IllegalStateException("MqttClient messageId exhausted, too many messages waiting for ack.");
+		}
+		return messageId;
+	}
+
 	/**
 	 * 异步连接
 	 *
@@ -380,6 +510,73 @@ public final class MqttClient {
 		}
 	}
 
+	/**
+	 * 异步连接，收到 CONNACK 时完成
+	 *
+	 * @return 连接结果
+	 */
+	CompletableFuture<MqttClient> startAsync() {
+		CompletableFuture<MqttClient> future = new CompletableFuture<>();
+		this.connectFuture = future;
+		this.clientTioConfig.set(MQTT_CLIENT, this);
+		try {
+			start(false);
+		} catch (Exception e) {
+			completeConnect(e);
+		}
+		return future;
+	}
+
+	/**
+	 * 获取 mqtt5 topic alias
+	 *
+	 * @param context ChannelContext
+	 * @return MqttTopicAliases
+	 */
+	static MqttTopicAliases getTopicAliases(ChannelContext context) {
+		return context == null ? null : (MqttTopicAliases) context.get(MQTT_TOPIC_ALIAS);
+	}
+
+	/**
+	 * 设置 mqtt5 topic alias，为 null 时清除
+	 *
+	 * @param context      ChannelContext
+	 * @param topicAliases MqttTopicAliases
+	 */
+	static void setTopicAliases(ChannelContext context, MqttTopicAliases topicAliases) {
+		if (topicAliases == null) {
+			context.remove(MQTT_TOPIC_ALIAS);
+		} else {
+			context.set(MQTT_TOPIC_ALIAS, topicAliases);
+		}
+	}
+
+	/**
+	 * 通知异步连接的结果
+	 *
+	 * @param context ChannelContext
+	 * @param error   连接失败的异常，成功为 null
+	 */
+	static void notifyConnect(ChannelContext context, Throwable error) {
+		MqttClient mqttClient = context.tioConfig.get(MQTT_CLIENT);
+		if (mqttClient != null) {
+			mqttClient.completeConnect(error);
+		}
+	}
+
+	private void completeConnect(Throwable error) {
+		CompletableFuture<MqttClient> future = this.connectFuture;
+		if (future == null) {
+			return;
+		}
+		this.connectFuture = null;
+		if (error == null) {
+			future.complete(this);
+		} else {
+			future.completeExceptionally(error);
+		}
+	}
+
 	/**
 	 * 重连
 	 */
@@ -479,11 +676,36 @@ public final class MqttClient {
 		// 3. 停止 tio
 		boolean result = tioClient.stop();
 		logger.info("MqttClient stop result:{}", result);
-		// 4. 清理 session
+		// 4. 取消等待响应的请求
+		if (this.requestManager != null) {
+			this.requestManager.cancelAll();
+		}
+		// 5. 清理 session
 		this.clientSession.clean();
 		return result;
 	}
 
+	/**
+	 * 放弃连接，停止重连和心跳并关闭连接，不停止共享的线程池和 taskService
+	 */
+	void abort() {
+		// 1. 停止重连和心跳线程
+		clientTioConfig.setStopped(true);
+		// 2. 关闭连接，重连队列中的连接标记为 removed，不再重连
+		for (ChannelContext channelContext : clientTioConfig.connecteds) {
+			Tio.remove(channelContext, "MqttClient abort.");
+		}
+		for (ChannelContext channelContext : clientTioConfig.closeds) {
+			channelContext.setRemoved(true);
+		}
+		// 3. 取消等待响应的请求
+		if (this.requestManager != null) {
+			this.requestManager.cancelAll();
+		}
+		// 4. 清理 session
+		this.clientSession.clean();
+	}
+
 	/**
 	 * 获取 TioClient
 	 *
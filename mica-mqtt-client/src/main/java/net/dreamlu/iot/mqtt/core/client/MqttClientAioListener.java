@@ -27,6 +27,7 @@ import org.tio.core.ChannelContext;
 import org.tio.core.Tio;
 import org.tio.utils.hutool.StrUtil;
 
+import java.net.ConnectException;
 import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -49,15 +50,25 @@ public class MqttClientAioListener extends DefaultTioClientListener {
 
 	@Override
 	public void onAfterConnected(ChannelContext context, boolean isConnected, boolean isReconnect) {
-		if (isConnected) {
-			// 重连时，发送 mqtt 连接消息
-			Boolean result = Tio.send(context, getConnectMessage(this.clientCreator));
-			logger.info("MqttClient reconnect send connect result:{}", result);
+		if (!isConnected) {
+			// 异步连接时，tcp 连接失败直接结束
+			MqttClient.notifyConnect(context, new ConnectException("MqttClient connect to " + context.getServerNode() + " failed."));
+			return;
+		}
+		// 已经放弃的连接，不再发送 mqtt 连接消息
+		if (context.tioConfig.isStopped()) {
+			Tio.remove(context, "MqttClient stopped.");
+			return;
 		}
+		// 重连时，发送 mqtt 连接消息
+		Boolean result = Tio.send(context, getConnectMessage(this.clientCreator));
+		logger.info("MqttClient reconnect send connect result:{}", result);
 	}
 
 	@Override
 	public void onBeforeClose(ChannelContext channelContext, Throwable throwable, String remark, boolean isRemove) {
+		// 1. topic alias 只在本次连接有效，重连时等待新的 connAck
+		MqttClient.setTopicAliases(channelContext, null);
 		// 先判断是否配置监听
 		if (connectListener == null) {
 			return;
@@ -115,6 +126,14 @@ public class MqttClientAioListener extends DefaultTioClientListener {
 				}
 				properties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.SESSION_EXPIRY_INTERVAL, sessionExpiryInterval));
 			}
+			// Topic Alias Maximum
+			int topicAliasMaximum = mqttClientCreator.getTopicAliasMaximum();
+			if (topicAliasMaximum > 0) {
+				if (properties == null) {
+					properties = new MqttProperties();
+				}
+				properties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.TOPIC_ALIAS_MAXIMUM, topicAliasMaximum));
+			}
 			if (properties != null) {
 				builder.properties(properties);
 			}
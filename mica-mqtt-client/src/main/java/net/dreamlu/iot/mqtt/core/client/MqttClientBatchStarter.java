@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.client;
+
+import net.dreamlu.iot.mqtt.core.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tio.utils.thread.pool.SynThreadPoolExecutor;
+import org.tio.utils.timer.DefaultTimerTaskService;
+import org.tio.utils.timer.TimerTask;
+import org.tio.utils.timer.TimerTaskService;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+/**
+ * 批量启动 mqtt 客户端，限制连接速率和并发数，所有客户端共享线程池和 taskService
+ *
+ * <pre>
+ * MqttClientBatchStarter.create()
+ *     .rate(1000)
+ *     .concurrency(500)
+ *     .start(20000, (i) -&gt; MqttClient.create().ip("127.0.0.1").clientId("device-" + i))
+ *     .thenAccept(result -&gt; logger.info("{}", result));
+ * </pre>
+ *
+ * @author L.cm
+ */
+public final class MqttClientBatchStarter {
+	private static final Logger logger = LoggerFactory.getLogger(MqttClientBatchStarter.class);
+	/**
+	 * 每秒最多发起的连接数，小于 1 不限制，默认：1000
+	 */
+	private int rate = 1000;
+	/**
+	 * 同时进行中（未收到 CONNACK）的连接数，默认：500
+	 */
+	private int concurrency = 500;
+	/**
+	 * 单个客户端的连接超时，单位毫秒，默认：10000
+	 */
+	private long timeout = 10_000L;
+	private SynThreadPoolExecutor tioExecutor;
+	private ThreadPoolExecutor groupExecutor;
+	private ThreadPoolExecutor mqttExecutor;
+	private TimerTaskService taskService;
+
+	public static MqttClientBatchStarter create() {
+		return new MqttClientBatchStarter();
+	}
+
+	public MqttClientBatchStarter rate(int rate) {
+		this.rate = rate;
+		return this;
+	}
+
+	public MqttClientBatchStarter concurrency(int concurrency) {
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	public MqttClientBatchStarter timeout(long timeout) {
+		this.timeout = timeout;
+		return this;
+	}
+
+	public MqttClientBatchStarter tioExecutor(SynThreadPoolExecutor tioExecutor) {
+		this.tioExecutor = tioExecutor;
+		return this;
+	}
+
+	public MqttClientBatchStarter groupExecutor(ThreadPoolExecutor groupExecutor) {
+		this.groupExecutor = groupExecutor;
+		return this;
+	}
+
+	public MqttClientBatchStarter mqttExecutor(ThreadPoolExecutor mqttExecutor) {
+		this.mqttExecutor = mqttExecutor;
+		return this;
+	}
+
+	public MqttClientBatchStarter taskService(TimerTaskService taskService) {
+		this.taskService = taskService;
+		return this;
+	}
+
+	/**
+	 * 批量启动客户端
+	 *
+	 * @param count   客户端数量
+	 * @param factory 按序号构造 MqttClientCreator，未配置的线程池和 taskService 使用共享的
+	 * @return 所有客户端连接结束（成功、失败或超时）时完成
+	 */
+	public CompletableFuture<Result> start(int count, IntFunction<MqttClientCreator> factory) {
+		if (count < 1) {
+			throw new IllegalArgumentException("MqttClientBatchStarter count must be greater than 0.");
+		}
+		Objects.requireNonNull(factory, "MqttClientBatchStarter factory is null.");
+		// 共享的线程池和 taskService
+		if (this.tioExecutor == null) {
+			this.tioExecutor = ThreadUtil.getTioExecutor(Runtime.getRuntime().availableProcessors());
+		}
+		if (this.groupExecutor == null) {
+			this.groupExecutor = ThreadUtil.getGroupExecutor(Runtime.getRuntime().availableProcessors());
+		}
+		if (this.mqttExecutor == null) {
+			this.mqttExecutor = ThreadUtil.getMqttExecutor(Runtime.getRuntime().availableProcessors());
+		}
+		if (this.taskService == null) {
+			this.taskService = new DefaultTimerTaskService(200L, 60);
+		}
+		this.taskService.start();
+		CompletableFuture<Result> resultFuture = new CompletableFuture<>();
+		AtomicReferenceArray<ConnectResult> results = new AtomicReferenceArray<>(count);
+		AtomicInteger remaining = new AtomicInteger(count);
+		long startTime = System.nanoTime();
+		// 构造 TioClient 比较耗时，多线程发起连接
+		int launchThreads = Math.max(1, Math.min(concurrency < 1 ? count : concurrency, Runtime.getRuntime().availableProcessors()));
+		ExecutorService launchExecutor = Executors.newFixedThreadPool(launchThreads, runnable -> {
+			Thread launchThread = new Thread(runnable, "MqttClientBatchStarter-launch");
+			launchThread.setDaemon(true);
+			return launchThread;
+		});
+		Thread thread = new Thread(() -> {
+			Semaphore semaphore = new Semaphore(concurrency < 1 ? Integer.MAX_VALUE : concurrency);
+			long intervalNanos = rate < 1 ? 0 : TimeUnit.SECONDS.toNanos(1) / rate;
+			long nextTime = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				// 1. 并发数限制
+				semaphore.acquireUninterruptibly();
+				// 2. 速率限制
+				if (intervalNanos > 0) {
+					long waitNanos = nextTime - System.nanoTime();
+					if (waitNanos > 0) {
+						LockSupport.parkNanos(waitNanos);
+					}
+					nextTime = Math.max(nextTime, System.nanoTime() - intervalNanos) + intervalNanos;
+				}
+				// 3. 异步连接
+				int index = i;
+				launchExecutor.execute(() -> connect(index, factory).whenComplete((connectResult, e) -> {
+					semaphore.release();
+					results.set(index, connectResult);
+					if (remaining.decrementAndGet() == 0) {
+						resultFuture.complete(new Result(toList(results), System.nanoTime() - startTime));
+					}
+				}));
+			}
+			launchExecutor.shutdown();
+		}, "MqttClientBatchStarter");
+		thread.setDaemon(true);
+		thread.start();
+		return resultFuture;
+	}
+
+	/**
+	 * 连接单个客户端，始终正常完成，失败记录在 ConnectResult 中
+	 *
+	 * @param index   序号
+	 * @param factory MqttClientCreator 工厂
+	 * @return ConnectResult
+	 */
+	private CompletableFuture<ConnectResult> connect(int index, IntFunction<MqttClientCreator> factory) {
+		long start = System.nanoTime();
+		CompletableFuture<ConnectResult> future = new CompletableFuture<>();
+		MqttClientCreator creator;
+		CompletableFuture<MqttClient> connectFuture;
+		try {
+			creator = factory.apply(index);
+			applyShared(creator);
+			connectFuture = creator.connectAsync();
+		} catch (Throwable e) {
+			logger.error("MqttClientBatchStarter client index:{} start error.", index, e);
+			future.complete(new ConnectResult(index, null, null, System.nanoTime() - start, e));
+			return future;
+		}
+		TimerTask timeoutTask = taskService.addTask(systemTimer -> new TimerTask(timeout) {
+			@Override
+			public void run() {
+				// 超时以异常结束，客户端会放弃连接，不再后台重连
+				connectFuture.completeExceptionally(new TimeoutException("MqttClient connect timeout after " + timeout + "ms."));
+			}
+		});
+		String clientId = creator.getClientId();
+		connectFuture.whenComplete((mqttClient, e) -> {
+			timeoutTask.cancel();
+			future.complete(new ConnectResult(index, clientId, mqttClient, System.nanoTime() - start, e));
+		});
+		return future;
+	}
+
+	private void applyShared(MqttClientCreator creator) {
+		if (creator.getTioExecutor() == null) {
+			creator.tioExecutor(tioExecutor);
+		}
+		if (creator.getGroupExecutor() == null) {
+			creator.groupExecutor(groupExecutor);
+		}
+		if (creator.getMqttExecutor() == null) {
+			creator.mqttExecutor(mqttExecutor);
+		}
+		if (creator.getTaskService() == null) {
+			creator.taskService(taskService);
+		}
+	}
+
+	private static List<ConnectResult> toList(AtomicReferenceArray<ConnectResult> results) {
+		List<ConnectResult> list = new ArrayList<>(results.length());
+		for (int i = 0; i < results.length(); i++) {
+			list.add(results.get(i));
+		}
+		return list;
+	}
+
+	/**
+	 * 单个客户端的连接结果
+	 */
+	public static final class ConnectResult {
+		private final int index;
+		private final String clientId;
+		private final MqttClient client;
+		private final long latencyNanos;
+		private final Throwable error;
+
+		ConnectResult(int index, String clientId, MqttClient client, long latencyNanos, Throwable error) {
+			this.index = index;
+			this.clientId = clientId;
+			this.client = client;
+			this.latencyNanos = latencyNanos;
+			this.error = error;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public String getClientId() {
+			return clientId;
+		}
+
+		/**
+		 * 获取客户端，连接失败时为 null
+		 *
+		 * @return MqttClient
+		 */
+		public MqttClient getClient() {
+			return client;
+		}
+
+		/**
+		 * 从发起连接到收到 CONNACK（或失败）的耗时
+		 *
+		 * @return 耗时，单位毫秒
+		 */
+		public double getLatencyMillis() {
+			return latencyNanos / 1_000_000D;
+		}
+
+		public Throwable getError() {
+			return error;
+		}
+
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+
+	/**
+	 * 批量启动的结果
+	 */
+	public static final class Result {
+		private final List<ConnectResult> results;
+		private final long elapsedNanos;
+		private final double[] latencies;
+
+		Result(List<ConnectResult> results, long elapsedNanos) {
+			this.results = Collections.unmodifiableList(results);
+			this.elapsedNanos = elapsedNanos;
+			this.latencies = results.stream()
+				.filter(ConnectResult::isSuccess)
+				.mapToDouble(ConnectResult::getLatencyMillis)
+				.sorted()
+				.toArray();
+		}
+
+		public List<ConnectResult> getResults() {
+			return results;
+		}
+
+		/**
+		 * 连接成功的客户端
+		 *
+		 * @return MqttClient 集合
+		 */
+		public List<MqttClient> getClients() {
+			List<MqttClient> clients = new ArrayList<>(latencies.length);
+			for (ConnectResult result : results) {
+				if (result.isSuccess()) {
+					clients.add(result.getClient());
+				}
+			}
+			return clients;
+		}
+
+		public int getSuccessCount() {
+			return latencies.length;
+		}
+
+		public int getFailedCount() {
+			return results.size() - latencies.length;
+		}
+
+		/**
+		 * 总耗时
+		 *
+		 * @return 耗时，单位毫秒
+		 */
+		public double getElapsedMillis() {
+			return elapsedNanos / 1_000_000D;
+		}
+
+		/**
+		 * 连接成功的耗时百分位
+		 *
+		 * @param percentile 百分位，0 ~ 100
+		 * @return 耗时，单位毫秒
+		 */
+		public double getLatencyPercentile(double percentile) {
+			if (latencies.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(percentile / 100D * latencies.length) - 1;
+			return latencies[Math.min(latencies.length - 1, Math.max(0, index))];
+		}
+
+		@Override
+		public String toString() {
+			return String.format("MqttClientBatchStarter.Result{success=%d, failed=%d, elapsed=%.1fms, latency p50=%.1fms, p99=%.1fms, max=%.1fms}",
+				getSuccessCount(), getFailedCount(), getElapsedMillis(),
+				getLatencyPercentile(50), getLatencyPercentile(99), getLatencyPercentile(100));
+		}
+	}
+
+}
@@ -34,6 +34,7 @@ import org.tio.utils.timer.DefaultTimerTaskService;
 import org.tio.utils.timer.TimerTaskService;
 
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.function.Consumer;
 
@@ -99,6 +100,14 @@ public final class MqttClientCreator {
 	 * 重连，重新订阅一个批次大小，默认：20
 	 */
 	private int reSubscribeBatchSize = 20;
+	/**
+	 * 重连，重新订阅批次之间的间隔时间，单位毫秒，默认：0 不间隔，一次性发出
+	 */
+	private long reSubscribeInterval = 0;
+	/**
+	 * 重连策略，为 null 时按 reInterval 固定间隔重连
+	 */
+	private IMqttClientReconnectPolicy reconnectPolicy;
 	/**
 	 * 客户端 id，默认：随机生成
 	 */
@@ -107,6 +116,10 @@ public final class MqttClientCreator {
 	 * mqtt 协议，默认：3_1_1
 	 */
 	private MqttVersion version = MqttVersion.MQTT_3_1_1;
+	/**
+	 * mqtt5 请求响应的响应 topic，默认：response/{clientId}
+	 */
+	private String responseTopic;
 	/**
 	 * 用户名
 	 */
@@ -127,6 +140,10 @@ public final class MqttClientCreator {
 	 * mqtt 5.0 session 有效期，单位秒
 	 */
 	private Integer sessionExpiryIntervalSecs;
+	/**
+	 * mqtt 5.0 Topic Alias Maximum，服务端可使用的 alias 最大值，同时限制发布时使用的 alias 数，为 0 时不使用 alias
+	 */
+	private int topicAliasMaximum = 16;
 	/**
 	 * 遗嘱消息
 	 */
@@ -232,6 +249,14 @@ public final class MqttClientCreator {
 		return reSubscribeBatchSize;
 	}
 
+	public long getReSubscribeInterval() {
+		return reSubscribeInterval;
+	}
+
+	public IMqttClientReconnectPolicy getReconnectPolicy() {
+		return reconnectPolicy;
+	}
+
 	public String getClientId() {
 		return clientId;
 	}
@@ -240,6 +265,10 @@ public final class MqttClientCreator {
 		return version;
 	}
 
+	public String getResponseTopic() {
+		return responseTopic;
+	}
+
 	public String getUsername() {
 		return username;
 	}
@@ -256,6 +285,10 @@ public final class MqttClientCreator {
 		return sessionExpiryIntervalSecs;
 	}
 
+	public int getTopicAliasMaximum() {
+		return topicAliasMaximum;
+	}
+
 	public MqttWillMessage getWillMessage() {
 		return willMessage;
 	}
@@ -389,6 +422,16 @@ public final class MqttClientCreator {
 		return this;
 	}
 
+	public MqttClientCreator reSubscribeInterval(long reSubscribeInterval) {
+		this.reSubscribeInterval = reSubscribeInterval;
+		return this;
+	}
+
+	public MqttClientCreator reconnectPolicy(IMqttClientReconnectPolicy reconnectPolicy) {
+		this.reconnectPolicy = reconnectPolicy;
+		return this;
+	}
+
 	public MqttClientCreator clientId(String clientId) {
 		this.clientId = clientId;
 		return this;
@@ -399,6 +442,11 @@ public final class MqttClientCreator {
 		return this;
 	}
 
+	public MqttClientCreator responseTopic(String responseTopic) {
+		this.responseTopic = responseTopic;
+		return this;
+	}
+
 	public MqttClientCreator username(String username) {
 		this.username = username;
 		return this;
@@ -419,6 +467,14 @@ public final class MqttClientCreator {
 		return this;
 	}
 
+	public MqttClientCreator topicAliasMaximum(int topicAliasMaximum) {
+		if (topicAliasMaximum < 0 || topicAliasMaximum > 0xFFFF) {
+			throw new IllegalArgumentException("Mqtt topicAliasMaximum must be between 0 and 65535.");
+		}
+		this.topicAliasMaximum = topicAliasMaximum;
+		return this;
+	}
+
 	public MqttClientCreator willMessage(MqttWillMessage willMessage) {
 		this.willMessage = willMessage;
 		return this;
@@ -494,6 +550,50 @@ public final class MqttClientCreator {
 		return this;
 	}
 
+	/**
+	 * 复制配置，clientSession 和 messageIdGenerator 每个客户端独享，不复制
+	 *
+	 * @return MqttClientCreator
+	 */
+	MqttClientCreator copy() {
+		MqttClientCreator creator = new MqttClientCreator();
+		creator.name = this.name;
+		creator.ip = this.ip;
+		creator.port = this.port;
+		creator.timeout = this.timeout;
+		creator.readBufferSize = this.readBufferSize;
+		creator.maxBytesInMessage = this.maxBytesInMessage;
+		creator.maxClientIdLength = this.maxClientIdLength;
+		creator.keepAliveSecs = this.keepAliveSecs;
+		creator.sslConfig = this.sslConfig;
+		creator.reconnect = this.reconnect;
+		creator.reInterval = this.reInterval;
+		creator.retryCount = this.retryCount;
+		creator.reSubscribeBatchSize = this.reSubscribeBatchSize;
+		creator.reSubscribeInterval = this.reSubscribeInterval;
+		creator.reconnectPolicy = this.reconnectPolicy;
+		creator.clientId = this.clientId;
+		creator.version = this.version;
+		creator.responseTopic = this.responseTopic;
+		creator.username = this.username;
+		creator.password = this.password;
+		creator.cleanSession = this.cleanSession;
+		creator.sessionExpiryIntervalSecs = this.sessionExpiryIntervalSecs;
+		creator.topicAliasMaximum = this.topicAliasMaximum;
+		creator.willMessage = this.willMessage;
+		creator.properties = this.properties;
+		creator.bufferAllocator = this.bufferAllocator;
+		creator.connectListener = this.connectListener;
+		creator.statEnable = this.statEnable;
+		creator.debug = this.debug;
+		creator.tioExecutor = this.tioExecutor;
+		creator.groupExecutor = this.groupExecutor;
+		creator.mqttExecutor = this.mqttExecutor;
+		creator.taskService = this.taskService;
+		creator.tioConfigCustomize = this.tioConfigCustomize;
+		return creator;
+	}
+
 	private MqttClient build() {
 		// 1. clientId 为空，生成默认的 clientId
 		if (StrUtil.isBlank(this.clientId)) {
@@ -531,7 +631,11 @@ public final class MqttClientCreator {
 		// 5. 重连配置
 		ReconnConf reconnConf = null;
 		if (this.reconnect) {
-			reconnConf = new ReconnConf(this.reInterval, this.retryCount);
+			if (this.reconnectPolicy == null) {
+				reconnConf = new ReconnConf(this.reInterval, this.retryCount);
+			} else {
+				reconnConf = new MqttClientReconnConf(this.reconnectPolicy, this.reInterval, this.retryCount);
+			}
 		}
 		// 6. tioConfig
 		TioClientConfig tioConfig = new TioClientConfig(clientAioHandler, clientAioListener, reconnConf, tioExecutor, groupExecutor);
@@ -580,4 +684,72 @@ public final class MqttClientCreator {
 		return this.build().start(true);
 	}
 
+	/**
+	 * 异步连接，收到 CONNACK 时完成，tcp 连接失败、连接被拒绝或被取消时以异常结束，并停止重连
+	 *
+	 * @return 连接结果
+	 */
+	public CompletableFuture<MqttClient> connectAsync() {
+		MqttClient mqttClient = this.build();
+		CompletableFuture<MqttClient> future = mqttClient.startAsync();
+		// 调用方拿不到失败的客户端，放弃连接，避免在后台一直重连
+		future.whenComplete((client, e) -> {
+			if (e != null) {
+				mqttClient.abort();
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * 连接池，异步建立 poolSize 个连接，publish 按 topic hash 分配连接
+	 *
+	 * @param poolSize 连接数
+	 * @return MqttClientPool
+	 */
+	public MqttClientPool connectPool(int poolSize) {
+		return connectPool(poolSize, MqttClientPool.Routing.TOPIC_HASH);
+	}
+
+	/**
+	 * 连接池，异步建立 poolSize 个连接，clientId 以 -序号 为后缀，responseTopic 以 /序号 为后缀，共享线程池和 taskService
+	 *
+	 * @param poolSize 连接数
+	 * @param routing  publish 分配连接的方式
+	 * @return MqttClientPool
+	 */
+	public MqttClientPool connectPool(int poolSize, MqttClientPool.Routing routing) {
+		if (poolSize < 1) {
+			throw new IllegalArgumentException("MqttClientPool poolSize must be greater than 0.");
+		}
+		if (StrUtil.isBlank(this.clientId)) {
+			this.clientId("MICA-MQTT-" + Long.toString(System.nanoTime(), 36));
+		}
+		// 共享的线程池和 taskService，避免每个连接都创建线程
+		if (this.tioExecutor == null) {
+			this.tioExecutor = ThreadUtil.getTioExecutor(3);
+		}
+		if (this.groupExecutor == null) {
+			this.groupExecutor = ThreadUtil.getGroupExecutor(2);
+		}
+		if (this.mqttExecutor == null) {
+			this.mqttExecutor = ThreadUtil.getMqttExecutor(2);
+		}
+		if (this.taskService == null) {
+			this.taskService = new DefaultTimerTaskService();
+		}
+		MqttClient[] clients = new MqttClient[poolSize];
+		for (int i = 0; i < poolSize; i++) {
+			MqttClientCreator creator = this.copy()
+				.name(this.name + '-' + i)
+				.clientId(this.clientId + '-' + i);
+			// 显式配置的响应 topic 同样加上序号，避免连接之间互相抢占响应
+			if (StrUtil.isNotBlank(this.responseTopic)) {
+				creator.responseTopic(this.responseTopic + '/' + i);
+			}
+			clients[i] = creator.connect();
+		}
+		return new MqttClientPool(clients, routing);
+	}
+
 }
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.client;
+
+import net.dreamlu.iot.mqtt.codec.MqttMessageBuilders;
+import net.dreamlu.iot.mqtt.codec.MqttProperties;
+import net.dreamlu.iot.mqtt.codec.MqttQoS;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * mqtt 客户端连接池，多个连接分摊发布吞吐
+ *
+ * <p>
+ * publish 按 topic hash 分配连接（同一 topic 保证有序）或轮询，订阅按 topicFilter hash 分区到固定连接。
+ * </p>
+ *
+ * @author L.cm
+ */
+public final class MqttClientPool {
+	private final MqttClient[] clients;
+	private final Routing routing;
+	private final AtomicInteger roundRobin = new AtomicInteger();
+	private final LongAdder[] publishCounts;
+	private final LongAdder[] publishFailedCounts;
+
+	MqttClientPool(MqttClient[] clients, Routing routing) {
+		this.clients = clients;
+		this.routing = routing == null ? Routing.TOPIC_HASH : routing;
+		this.publishCounts = new LongAdder[clients.length];
+		this.publishFailedCounts = new LongAdder[clients.length];
+		for (int i = 0; i < clients.length; i++) {
+			this.publishCounts[i] = new LongAdder();
+			this.publishFailedCounts[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * 订阅，按 topicFilter 分区到固定的连接
+	 *
+	 * @param topicFilter topicFilter
+	 * @param listener    MqttMessageListener
+	 * @return MqttClientPool
+	 */
+	public MqttClientPool subQos0(String topicFilter, IMqttClientMessageListener listener) {
+		return subscribe(topicFilter, MqttQoS.AT_MOST_ONCE, listener);
+	}
+
+	/**
+	 * 订阅，按 topicFilter 分区到固定的连接
+	 *
+	 * @param topicFilter topicFilter
+	 * @param listener    MqttMessageListener
+	 * @return MqttClientPool
+	 */
+	public MqttClientPool subQos1(String topicFilter, IMqttClientMessageListener listener) {
+		return subscribe(topicFilter, MqttQoS.AT_LEAST_ONCE, listener);
+	}
+
+	/**
+	 * 订阅，按 topicFilter 分区到固定的连接
+	 *
+	 * @param topicFilter topicFilter
+	 * @param listener    MqttMessageListener
+	 * @return MqttClientPool
+	 */
+	public MqttClientPool subQos2(String topicFilter, IMqttClientMessageListener listener) {
+		return subscribe(topicFilter, MqttQoS.EXACTLY_ONCE, listener);
+	}
+
+	/**
+	 * 订阅，按 topicFilter 分区到固定的连接
+	 *
+	 * @param topicFilter topicFilter
+	 * @param mqttQoS     MqttQoS
+	 * @param listener    MqttMessageListener
+	 * @return MqttClientPool
+	 */
+	public MqttClientPool subscribe(String topicFilter, MqttQoS mqttQoS, IMqttClientMessageListener listener) {
+		clients[partition(topicFilter)].subscribe(topicFilter, mqttQoS, listener);
+		return this;
+	}
+
+	/**
+	 * 批量订阅，按 topicFilter 分区后每个连接发送一次订阅
+	 *
+	 * @param topicFilters topicFilter 数组
+	 * @param mqttQoS      MqttQoS
+	 * @param listener     MqttMessageListener
+	 * @return MqttClientPool
+	 */
+	public MqttClientPool subscribe(String[] topicFilters, MqttQoS mqttQoS, IMqttClientMessageListener listener) {
+		Map<Integer, List<String>> partitions = groupByPartition(Arrays.asList(topicFilters));
+		partitions.forEach((index, list) -> clients[index].subscribe(list.toArray(new String[0]), mqttQoS, listener));
+		return this;
+	}
+
+	/**
+	 * 取消订阅
+	 *
+	 * @param topicFilters topicFilter 集合
+	 * @return MqttClientPool
+	 */
+	public MqttClientPool unSubscribe(String... topicFilters) {
+		Map<Integer, List<String>> partitions = groupByPartition(Arrays.asList(topicFilters));
+		partitions.forEach((index, list) -> clients[index].unSubscribe(list));
+		return this;
+	}
+
+	/**
+	 * 发布消息
+	 *
+	 * @param topic   topic
+	 * @param payload 消息内容
+	 * @return 是否发送成功
+	 */
+	public boolean publish(String topic, byte[] payload) {
+		return publish(topic, payload, MqttQoS.AT_MOST_ONCE);
+	}
+
+	/**
+	 * 发布消息
+	 *
+	 * @param topic   topic
+	 * @param payload 消息内容
+	 * @param qos     MqttQoS
+	 * @return 是否发送成功
+	 */
+	public boolean publish(String topic, byte[] payload, MqttQoS qos) {
+		return publish(topic, payload, qos, false);
+	}
+
+	/**
+	 * 发布消息
+	 *
+	 * @param topic   topic
+	 * @param payload 消息内容
+	 * @param qos     MqttQoS
+	 * @param retain  是否在服务器上保留消息
+	 * @return 是否发送成功
+	 */
+	public boolean publish(String topic, byte[] payload, MqttQoS qos, boolean retain) {
+		return publish(topic, payload, qos, (publishBuilder) -> publishBuilder.retained(retain));
+	}
+
+	/**
+	 * 发布消息
+	 *
+	 * @param topic      topic
+	 * @param payload    消息体
+	 * @param qos        MqttQoS
+	 * @param retain     是否在服务器上保留消息
+	 * @param properties MqttProperties
+	 * @return 是否发送成功
+	 */
+	public boolean publish(String topic, byte[] payload, MqttQoS qos, boolean retain, MqttProperties properties) {
+		return publish(topic, payload, qos, (publishBuilder) -> publishBuilder.retained(retain).properties(properties));
+	}
+
+	/**
+	 * 发布消息
+	 *
+	 * @param topic   topic
+	 * @param payload 消息体
+	 * @param qos     MqttQoS
+	 * @param builder PublishBuilder
+	 * @return 是否发送成功
+	 */
+	public boolean publish(String topic, byte[] payload, MqttQoS qos, Consumer<MqttMessageBuilders.PublishBuilder> builder) {
+		int index = select(topic);
+		boolean result = clients[index].publish(topic, payload, qos, builder);
+		if (result) {
+			publishCounts[index].increment();
+		} else {
+			publishFailedCounts[index].increment();
+		}
+		return result;
+	}
+
+	/**
+	 * 选择发布的连接
+	 *
+	 * @param topic topic
+	 * @return 连接序号
+	 */
+	private int select(String topic) {
+		int size = clients.length;
+		int index = routing == Routing.ROUND_ROBIN ? Math.floorMod(roundRobin.getAndIncrement(), size) : partition(topic);
+		if (clients[index].isConnected()) {
+			return index;
+		}
+		// 连接断开时顺延到下一个在线的连接，断开期间该 topic 不再保证有序
+		for (int i = 1; i < size; i++) {
+			int next = (index + i) % size;
+			if (clients[next].isConnected()) {
+				return next;
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * 按 topic 计算分区
+	 *
+	 * @param topic topic
+	 * @return 连接序号
+	 */
+	private int partition(String topic) {
+		int h = topic.hashCode();
+		return Math.floorMod(h ^ (h >>> 16), clients.length);
+	}
+
+	private Map<Integer, List<String>> groupByPartition(List<String> topicFilters) {
+		Map<Integer, List<String>> partitions = new HashMap<>();
+		for (String topicFilter : topicFilters) {
+			partitions.computeIfAbsent(partition(topicFilter), (key) -> new ArrayList<>()).add(topicFilter);
+		}
+		return partitions;
+	}
+
+	/**
+	 * 获取指定的连接
+	 *
+	 * @param index 连接序号
+	 * @return MqttClient
+	 */
+	public MqttClient getClient(int index) {
+		return clients[index];
+	}
+
+	/**
+	 * 获取所有连接
+	 *
+	 * @return MqttClient 集合
+	 */
+	public List<MqttClient> getClients() {
+		return Collections.unmodifiableList(Arrays.asList(clients));
+	}
+
+	/**
+	 * 连接数
+	 *
+	 * @return 连接数
+	 */
+	public int size() {
+		return clients.length;
+	}
+
+	/**
+	 * 在线的连接数
+	 *
+	 * @return 在线的连接数
+	 */
+	public int getConnectedCount() {
+		int count = 0;
+		for (MqttClient client : clients) {
+			if (client.isConnected()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 是否有可用的连接
+	 *
+	 * @return 是否有可用的连接
+	 */
+	public boolean isConnected() {
+		for (MqttClient client : clients) {
+			if (client.isConnected()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 是否所有连接都在线
+	 *
+	 * @return 是否所有连接都在线
+	 */
+	public boolean isAllConnected() {
+		return getConnectedCount() == clients.length;
+	}
+
+	/**
+	 * 发布成功的消息数
+	 *
+	 * @return 消息数
+	 */
+	public long getPublishCount() {
+		return Arrays.stream(publishCounts).mapToLong(LongAdder::sum).sum();
+	}
+
+	/**
+	 * 指定连接发布成功的消息数
+	 *
+	 * @param index 连接序号
+	 * @return 消息数
+	 */
+	public long getPublishCount(int index) {
+		return publishCounts[index].sum();
+	}
+
+	/**
+	 * 发布失败的消息数
+	 *
+	 * @return 消息数
+	 */
+	public long getPublishFailedCount() {
+		return Arrays.stream(publishFailedCounts).mapToLong(LongAdder::sum).sum();
+	}
+
+	/**
+	 * 指定连接发布失败的消息数
+	 *
+	 * @param index 连接序号
+	 * @return 消息数
+	 */
+	public long getPublishFailedCount(int index) {
+		return publishFailedCounts[index].sum();
+	}
+
+	/**
+	 * 断开所有连接
+	 */
+	public void disconnect() {
+		for (MqttClient client : clients) {
+			client.disconnect();
+		}
+	}
+
+	/**
+	 * 停止所有连接，共享的线程池和 taskService 也会停止
+	 *
+	 * @return 是否停止成功
+	 */
+	public boolean stop() {
+		// 先断开所有连接，第一个连接停止时会关闭共享的线程池，之后的连接无法再发送 DISCONNECT
+		disconnect();
+		boolean result = true;
+		for (MqttClient client : clients) {
+			result &= client.stop();
+		}
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "MqttClientPool{" +
+			"size=" + clients.length +
+			", connected=" + getConnectedCount() +
+			", routing=" + routing +
+			", published=" + getPublishCount() +
+			", publishFailed=" + getPublishFailedCount() +
+			'}';
+	}
+
+	/**
+	 * publish 分配连接的方式
+	 */
+	public enum Routing {
+		/**
+		 * 按 topic hash，同一 topic 总是走同一个连接，保证有序
+		 */
+		TOPIC_HASH,
+		/**
+		 * 轮询，吞吐最均衡，不保证同一 topic 有序
+		 */
+		ROUND_ROBIN
+	}
+
+}
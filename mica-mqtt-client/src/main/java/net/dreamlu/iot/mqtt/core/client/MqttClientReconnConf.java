@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.client;
+
+import org.tio.client.ClientChannelContext;
+import org.tio.client.ReconnConf;
+import org.tio.core.ChannelContext;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 支持重连策略的 ReconnConf
+ *
+ * <p>
+ * t-io 在断开后先把 ChannelContext 放入重连队列，重连线程取出后按 {@link #getInterval()} 等待，
+ * 故在入队时根据连续重连次数计算好本次的等待时间。每个 mqtt client 独占一个 ReconnConf。
+ * </p>
+ *
+ * @author L.cm
+ */
+class MqttClientReconnConf extends ReconnConf {
+	private final IMqttClientReconnectPolicy reconnectPolicy;
+	private final LinkedBlockingQueue<ChannelContext> queue;
+	private volatile long currentDelay;
+
+	MqttClientReconnConf(IMqttClientReconnectPolicy reconnectPolicy, long initialDelay, int retryCount) {
+		super(initialDelay, retryCount);
+		this.reconnectPolicy = reconnectPolicy;
+		this.queue = new ReconnQueue();
+		// 必须大于 0，t-io 才会启动重连线程
+		this.currentDelay = Math.max(1L, initialDelay);
+	}
+
+	@Override
+	public long getInterval() {
+		return currentDelay;
+	}
+
+	@Override
+	public LinkedBlockingQueue<ChannelContext> getQueue() {
+		return queue;
+	}
+
+	/**
+	 * 计算下一次重连的等待时间
+	 *
+	 * @param context ChannelContext
+	 */
+	private void computeDelay(ChannelContext context) {
+		int attempts = ((ClientChannelContext) context).getReconnCount().get();
+		// 连接成功后 reconnCount 会归零，此时上一次的等待时间也不再参考
+		long previousDelay = attempts == 0 ? 0L : currentDelay;
+		long delay = reconnectPolicy.nextDelay(attempts, previousDelay);
+		this.currentDelay = Math.max(1L, delay);
+	}
+
+	private class ReconnQueue extends LinkedBlockingQueue<ChannelContext> {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		public boolean add(ChannelContext context) {
+			computeDelay(context);
+			return super.add(context);
+		}
+	}
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.client;
+
+import net.dreamlu.iot.mqtt.codec.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tio.core.ChannelContext;
+import org.tio.utils.timer.TimerTask;
+import org.tio.utils.timer.TimerTaskService;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * mqtt5 请求响应，基于 Response Topic 和 Correlation Data
+ *
+ * <p>
+ * 首次请求时订阅一次响应 topic，correlationId 为 8 字节的自增 long，响应到达时 O(1) 查找对应的请求，
+ * 超时使用客户端共享的 taskService 时间轮。
+ * </p>
+ *
+ * @author L.cm
+ */
+final class MqttClientRequestManager implements IMqttClientMessageListener {
+	private static final Logger logger = LoggerFactory.getLogger(MqttClientRequestManager.class);
+	private final MqttClient mqttClient;
+	private final TimerTaskService taskService;
+	private final String responseTopic;
+	private final ConcurrentMap<Long, PendingRequest> pendingRequests = new ConcurrentHashMap<>();
+	/**
+	 * 随机初始值，避免重启后收到上一次的迟到响应被误匹配
+	 */
+	private final AtomicLong correlationIdGenerator = new AtomicLong(ThreadLocalRandom.current().nextLong());
+	/**
+	 * 响应 topic 订阅成功
+	 */
+	private final CompletableFuture<Void> subscribed = new CompletableFuture<>();
+
+	MqttClientRequestManager(MqttClient mqttClient, TimerTaskService taskService, String responseTopic) {
+		this.mqttClient = mqttClient;
+		this.taskService = taskService;
+		this.responseTopic = responseTopic;
+		this.mqttClient.subQos1(responseTopic, this);
+	}
+
+	/**
+	 * 发送请求
+	 *
+	 * @param topic         topic
+	 * @param payload       消息体
+	 * @param qos           MqttQoS
+	 * @param timeoutMillis 超时时间，单位毫秒
+	 * @return 响应消息
+	 */
+	CompletableFuture<MqttPublishMessage> request(String topic, byte[] payload, MqttQoS qos, long timeoutMillis) {
+		long correlationId = correlationIdGenerator.incrementAndGet();
+		PendingRequest pendingRequest = new PendingRequest();
+		pendingRequests.put(correlationId, pendingRequest);
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		scheduleTimeout(correlationId, pendingRequest, deadline, timeoutMillis);
+		MqttProperties properties = new MqttProperties();
+		properties.add(new MqttProperties.StringProperty(MqttProperties.MqttPropertyType.RESPONSE_TOPIC.value(), responseTopic));
+		properties.add(new MqttProperties.BinaryProperty(MqttProperties.MqttPropertyType.CORRELATION_DATA.value(), toBytes(correlationId)));
+		// 响应 topic 订阅成功之后才发送，避免响应先于订阅到达
+		subscribed.thenRun(() -> {
+			if (pendingRequest.future.isDone()) {
+				return;
+			}
+			boolean result = mqttClient.publish(topic, payload, qos, publishBuilder -> publishBuilder.properties(properties));
+			if (!result) {
+				complete(correlationId, null, new IllegalStateException("Mqtt request topic:" + topic + " publish failed."));
+			}
+		});
+		return pendingRequest.future;
+	}
+
+	/**
+	 * 添加超时任务，时间轮按 tick 取整可能提前触发，未到期时按剩余时间重新添加
+	 *
+	 * @param correlationId  correlationId
+	 * @param pendingRequest PendingRequest
+	 * @param deadline       超时的时间点
+	 * @param delayMillis    延迟时间
+	 */
+	private void scheduleTimeout(long correlationId, PendingRequest pendingRequest, long deadline, long delayMillis) {
+		pendingRequest.timeoutTask = taskService.addTask(systemTimer -> new TimerTask(delayMillis) {
+			@Override
+			public void run() {
+				if (pendingRequest.future.isDone()) {
+					return;
+				}
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining > 0) {
+					scheduleTimeout(correlationId, pendingRequest, deadline, remaining);
+				} else {
+					complete(correlationId, null, new TimeoutException("Mqtt request timeout, correlationId:" + correlationId));
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onSubscribed(ChannelContext context, String topicFilter, MqttQoS mqttQoS) {
+		subscribed.complete(null);
+	}
+
+	@Override
+	public void onMessage(ChannelContext context, String topic, MqttPublishMessage message, byte[] payload) {
+		byte[] correlationData = message.variableHeader().properties().getPropertyValue(MqttProperties.MqttPropertyType.CORRELATION_DATA);
+		if (correlationData == null || correlationData.length != 8) {
+			logger.warn("Mqtt response topic:{} correlation data is invalid.", topic);
+			return;
+		}
+		if (!complete(toLong(correlationData), message, null)) {
+			// 已经超时或者重复的响应
+			logger.debug("Mqtt response topic:{} has no pending request, maybe timeout.", topic);
+		}
+	}
+
+	/**
+	 * 完成请求
+	 *
+	 * @param correlationId correlationId
+	 * @param message       响应消息
+	 * @param error         异常
+	 * @return 是否存在等待的请求
+	 */
+	private boolean complete(long correlationId, MqttPublishMessage message, Throwable error) {
+		PendingRequest pendingRequest = pendingRequests.remove(correlationId);
+		if (pendingRequest == null) {
+			return false;
+		}
+		TimerTask timeoutTask = pendingRequest.timeoutTask;
+		if (timeoutTask != null) {
+			timeoutTask.cancel();
+		}
+		if (error == null) {
+			pendingRequest.future.complete(message);
+		} else {
+			pendingRequest.future.completeExceptionally(error);
+		}
+		return true;
+	}
+
+	/**
+	 * 等待响应的请求数
+	 *
+	 * @return 请求数
+	 */
+	int getPendingCount() {
+		return pendingRequests.size();
+	}
+
+	/**
+	 * 取消所有等待中的请求
+	 */
+	void cancelAll() {
+		for (Long correlationId : pendingRequests.keySet()) {
+			complete(correlationId, null, new CancellationException("Mqtt client stopped."));
+		}
+	}
+
+	String getResponseTopic() {
+		return responseTopic;
+	}
+
+	private static byte[] toBytes(long value) {
+		byte[] bytes = new byte[8];
+		for (int i = 7; i >= 0; i--) {
+			bytes[i] = (byte) value;
+			value >>>= 8;
+		}
+		return bytes;
+	}
+
+	private static long toLong(byte[] bytes) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (bytes[i] & 0xFF);
+		}
+		return value;
+	}
+
+	private static final class PendingRequest {
+		private final CompletableFuture<MqttPublishMessage> future = new CompletableFuture<>();
+		private volatile TimerTask timeoutTask;
+	}
+
+}
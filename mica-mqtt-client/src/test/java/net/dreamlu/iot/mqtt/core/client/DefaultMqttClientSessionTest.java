@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.client;
+
+import net.dreamlu.iot.mqtt.codec.MqttQoS;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 客户端 session 测试，取消订阅后的 messageId 释放
+ *
+ * @author L.cm
+ */
+class DefaultMqttClientSessionTest {
+
+	@Test
+	void testCancelledSubscribe() {
+		DefaultMqttClientSession session = new DefaultMqttClientSession();
+		session.addPaddingSubscribe(1, pending("a/1"));
+		session.addPaddingSubscribe(2, pending("a/2"));
+		// 未取消的订阅不能释放
+		Assertions.assertFalse(session.removeCancelledSubscribe(1));
+		session.removePaddingSubscribes(Collections.singletonList("a/1"));
+		Assertions.assertNull(session.getPaddingSubscribe(1));
+		Assertions.assertNotNull(session.getPaddingSubscribe(2));
+		// 只释放一次
+		Assertions.assertTrue(session.removeCancelledSubscribe(1));
+		Assertions.assertFalse(session.removeCancelledSubscribe(1));
+		// 未知的 messageId 不能释放
+		Assertions.assertFalse(session.removeCancelledSubscribe(3));
+	}
+
+	private static MqttPendingSubscription pending(String topicFilter) {
+		List<MqttClientSubscription> subscriptionList = new ArrayList<>();
+		subscriptionList.add(new MqttClientSubscription(MqttQoS.AT_MOST_ONCE, topicFilter, (context, topic, message, payload) -> {
+		}));
+		return new MqttPendingSubscription(subscriptionList, null);
+	}
+
+}
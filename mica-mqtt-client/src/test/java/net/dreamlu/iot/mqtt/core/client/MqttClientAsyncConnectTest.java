@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.client;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 异步连接和批量启动的失败测试
+ *
+ * @author L.cm
+ */
+class MqttClientAsyncConnectTest {
+	private static final int REFUSED_PORT = 21912;
+	private static final int SILENT_PORT = 21913;
+
+	@Test
+	void testConnectRefused() {
+		CompletableFuture<MqttClient> future = MqttClient.create()
+			.ip("127.0.0.1")
+			.port(REFUSED_PORT)
+			.timeout(1)
+			.connectAsync();
+		ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+		Assertions.assertInstanceOf(ConnectException.class, e.getCause());
+	}
+
+	@Test
+	void testBatchTimeout() throws Exception {
+		// 接受 tcp 连接后立即关闭，不回复 CONNACK，客户端会一直重连
+		AtomicInteger accepted = new AtomicInteger();
+		try (ServerSocket serverSocket = new ServerSocket(SILENT_PORT)) {
+			Thread acceptThread = new Thread(() -> {
+				while (!serverSocket.isClosed()) {
+					try (Socket socket = serverSocket.accept()) {
+						accepted.incrementAndGet();
+					} catch (IOException e) {
+						// 关闭
+					}
+				}
+			}, "silent-server");
+			acceptThread.setDaemon(true);
+			acceptThread.start();
+			MqttClientBatchStarter.Result result = MqttClientBatchStarter.create()
+				.timeout(500)
+				.start(3, (i) -> MqttClient.create()
+					.ip("127.0.0.1")
+					.port(SILENT_PORT)
+					.clientId("batch-" + i)
+					.reInterval(50))
+				.get(5, TimeUnit.SECONDS);
+			Assertions.assertEquals(3, result.getFailedCount());
+			for (MqttClientBatchStarter.ConnectResult connectResult : result.getResults()) {
+				Assertions.assertInstanceOf(TimeoutException.class, connectResult.getError());
+			}
+			Assertions.assertTrue(accepted.get() > 3, "accepted:" + accepted.get());
+			// 超时的客户端被放弃，不再重连
+			Thread.sleep(200);
+			int acceptedAfterTimeout = accepted.get();
+			Thread.sleep(500);
+			Assertions.assertEquals(acceptedAfterTimeout, accepted.get());
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.client;
+
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 连接池测试，分区和故障转移
+ *
+ * @author L.cm
+ */
+class MqttClientPoolTest {
+	private static final int PORT = 21910;
+	private static final byte[] PAYLOAD = "pool".getBytes(StandardCharsets.UTF_8);
+
+	@Test
+	void testTopicHashAndFailover() throws Exception {
+		Map<String, List<String>> received = new ConcurrentHashMap<>();
+		MqttServer server = startServer(received);
+		MqttClientPool pool = MqttClient.create()
+			.ip("127.0.0.1")
+			.port(PORT)
+			.clientId("pool")
+			.connectPool(3);
+		try {
+			waitFor(pool::isAllConnected);
+			// 1. 同一 topic 总是走同一个连接
+			for (int i = 0; i < 10; i++) {
+				for (int j = 0; j < 10; j++) {
+					Assertions.assertTrue(pool.publish("/pool/" + j, PAYLOAD));
+				}
+			}
+			waitFor(() -> count(received) == 100);
+			Set<String> owners = new HashSet<>();
+			for (List<String> clientIds : received.values()) {
+				Assertions.assertEquals(1, new HashSet<>(clientIds).size(), "clientIds:" + clientIds);
+				owners.add(clientIds.get(0));
+			}
+			Assertions.assertTrue(owners.size() > 1, "owners:" + owners);
+			Assertions.assertEquals(100, pool.getPublishCount());
+			// 2. 断开一个连接，该连接上的 topic 顺延到下一个在线的连接
+			String topic = "/pool/0";
+			String owner = received.get(topic).get(0);
+			int index = Integer.parseInt(owner.substring("pool-".length()));
+			pool.getClient(index).disconnect();
+			waitFor(() -> pool.getConnectedCount() == 2);
+			received.clear();
+			Assertions.assertTrue(pool.publish(topic, PAYLOAD));
+			waitFor(() -> received.containsKey(topic));
+			Assertions.assertEquals("pool-" + (index + 1) % 3, received.get(topic).get(0));
+			Assertions.assertEquals(0, pool.getPublishFailedCount());
+		} finally {
+			pool.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	void testRoundRobin() throws Exception {
+		Map<String, List<String>> received = new ConcurrentHashMap<>();
+		MqttServer server = startServer(received);
+		MqttClientPool pool = MqttClient.create()
+			.ip("127.0.0.1")
+			.port(PORT)
+			.clientId("rr")
+			.connectPool(3, MqttClientPool.Routing.ROUND_ROBIN);
+		try {
+			waitFor(pool::isAllConnected);
+			for (int i = 0; i < 30; i++) {
+				Assertions.assertTrue(pool.publish("/rr", PAYLOAD));
+			}
+			waitFor(() -> count(received) == 30);
+			for (int i = 0; i < pool.size(); i++) {
+				Assertions.assertEquals(10, pool.getPublishCount(i));
+			}
+		} finally {
+			pool.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	void testResponseTopic() throws Exception {
+		MqttServer server = startServer(new ConcurrentHashMap<>());
+		MqttClientPool pool = MqttClient.create()
+			.ip("127.0.0.1")
+			.port(PORT)
+			.clientId("resp")
+			.responseTopic("/resp")
+			.connectPool(2);
+		try {
+			waitFor(pool::isAllConnected);
+			// 每个连接使用各自的响应 topic
+			Assertions.assertEquals("/resp/0", pool.getClient(0).getClientCreator().getResponseTopic());
+			Assertions.assertEquals("/resp/1", pool.getClient(1).getClientCreator().getResponseTopic());
+		} finally {
+			pool.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	void testCopy() {
+		MqttClientCreator creator = MqttClient.create()
+			.clientId("copy")
+			.topicAliasMaximum(100)
+			.sessionExpiryIntervalSecs(60);
+		// 连接池中的每个连接都使用 copy 出来的配置
+		MqttClientCreator copy = creator.copy();
+		Assertions.assertEquals(100, copy.getTopicAliasMaximum());
+		Assertions.assertEquals(Integer.valueOf(60), copy.getSessionExpiryIntervalSecs());
+	}
+
+	private static MqttServer startServer(Map<String, List<String>> received) {
+		return MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.messageListener((context, clientId, topic, qoS, message) ->
+				received.computeIfAbsent(topic, (key) -> new CopyOnWriteArrayList<>()).add(clientId))
+			.start();
+	}
+
+	private static int count(Map<String, List<String>> received) {
+		return received.values().stream().mapToInt(List::size).sum();
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Assertions.assertTrue(condition.getAsBoolean());
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.client;
+
+import net.dreamlu.iot.mqtt.codec.*;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.tio.core.Tio;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * mqtt5 请求响应测试，服务端监听器充当响应方，原样带回 Correlation Data
+ *
+ * @author L.cm
+ */
+class MqttClientRequestTest {
+	private static final int PORT = 21911;
+
+	@Test
+	void testRequest() throws Exception {
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.messageListener((context, clientId, topic, qoS, message) -> {
+				if (!topic.startsWith("/req/")) {
+					return;
+				}
+				String payload = new String(message.payload(), StandardCharsets.UTF_8);
+				// 第一个请求最后响应，校验按 correlation data 而不是顺序匹配
+				if ("0".equals(payload)) {
+					sleep(200);
+				}
+				MqttProperties requestProperties = message.variableHeader().properties();
+				MqttProperties properties = new MqttProperties();
+				properties.add(new MqttProperties.BinaryProperty(MqttProperties.MqttPropertyType.CORRELATION_DATA.value(),
+					requestProperties.getPropertyValue(MqttProperties.MqttPropertyType.CORRELATION_DATA)));
+				Tio.send(context, MqttMessageBuilders.publish()
+					.topicName(requestProperties.getPropertyValue(MqttProperties.MqttPropertyType.RESPONSE_TOPIC))
+					.payload(("re:" + payload).getBytes(StandardCharsets.UTF_8))
+					.qos(MqttQoS.AT_MOST_ONCE)
+					.properties(properties)
+					.build());
+			})
+			.start();
+		MqttClient requester = MqttClient.create()
+			.ip("127.0.0.1")
+			.port(PORT)
+			.clientId("requester")
+			.version(MqttVersion.MQTT_5)
+			.connectSync();
+		try {
+			// 1. 并发请求，响应对应到各自的请求
+			List<CompletableFuture<MqttPublishMessage>> futures = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				futures.add(requester.request("/req/" + i, String.valueOf(i).getBytes(StandardCharsets.UTF_8)));
+			}
+			for (int i = 0; i < 20; i++) {
+				MqttPublishMessage response = futures.get(i).get(5, TimeUnit.SECONDS);
+				Assertions.assertEquals("re:" + i, new String(response.payload(), StandardCharsets.UTF_8));
+			}
+			// 2. 没有响应，超时
+			long start = System.currentTimeMillis();
+			CompletableFuture<MqttPublishMessage> timeout = requester.request("/none", new byte[0], MqttQoS.AT_LEAST_ONCE, 300);
+			ExecutionException e = Assertions.assertThrows(ExecutionException.class, () -> timeout.get(5, TimeUnit.SECONDS));
+			Assertions.assertInstanceOf(TimeoutException.class, e.getCause());
+			Assertions.assertTrue(System.currentTimeMillis() - start >= 300);
+		} finally {
+			requester.stop();
+			server.stop();
+		}
+	}
+
+	@Test
+	void testRequiresMqtt5() {
+		MqttClient client = MqttClient.create()
+			.ip("127.0.0.1")
+			.port(PORT)
+			.clientId("mqtt3")
+			.connect();
+		try {
+			Assertions.assertThrows(IllegalStateException.class, () -> client.request("/req/3", new byte[0]));
+		} finally {
+			client.stop();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.client;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+/**
+ * 重连策略测试，模拟服务端重启时大量客户端的重连分布
+ *
+ * @author L.cm
+ */
+class ReconnectPolicySimulationTest {
+	private static final int CLIENTS = 10000;
+	private static final long SERVER_DOWN_MILLIS = 120_000L;
+	private static final long BUCKET_MILLIS = 1000L;
+
+	@Test
+	void testBounds() {
+		for (ExponentialBackoffReconnectPolicy.Jitter jitter : ExponentialBackoffReconnectPolicy.Jitter.values()) {
+			ExponentialBackoffReconnectPolicy policy = new ExponentialBackoffReconnectPolicy(1000L, 30_000L, jitter);
+			long previousDelay = 0;
+			for (int attempts = 0; attempts < 100; attempts++) {
+				long delay = policy.nextDelay(attempts, previousDelay);
+				Assertions.assertTrue(delay >= 1L && delay <= 30_000L, jitter + " delay:" + delay);
+				previousDelay = delay;
+			}
+		}
+		ExponentialBackoffReconnectPolicy policy = new ExponentialBackoffReconnectPolicy(1000L, 30_000L, ExponentialBackoffReconnectPolicy.Jitter.NONE);
+		Assertions.assertEquals(1000L, policy.nextDelay(0, 0));
+		Assertions.assertEquals(2000L, policy.nextDelay(1, 1000L));
+		Assertions.assertEquals(16000L, policy.nextDelay(4, 8000L));
+		Assertions.assertEquals(30_000L, policy.nextDelay(5, 16000L));
+		Assertions.assertEquals(30_000L, policy.nextDelay(Integer.MAX_VALUE, 30_000L));
+	}
+
+	@Test
+	void testSpread() {
+		long fixedPeak = simulate((attempts, previousDelay) -> 5000L);
+		long fullPeak = simulate(new ExponentialBackoffReconnectPolicy(5000L, 60_000L, ExponentialBackoffReconnectPolicy.Jitter.FULL));
+		long decorrelatedPeak = simulate(new ExponentialBackoffReconnectPolicy(5000L, 60_000L, ExponentialBackoffReconnectPolicy.Jitter.DECORRELATED));
+		// 固定间隔时所有客户端在同一时刻重连
+		Assertions.assertEquals(CLIENTS, fixedPeak);
+		// 抖动之后峰值明显下降
+		Assertions.assertTrue(fullPeak * 2 < fixedPeak);
+		Assertions.assertTrue(decorrelatedPeak * 4 < fixedPeak);
+	}
+
+	/**
+	 * 所有客户端同一时刻断开，统计服务端恢复前每秒的重连次数
+	 *
+	 * @param policy IMqttClientReconnectPolicy
+	 * @return 每秒重连次数的峰值
+	 */
+	private static long simulate(IMqttClientReconnectPolicy policy) {
+		int[] buckets = new int[(int) (SERVER_DOWN_MILLIS / BUCKET_MILLIS)];
+		for (int i = 0; i < CLIENTS; i++) {
+			long now = 0;
+			long previousDelay = 0;
+			int attempts = 0;
+			while (true) {
+				long delay = policy.nextDelay(attempts++, previousDelay);
+				previousDelay = delay;
+				now += delay;
+				if (now >= SERVER_DOWN_MILLIS) {
+					break;
+				}
+				buckets[(int) (now / BUCKET_MILLIS)]++;
+			}
+		}
+		return Arrays.stream(buckets).max().orElse(0);
+	}
+
+}
@@ -479,14 +479,7 @@ public final class MqttDecoder {
 			//See 3.8.3.1 Subscription Options of MQTT 5.0 specification for optionByte details
 			final short optionByte = ByteBufferUtil.readUnsignedByte(buffer);
 
-			MqttQoS qos = MqttQoS.valueOf(optionByte & 0x03);
-			boolean noLocal = ((optionByte & 0x04) >> 2) == 1;
-			boolean retainAsPublished = ((optionByte & 0x08) >> 3) == 1;
-			MqttSubscriptionOption.RetainedHandlingPolicy retainHandling =
-				MqttSubscriptionOption.RetainedHandlingPolicy.valueOf((optionByte & 0x30) >> 4);
-
-			final MqttSubscriptionOption subscriptionOption = new MqttSubscriptionOption(qos,
-				noLocal, retainAsPublished, retainHandling);
+			final MqttSubscriptionOption subscriptionOption = MqttSubscriptionOption.valueOf(optionByte);
 
 			numberOfBytesConsumed++;
 			subscribeTopics.add(new MqttTopicSubscription(decodedTopicName.value, subscriptionOption));
@@ -258,16 +258,7 @@ public final class MqttEncoder {
 				buf.put((byte) topic.qualityOfService().value());
 			} else {
 				// option
-				final MqttSubscriptionOption option = topic.option();
-				int optionEncoded = option.retainHandling().value() << 4;
-				if (option.isRetainAsPublished()) {
-					optionEncoded |= 0x08;
-				}
-				if (option.isNoLocal()) {
-					optionEncoded |= 0x04;
-				}
-				optionEncoded |= option.qos().value();
-				buf.put((byte) optionEncoded);
+				buf.put((byte) topic.option().value());
 			}
 		}
 		return buf;
@@ -83,6 +83,20 @@ public final class MqttSubscriptionOption {
 		this.retainHandling = retainHandling;
 	}
 
+	/**
+	 * 从订阅选项字节解析，见 mqtt5 协议 3.8.3.1
+	 *
+	 * @param value 订阅选项字节
+	 * @return MqttSubscriptionOption
+	 */
+	public static MqttSubscriptionOption valueOf(int value) {
+		MqttQoS qos = MqttQoS.valueOf(value & 0x03);
+		boolean noLocal = (value & 0x04) != 0;
+		boolean retainAsPublished = (value & 0x08) != 0;
+		RetainedHandlingPolicy retainHandling = RetainedHandlingPolicy.valueOf((value & 0x30) >> 4);
+		return new MqttSubscriptionOption(qos, noLocal, retainAsPublished, retainHandling);
+	}
+
 	public MqttQoS qos() {
 		return qos;
 	}
@@ -99,6 +113,22 @@ public final class MqttSubscriptionOption {
 		return retainHandling;
 	}
 
+	/**
+	 * 订阅选项字节，见 mqtt5 协议 3.8.3.1
+	 *
+	 * @return 订阅选项字节
+	 */
+	public int value() {
+		int value = retainHandling.value() << 4;
+		if (retainAsPublished) {
+			value |= 0x08;
+		}
+		if (noLocal) {
+			value |= 0x04;
+		}
+		return value | qos.value();
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) {
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.common;
+
+import net.dreamlu.iot.mqtt.codec.MqttProperties;
+import net.dreamlu.iot.mqtt.codec.MqttPublishMessage;
+import net.dreamlu.iot.mqtt.codec.MqttPublishVariableHeader;
+
+/**
+ * mqtt5 Message Expiry Interval 工具，过期时间使用绝对时间 (ms)，为 0 时不过期
+ *
+ * @author L.cm
+ */
+public final class MqttMessageExpiry {
+
+	private MqttMessageExpiry() {
+	}
+
+	/**
+	 * 从 publish 属性中获取过期时间
+	 *
+	 * @param properties MqttProperties
+	 * @param now        当前时间 (ms)
+	 * @return 过期时间 (ms)，没有设置时为 0
+	 */
+	public static long getExpiryAt(MqttProperties properties, long now) {
+		if (properties == null) {
+			return 0;
+		}
+		Integer interval = properties.getPropertyValue(MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL);
+		if (interval == null) {
+			return 0;
+		}
+		// 4 字节无符号整数
+		return now + (interval & 0xFFFFFFFFL) * 1000L;
+	}
+
+	/**
+	 * 是否已经过期
+	 *
+	 * @param expiryAt 过期时间 (ms)
+	 * @param now      当前时间 (ms)
+	 * @return 是否过期
+	 */
+	public static boolean isExpired(long expiryAt, long now) {
+		return expiryAt > 0 && now >= expiryAt;
+	}
+
+	/**
+	 * 获取剩余的过期间隔，向上取整
+	 *
+	 * @param expiryAt 过期时间 (ms)
+	 * @param now      当前时间 (ms)
+	 * @return 剩余秒数
+	 */
+	public static long getRemainingSecs(long expiryAt, long now) {
+		return Math.max(1L, (expiryAt - now + 999L) / 1000L);
+	}
+
+	/**
+	 * 转发时使用剩余的过期间隔
+	 *
+	 * @param message  MqttPublishMessage
+	 * @param expiryAt 过期时间 (ms)
+	 * @param now      当前时间 (ms)
+	 * @return MqttPublishMessage，没有过期时间时返回原消息
+	 */
+	public static MqttPublishMessage withRemaining(MqttPublishMessage message, long expiryAt, long now) {
+		if (expiryAt <= 0) {
+			return message;
+		}
+		MqttPublishVariableHeader variableHeader = message.variableHeader();
+		MqttProperties properties = new MqttProperties();
+		for (MqttProperties.MqttProperty<?> property : variableHeader.properties().listAll()) {
+			if (property.propertyId() != MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value()) {
+				properties.add(property);
+			}
+		}
+		int remaining = (int) Math.min(getRemainingSecs(expiryAt, now), 0xFFFFFFFFL);
+		properties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL, remaining));
+		MqttPublishVariableHeader header = new MqttPublishVariableHeader(variableHeader.topicName(), variableHeader.packetId(), properties);
+		return new MqttPublishMessage(message.fixedHeader(), header, message.payload());
+	}
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * mqtt messageId 分配器，跳过仍在使用中（未收到 ack）的 messageId
+ *
+ * <p>
+ * 使用 65536 位的 bitmap 记录在用的 messageId，游标轮转分配，分配和释放均为无锁 CAS 操作。
+ * 1 ~ 65535 全部在用时分配返回 0，可用于背压。
+ * </p>
+ *
+ * @author L.cm
+ */
+public final class MqttMessageIdAllocator {
+	/**
+	 * 分配失败，0 不是合法的 messageId
+	 */
+	public static final int EXHAUSTED = 0;
+	/**
+	 * 最大的 messageId
+	 */
+	public static final int MAX_MESSAGE_ID = 0xFFFF;
+	private final AtomicLongArray bitmap = new AtomicLongArray((MAX_MESSAGE_ID + 1) >>> 6);
+	private final AtomicInteger cursor = new AtomicInteger();
+	private final AtomicInteger inUse = new AtomicInteger();
+
+	/**
+	 * 分配 messageId
+	 *
+	 * @return messageId，范围 1 ~ 65535，全部在用时返回 {@link #EXHAUSTED}
+	 */
+	public int allocate() {
+		if (inUse.get() >= MAX_MESSAGE_ID) {
+			return EXHAUSTED;
+		}
+		int start = cursor.getAndIncrement();
+		int offset = 0;
+		while (offset < MAX_MESSAGE_ID) {
+			// 映射到 1 ~ 65535
+			int messageId = (int) (Integer.toUnsignedLong(start + offset) % MAX_MESSAGE_ID) + 1;
+			int index = messageId >>> 6;
+			long mask = 1L << (messageId & 63);
+			long word = bitmap.get(index);
+			if (word == -1L) {
+				// 整个 word 都在用，直接跳到下一个 word
+				offset += 64 - (messageId & 63);
+				continue;
+			}
+			if ((word & mask) != 0) {
+				offset++;
+				continue;
+			}
+			if (bitmap.compareAndSet(index, word, word | mask)) {
+				inUse.incrementAndGet();
+				// 跳过了在用的 messageId，游标前移，下次从空闲处开始
+				if (offset > 0) {
+					cursor.compareAndSet(start + 1, start + offset + 1);
+				}
+				return messageId;
+			}
+			// CAS 失败，同一 word 被并发修改，重试当前 messageId
+		}
+		return EXHAUSTED;
+	}
+
+	/**
+	 * 占用指定的 messageId，用于恢复 session 中等待 ack 的消息
+	 *
+	 * @param messageId messageId
+	 * @return 是否占用成功，已经在使用中返回 false
+	 */
+	public boolean reserve(int messageId) {
+		if (messageId < 1 || messageId > MAX_MESSAGE_ID) {
+			return false;
+		}
+		int index = messageId >>> 6;
+		long mask = 1L << (messageId & 63);
+		long word;
+		do {
+			word = bitmap.get(index);
+			if ((word & mask) != 0) {
+				return false;
+			}
+		} while (!bitmap.compareAndSet(index, word, word | mask));
+		inUse.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * 释放 messageId
+	 *
+	 * @param messageId messageId
+	 * @return 是否释放成功，未在使用中返回 false
+	 */
+	public boolean release(int messageId) {
+		if (messageId < 1 || messageId > MAX_MESSAGE_ID) {
+			return false;
+		}
+		int index = messageId >>> 6;
+		long mask = 1L << (messageId & 63);
+		long word;
+		do {
+			word = bitmap.get(index);
+			if ((word & mask) == 0) {
+				return false;
+			}
+		} while (!bitmap.compareAndSet(index, word, word & ~mask));
+		inUse.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * messageId 是否在使用中
+	 *
+	 * @param messageId messageId
+	 * @return 是否在使用中
+	 */
+	public boolean isInUse(int messageId) {
+		if (messageId < 1 || messageId > MAX_MESSAGE_ID) {
+			return false;
+		}
+		return (bitmap.get(messageId >>> 6) & (1L << (messageId & 63))) != 0;
+	}
+
+	/**
+	 * 在使用中的 messageId 数量
+	 *
+	 * @return 数量
+	 */
+	public int getInUseCount() {
+		return inUse.get();
+	}
+
+	/**
+	 * messageId 是否已经耗尽，可用于背压判断
+	 *
+	 * @return 是否耗尽
+	 */
+	public boolean isExhausted() {
+		return inUse.get() >= MAX_MESSAGE_ID;
+	}
+
+	/**
+	 * 释放所有 messageId
+	 */
+	public void clear() {
+		for (int i = 0; i < bitmap.length(); i++) {
+			long word = bitmap.getAndSet(i, 0L);
+			inUse.addAndGet(-Long.bitCount(word));
+		}
+	}
+
+}
@@ -18,13 +18,22 @@ public final class MqttPendingPublish {
 	private final byte[] payload;
 	private final MqttPublishMessage message;
 	private final MqttQoS qos;
+	/**
+	 * mqtt5 消息过期时间 (ms)，为 0 时不过期
+	 */
+	private final long expiryAt;
 	private final RetryProcessor<MqttPublishMessage> pubRetryProcessor = new RetryProcessor<>();
 	private final RetryProcessor<MqttMessage> pubRelRetryProcessor = new RetryProcessor<>();
 
 	public MqttPendingPublish(byte[] payload, MqttPublishMessage message, MqttQoS qos) {
+		this(payload, message, qos, 0);
+	}
+
+	public MqttPendingPublish(byte[] payload, MqttPublishMessage message, MqttQoS qos, long expiryAt) {
 		this.payload = payload;
 		this.message = message;
 		this.qos = qos;
+		this.expiryAt = expiryAt;
 		this.pubRetryProcessor.setOriginalMessage(message);
 	}
 
@@ -40,9 +49,33 @@ public final class MqttPendingPublish {
 		return qos;
 	}
 
+	public long getExpiryAt() {
+		return expiryAt;
+	}
+
 	public void startPublishRetransmissionTimer(TimerTaskService taskService, Consumer<MqttMessage> sendPacket) {
+		startPublishRetransmissionTimer(taskService, sendPacket, null);
+	}
+
+	/**
+	 * 启动重发，消息过期后不再重发，重发时使用剩余的过期间隔
+	 *
+	 * @param taskService TimerTaskService
+	 * @param sendPacket  发送
+	 * @param onExpired   过期时的回调，可为 null
+	 */
+	public void startPublishRetransmissionTimer(TimerTaskService taskService, Consumer<MqttMessage> sendPacket, Runnable onExpired) {
 		this.pubRetryProcessor.setHandle(((fixedHeader, originalMessage) -> {
-			sendPacket.accept(new MqttPublishMessage(fixedHeader, originalMessage.variableHeader(), this.payload));
+			long now = System.currentTimeMillis();
+			if (MqttMessageExpiry.isExpired(expiryAt, now)) {
+				this.pubRetryProcessor.stop();
+				if (onExpired != null) {
+					onExpired.run();
+				}
+				return;
+			}
+			MqttPublishMessage retryMessage = new MqttPublishMessage(fixedHeader, originalMessage.variableHeader(), this.payload);
+			sendPacket.accept(MqttMessageExpiry.withRemaining(retryMessage, expiryAt, now));
 		}));
 		this.pubRetryProcessor.start(taskService);
 	}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.common;
+
+import net.dreamlu.iot.mqtt.codec.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * mqtt5 Topic Alias，每个连接一份。
+ *
+ * <p>
+ * 1. 接收：按本端的 Topic Alias Maximum 存储对端建立的 alias，解析只带 alias 的 publish。
+ * 2. 发送：按对端的 Topic Alias Maximum 为热点 topic 分配 alias（LRU），命中时 topic 为空字符串只发送 alias。
+ * </p>
+ * 发送时需要在同一把锁内分配 alias 和写入发送队列，保证 alias 建立在使用之前。
+ *
+ * @author L.cm
+ */
+public final class MqttTopicAliases {
+	private static final String EMPTY_TOPIC = "";
+	/**
+	 * 本端允许对端使用的 alias 最大值
+	 */
+	private final int inboundMaximum;
+	/**
+	 * 对端允许本端使用的 alias 最大值
+	 */
+	private final int outboundMaximum;
+	private String[] inboundTopics;
+	private OutboundCache outboundCache;
+	private long outboundHits;
+	private long outboundMisses;
+
+	public MqttTopicAliases(int inboundMaximum, int outboundMaximum) {
+		this.inboundMaximum = Math.max(0, Math.min(inboundMaximum, 0xFFFF));
+		this.outboundMaximum = Math.max(0, Math.min(outboundMaximum, 0xFFFF));
+	}
+
+	/**
+	 * 解析收到的 publish 中的 topic alias
+	 *
+	 * @param message MqttPublishMessage
+	 * @return 解析后的消息，没有 alias 时返回原消息
+	 * @throws IllegalArgumentException alias 超过最大值或者未建立
+	 */
+	public MqttPublishMessage resolve(MqttPublishMessage message) {
+		MqttPublishVariableHeader variableHeader = message.variableHeader();
+		Integer alias = variableHeader.properties().getPropertyValue(MqttProperties.MqttPropertyType.TOPIC_ALIAS);
+		if (alias == null) {
+			return message;
+		}
+		String topicName = resolve(variableHeader.topicName(), alias);
+		if (topicName.equals(variableHeader.topicName())) {
+			return message;
+		}
+		MqttPublishVariableHeader header = new MqttPublishVariableHeader(topicName, variableHeader.packetId(), variableHeader.properties());
+		return new MqttPublishMessage(message.fixedHeader(), header, message.payload());
+	}
+
+	/**
+	 * 解析 topic alias
+	 *
+	 * @param topicName topicName，只使用 alias 时为空字符串
+	 * @param alias     alias
+	 * @return topicName
+	 * @throws IllegalArgumentException alias 超过最大值或者未建立
+	 */
+	public synchronized String resolve(String topicName, int alias) {
+		if (alias < 1 || alias > inboundMaximum) {
+			throw new IllegalArgumentException("Mqtt topic alias:" + alias + " invalid, maximum:" + inboundMaximum);
+		}
+		if (inboundTopics == null) {
+			inboundTopics = new String[inboundMaximum + 1];
+		}
+		if (topicName != null && !topicName.isEmpty()) {
+			inboundTopics[alias] = topicName;
+			return topicName;
+		}
+		String aliasTopic = inboundTopics[alias];
+		if (aliasTopic == null) {
+			throw new IllegalArgumentException("Mqtt topic alias:" + alias + " not established.");
+		}
+		return aliasTopic;
+	}
+
+	/**
+	 * 发送的 publish 使用 topic alias，调用方需要持有本对象的锁直到消息写入发送队列
+	 *
+	 * @param message MqttPublishMessage
+	 * @return 使用 alias 的消息，对端不支持时返回原消息
+	 */
+	public synchronized MqttPublishMessage alias(MqttPublishMessage message) {
+		if (outboundMaximum == 0) {
+			return message;
+		}
+		MqttPublishVariableHeader variableHeader = message.variableHeader();
+		String topicName = variableHeader.topicName();
+		if (outboundCache == null) {
+			outboundCache = new OutboundCache(outboundMaximum);
+		}
+		Integer alias = outboundCache.get(topicName);
+		String sendTopic;
+		if (alias != null) {
+			outboundHits++;
+			sendTopic = EMPTY_TOPIC;
+		} else {
+			outboundMisses++;
+			alias = outboundCache.assign(topicName);
+			sendTopic = topicName;
+		}
+		MqttProperties properties = new MqttProperties();
+		for (MqttProperties.MqttProperty<?> property : variableHeader.properties().listAll()) {
+			if (property.propertyId() != MqttProperties.MqttPropertyType.TOPIC_ALIAS.value()) {
+				properties.add(property);
+			}
+		}
+		properties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.TOPIC_ALIAS, alias));
+		MqttPublishVariableHeader header = new MqttPublishVariableHeader(sendTopic, variableHeader.packetId(), properties);
+		return new MqttPublishMessage(message.fixedHeader(), header, message.payload());
+	}
+
+	public int getInboundMaximum() {
+		return inboundMaximum;
+	}
+
+	public int getOutboundMaximum() {
+		return outboundMaximum;
+	}
+
+	/**
+	 * 发送时命中 alias 的次数
+	 *
+	 * @return 次数
+	 */
+	public long getOutboundHits() {
+		return outboundHits;
+	}
+
+	/**
+	 * 发送时未命中 alias 的次数
+	 *
+	 * @return 次数
+	 */
+	public long getOutboundMisses() {
+		return outboundMisses;
+	}
+
+	/**
+	 * 从 CONNECT 或 CONNACK 的属性中获取 Topic Alias Maximum
+	 *
+	 * @param properties MqttProperties
+	 * @return Topic Alias Maximum，不存在时为 0
+	 */
+	public static int getTopicAliasMaximum(MqttProperties properties) {
+		if (properties == null) {
+			return 0;
+		}
+		Integer maximum = properties.getPropertyValue(MqttProperties.MqttPropertyType.TOPIC_ALIAS_MAXIMUM);
+		return maximum == null ? 0 : maximum;
+	}
+
+	/**
+	 * 发送 alias 的 LRU，满了之后复用最久未使用的 topic 的 alias
+	 */
+	private static class OutboundCache extends LinkedHashMap<String, Integer> {
+		private final int maximum;
+		private int nextAlias = 1;
+
+		private OutboundCache(int maximum) {
+			super(16, 0.75F, true);
+			this.maximum = maximum;
+		}
+
+		private int assign(String topicName) {
+			int alias;
+			if (nextAlias <= maximum) {
+				alias = nextAlias++;
+			} else {
+				Map.Entry<String, Integer> eldest = entrySet().iterator().next();
+				alias = eldest.getValue();
+				remove(eldest.getKey());
+			}
+			put(topicName, alias);
+			return alias;
+		}
+	}
+
+}
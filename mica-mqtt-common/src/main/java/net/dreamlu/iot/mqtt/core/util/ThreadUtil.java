@@ -89,8 +89,19 @@ public final class ThreadUtil {
 	 * @return ThreadPoolExecutor
 	 */
 	public static ThreadPoolExecutor getMqttExecutor(int poolSize) {
+		return getMqttExecutor(poolSize, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * 获取 mqtt 业务线程池，队列有界，队列满时由提交任务的线程执行
+	 *
+	 * @param poolSize      业务线程池大小
+	 * @param queueCapacity 队列大小
+	 * @return ThreadPoolExecutor
+	 */
+	public static ThreadPoolExecutor getMqttExecutor(int poolSize, int queueCapacity) {
 		String threadName = "mqtt-worker";
-		LinkedBlockingQueue<Runnable> runnableQueue = new LinkedBlockingQueue<>();
+		LinkedBlockingQueue<Runnable> runnableQueue = new LinkedBlockingQueue<>(queueCapacity);
 		DefaultThreadFactory defaultThreadFactory = DefaultThreadFactory.getInstance(threadName, Thread.MAX_PRIORITY);
 		ThreadPoolExecutor tioExecutor = new ThreadPoolExecutor(poolSize, poolSize,
 			Threads.KEEP_ALIVE_TIME, TimeUnit.SECONDS, runnableQueue, defaultThreadFactory, new TioCallerRunsPolicy());
@@ -48,6 +48,10 @@ public class AckTimerTask extends TimerTask {
 	 * 当前自行的次数，默认从第二次开始，因为进重试前已经执行过一次。
 	 */
 	private int count = 1;
+	/**
+	 * 已经取消，command 中取消时不再加入 timer
+	 */
+	private volatile boolean cancelled;
 
 	public AckTimerTask(Timer timer, Runnable command, int maxRetryCount, int retryIntervalSecs) {
 		super(TimeUnit.SECONDS.toMillis(retryIntervalSecs));
@@ -62,11 +66,19 @@ public class AckTimerTask extends TimerTask {
 			try {
 				log.info("Mqtt ack task retry running.");
 				command.run();
-				timer.add(this);
+				if (!cancelled) {
+					timer.add(this);
+				}
 			} catch (Exception e) {
 				log.error("Mqtt ack task error ", e);
 			}
 		}
 	}
 
+	@Override
+	public void cancel() {
+		this.cancelled = true;
+		super.cancel();
+	}
+
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.common;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * MqttMessageIdAllocator 测试
+ *
+ * @author L.cm
+ */
+class MqttMessageIdAllocatorTest {
+
+	@Test
+	void testExhausted() {
+		MqttMessageIdAllocator allocator = new MqttMessageIdAllocator();
+		boolean[] seen = new boolean[MqttMessageIdAllocator.MAX_MESSAGE_ID + 1];
+		for (int i = 0; i < MqttMessageIdAllocator.MAX_MESSAGE_ID; i++) {
+			int messageId = allocator.allocate();
+			Assertions.assertTrue(messageId >= 1 && messageId <= MqttMessageIdAllocator.MAX_MESSAGE_ID);
+			Assertions.assertFalse(seen[messageId]);
+			seen[messageId] = true;
+		}
+		Assertions.assertTrue(allocator.isExhausted());
+		Assertions.assertEquals(MqttMessageIdAllocator.EXHAUSTED, allocator.allocate());
+		// 释放之后可以再次分配到
+		Assertions.assertTrue(allocator.release(1000));
+		Assertions.assertFalse(allocator.release(1000));
+		Assertions.assertFalse(allocator.isExhausted());
+		Assertions.assertEquals(1000, allocator.allocate());
+		allocator.clear();
+		Assertions.assertEquals(0, allocator.getInUseCount());
+	}
+
+	@Test
+	void testSkipInUse() {
+		MqttMessageIdAllocator allocator = new MqttMessageIdAllocator();
+		// 1 一直没有 ack
+		Assertions.assertEquals(1, allocator.allocate());
+		for (int i = 0; i < MqttMessageIdAllocator.MAX_MESSAGE_ID * 3; i++) {
+			int messageId = allocator.allocate();
+			Assertions.assertNotEquals(1, messageId);
+			Assertions.assertTrue(allocator.release(messageId));
+		}
+		Assertions.assertTrue(allocator.isInUse(1));
+		Assertions.assertEquals(1, allocator.getInUseCount());
+	}
+
+	@Test
+	void testReserve() {
+		MqttMessageIdAllocator allocator = new MqttMessageIdAllocator();
+		// 恢复的 session 中 1、2 还在等待 ack
+		Assertions.assertTrue(allocator.reserve(1));
+		Assertions.assertTrue(allocator.reserve(2));
+		Assertions.assertFalse(allocator.reserve(2));
+		Assertions.assertFalse(allocator.reserve(0));
+		Assertions.assertEquals(3, allocator.allocate());
+		Assertions.assertEquals(3, allocator.getInUseCount());
+		Assertions.assertTrue(allocator.release(1));
+		Assertions.assertFalse(allocator.isInUse(1));
+	}
+
+	@Test
+	void testConcurrent() throws Exception {
+		MqttMessageIdAllocator allocator = new MqttMessageIdAllocator();
+		AtomicIntegerArray owners = new AtomicIntegerArray(MqttMessageIdAllocator.MAX_MESSAGE_ID + 1);
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch latch = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			futures.add(executor.submit(() -> {
+				latch.await();
+				int[] inFlight = new int[4096];
+				for (int round = 0; round < 50; round++) {
+					for (int i = 0; i < inFlight.length; i++) {
+						int messageId = allocator.allocate();
+						Assertions.assertNotEquals(MqttMessageIdAllocator.EXHAUSTED, messageId);
+						// 同一个 messageId 不能同时被两个在途消息使用
+						Assertions.assertTrue(owners.compareAndSet(messageId, 0, 1));
+						inFlight[i] = messageId;
+					}
+					for (int messageId : inFlight) {
+						owners.set(messageId, 0);
+						Assertions.assertTrue(allocator.release(messageId));
+					}
+				}
+				return null;
+			}));
+		}
+		latch.countDown();
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		Assertions.assertEquals(0, allocator.getInUseCount());
+	}
+
+}
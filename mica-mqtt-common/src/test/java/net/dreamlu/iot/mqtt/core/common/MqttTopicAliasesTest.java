@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.common;
+
+import net.dreamlu.iot.mqtt.codec.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * MqttTopicAliases 测试
+ *
+ * @author L.cm
+ */
+class MqttTopicAliasesTest {
+
+	@Test
+	void testResolve() {
+		MqttTopicAliases aliases = new MqttTopicAliases(2, 0);
+		// 1. 没有 alias 的消息原样返回
+		MqttPublishMessage message = publish("device/1/up", MqttProperties.NO_PROPERTIES);
+		Assertions.assertSame(message, aliases.resolve(message));
+		// 2. 建立 alias，之后只使用 alias
+		Assertions.assertEquals("device/1/up", aliases.resolve(publish("device/1/up", alias(1))).variableHeader().topicName());
+		Assertions.assertEquals("device/1/up", aliases.resolve(publish("", alias(1))).variableHeader().topicName());
+		// 3. 重新指向新的 topic
+		Assertions.assertEquals("device/2/up", aliases.resolve("device/2/up", 1));
+		Assertions.assertEquals("device/2/up", aliases.resolve("", 1));
+		// 4. 不合法的 alias
+		Assertions.assertThrows(IllegalArgumentException.class, () -> aliases.resolve("", 2));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> aliases.resolve("device/3/up", 0));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> aliases.resolve("device/3/up", 3));
+	}
+
+	@Test
+	void testAlias() {
+		MqttTopicAliases aliases = new MqttTopicAliases(0, 2);
+		// 1. 首次发送完整 topic 和 alias，之后只发送 alias
+		assertAlias(aliases.alias(publish("a", MqttProperties.NO_PROPERTIES)), "a", 1);
+		assertAlias(aliases.alias(publish("a", MqttProperties.NO_PROPERTIES)), "", 1);
+		assertAlias(aliases.alias(publish("b", MqttProperties.NO_PROPERTIES)), "b", 2);
+		// 2. 访问 a，b 成为最久未使用，c 复用 b 的 alias
+		assertAlias(aliases.alias(publish("a", MqttProperties.NO_PROPERTIES)), "", 1);
+		assertAlias(aliases.alias(publish("c", MqttProperties.NO_PROPERTIES)), "c", 2);
+		assertAlias(aliases.alias(publish("b", MqttProperties.NO_PROPERTIES)), "b", 1);
+		Assertions.assertEquals(2, aliases.getOutboundHits());
+		Assertions.assertEquals(4, aliases.getOutboundMisses());
+		// 3. 对端不支持时不使用 alias
+		MqttPublishMessage message = publish("a", MqttProperties.NO_PROPERTIES);
+		Assertions.assertSame(message, new MqttTopicAliases(16, 0).alias(message));
+	}
+
+	@Test
+	void testAliasKeepProperties() {
+		MqttProperties properties = new MqttProperties();
+		properties.add(new MqttProperties.StringProperty(MqttProperties.MqttPropertyType.CONTENT_TYPE.value(), "json"));
+		MqttPublishMessage message = new MqttTopicAliases(0, 1).alias(publish("a", properties));
+		MqttProperties aliasProperties = message.variableHeader().properties();
+		Assertions.assertEquals("json", aliasProperties.getPropertyValue(MqttProperties.MqttPropertyType.CONTENT_TYPE));
+		Assertions.assertEquals(1, (int) aliasProperties.getPropertyValue(MqttProperties.MqttPropertyType.TOPIC_ALIAS));
+		// 原消息不变，重发时使用
+		Assertions.assertNull(properties.getPropertyValue(MqttProperties.MqttPropertyType.TOPIC_ALIAS));
+	}
+
+	private static void assertAlias(MqttPublishMessage message, String topicName, int alias) {
+		Assertions.assertEquals(topicName, message.variableHeader().topicName());
+		Assertions.assertEquals(alias, (int) message.variableHeader().properties().getPropertyValue(MqttProperties.MqttPropertyType.TOPIC_ALIAS));
+	}
+
+	private static MqttProperties alias(int alias) {
+		MqttProperties properties = new MqttProperties();
+		properties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.TOPIC_ALIAS, alias));
+		return properties;
+	}
+
+	private static MqttPublishMessage publish(String topic, MqttProperties properties) {
+		return MqttMessageBuilders.publish()
+			.topicName(topic)
+			.payload(new byte[]{1})
+			.qos(MqttQoS.AT_MOST_ONCE)
+			.properties(properties)
+			.build();
+	}
+
+}
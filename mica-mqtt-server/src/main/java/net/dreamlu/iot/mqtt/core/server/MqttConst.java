@@ -39,5 +39,29 @@ public interface MqttConst {
 	 * session 有效期，小于等于 0，关闭时清理，大于 0 采用缓存处理
 	 */
 	String SESSION_EXPIRES = "session_expires";
+	/**
+	 * 异步认证中，暂存 connAck 之前收到的消息
+	 */
+	String CONNECT_PENDING = "connect_pending";
+	/**
+	 * 握手中，准入控制占用的握手名额，connAck 成功或连接关闭时释放
+	 */
+	String HANDSHAKE = "handshake";
+	/**
+	 * 上行 PUBLISH 限流的配额
+	 */
+	String PUBLISH_QUOTA = "publish_quota";
+	/**
+	 * mqtt5 topic alias
+	 */
+	String TOPIC_ALIAS = "topic_alias";
+	/**
+	 * 背压，连接待发送的 PUBLISH 字节数
+	 */
+	String OUTBOUND_BYTES = "outbound_bytes";
+	/**
+	 * 连接事件的版本，下线时据此更新集群客户端注册表
+	 */
+	String CONNECT_VERSION = "connect_version";
 
 }
@@ -19,9 +19,16 @@ package net.dreamlu.iot.mqtt.core.server;
 import net.dreamlu.iot.mqtt.codec.MqttMessageBuilders;
 import net.dreamlu.iot.mqtt.codec.MqttPublishMessage;
 import net.dreamlu.iot.mqtt.codec.MqttQoS;
+import net.dreamlu.iot.mqtt.core.common.MqttMessageExpiry;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingPublish;
+import net.dreamlu.iot.mqtt.core.common.MqttTopicAliases;
+import net.dreamlu.iot.mqtt.core.server.delay.MqttDelayedPublish;
+import net.dreamlu.iot.mqtt.core.server.dispatcher.AbstractMqttMessageDispatcher;
+import net.dreamlu.iot.mqtt.core.server.dispatcher.IMqttMessageDispatcher;
 import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
 import net.dreamlu.iot.mqtt.core.server.http.core.MqttWebServer;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttAdmissionControl;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttBackpressureController;
 import net.dreamlu.iot.mqtt.core.server.model.Message;
 import net.dreamlu.iot.mqtt.core.server.model.Subscribe;
 import net.dreamlu.iot.mqtt.core.server.session.IMqttSessionManager;
@@ -34,6 +41,7 @@ import org.tio.core.Tio;
 import org.tio.server.TioServer;
 import org.tio.server.TioServerConfig;
 import org.tio.utils.hutool.StrUtil;
+import org.tio.utils.timer.TimerTask;
 import org.tio.utils.timer.TimerTaskService;
 
 import java.io.IOException;
@@ -55,6 +63,7 @@ public final class MqttServer {
 	 * taskService
 	 */
 	private final TimerTaskService taskService;
+	private final MqttBackpressureController backpressureController;
 
 	MqttServer(TioServer tioServer,
 			   MqttWebServer webServer,
@@ -66,6 +75,7 @@ public final class MqttServer {
 		this.sessionManager = serverCreator.getSessionManager();
 		this.messageStore = serverCreator.getMessageStore();
 		this.taskService = taskService;
+		this.backpressureController = serverCreator.getBackpressureController();
 	}
 
 	public static MqttServerCreator create() {
@@ -157,6 +167,21 @@ public final class MqttServer {
 	 * @return 是否发送成功
 	 */
 	public boolean publish(String clientId, String topic, byte[] payload, MqttQoS qos, boolean retain) {
+		return publish(clientId, topic, payload, qos, retain, 0);
+	}
+
+	/**
+	 * 发布消息
+	 *
+	 * @param clientId clientId
+	 * @param topic    topic
+	 * @param payload  消息体
+	 * @param qos      MqttQoS
+	 * @param retain   是否在服务器上保留消息
+	 * @param expiryAt mqtt5 消息过期时间 (ms)，为 0 时不过期
+	 * @return 是否发送成功
+	 */
+	private boolean publish(String clientId, String topic, byte[] payload, MqttQoS qos, boolean retain, long expiryAt) {
 		// 校验 topic
 		TopicUtil.validateTopicName(topic);
 		// 获取 context
@@ -171,7 +196,7 @@ public final class MqttServer {
 			return false;
 		}
 		MqttQoS mqttQoS = qos.value() > subMqttQoS ? MqttQoS.valueOf(subMqttQoS) : qos;
-		return publish(context, clientId, topic, payload, mqttQoS, retain);
+		return publish(context, clientId, topic, payload, mqttQoS, retain, retain, expiryAt);
 	}
 
 	/**
@@ -186,10 +211,39 @@ public final class MqttServer {
 	 * @return 是否发送成功
 	 */
 	private boolean publish(ChannelContext context, String clientId, String topic, byte[] payload, MqttQoS qos, boolean retain) {
+		return publish(context, clientId, topic, payload, qos, retain, retain, 0);
+	}
+
+	/**
+	 * 发布消息
+	 *
+	 * @param context    ChannelContext
+	 * @param clientId   clientId
+	 * @param topic      topic
+	 * @param payload    消息体
+	 * @param qos        MqttQoS
+	 * @param retain     发送的 retain 标记
+	 * @param saveRetain 是否在服务器上保留消息
+	 * @param expiryAt   mqtt5 消息过期时间 (ms)，为 0 时不过期
+	 * @return 是否发送成功
+	 */
+	private boolean publish(ChannelContext context, String clientId, String topic, byte[] payload, MqttQoS qos,
+							boolean retain, boolean saveRetain, long expiryAt) {
+		// 已经过期的消息不再发送
+		long now = System.currentTimeMillis();
+		if (MqttMessageExpiry.isExpired(expiryAt, now)) {
+			logger.debug("MQTT Topic:{} publish clientId:{} dropped, message expired.", topic, clientId);
+			return false;
+		}
 		boolean isHighLevelQoS = MqttQoS.AT_LEAST_ONCE == qos || MqttQoS.EXACTLY_ONCE == qos;
 		int messageId = isHighLevelQoS ? sessionManager.getMessageId(clientId) : -1;
-		if (retain) {
-			this.saveRetainMessage(topic, qos, payload);
+		if (saveRetain) {
+			this.saveRetainMessage(topic, qos, payload, expiryAt);
+		}
+		// messageId 耗尽，所有 messageId 都在等待 ack，不再发送
+		if (messageId == 0) {
+			logger.warn("MQTT Topic:{} qos:{} publish clientId:{} failed, messageId exhausted.", topic, qos, clientId);
+			return false;
 		}
 		MqttPublishMessage message = MqttMessageBuilders.publish()
 			.topicName(topic)
@@ -198,16 +252,56 @@ public final class MqttServer {
 			.retained(retain)
 			.messageId(messageId)
 			.build();
-		boolean result = Tio.send(context, message);
+		// mqtt5 转发时使用剩余的过期间隔
+		message = MqttMessageExpiry.withRemaining(message, expiryAt, now);
+		boolean result = send(context, message);
 		logger.debug("MQTT Topic:{} qos:{} retain:{} publish clientId:{} result:{}", topic, qos, retain, clientId, result);
 		if (isHighLevelQoS) {
-			MqttPendingPublish pendingPublish = new MqttPendingPublish(payload, message, qos);
+			MqttPendingPublish pendingPublish = new MqttPendingPublish(payload, message, qos, expiryAt);
 			sessionManager.addPendingPublish(clientId, messageId, pendingPublish);
-			pendingPublish.startPublishRetransmissionTimer(taskService, msg -> Tio.send(context, msg));
+			// 过期后不再重发，释放 messageId
+			pendingPublish.startPublishRetransmissionTimer(taskService, msg -> Tio.send(context, msg),
+				() -> sessionManager.removePendingPublish(clientId, messageId));
 		}
 		return result;
 	}
 
+	/**
+	 * 发送 publish，mqtt5 客户端使用 topic alias，分配 alias 和写入发送队列在同一把锁内，保证顺序。
+	 * 重发的消息使用完整的 topic，避免 alias 被复用后发错 topic
+	 *
+	 * @param context ChannelContext
+	 * @param message MqttPublishMessage
+	 * @return 是否发送成功
+	 */
+	private boolean send(ChannelContext context, MqttPublishMessage message) {
+		// 背压，拥塞的订阅者丢弃 qos0 消息
+		if (backpressureController != null && backpressureController.tryDrop(context, message)) {
+			return false;
+		}
+		MqttTopicAliases topicAliases = (MqttTopicAliases) context.get(MqttConst.TOPIC_ALIAS);
+		if (topicAliases == null || topicAliases.getOutboundMaximum() == 0) {
+			return sendPacket(context, message);
+		}
+		synchronized (topicAliases) {
+			return sendPacket(context, topicAliases.alias(message));
+		}
+	}
+
+	/**
+	 * 写入发送队列，开启背压时统计连接待发送的字节数
+	 *
+	 * @param context ChannelContext
+	 * @param message MqttPublishMessage
+	 * @return 是否发送成功
+	 */
+	private boolean sendPacket(ChannelContext context, MqttPublishMessage message) {
+		if (backpressureController == null) {
+			return Tio.send(context, message);
+		}
+		return backpressureController.send(context, message);
+	}
+
 	/**
 	 * 发布消息给所以的在线设备
 	 *
@@ -253,6 +347,21 @@ public final class MqttServer {
 	 * @return 是否发送成功
 	 */
 	public boolean publishAll(String topic, byte[] payload, MqttQoS qos, boolean retain) {
+		return publishAll(null, topic, payload, qos, retain, 0);
+	}
+
+	/**
+	 * 发布消息给所以的在线设备，处理 mqtt5 订阅选项 noLocal 和 retainAsPublished
+	 *
+	 * @param fromClientId 发布者的 clientId，服务端发布时为 null
+	 * @param topic        topic
+	 * @param payload      消息体
+	 * @param qos          MqttQoS
+	 * @param retain       是否在服务器上保留消息
+	 * @param expiryAt     mqtt5 消息过期时间 (ms)，为 0 时不过期
+	 * @return 是否发送成功
+	 */
+	private boolean publishAll(String fromClientId, String topic, byte[] payload, MqttQoS qos, boolean retain, long expiryAt) {
 		// 校验 topic
 		TopicUtil.validateTopicName(topic);
 		// 查找订阅该 topic 的客户端
@@ -262,10 +371,14 @@ public final class MqttServer {
 			return false;
 		}
 		if (retain) {
-			this.saveRetainMessage(topic, qos, payload);
+			this.saveRetainMessage(topic, qos, payload, expiryAt);
 		}
 		for (Subscribe subscribe : subscribeList) {
 			String clientId = subscribe.getClientId();
+			// mqtt5 noLocal，不发送给发布者自己
+			if (subscribe.isNoLocal() && clientId.equals(fromClientId)) {
+				continue;
+			}
 			ChannelContext context = Tio.getByBsId(getServerConfig(), clientId);
 			if (context == null || context.isClosed) {
 				logger.warn("Mqtt Topic:{} publish to clientId:{} channel is null may be disconnected.", topic, clientId);
@@ -273,7 +386,8 @@ public final class MqttServer {
 			}
 			int subMqttQoS = subscribe.getMqttQoS();
 			MqttQoS mqttQoS = qos.value() > subMqttQoS ? MqttQoS.valueOf(subMqttQoS) : qos;
-			publish(context, clientId, topic, payload, mqttQoS, false);
+			// mqtt5 retainAsPublished，保持发布时的 retain 标记，保留消息已经存储，不再重复存储
+			publish(context, clientId, topic, payload, mqttQoS, retain && subscribe.isRetainAsPublished(), false, expiryAt);
 		}
 		return true;
 	}
@@ -289,21 +403,29 @@ public final class MqttServer {
 		// 客户端id
 		String clientId = message.getClientId();
 		MqttQoS mqttQoS = MqttQoS.valueOf(message.getQos());
+		// mqtt5 消息过期时间，例如集群转发过来的消息
+		Long expiryAt = message.getExpiryAt();
+		if (expiryAt != null && MqttMessageExpiry.isExpired(expiryAt, System.currentTimeMillis())) {
+			logger.debug("MQTT Topic:{} sendToClient dropped, message expired.", topic);
+			return false;
+		}
+		long messageExpiryAt = expiryAt == null ? 0 : expiryAt;
 		if (StrUtil.isBlank(clientId)) {
-			return publishAll(topic, message.getPayload(), mqttQoS, message.isRetain());
+			return publishAll(message.getFromClientId(), topic, message.getPayload(), mqttQoS, message.isRetain(), messageExpiryAt);
 		} else {
-			return publish(clientId, topic, message.getPayload(), mqttQoS, message.isRetain());
+			return publish(clientId, topic, message.getPayload(), mqttQoS, message.isRetain(), messageExpiryAt);
 		}
 	}
 
 	/**
 	 * 存储保留消息
 	 *
-	 * @param topic   topic
-	 * @param mqttQoS MqttQoS
-	 * @param payload ByteBuffer
+	 * @param topic    topic
+	 * @param mqttQoS  MqttQoS
+	 * @param payload  ByteBuffer
+	 * @param expiryAt mqtt5 消息过期时间 (ms)，为 0 时不过期
 	 */
-	private void saveRetainMessage(String topic, MqttQoS mqttQoS, byte[] payload) {
+	private void saveRetainMessage(String topic, MqttQoS mqttQoS, byte[] payload, long expiryAt) {
 		Message retainMessage = new Message();
 		retainMessage.setTopic(topic);
 		retainMessage.setQos(mqttQoS.value());
@@ -313,6 +435,9 @@ public final class MqttServer {
 		retainMessage.setDup(false);
 		retainMessage.setTimestamp(System.currentTimeMillis());
 		retainMessage.setNode(serverCreator.getNodeName());
+		if (expiryAt > 0) {
+			retainMessage.setExpiryAt(expiryAt);
+		}
 		this.messageStore.addRetainMessage(topic, retainMessage);
 	}
 
@@ -357,9 +482,73 @@ public final class MqttServer {
 				throw new IllegalStateException("Mica mqtt http/websocket server start fail.", e);
 			}
 		}
+		// 4. 启动消息转发器，例如内置集群
+		IMqttMessageDispatcher messageDispatcher = serverCreator.getMessageDispatcher();
+		if (messageDispatcher instanceof AbstractMqttMessageDispatcher) {
+			((AbstractMqttMessageDispatcher) messageDispatcher).start();
+		}
+		// 5. 定时分批清理过期的 retain 消息
+		scheduleExpirySweep();
+		// 6. 延迟发布
+		MqttDelayedPublish delayedPublish = serverCreator.getDelayedPublish();
+		if (delayedPublish != null) {
+			delayedPublish.start();
+		}
+		// 7. 背压检查
+		if (backpressureController != null) {
+			backpressureController.start();
+		}
+		// 8. 连接准入控制定时维护
+		scheduleAdmissionMaintain();
 		return true;
 	}
 
+	/**
+	 * 定时清理空闲的 ip 令牌桶，汇总输出连接拒绝日志
+	 */
+	private void scheduleAdmissionMaintain() {
+		MqttAdmissionControl admissionControl = serverCreator.getAdmissionControl();
+		if (admissionControl == null || admissionControl.getMaintainInterval() <= 0) {
+			return;
+		}
+		taskService.addTask(systemTimer -> new TimerTask(admissionControl.getMaintainInterval()) {
+			@Override
+			public void run() {
+				try {
+					admissionControl.maintain();
+				} catch (Throwable e) {
+					logger.error("Mqtt admission control maintain error.", e);
+				}
+				scheduleAdmissionMaintain();
+			}
+		});
+	}
+
+	/**
+	 * 清理过期的 retain 消息，每次只检查一批，下次从上次结束的位置继续
+	 */
+	private void scheduleExpirySweep() {
+		long interval = serverCreator.getMessageExpirySweepInterval();
+		if (interval <= 0) {
+			return;
+		}
+		int batchSize = serverCreator.getMessageExpirySweepBatchSize();
+		taskService.addTask(systemTimer -> new TimerTask(interval) {
+			@Override
+			public void run() {
+				try {
+					int removed = messageStore.removeExpiredRetainMessage(System.currentTimeMillis(), batchSize);
+					if (removed > 0) {
+						logger.debug("Mqtt removed {} expired retain messages.", removed);
+					}
+				} catch (Throwable e) {
+					logger.error("Mqtt remove expired retain message error.", e);
+				}
+				scheduleExpirySweep();
+			}
+		});
+	}
+
 	/**
 	 * 停止服务
 	 *
@@ -375,6 +564,21 @@ public final class MqttServer {
 			result &= webServer.stop();
 			logger.info("Mqtt websocket server stop result:{}", result);
 		}
+		MqttDelayedPublish delayedPublish = serverCreator.getDelayedPublish();
+		if (delayedPublish != null) {
+			delayedPublish.stop();
+		}
+		if (backpressureController != null) {
+			backpressureController.stop();
+		}
+		IMqttMessageDispatcher messageDispatcher = serverCreator.getMessageDispatcher();
+		if (messageDispatcher instanceof AbstractMqttMessageDispatcher) {
+			try {
+				((AbstractMqttMessageDispatcher) messageDispatcher).stop();
+			} catch (Throwable e) {
+				logger.error("MqttServer stop message dispatcher error.", e);
+			}
+		}
 		try {
 			sessionManager.clean();
 		} catch (Throwable e) {
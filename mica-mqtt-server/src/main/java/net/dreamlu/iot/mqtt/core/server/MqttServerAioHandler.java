@@ -17,6 +17,10 @@
 package net.dreamlu.iot.mqtt.core.server;
 
 import net.dreamlu.iot.mqtt.codec.*;
+import net.dreamlu.iot.mqtt.core.common.MqttTopicAliases;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttBackpressureController;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttPublishLimiter;
+import net.dreamlu.iot.mqtt.core.server.support.MqttConnectPending;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tio.core.ChannelContext;
@@ -39,12 +43,20 @@ public class MqttServerAioHandler implements TioServerHandler {
 	private final MqttEncoder mqttEncoder;
 	private final ByteBufferAllocator allocator;
 	private final MqttServerProcessor processor;
+	private final MqttPublishLimiter publishLimiter;
+	private final MqttBackpressureController backpressureController;
 
 	public MqttServerAioHandler(MqttServerCreator serverCreator, MqttServerProcessor processor) {
+		this(serverCreator, processor, null);
+	}
+
+	public MqttServerAioHandler(MqttServerCreator serverCreator, MqttServerProcessor processor, MqttPublishLimiter publishLimiter) {
 		this.mqttDecoder = new MqttDecoder(serverCreator.getMaxBytesInMessage(), serverCreator.getMaxClientIdLength());
 		this.mqttEncoder = MqttEncoder.INSTANCE;
 		this.allocator = serverCreator.getBufferAllocator();
 		this.processor = processor;
+		this.publishLimiter = publishLimiter;
+		this.backpressureController = serverCreator.getBackpressureController();
 	}
 
 	/**
@@ -99,16 +111,32 @@ public class MqttServerAioHandler implements TioServerHandler {
 			processor.processConnect(context, (MqttConnectMessage) mqttMessage);
 			return;
 		}
-		// 3. 客户端 id 是创建连接之后才有的，如果客户端 id 为空，直接关闭
+		// 3. 异步认证中，暂存消息，认证成功后按顺序处理
+		MqttConnectPending connectPending = (MqttConnectPending) context.get(MqttConst.CONNECT_PENDING);
+		if (connectPending != null && offerPending(connectPending, mqttMessage, context)) {
+			return;
+		}
+		// 4. 客户端 id 是创建连接之后才有的，如果客户端 id 为空，直接关闭
 		String clientId = context.getBsId();
 		if (StrUtil.isBlank(clientId)) {
 			Tio.remove(context, "Mqtt connected but clientId is blank.");
 			return;
 		}
-		// 4. 按类型的消息处理
+		// 5. 按类型的消息处理
 		switch (messageType) {
 			case PUBLISH:
-				processor.processPublish(context, (MqttPublishMessage) mqttMessage);
+				MqttPublishMessage publishMessage = resolveTopicAlias(context, (MqttPublishMessage) mqttMessage);
+				if (publishMessage == null) {
+					return;
+				}
+				// 上行限流，延迟的消息由限流器稍后处理
+				if (publishLimiter == null || publishLimiter.tryAcquire(context, publishMessage)) {
+					processor.processPublish(context, publishMessage);
+				}
+				// 背压，过载时暂停读取该连接
+				if (backpressureController != null) {
+					backpressureController.onPublish(context);
+				}
 				break;
 			case PUBACK:
 				processor.processPubAck(context, (MqttMessageIdVariableHeader) mqttMessage.variableHeader());
@@ -139,6 +167,43 @@ public class MqttServerAioHandler implements TioServerHandler {
 		}
 	}
 
+	/**
+	 * 解析 mqtt5 topic alias，alias 不合法时断开连接
+	 *
+	 * @param context ChannelContext
+	 * @param message MqttPublishMessage
+	 * @return MqttPublishMessage，为 null 时已断开连接
+	 */
+	private static MqttPublishMessage resolveTopicAlias(ChannelContext context, MqttPublishMessage message) {
+		if (message.variableHeader().properties().getProperty(MqttProperties.MqttPropertyType.TOPIC_ALIAS) == null) {
+			return message;
+		}
+		MqttTopicAliases topicAliases = (MqttTopicAliases) context.get(MqttConst.TOPIC_ALIAS);
+		try {
+			if (topicAliases == null) {
+				throw new IllegalArgumentException("Mqtt topic alias not supported.");
+			}
+			return topicAliases.resolve(message);
+		} catch (IllegalArgumentException e) {
+			log.warn("Mqtt clientId:{} {}", context.getBsId(), e.getMessage());
+			MqttMessage disconnect = MqttMessageBuilders.disconnect()
+				.reasonCode(MqttDisconnectReasonCode.TOPIC_ALIAS_INVALID.value())
+				.build();
+			Tio.bSend(context, disconnect);
+			Tio.remove(context, e.getMessage());
+			return null;
+		}
+	}
+
+	private boolean offerPending(MqttConnectPending connectPending, MqttMessage mqttMessage, ChannelContext context) {
+		try {
+			return connectPending.offer(mqttMessage, message -> handler(message, context));
+		} catch (IllegalStateException e) {
+			Tio.remove(context, e.getMessage());
+			return true;
+		}
+	}
+
 	/**
 	 * 处理失败
 	 *
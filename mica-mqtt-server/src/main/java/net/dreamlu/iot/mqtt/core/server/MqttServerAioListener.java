@@ -18,14 +18,19 @@ package net.dreamlu.iot.mqtt.core.server;
 
 import net.dreamlu.iot.mqtt.codec.MqttMessage;
 import net.dreamlu.iot.mqtt.core.server.dispatcher.IMqttMessageDispatcher;
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
 import net.dreamlu.iot.mqtt.core.server.event.IMqttConnectStatusListener;
 import net.dreamlu.iot.mqtt.core.server.http.core.MqttHttpHelper;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttAdmissionControl;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttBackpressureController;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttPublishLimiter;
 import net.dreamlu.iot.mqtt.core.server.model.Message;
 import net.dreamlu.iot.mqtt.core.server.session.IMqttSessionManager;
 import net.dreamlu.iot.mqtt.core.server.store.IMqttMessageStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
 import org.tio.core.intf.Packet;
 import org.tio.server.DefaultTioServerListener;
 import org.tio.utils.hutool.StrUtil;
@@ -45,17 +50,50 @@ public class MqttServerAioListener extends DefaultTioServerListener {
 	private final IMqttMessageDispatcher messageDispatcher;
 	private final IMqttConnectStatusListener connectStatusListener;
 	private final MqttMessageInterceptors messageInterceptors;
+	private final MqttAdmissionControl admissionControl;
+	private final MqttPublishLimiter publishLimiter;
+	private final MqttBackpressureController backpressureController;
 	private final ThreadPoolExecutor executor;
 
 	public MqttServerAioListener(MqttServerCreator serverCreator, ThreadPoolExecutor executor) {
+		this(serverCreator, executor, null);
+	}
+
+	public MqttServerAioListener(MqttServerCreator serverCreator, ThreadPoolExecutor executor, MqttPublishLimiter publishLimiter) {
 		this.messageStore = serverCreator.getMessageStore();
 		this.sessionManager = serverCreator.getSessionManager();
 		this.messageDispatcher = serverCreator.getMessageDispatcher();
 		this.connectStatusListener = serverCreator.getConnectStatusListener();
 		this.messageInterceptors = serverCreator.getMessageInterceptors();
+		this.admissionControl = serverCreator.getAdmissionControl();
+		this.publishLimiter = publishLimiter;
+		this.backpressureController = serverCreator.getBackpressureController();
 		this.executor = executor;
 	}
 
+	@Override
+	public void onAfterConnected(ChannelContext context, boolean isConnected, boolean isReconnect) {
+		// 背压，替换为可暂停读取的 channel
+		if (backpressureController != null) {
+			backpressureController.onConnected(context);
+		}
+		// 限流延迟模式，替换为可暂停读取的 channel
+		if (publishLimiter != null) {
+			publishLimiter.onConnected(context);
+		}
+		// 连接准入控制，超过速率或握手并发数时直接关闭
+		if (admissionControl == null) {
+			return;
+		}
+		String ip = context.getClientNode().getIp();
+		if (admissionControl.tryAccept(context, ip)) {
+			return;
+		}
+		// 拒绝数由 MqttAdmissionControl 计数并定时汇总输出，避免重连风暴时刷屏
+		logger.debug("Mqtt server reject connection ip:{}, handshakes:{}", ip, admissionControl.getHandshakes());
+		Tio.remove(context, "Mqtt server admission rejected");
+	}
+
 	@Override
 	public boolean onHeartbeatTimeout(ChannelContext context, Long interval, int heartbeatTimeoutCount) {
 		String clientId = context.getBsId();
@@ -65,6 +103,18 @@ public class MqttServerAioListener extends DefaultTioServerListener {
 
 	@Override
 	public void onBeforeClose(ChannelContext context, Throwable throwable, String remark, boolean isRemove) {
+		// 0. 释放握手名额
+		if (admissionControl != null) {
+			admissionControl.releaseHandshake(context);
+		}
+		// 0.5 清理限流暂存的消息
+		if (publishLimiter != null) {
+			publishLimiter.onClose(context);
+		}
+		// 0.6 解除背压的拥塞和暂停
+		if (backpressureController != null) {
+			backpressureController.onClose(context);
+		}
 		// 1. http 请求跳过
 		boolean isHttpRequest = context.get(MqttConst.IS_HTTP) != null;
 		if (isHttpRequest) {
@@ -96,12 +146,30 @@ public class MqttServerAioListener extends DefaultTioServerListener {
 		// 6. 会话清理
 		cleanSession(clientId);
 		context.remove(MqttConst.DIS_CONNECTED);
+		sendOffline(context, clientId);
 		// 7. 下线事件
 		String username = (String) context.get(MqttConst.USER_NAME_KEY);
 		context.remove(MqttConst.USER_NAME_KEY);
 		notify(context, clientId, username, remark);
 	}
 
+	private void sendOffline(ChannelContext context, String clientId) {
+		Long connectVersion = (Long) context.get(MqttConst.CONNECT_VERSION);
+		if (connectVersion == null) {
+			return;
+		}
+		context.remove(MqttConst.CONNECT_VERSION);
+		Message message = new Message();
+		message.setClientId(clientId);
+		message.setMessageType(MessageType.OFFLINE);
+		message.setTimestamp(connectVersion);
+		try {
+			messageDispatcher.send(message);
+		} catch (Throwable e) {
+			logger.error("Mqtt server clientId:{} send offline error.", clientId, e);
+		}
+	}
+
 	private void sendWillMessage(String clientId) {
 		// 发送遗嘱消息
 		try {
@@ -17,11 +17,20 @@
 package net.dreamlu.iot.mqtt.core.server;
 
 import net.dreamlu.iot.mqtt.codec.MqttConstant;
+import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerAsyncAuthHandler;
 import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerAuthHandler;
 import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerPublishPermission;
 import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerSubscribeValidator;
 import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerUniqueIdService;
+import net.dreamlu.iot.mqtt.core.server.auth.MqttServerAuthCache;
+import net.dreamlu.iot.mqtt.core.server.auth.MqttServerAuthMetrics;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttAdmissionControl;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttBackpressure;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttBackpressureController;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttPublishLimit;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttPublishLimiter;
 import net.dreamlu.iot.mqtt.core.server.broker.DefaultMqttBrokerDispatcher;
+import net.dreamlu.iot.mqtt.core.server.delay.MqttDelayedPublish;
 import net.dreamlu.iot.mqtt.core.server.dispatcher.AbstractMqttMessageDispatcher;
 import net.dreamlu.iot.mqtt.core.server.dispatcher.IMqttMessageDispatcher;
 import net.dreamlu.iot.mqtt.core.server.event.IMqttConnectStatusListener;
@@ -52,9 +61,11 @@ import org.tio.utils.buffer.ByteBufferAllocator;
 import org.tio.utils.hutool.StrUtil;
 import org.tio.utils.json.JsonAdapter;
 import org.tio.utils.json.JsonUtil;
+import org.tio.utils.thread.pool.SynThreadPoolExecutor;
 import org.tio.utils.timer.DefaultTimerTaskService;
 import org.tio.utils.timer.TimerTaskService;
 
+import java.io.File;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -110,6 +121,78 @@ public class MqttServerCreator {
 	 * 认证处理器
 	 */
 	private IMqttServerAuthHandler authHandler;
+	/**
+	 * 异步认证处理器，配置后替代 authHandler
+	 */
+	private IMqttServerAsyncAuthHandler asyncAuthHandler;
+	/**
+	 * 最大并发异步认证数，超过时拒绝连接，小于等于 0 不限制
+	 */
+	private int maxPendingAuth = 1024;
+	/**
+	 * 异步认证超时时间，单位毫秒，超时视为认证失败
+	 */
+	private long authTimeout = 10_000L;
+	/**
+	 * 认证结果缓存，默认不缓存
+	 */
+	private MqttServerAuthCache authCache;
+	/**
+	 * 认证统计
+	 */
+	private final MqttServerAuthMetrics authMetrics = new MqttServerAuthMetrics();
+	/**
+	 * 连接准入控制，默认不开启
+	 */
+	private MqttAdmissionControl admissionControl;
+	/**
+	 * 上行 PUBLISH 限流，默认不开启
+	 */
+	private MqttPublishLimit publishLimit;
+	/**
+	 * 背压，默认不开启
+	 */
+	private MqttBackpressure backpressure;
+	/**
+	 * 背压控制，build 时创建
+	 */
+	private MqttBackpressureController backpressureController;
+	/**
+	 * 单次订阅最多发送的保留消息数，小于等于 0 不限制
+	 */
+	private int maxRetainPerSubscribe = 1000;
+	/**
+	 * 发送 qos1、qos2 保留消息时的飞行窗口
+	 */
+	private int retainInflightWindow = 32;
+	/**
+	 * mqtt5 Topic Alias Maximum，客户端可使用的 alias 最大值，同时限制下发时使用的 alias 数，为 0 时不使用 alias
+	 */
+	private int topicAliasMaximum = 16;
+	/**
+	 * 清理过期 retain 消息的间隔 (ms)，小于等于 0 时不清理，投递时仍会跳过过期的消息
+	 */
+	private long messageExpirySweepInterval = 1000L;
+	/**
+	 * 每次清理最多检查的 retain 消息数
+	 */
+	private int messageExpirySweepBatchSize = 1000;
+	/**
+	 * 是否开启延迟发布，开启后发布到 $delayed/{seconds}/{topic} 的消息到期后再发布到 {topic}
+	 */
+	private boolean delayedPublishEnable = false;
+	/**
+	 * 延迟消息的存储目录，默认为临时目录下的 mica-mqtt/delayed/{port}，需要重启后保留时请配置到持久的目录
+	 */
+	private String delayedPublishStoreDir;
+	/**
+	 * 最大延迟时间 (秒)
+	 */
+	private long delayedPublishMaxSeconds = 4294967L;
+	/**
+	 * 延迟发布，build 时创建
+	 */
+	private MqttDelayedPublish delayedPublish;
 	/**
 	 * 唯一 id 服务
 	 */
@@ -327,6 +410,177 @@ public class MqttServerCreator {
 		return this;
 	}
 
+	public IMqttServerAsyncAuthHandler getAsyncAuthHandler() {
+		return asyncAuthHandler;
+	}
+
+	public MqttServerCreator asyncAuthHandler(IMqttServerAsyncAuthHandler asyncAuthHandler) {
+		this.asyncAuthHandler = asyncAuthHandler;
+		return this;
+	}
+
+	public int getMaxPendingAuth() {
+		return maxPendingAuth;
+	}
+
+	public MqttServerCreator maxPendingAuth(int maxPendingAuth) {
+		this.maxPendingAuth = maxPendingAuth;
+		return this;
+	}
+
+	public long getAuthTimeout() {
+		return authTimeout;
+	}
+
+	public MqttServerCreator authTimeout(long authTimeout) {
+		this.authTimeout = authTimeout;
+		return this;
+	}
+
+	public MqttServerAuthCache getAuthCache() {
+		return authCache;
+	}
+
+	public MqttServerCreator authCache(MqttServerAuthCache authCache) {
+		this.authCache = authCache;
+		return this;
+	}
+
+	/**
+	 * 开启认证结果缓存
+	 *
+	 * @param maxSize     最大缓存数
+	 * @param ttl         认证成功结果的有效期，单位毫秒
+	 * @param negativeTtl 认证失败结果的有效期，单位毫秒
+	 * @return MqttServerCreator
+	 */
+	public MqttServerCreator authCache(int maxSize, long ttl, long negativeTtl) {
+		return authCache(new MqttServerAuthCache(maxSize, ttl, negativeTtl));
+	}
+
+	public MqttServerAuthMetrics getAuthMetrics() {
+		return authMetrics;
+	}
+
+	public MqttAdmissionControl getAdmissionControl() {
+		return admissionControl;
+	}
+
+	public MqttServerCreator admissionControl(MqttAdmissionControl admissionControl) {
+		this.admissionControl = admissionControl;
+		return this;
+	}
+
+	public MqttPublishLimit getPublishLimit() {
+		return publishLimit;
+	}
+
+	public MqttServerCreator publishLimit(MqttPublishLimit publishLimit) {
+		this.publishLimit = publishLimit;
+		return this;
+	}
+
+	public MqttBackpressure getBackpressure() {
+		return backpressure;
+	}
+
+	public MqttServerCreator backpressure(MqttBackpressure backpressure) {
+		this.backpressure = backpressure;
+		return this;
+	}
+
+	public MqttBackpressureController getBackpressureController() {
+		return backpressureController;
+	}
+
+	public int getMaxRetainPerSubscribe() {
+		return maxRetainPerSubscribe;
+	}
+
+	public MqttServerCreator maxRetainPerSubscribe(int maxRetainPerSubscribe) {
+		this.maxRetainPerSubscribe = maxRetainPerSubscribe;
+		return this;
+	}
+
+	public int getRetainInflightWindow() {
+		return retainInflightWindow;
+	}
+
+	public MqttServerCreator retainInflightWindow(int retainInflightWindow) {
+		if (retainInflightWindow < 1) {
+			throw new IllegalArgumentException("Mqtt retainInflightWindow must be greater than 0.");
+		}
+		this.retainInflightWindow = retainInflightWindow;
+		return this;
+	}
+
+	public int getTopicAliasMaximum() {
+		return topicAliasMaximum;
+	}
+
+	public MqttServerCreator topicAliasMaximum(int topicAliasMaximum) {
+		if (topicAliasMaximum < 0 || topicAliasMaximum > 0xFFFF) {
+			throw new IllegalArgumentException("Mqtt topicAliasMaximum must be between 0 and 65535.");
+		}
+		this.topicAliasMaximum = topicAliasMaximum;
+		return this;
+	}
+
+	public long getMessageExpirySweepInterval() {
+		return messageExpirySweepInterval;
+	}
+
+	public MqttServerCreator messageExpirySweepInterval(long messageExpirySweepInterval) {
+		this.messageExpirySweepInterval = messageExpirySweepInterval;
+		return this;
+	}
+
+	public int getMessageExpirySweepBatchSize() {
+		return messageExpirySweepBatchSize;
+	}
+
+	public MqttServerCreator messageExpirySweepBatchSize(int messageExpirySweepBatchSize) {
+		if (messageExpirySweepBatchSize < 1) {
+			throw new IllegalArgumentException("Mqtt messageExpirySweepBatchSize must be greater than 0.");
+		}
+		this.messageExpirySweepBatchSize = messageExpirySweepBatchSize;
+		return this;
+	}
+
+	public boolean isDelayedPublishEnable() {
+		return delayedPublishEnable;
+	}
+
+	public MqttServerCreator delayedPublishEnable(boolean delayedPublishEnable) {
+		this.delayedPublishEnable = delayedPublishEnable;
+		return this;
+	}
+
+	public String getDelayedPublishStoreDir() {
+		return delayedPublishStoreDir;
+	}
+
+	public MqttServerCreator delayedPublishStoreDir(String delayedPublishStoreDir) {
+		this.delayedPublishStoreDir = delayedPublishStoreDir;
+		return this;
+	}
+
+	public long getDelayedPublishMaxSeconds() {
+		return delayedPublishMaxSeconds;
+	}
+
+	public MqttServerCreator delayedPublishMaxSeconds(long delayedPublishMaxSeconds) {
+		if (delayedPublishMaxSeconds < 0) {
+			throw new IllegalArgumentException("Mqtt delayedPublishMaxSeconds must be greater than or equal to 0.");
+		}
+		this.delayedPublishMaxSeconds = delayedPublishMaxSeconds;
+		return this;
+	}
+
+	public MqttDelayedPublish getDelayedPublish() {
+		return delayedPublish;
+	}
+
 	public MqttServerCreator usernamePassword(String username, String password) {
 		return authHandler(new DefaultMqttServerAuthHandler(username, password));
 	}
@@ -567,15 +821,35 @@ public class MqttServerCreator {
 			this.taskService = new DefaultTimerTaskService(200L, 60);
 		}
 		// 业务线程池
-		ThreadPoolExecutor mqttExecutor = ThreadUtil.getMqttExecutor(Threads.MAX_POOL_SIZE_FOR_TIO);
+		ThreadPoolExecutor mqttExecutor;
+		if (this.backpressure == null) {
+			mqttExecutor = ThreadUtil.getMqttExecutor(Threads.MAX_POOL_SIZE_FOR_TIO);
+		} else {
+			// 有界队列，积压过多时暂停读取发布消息的连接
+			mqttExecutor = ThreadUtil.getMqttExecutor(Threads.MAX_POOL_SIZE_FOR_TIO, this.backpressure.getExecutorQueueCapacity());
+			this.backpressureController = new MqttBackpressureController(this.backpressure, mqttExecutor, this.taskService);
+		}
+		// 延迟发布
+		if (this.delayedPublishEnable) {
+			String storeDir = this.delayedPublishStoreDir;
+			if (StrUtil.isBlank(storeDir)) {
+				storeDir = System.getProperty("java.io.tmpdir") + File.separator + "mica-mqtt" + File.separator + "delayed" + File.separator + port;
+			}
+			this.delayedPublish = new MqttDelayedPublish(new File(storeDir), this.delayedPublishMaxSeconds, this.taskService, mqttExecutor, this.messageDispatcher, this.messageStore);
+		}
 		// AckService
 		DefaultMqttServerProcessor serverProcessor = new DefaultMqttServerProcessor(this, this.taskService, mqttExecutor);
 		// 1. 处理消息
-		TioServerHandler handler = new MqttServerAioHandler(this, serverProcessor);
+		MqttPublishLimiter publishLimiter = this.publishLimit == null ? null :
+			new MqttPublishLimiter(this.publishLimit, this.taskService, mqttExecutor, serverProcessor::processPublish);
+		TioServerHandler handler = new MqttServerAioHandler(this, serverProcessor, publishLimiter);
 		// 2. t-io 监听
-		TioServerListener listener = new MqttServerAioListener(this, mqttExecutor);
+		TioServerListener listener = new MqttServerAioListener(this, mqttExecutor, publishLimiter);
 		// 3. t-io 配置
-		TioServerConfig tioConfig = new TioServerConfig(this.name, handler, listener);
+		// 每个服务使用独立的 t-io 线程池，停止时不会关闭同一进程内其他服务的线程池
+		SynThreadPoolExecutor tioExecutor = ThreadUtil.getTioExecutor(Threads.MAX_POOL_SIZE_FOR_TIO);
+		ThreadPoolExecutor groupExecutor = ThreadUtil.getGroupExecutor(Threads.MAX_POOL_SIZE_FOR_GROUP);
+		TioServerConfig tioConfig = new TioServerConfig(this.name, handler, listener, tioExecutor, groupExecutor);
 		tioConfig.setUseQueueDecode(this.useQueueDecode);
 		tioConfig.setUseQueueSend(this.useQueueSend);
 		// 4. mqtt 消息最大长度，小于 1 则使用默认的，可通过 property tio.default.read.buffer.size 设置默认大小
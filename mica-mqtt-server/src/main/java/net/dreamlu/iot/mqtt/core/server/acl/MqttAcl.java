@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.acl;
+
+import net.dreamlu.iot.mqtt.codec.MqttQoS;
+import net.dreamlu.iot.mqtt.core.server.MqttConst;
+import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerPublishPermission;
+import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerSubscribeValidator;
+import net.dreamlu.iot.mqtt.core.util.TopicUtil;
+import org.tio.core.ChannelContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * mqtt 内置 acl，按顺序匹配 allow、deny 规则，第一条匹配的规则生效，都不匹配时使用默认结果。
+ *
+ * <p>
+ * 规则编译成 topic 前缀树，每个连接按 topic 缓存结果，热点路径上只有一次 hash 查找，重新加载规则后缓存失效。
+ * 订阅时 topicFilter 需要被规则完全覆盖，例如规则 a/# 允许订阅 a/+/b，规则 a/+ 不允许订阅 a/#。
+ * </p>
+ *
+ * <pre>
+ * MqttAcl acl = new MqttAcl(Arrays.asList(
+ *     MqttAclRule.allow(MqttAclAction.PUBLISH, "device/${clientId}/up"),
+ *     MqttAclRule.allow(MqttAclAction.SUBSCRIBE, "device/${clientId}/down/#")
+ * ));
+ * MqttServer.create().publishPermission(acl).subscribeValidator(acl)
+ * </pre>
+ *
+ * @author L.cm
+ */
+public class MqttAcl implements IMqttServerPublishPermission, IMqttServerSubscribeValidator {
+	/**
+	 * 连接上缓存的 key
+	 */
+	private static final String ACL_CACHE_KEY = "mqtt_acl_cache";
+	/**
+	 * 每个连接最多缓存的 topic 数，超过后清空
+	 */
+	private static final int MAX_CACHE_SIZE_PER_CONNECTION = 256;
+	private final boolean noMatchAllow;
+	private final LongAdder evaluateCount = new LongAdder();
+	private volatile MqttAclTopicTrie trie;
+
+	public MqttAcl(List<MqttAclRule> rules) {
+		this(rules, false);
+	}
+
+	/**
+	 * 构造器
+	 *
+	 * @param rules        规则，按顺序匹配
+	 * @param noMatchAllow 没有匹配的规则时是否允许
+	 */
+	public MqttAcl(List<MqttAclRule> rules, boolean noMatchAllow) {
+		this.noMatchAllow = noMatchAllow;
+		reload(rules);
+	}
+
+	/**
+	 * 重新加载规则，所有连接的缓存失效
+	 *
+	 * @param rules 规则，按顺序匹配
+	 */
+	public void reload(List<MqttAclRule> rules) {
+		List<MqttAclRule> ruleList = new ArrayList<>(rules == null ? Collections.emptyList() : rules);
+		for (MqttAclRule rule : ruleList) {
+			TopicUtil.validateTopicFilter(rule.getTopic());
+		}
+		this.trie = new MqttAclTopicTrie(ruleList);
+	}
+
+	@Override
+	public boolean hasPermission(ChannelContext context, String clientId, String topic, MqttQoS qoS, boolean isRetain) {
+		return isAllowed(context, MqttAclAction.PUBLISH, clientId, topic);
+	}
+
+	@Override
+	public boolean isValid(ChannelContext context, String clientId, String topicFilter, MqttQoS qoS) {
+		return isAllowed(context, MqttAclAction.SUBSCRIBE, clientId, topicFilter);
+	}
+
+	/**
+	 * 判断连接是否有权限，结果缓存在连接上
+	 *
+	 * @param context  ChannelContext
+	 * @param action   动作，PUBLISH 或 SUBSCRIBE
+	 * @param clientId clientId
+	 * @param topic    发布时为 topicName，订阅时为 topicFilter
+	 * @return 是否允许
+	 */
+	public boolean isAllowed(ChannelContext context, MqttAclAction action, String clientId, String topic) {
+		MqttAclTopicTrie currentTrie = this.trie;
+		AclCache cache = (AclCache) context.get(ACL_CACHE_KEY);
+		if (cache == null || cache.trie != currentTrie) {
+			cache = new AclCache(currentTrie);
+			context.set(ACL_CACHE_KEY, cache);
+		}
+		Map<String, Boolean> decisions = MqttAclAction.PUBLISH == action ? cache.publish : cache.subscribe;
+		Boolean allowed = decisions.get(topic);
+		if (allowed == null) {
+			String username = (String) context.get(MqttConst.USER_NAME_KEY);
+			allowed = evaluate(currentTrie, action, clientId, username, topic);
+			if (decisions.size() >= MAX_CACHE_SIZE_PER_CONNECTION) {
+				decisions.clear();
+			}
+			decisions.put(topic, allowed);
+		}
+		return allowed;
+	}
+
+	/**
+	 * 判断是否有权限，不使用缓存
+	 *
+	 * @param action   动作，PUBLISH 或 SUBSCRIBE
+	 * @param clientId clientId
+	 * @param username 用户名
+	 * @param topic    发布时为 topicName，订阅时为 topicFilter
+	 * @return 是否允许
+	 */
+	public boolean isAllowed(MqttAclAction action, String clientId, String username, String topic) {
+		return evaluate(this.trie, action, clientId, username, topic);
+	}
+
+	private boolean evaluate(MqttAclTopicTrie currentTrie, MqttAclAction action, String clientId, String username, String topic) {
+		evaluateCount.increment();
+		MqttAclRule rule = currentTrie.match(action, clientId, username, topic);
+		return rule == null ? noMatchAllow : rule.isAllow();
+	}
+
+	/**
+	 * 规则匹配次数，即未命中缓存的次数
+	 *
+	 * @return 次数
+	 */
+	public long getEvaluateCount() {
+		return evaluateCount.sum();
+	}
+
+	/**
+	 * 连接上的 acl 缓存，规则重新加载后失效
+	 */
+	private static class AclCache {
+		private final MqttAclTopicTrie trie;
+		private final Map<String, Boolean> publish = new ConcurrentHashMap<>();
+		private final Map<String, Boolean> subscribe = new ConcurrentHashMap<>();
+
+		private AclCache(MqttAclTopicTrie trie) {
+			this.trie = trie;
+		}
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.acl;
+
+/**
+ * acl 规则的动作
+ *
+ * @author L.cm
+ */
+public enum MqttAclAction {
+
+	/**
+	 * 发布
+	 */
+	PUBLISH,
+	/**
+	 * 订阅
+	 */
+	SUBSCRIBE,
+	/**
+	 * 发布和订阅
+	 */
+	ALL;
+
+	/**
+	 * 是否包含该动作
+	 *
+	 * @param action 动作
+	 * @return 是否包含
+	 */
+	public boolean includes(MqttAclAction action) {
+		return this == ALL || this == action;
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.acl;
+
+import java.util.Objects;
+
+/**
+ * acl 规则，topic 支持 + 和 # 通配符，以及 ${clientId}、${username} 占位符，例如：device/${clientId}/#
+ *
+ * @author L.cm
+ */
+public class MqttAclRule {
+	/**
+	 * clientId 占位符
+	 */
+	public static final String CLIENT_ID_PLACEHOLDER = "${clientId}";
+	/**
+	 * 用户名占位符
+	 */
+	public static final String USERNAME_PLACEHOLDER = "${username}";
+	private final boolean allow;
+	private final MqttAclAction action;
+	private final String topic;
+	/**
+	 * 只对该 clientId 生效，为 null 时对所有客户端生效
+	 */
+	private String clientId;
+	/**
+	 * 只对该用户名生效，为 null 时对所有用户生效
+	 */
+	private String username;
+
+	public MqttAclRule(boolean allow, MqttAclAction action, String topic) {
+		this.allow = allow;
+		this.action = Objects.requireNonNull(action, "Mqtt acl rule action is null.");
+		this.topic = Objects.requireNonNull(topic, "Mqtt acl rule topic is null.");
+	}
+
+	public static MqttAclRule allow(MqttAclAction action, String topic) {
+		return new MqttAclRule(true, action, topic);
+	}
+
+	public static MqttAclRule deny(MqttAclAction action, String topic) {
+		return new MqttAclRule(false, action, topic);
+	}
+
+	public boolean isAllow() {
+		return allow;
+	}
+
+	public MqttAclAction getAction() {
+		return action;
+	}
+
+	public String getTopic() {
+		return topic;
+	}
+
+	public String getClientId() {
+		return clientId;
+	}
+
+	public MqttAclRule clientId(String clientId) {
+		this.clientId = clientId;
+		return this;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public MqttAclRule username(String username) {
+		this.username = username;
+		return this;
+	}
+
+	/**
+	 * 是否对该客户端的动作生效
+	 *
+	 * @param action   动作
+	 * @param clientId clientId
+	 * @param username 用户名
+	 * @return 是否生效
+	 */
+	boolean appliesTo(MqttAclAction action, String clientId, String username) {
+		return this.action.includes(action)
+			&& (this.clientId == null || this.clientId.equals(clientId))
+			&& (this.username == null || this.username.equals(username));
+	}
+
+	@Override
+	public String toString() {
+		return "MqttAclRule{" +
+			"allow=" + allow +
+			", action=" + action +
+			", topic='" + topic + '\'' +
+			", clientId='" + clientId + '\'' +
+			", username='" + username + '\'' +
+			'}';
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.acl;
+
+import java.util.*;
+
+/**
+ * acl 规则 topic 前缀树，按层级编译规则，匹配时只遍历相关的分支，不可变，规则变化时重新创建
+ *
+ * @author L.cm
+ */
+class MqttAclTopicTrie {
+	private final MqttAclRule[] rules;
+	private final Node root = new Node();
+
+	MqttAclTopicTrie(List<MqttAclRule> ruleList) {
+		this.rules = ruleList.toArray(new MqttAclRule[0]);
+		for (int i = 0; i < rules.length; i++) {
+			Node node = root;
+			for (String level : rules[i].getTopic().split("/", -1)) {
+				node = node.child(level);
+			}
+			node.ruleIndexes.add(i);
+		}
+	}
+
+	/**
+	 * 获取第一条匹配的规则
+	 *
+	 * @param action   动作
+	 * @param clientId clientId
+	 * @param username 用户名
+	 * @param topic    发布时为 topicName，订阅时为 topicFilter，topicFilter 需要被规则完全覆盖
+	 * @return 规则，没有匹配时为 null
+	 */
+	MqttAclRule match(MqttAclAction action, String clientId, String username, String topic) {
+		Matcher matcher = new Matcher(action, clientId, username, topic.split("/", -1));
+		// $ 开头的 topic 不能被首层的通配符匹配
+		matcher.match(root, 0, topic.startsWith("$"));
+		return matcher.best == Integer.MAX_VALUE ? null : rules[matcher.best];
+	}
+
+	private final class Matcher {
+		private final MqttAclAction action;
+		private final String clientId;
+		private final String username;
+		private final String[] levels;
+		private int best = Integer.MAX_VALUE;
+
+		private Matcher(MqttAclAction action, String clientId, String username, String[] levels) {
+			this.action = action;
+			this.clientId = clientId;
+			this.username = username;
+			this.levels = levels;
+		}
+
+		private void match(Node node, int index, boolean systemTopic) {
+			boolean wildcardAllowed = !(systemTopic && index == 0);
+			// 1. # 匹配剩余所有层级，包括父级
+			if (node.multiLevel != null && wildcardAllowed) {
+				accept(node.multiLevel);
+			}
+			if (index == levels.length) {
+				accept(node);
+				return;
+			}
+			String level = levels[index];
+			// 2. 订阅的 # 只能被规则的 # 覆盖
+			if ("#".equals(level)) {
+				return;
+			}
+			// 3. + 匹配一个层级，订阅的 + 只能被规则的 + 或 # 覆盖
+			if (node.singleLevel != null && wildcardAllowed) {
+				match(node.singleLevel, index + 1, systemTopic);
+			}
+			if ("+".equals(level)) {
+				return;
+			}
+			if (node.literals != null) {
+				Node child = node.literals.get(level);
+				if (child != null) {
+					match(child, index + 1, systemTopic);
+				}
+			}
+			if (node.templates != null) {
+				for (Map.Entry<String, Node> entry : node.templates.entrySet()) {
+					String resolved = resolve(entry.getKey());
+					if (level.equals(resolved)) {
+						match(entry.getValue(), index + 1, systemTopic);
+					}
+				}
+			}
+		}
+
+		private void accept(Node node) {
+			for (int ruleIndex : node.ruleIndexes) {
+				if (ruleIndex >= best) {
+					break;
+				}
+				if (rules[ruleIndex].appliesTo(action, clientId, username)) {
+					best = ruleIndex;
+					break;
+				}
+			}
+		}
+
+		/**
+		 * 替换占位符，clientId 或用户名为空时不匹配
+		 */
+		private String resolve(String template) {
+			String resolved = template;
+			if (resolved.contains(MqttAclRule.CLIENT_ID_PLACEHOLDER)) {
+				if (clientId == null || clientId.isEmpty()) {
+					return null;
+				}
+				resolved = resolved.replace(MqttAclRule.CLIENT_ID_PLACEHOLDER, clientId);
+			}
+			if (resolved.contains(MqttAclRule.USERNAME_PLACEHOLDER)) {
+				if (username == null || username.isEmpty()) {
+					return null;
+				}
+				resolved = resolved.replace(MqttAclRule.USERNAME_PLACEHOLDER, username);
+			}
+			return resolved;
+		}
+	}
+
+	private static class Node {
+		/**
+		 * 按规则顺序，越小优先级越高
+		 */
+		private final List<Integer> ruleIndexes = new ArrayList<>(1);
+		private Map<String, Node> literals;
+		private Map<String, Node> templates;
+		private Node singleLevel;
+		private Node multiLevel;
+
+		private Node child(String level) {
+			if ("#".equals(level)) {
+				if (multiLevel == null) {
+					multiLevel = new Node();
+				}
+				return multiLevel;
+			} else if ("+".equals(level)) {
+				if (singleLevel == null) {
+					singleLevel = new Node();
+				}
+				return singleLevel;
+			} else if (level.contains(MqttAclRule.CLIENT_ID_PLACEHOLDER) || level.contains(MqttAclRule.USERNAME_PLACEHOLDER)) {
+				if (templates == null) {
+					templates = new LinkedHashMap<>();
+				}
+				return templates.computeIfAbsent(level, key -> new Node());
+			}
+			if (literals == null) {
+				literals = new HashMap<>();
+			}
+			return literals.computeIfAbsent(level, key -> new Node());
+		}
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.auth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * mqtt 认证结果缓存，key 为客户端 ip、clientId、用户名和密码的 sha-256，不保存明文密码。
+ * 认证成功和失败的结果分别设置有效期，超过最大数量时淘汰最久未使用的。
+ * 默认 key 中包含客户端 ip，同一凭证从其他 ip 连接时重新认证，适用于按 ip 限制的认证。
+ *
+ * @author L.cm
+ */
+public class MqttServerAuthCache {
+	private final int maxSize;
+	private final long ttl;
+	private final long negativeTtl;
+	private final Map<String, Entry> cache;
+	private final LongAdder hitCount = new LongAdder();
+	private final LongAdder missCount = new LongAdder();
+	/**
+	 * 缓存 key 是否包含客户端 ip
+	 */
+	private boolean bindIp = true;
+
+	/**
+	 * 构造器
+	 *
+	 * @param maxSize     最大缓存数
+	 * @param ttl         认证成功结果的有效期，单位毫秒
+	 * @param negativeTtl 认证失败结果的有效期，单位毫秒，小于等于 0 时不缓存失败结果
+	 */
+	public MqttServerAuthCache(int maxSize, long ttl, long negativeTtl) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.cache = new LinkedHashMap<String, Entry>(16, 0.75F, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > MqttServerAuthCache.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * 设置缓存 key 是否包含客户端 ip，默认包含
+	 *
+	 * @param bindIp 是否包含客户端 ip
+	 * @return MqttServerAuthCache
+	 */
+	public MqttServerAuthCache bindIp(boolean bindIp) {
+		this.bindIp = bindIp;
+		return this;
+	}
+
+	public boolean isBindIp() {
+		return bindIp;
+	}
+
+	/**
+	 * 生成缓存 key，不包含客户端 ip
+	 *
+	 * @param clientId 客户端 ID
+	 * @param userName 用户名
+	 * @param password 密码
+	 * @return key
+	 */
+	public static String getKey(String clientId, String userName, String password) {
+		return getKey(null, clientId, userName, password);
+	}
+
+	/**
+	 * 生成缓存 key，各字段带长度和 null 标记后计算 sha-256，null 和字符串 "null" 不同，字段之间不会拼接混淆
+	 *
+	 * @param ip       客户端 ip，为 null 时不区分 ip
+	 * @param clientId 客户端 ID
+	 * @param userName 用户名
+	 * @param password 密码
+	 * @return key
+	 */
+	public static String getKey(String ip, String clientId, String userName, String password) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		update(digest, ip);
+		update(digest, clientId);
+		update(digest, userName);
+		update(digest, password);
+		return Base64.getEncoder().encodeToString(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		if (value == null) {
+			digest.update((byte) 0);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		digest.update((byte) 1);
+		digest.update(new byte[]{(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length});
+		digest.update(bytes);
+	}
+
+	/**
+	 * 获取缓存的认证结果
+	 *
+	 * @param key key
+	 * @return 认证结果，没有缓存或已过期时为 null
+	 */
+	public Boolean get(String key) {
+		Entry entry;
+		synchronized (cache) {
+			entry = cache.get(key);
+			if (entry != null && entry.expireAt <= System.currentTimeMillis()) {
+				cache.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			missCount.increment();
+			return null;
+		}
+		hitCount.increment();
+		return entry.result;
+	}
+
+	/**
+	 * 缓存认证结果
+	 *
+	 * @param key    key
+	 * @param result 认证结果
+	 */
+	public void put(String key, boolean result) {
+		long expire = result ? ttl : negativeTtl;
+		if (expire <= 0) {
+			return;
+		}
+		Entry entry = new Entry(result, System.currentTimeMillis() + expire);
+		synchronized (cache) {
+			cache.put(key, entry);
+		}
+	}
+
+	/**
+	 * 删除缓存，例如修改密码或禁用设备后
+	 *
+	 * @param key key
+	 */
+	public void remove(String key) {
+		synchronized (cache) {
+			cache.remove(key);
+		}
+	}
+
+	/**
+	 * 清空缓存
+	 */
+	public void clear() {
+		synchronized (cache) {
+			cache.clear();
+		}
+	}
+
+	public int size() {
+		synchronized (cache) {
+			return cache.size();
+		}
+	}
+
+	public long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return missCount.sum();
+	}
+
+	private static class Entry {
+		private final boolean result;
+		private final long expireAt;
+
+		private Entry(boolean result, long expireAt) {
+			this.result = result;
+			this.expireAt = expireAt;
+		}
+	}
+
+}
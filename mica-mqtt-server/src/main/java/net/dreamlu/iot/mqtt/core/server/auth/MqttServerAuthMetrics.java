@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.auth;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * mqtt 认证统计，只统计调用认证处理器的次数和耗时，命中缓存的不计入
+ *
+ * @author L.cm
+ */
+public class MqttServerAuthMetrics {
+	private final LongAdder successCount = new LongAdder();
+	private final LongAdder failureCount = new LongAdder();
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder totalNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0L);
+	private final AtomicInteger pending = new AtomicInteger();
+
+	/**
+	 * 开始异步认证
+	 *
+	 * @param maxPending 最大并发认证数，小于等于 0 不限制
+	 * @return 是否成功，超过最大并发数时返回 false
+	 */
+	public boolean tryBegin(int maxPending) {
+		if (maxPending <= 0) {
+			pending.incrementAndGet();
+			return true;
+		}
+		while (true) {
+			int current = pending.get();
+			if (current >= maxPending) {
+				rejectedCount.increment();
+				return false;
+			}
+			if (pending.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 结束异步认证
+	 */
+	public void end() {
+		pending.decrementAndGet();
+	}
+
+	/**
+	 * 记录一次认证
+	 *
+	 * @param success    是否成功
+	 * @param startNanos 开始时间 {@link System#nanoTime()}
+	 */
+	public void record(boolean success, long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		if (success) {
+			successCount.increment();
+		} else {
+			failureCount.increment();
+		}
+		totalNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	public long getSuccessCount() {
+		return successCount.sum();
+	}
+
+	public long getFailureCount() {
+		return failureCount.sum();
+	}
+
+	/**
+	 * 超过最大并发数被拒绝的连接数
+	 *
+	 * @return 连接数
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 * 正在进行的异步认证数
+	 *
+	 * @return 认证数
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	/**
+	 * 平均认证耗时
+	 *
+	 * @return 耗时，单位毫秒
+	 */
+	public double getAvgLatencyMillis() {
+		long count = successCount.sum() + failureCount.sum();
+		return count == 0 ? 0D : totalNanos.sum() / 1e6 / count;
+	}
+
+	/**
+	 * 最大认证耗时
+	 *
+	 * @return 耗时，单位毫秒
+	 */
+	public double getMaxLatencyMillis() {
+		return maxNanos.get() / 1e6;
+	}
+
+}
@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.serializer.IMessageSerializer;
+import net.dreamlu.iot.mqtt.core.util.ThreadUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tio.client.ReconnConf;
+import org.tio.client.TioClient;
+import org.tio.client.TioClientConfig;
+import org.tio.core.ChannelContext;
+import org.tio.core.Node;
+import org.tio.core.Tio;
+import org.tio.server.TioServer;
+import org.tio.server.TioServerConfig;
+import org.tio.utils.Threads;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * mqtt 内置集群传输，节点间使用 t-io tcp 长连接直连：
+ *
+ * <p>
+ * 1. 每个节点监听集群端口，并主动连接种子节点或组播发现的节点，连接成功后握手交换节点名、集群端口和已连接的节点，连到自身或重复的连接会被关闭。
+ * 收到被动连接的握手时反向连接对端，并连接握手中携带的其他节点，连上新节点后重新向其他节点握手，种子节点只配置部分节点时也能组成全连接。
+ * 2. 消息二进制序列化后进入发送队列，发送线程把队列中已有的消息打包成一帧，编码一次后发送到所有节点，队列为空时不等待。
+ * 指定了节点的消息单独打包，只发送到该节点。
+ * 3. 节点只通过主动连接发送，通过被动连接接收。
+ * 4. session 同步等控制数据帧不经过发送队列，直接发送到指定节点。
+ * </p>
+ *
+ * @author L.cm
+ */
+public class MqttCluster {
+	private static final Logger logger = LoggerFactory.getLogger(MqttCluster.class);
+	private static final String PEER_NODE_KEY = "MQTT_CLUSTER_PEER_NODE";
+	private final String nodeName;
+	private final MqttClusterConfig config;
+	private final IMessageSerializer messageSerializer;
+	private final Consumer<Message> messageConsumer;
+	private final LinkedBlockingQueue<Outgoing> sendQueue;
+	/**
+	 * 已握手的节点 nodeName: 主动连接
+	 */
+	private final ConcurrentMap<String, ChannelContext> peers = new ConcurrentHashMap<>();
+	/**
+	 * 已握手的节点 nodeName: 被动连接
+	 */
+	private final ConcurrentMap<String, ChannelContext> inboundPeers = new ConcurrentHashMap<>();
+	/**
+	 * 已发起连接的地址
+	 */
+	private final Set<Node> connectNodes = ConcurrentHashMap.newKeySet();
+	private final LongAdder sentCount = new LongAdder();
+	private final LongAdder batchCount = new LongAdder();
+	private final LongAdder receivedCount = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+	private TioServer tioServer;
+	private TioClient tioClient;
+	private MqttClusterMulticastDiscovery discovery;
+	private Thread sendThread;
+	private volatile Consumer<MqttClusterPacket> sessionPacketHandler;
+	private volatile Runnable peerChangeListener;
+	private volatile Consumer<String> peerLeaveListener;
+	private volatile boolean stopped;
+
+	public MqttCluster(String nodeName, MqttClusterConfig config, Consumer<Message> messageConsumer) {
+		this.nodeName = Objects.requireNonNull(nodeName, "Mqtt cluster nodeName is null.");
+		this.config = Objects.requireNonNull(config, "MqttClusterConfig is null.");
+		this.messageSerializer = config.getMessageSerializer();
+		this.messageConsumer = messageConsumer;
+		this.sendQueue = new LinkedBlockingQueue<>(config.getSendQueueSize());
+	}
+
+	/**
+	 * 启动集群
+	 *
+	 * @throws IOException IOException
+	 */
+	public void start() throws IOException {
+		MqttClusterAioHandler handler = new MqttClusterAioHandler(this);
+		MqttClusterAioListener listener = new MqttClusterAioListener(this);
+		int tioPoolSize = Threads.AVAILABLE_PROCESSORS;
+		// 1. 集群服务端，接收其他节点的消息
+		TioServerConfig serverConfig = new TioServerConfig("Mqtt-Cluster-Server", handler, listener,
+			ThreadUtil.getTioExecutor(tioPoolSize), ThreadUtil.getGroupExecutor(2));
+		serverConfig.setHeartbeatTimeout(config.getHeartbeatTimeout());
+		this.tioServer = new TioServer(serverConfig);
+		this.tioServer.start(config.getIp(), config.getPort());
+		// 2. 集群客户端，发送消息到其他节点
+		ReconnConf reconnConf = new ReconnConf(config.getReconnectInterval());
+		TioClientConfig clientConfig = new TioClientConfig(handler, listener, reconnConf,
+			ThreadUtil.getTioExecutor(tioPoolSize), ThreadUtil.getGroupExecutor(2));
+		clientConfig.setName("Mqtt-Cluster-Client");
+		clientConfig.setHeartbeatTimeout(config.getHeartbeatTimeout());
+		this.tioClient = new TioClient(clientConfig);
+		// 3. 发送线程
+		this.sendThread = new Thread(this::sendLoop, "mqtt-cluster-send");
+		this.sendThread.setDaemon(true);
+		this.sendThread.start();
+		// 4. 连接种子节点
+		for (Node seedNode : config.getSeedNodes()) {
+			connect(seedNode);
+		}
+		// 5. 组播发现
+		if (config.getMulticastGroup() != null) {
+			this.discovery = new MqttClusterMulticastDiscovery(this);
+			this.discovery.start();
+		}
+		logger.info("Mqtt cluster node:{} started on port:{}", nodeName, config.getPort());
+	}
+
+	/**
+	 * 连接节点，同一个地址只会连接一次，断开后自动重连
+	 *
+	 * @param node 节点地址
+	 */
+	public void connect(Node node) {
+		if (stopped || !connectNodes.add(node)) {
+			return;
+		}
+		try {
+			tioClient.asyncConnect(node);
+		} catch (Exception e) {
+			connectNodes.remove(node);
+			logger.error("Mqtt cluster connect to node:{} error.", node, e);
+		}
+	}
+
+	/**
+	 * 发送消息到集群其他节点
+	 *
+	 * @param message Message
+	 * @return 是否成功，发送队列满时返回 false
+	 */
+	public boolean send(Message message) {
+		if (peers.isEmpty()) {
+			return true;
+		}
+		return offer(null, message);
+	}
+
+	/**
+	 * 发送消息到集群指定节点
+	 *
+	 * @param peerNodeName 节点名
+	 * @param message      Message
+	 * @return 是否成功，节点未连接或发送队列满时返回 false
+	 */
+	public boolean send(String peerNodeName, Message message) {
+		if (!peers.containsKey(peerNodeName)) {
+			return false;
+		}
+		return offer(peerNodeName, message);
+	}
+
+	/**
+	 * 直接发送数据帧到集群指定节点，不经过发送队列，用于 session 同步等控制消息
+	 *
+	 * @param peerNodeName 节点名
+	 * @param packet       MqttClusterPacket
+	 * @return 是否成功，节点未连接时返回 false
+	 */
+	public boolean sendPacket(String peerNodeName, MqttClusterPacket packet) {
+		ChannelContext context = peers.get(peerNodeName);
+		if (context == null) {
+			return false;
+		}
+		return Tio.send(context, packet);
+	}
+
+	/**
+	 * 设置 session 同步数据帧处理
+	 *
+	 * @param sessionPacketHandler session 数据帧处理
+	 */
+	public void sessionPacketHandler(Consumer<MqttClusterPacket> sessionPacketHandler) {
+		this.sessionPacketHandler = sessionPacketHandler;
+	}
+
+	/**
+	 * 设置节点连接或断开的监听，在 t-io 线程中调用，不能阻塞
+	 *
+	 * @param peerChangeListener 监听
+	 */
+	public void peerChangeListener(Runnable peerChangeListener) {
+		this.peerChangeListener = peerChangeListener;
+	}
+
+	/**
+	 * 设置节点断开的监听，参数为节点名，在 t-io 线程中调用，不能阻塞
+	 *
+	 * @param peerLeaveListener 监听
+	 */
+	public void peerLeaveListener(Consumer<String> peerLeaveListener) {
+		this.peerLeaveListener = peerLeaveListener;
+	}
+
+	private boolean offer(String peerNodeName, Message message) {
+		byte[] data = messageSerializer.serialize(message);
+		if (sendQueue.offer(new Outgoing(peerNodeName, data))) {
+			return true;
+		}
+		droppedCount.increment();
+		logger.warn("Mqtt cluster send queue is full, message topic:{} dropped.", message.getTopic());
+		return false;
+	}
+
+	private void sendLoop() {
+		int maxBatchSize = config.getMaxBatchSize();
+		int maxBatchBytes = config.getMaxBatchBytes();
+		List<byte[]> batch = new ArrayList<>(maxBatchSize);
+		Map<String, List<byte[]>> targetBatches = new HashMap<>();
+		while (!stopped) {
+			try {
+				// 阻塞等待第一条消息，之后只取队列中已有的消息，不额外等待
+				Outgoing outgoing = sendQueue.take();
+				int batchSize = 0;
+				int batchBytes = 0;
+				do {
+					if (outgoing.peerNodeName == null) {
+						batch.add(outgoing.data);
+					} else {
+						targetBatches.computeIfAbsent(outgoing.peerNodeName, key -> new ArrayList<>()).add(outgoing.data);
+					}
+					batchSize++;
+					batchBytes += outgoing.data.length;
+				} while (batchSize < maxBatchSize && batchBytes < maxBatchBytes && (outgoing = sendQueue.poll()) != null);
+				// 广播消息编码一次发送到所有节点
+				if (!batch.isEmpty()) {
+					MqttClusterPacket packet = MqttClusterPacket.messages(batch);
+					for (ChannelContext context : peers.values()) {
+						Tio.send(context, packet);
+					}
+				}
+				// 指定节点的消息
+				targetBatches.forEach((peerNodeName, dataList) -> {
+					ChannelContext context = peers.get(peerNodeName);
+					if (context != null) {
+						Tio.send(context, MqttClusterPacket.messages(dataList));
+					}
+				});
+				sentCount.add(batchSize);
+				batchCount.increment();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			} catch (Throwable e) {
+				logger.error("Mqtt cluster send error.", e);
+			} finally {
+				batch.clear();
+				targetBatches.clear();
+			}
+		}
+	}
+
+	/**
+	 * 发送握手
+	 *
+	 * @param context ChannelContext
+	 */
+	void sendHello(ChannelContext context) {
+		List<String> peerAddresses = new ArrayList<>();
+		peers.forEach((peerNodeName, peerContext) -> {
+			Node serverNode = peerContext.getServerNode();
+			peerAddresses.add(peerNodeName + '@' + serverNode.getIp() + ':' + serverNode.getPort());
+		});
+		Tio.send(context, MqttClusterPacket.hello(nodeName, config.getPort(), peerAddresses));
+	}
+
+	/**
+	 * 处理握手
+	 *
+	 * @param context ChannelContext
+	 * @param packet  握手数据帧
+	 */
+	void onHello(ChannelContext context, MqttClusterPacket packet) {
+		String peerNodeName = packet.getNodeName();
+		// 1. 被动连接，回复本节点名，由发起方判断是否为自身或重复连接
+		if (context.isServer()) {
+			context.set(PEER_NODE_KEY, peerNodeName);
+			sendHello(context);
+			// 双向连接都建立后才是集群成员
+			if (!nodeName.equals(peerNodeName) && inboundPeers.put(peerNodeName, context) != context
+				&& peers.containsKey(peerNodeName)) {
+				notifyPeerChange();
+			}
+			// 对端不在种子节点中时反向连接，节点只通过主动连接发送
+			int peerPort = packet.getPort();
+			if (peerPort > 0 && !nodeName.equals(peerNodeName) && !peers.containsKey(peerNodeName)) {
+				connect(new Node(context.getClientNode().getIp(), peerPort));
+			}
+			connectPeers(packet.getPeerAddresses());
+			return;
+		}
+		// 2. 主动连接
+		if (nodeName.equals(peerNodeName)) {
+			Tio.remove(context, "Mqtt cluster connected to self, node:" + nodeName);
+			return;
+		}
+		// 已握手的连接再次收到握手，只更新对端已连接的节点
+		if (peers.get(peerNodeName) == context) {
+			connectPeers(packet.getPeerAddresses());
+			return;
+		}
+		boolean[] duplicate = {false};
+		peers.compute(peerNodeName, (key, old) -> {
+			if (old != null && old != context && !old.isClosed) {
+				duplicate[0] = true;
+				return old;
+			}
+			return context;
+		});
+		if (duplicate[0]) {
+			Tio.remove(context, "Mqtt cluster duplicate connection to node:" + peerNodeName);
+			return;
+		}
+		context.set(PEER_NODE_KEY, peerNodeName);
+		logger.info("Mqtt cluster node:{} connected to node:{} {}", nodeName, peerNodeName, context.getServerNode());
+		notifyPeerChange();
+		connectPeers(packet.getPeerAddresses());
+		// 同时连上多个节点时，之前的握手中还没有新节点，重新握手把新节点告知其他节点
+		for (ChannelContext peerContext : peers.values()) {
+			if (peerContext != context) {
+				sendHello(peerContext);
+			}
+		}
+	}
+
+	/**
+	 * 连接握手中携带的其他节点
+	 *
+	 * @param peerAddresses 节点地址，格式：节点名@ip:port
+	 */
+	private void connectPeers(List<String> peerAddresses) {
+		for (String peerAddress : peerAddresses) {
+			int nameIndex = peerAddress.lastIndexOf('@');
+			int portIndex = peerAddress.lastIndexOf(':');
+			if (nameIndex < 1 || portIndex < nameIndex) {
+				logger.warn("Mqtt cluster peer address is invalid:{}", peerAddress);
+				continue;
+			}
+			String peerNodeName = peerAddress.substring(0, nameIndex);
+			if (nodeName.equals(peerNodeName) || peers.containsKey(peerNodeName)) {
+				continue;
+			}
+			String ip = peerAddress.substring(nameIndex + 1, portIndex);
+			int port = Integer.parseInt(peerAddress.substring(portIndex + 1));
+			connect(new Node(ip, port));
+		}
+	}
+
+	/**
+	 * 处理批量消息
+	 *
+	 * @param packet MqttClusterPacket
+	 */
+	void onMessages(MqttClusterPacket packet) {
+		packet.forEachMessage(data -> {
+			Message message = messageSerializer.deserialize(data);
+			if (message == null) {
+				return;
+			}
+			receivedCount.increment();
+			try {
+				messageConsumer.accept(message);
+			} catch (Throwable e) {
+				logger.error("Mqtt cluster message handle error, topic:{}", message.getTopic(), e);
+			}
+		});
+	}
+
+	/**
+	 * 处理 session 同步数据帧
+	 *
+	 * @param packet MqttClusterPacket
+	 */
+	void onSession(MqttClusterPacket packet) {
+		Consumer<MqttClusterPacket> handler = sessionPacketHandler;
+		if (handler == null) {
+			return;
+		}
+		try {
+			handler.accept(packet);
+		} catch (Throwable e) {
+			logger.error("Mqtt cluster session packet handle error.", e);
+		}
+	}
+
+	private void notifyPeerChange() {
+		Runnable listener = peerChangeListener;
+		if (listener != null) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * 连接关闭
+	 *
+	 * @param context ChannelContext
+	 */
+	void onClose(ChannelContext context) {
+		String peerNodeName = context.get(PEER_NODE_KEY);
+		if (peerNodeName == null) {
+			return;
+		}
+		if (context.isServer()) {
+			if (inboundPeers.remove(peerNodeName, context)) {
+				notifyPeerChange();
+			}
+			return;
+		}
+		if (peers.remove(peerNodeName, context)) {
+			logger.warn("Mqtt cluster node:{} disconnected from node:{}", nodeName, peerNodeName);
+			Consumer<String> leaveListener = peerLeaveListener;
+			if (leaveListener != null) {
+				leaveListener.accept(peerNodeName);
+			}
+			notifyPeerChange();
+		}
+	}
+
+	/**
+	 * 停止集群
+	 */
+	public void stop() {
+		this.stopped = true;
+		if (discovery != null) {
+			discovery.stop();
+		}
+		if (sendThread != null) {
+			sendThread.interrupt();
+		}
+		if (tioClient != null) {
+			for (ChannelContext context : tioClient.getTioClientConfig().connecteds) {
+				Tio.remove(context, "Mqtt cluster stop.");
+			}
+			tioClient.stop();
+		}
+		if (tioServer != null) {
+			tioServer.stop();
+		}
+		peers.clear();
+		inboundPeers.clear();
+	}
+
+	public String getNodeName() {
+		return nodeName;
+	}
+
+	public MqttClusterConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * 是否已经和该节点建立连接
+	 *
+	 * @param peerNodeName 节点名
+	 * @return 是否连接
+	 */
+	public boolean isConnected(String peerNodeName) {
+		return peers.containsKey(peerNodeName);
+	}
+
+	/**
+	 * 获取已连接的节点
+	 *
+	 * @return 节点名集合
+	 */
+	public Set<String> getPeers() {
+		return Collections.unmodifiableSet(peers.keySet());
+	}
+
+	/**
+	 * 获取集群成员，主动连接和被动连接都已握手的节点。
+	 * 只有单向连接时两个节点看到的成员不同，不作为成员，保证各节点的 session 分区一致
+	 *
+	 * @return 节点名集合
+	 */
+	public Set<String> getMembers() {
+		Set<String> members = new HashSet<>(peers.keySet());
+		members.retainAll(inboundPeers.keySet());
+		return members;
+	}
+
+	/**
+	 * 已发送的消息数，一条消息发送到多个节点时只计一次
+	 *
+	 * @return 消息数
+	 */
+	public long getSentCount() {
+		return sentCount.sum();
+	}
+
+	/**
+	 * 已发送的批次数
+	 *
+	 * @return 批次数
+	 */
+	public long getBatchCount() {
+		return batchCount.sum();
+	}
+
+	/**
+	 * 已接收的消息数
+	 *
+	 * @return 消息数
+	 */
+	public long getReceivedCount() {
+		return receivedCount.sum();
+	}
+
+	/**
+	 * 队列满丢弃的消息数
+	 *
+	 * @return 消息数
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * 待发送的消息，peerNodeName 为 null 时发送到所有节点
+	 */
+	private static class Outgoing {
+		private final String peerNodeName;
+		private final byte[] data;
+
+		private Outgoing(String peerNodeName, byte[] data) {
+			this.peerNodeName = peerNodeName;
+			this.data = data;
+		}
+	}
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import org.tio.client.intf.TioClientHandler;
+import org.tio.core.ChannelContext;
+import org.tio.core.TioConfig;
+import org.tio.core.exception.TioDecodeException;
+import org.tio.core.intf.Packet;
+import org.tio.server.intf.TioServerHandler;
+
+import java.nio.ByteBuffer;
+
+/**
+ * mqtt 集群节点间数据帧编解码和处理，服务端和客户端共用
+ *
+ * @author L.cm
+ */
+public class MqttClusterAioHandler implements TioServerHandler, TioClientHandler {
+	private final MqttCluster cluster;
+
+	public MqttClusterAioHandler(MqttCluster cluster) {
+		this.cluster = cluster;
+	}
+
+	@Override
+	public Packet decode(ByteBuffer buffer, int limit, int position, int readableLength, ChannelContext context) throws TioDecodeException {
+		if (readableLength < MqttClusterPacket.HEADER_LENGTH) {
+			return null;
+		}
+		int bodyLength = buffer.getInt(position);
+		if (bodyLength < 0) {
+			throw new TioDecodeException("Mqtt cluster packet length illegal:" + bodyLength);
+		}
+		if (readableLength < MqttClusterPacket.HEADER_LENGTH + bodyLength) {
+			return null;
+		}
+		buffer.position(position + 4);
+		byte type = buffer.get();
+		byte[] body = new byte[bodyLength];
+		buffer.get(body);
+		return new MqttClusterPacket(type, body);
+	}
+
+	@Override
+	public ByteBuffer encode(Packet packet, TioConfig tioConfig, ChannelContext context) {
+		return ByteBuffer.wrap(((MqttClusterPacket) packet).toFrame());
+	}
+
+	@Override
+	public void handler(Packet packet, ChannelContext context) {
+		MqttClusterPacket clusterPacket = (MqttClusterPacket) packet;
+		byte type = clusterPacket.getType();
+		if (MqttClusterPacket.TYPE_MESSAGES == type) {
+			cluster.onMessages(clusterPacket);
+		} else if (MqttClusterPacket.TYPE_HELLO == type) {
+			cluster.onHello(context, clusterPacket);
+		} else if (MqttClusterPacket.TYPE_SESSION == type) {
+			cluster.onSession(clusterPacket);
+		}
+	}
+
+	@Override
+	public Packet heartbeatPacket(ChannelContext context) {
+		return MqttClusterPacket.ping();
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import org.tio.client.intf.TioClientListener;
+import org.tio.core.ChannelContext;
+import org.tio.server.intf.TioServerListener;
+
+/**
+ * mqtt 集群连接监听，服务端和客户端共用
+ *
+ * @author L.cm
+ */
+public class MqttClusterAioListener implements TioServerListener, TioClientListener {
+	private final MqttCluster cluster;
+
+	public MqttClusterAioListener(MqttCluster cluster) {
+		this.cluster = cluster;
+	}
+
+	@Override
+	public void onAfterConnected(ChannelContext context, boolean isConnected, boolean isReconnect) {
+		// 主动连接成功后握手，交换节点名
+		if (isConnected && !context.isServer()) {
+			cluster.sendHello(context);
+		}
+	}
+
+	@Override
+	public void onBeforeClose(ChannelContext context, Throwable throwable, String remark, boolean isRemove) {
+		cluster.onClose(context);
+	}
+
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 集群客户端注册表，记录 clientId 所在的节点
+ *
+ * <p>
+ * 每个节点在内存中保存一份，由集群广播的 CONNECT 消息更新，OFFLINE 消息删除，节点离开集群时删除该节点的所有客户端。
+ * 版本由混合逻辑时钟生成：取当前时间和已见过的最大版本 + 1 中较大的值，本节点单调递增，且晚于本节点已经收到的其他节点的连接，
+ * 不受时钟回拨和节点间时钟偏差影响。版本相同时按节点名比较，保证各节点乱序收到更新后结果一致。指定 clientId 的消息据此只发送到所在节点。
+ * </p>
+ *
+ * @author L.cm
+ */
+public class MqttClusterClientRegistry {
+	private final ConcurrentMap<String, Entry> clients = new ConcurrentHashMap<>();
+	/**
+	 * 已生成或收到的最大版本
+	 */
+	private final AtomicLong clock = new AtomicLong();
+
+	/**
+	 * 生成本节点连接的版本
+	 *
+	 * @return 版本
+	 */
+	public long nextVersion() {
+		return clock.accumulateAndGet(System.currentTimeMillis(), (last, now) -> Math.max(last + 1, now));
+	}
+
+	/**
+	 * 更新客户端所在节点
+	 *
+	 * @param clientId clientId
+	 * @param node     节点名
+	 * @param version  版本，由 {@link #nextVersion()} 生成
+	 * @return 是否更新，版本比现有记录旧时不更新
+	 */
+	public boolean update(String clientId, String node, long version) {
+		clock.accumulateAndGet(version, Math::max);
+		Entry entry = new Entry(node, version);
+		boolean[] updated = {false};
+		clients.compute(clientId, (key, old) -> {
+			if (old == null || entry.isNewerThan(old)) {
+				updated[0] = true;
+				return entry;
+			}
+			return old;
+		});
+		return updated[0];
+	}
+
+	/**
+	 * 获取客户端所在节点
+	 *
+	 * @param clientId clientId
+	 * @return 节点名，未知时为 null
+	 */
+	public String getNode(String clientId) {
+		Entry entry = clients.get(clientId);
+		return entry == null ? null : entry.node;
+	}
+
+	/**
+	 * 删除客户端，只在记录的节点一致且没有更新的连接时删除
+	 *
+	 * @param clientId clientId
+	 * @param node     节点名
+	 * @param version  下线连接的版本
+	 * @return 是否删除
+	 */
+	public boolean remove(String clientId, String node, long version) {
+		Entry entry = clients.get(clientId);
+		return entry != null && entry.node.equals(node) && entry.version <= version && clients.remove(clientId, entry);
+	}
+
+	/**
+	 * 删除节点上的所有客户端，节点离开集群时使用
+	 *
+	 * @param node 节点名
+	 */
+	public void removeNode(String node) {
+		clients.values().removeIf(entry -> entry.node.equals(node));
+	}
+
+	/**
+	 * 客户端数
+	 *
+	 * @return 客户端数
+	 */
+	public int size() {
+		return clients.size();
+	}
+
+	private static class Entry {
+		private final String node;
+		private final long version;
+
+		private Entry(String node, long version) {
+			this.node = node;
+			this.version = version;
+		}
+
+		private boolean isNewerThan(Entry other) {
+			if (version != other.version) {
+				return version > other.version;
+			}
+			return node.compareTo(other.node) > 0;
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.core.server.serializer.BinaryMessageSerializer;
+import net.dreamlu.iot.mqtt.core.server.serializer.IMessageSerializer;
+import org.tio.core.Node;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * mqtt 内置集群配置，节点间使用 t-io tcp 长连接直连，不依赖外部服务
+ *
+ * @author L.cm
+ */
+public class MqttClusterConfig {
+	/**
+	 * 集群监听 ip，默认为空，监听所有网卡
+	 */
+	private String ip;
+	/**
+	 * 集群监听端口
+	 */
+	private int port;
+	/**
+	 * 种子节点，格式 ip:port，可以包含本节点
+	 */
+	private final List<Node> seedNodes = new ArrayList<>();
+	/**
+	 * 组播地址，为空时不开启组播发现，例如：239.255.27.1
+	 */
+	private String multicastGroup;
+	/**
+	 * 组播端口
+	 */
+	private int multicastPort = 27183;
+	/**
+	 * 组播广播间隔，单位毫秒
+	 */
+	private long multicastInterval = 5000L;
+	/**
+	 * 每批最多消息条数
+	 */
+	private int maxBatchSize = 512;
+	/**
+	 * 每批最大字节数
+	 */
+	private int maxBatchBytes = 1024 * 1024;
+	/**
+	 * 发送队列大小，队列满时丢弃消息
+	 */
+	private int sendQueueSize = 100_000;
+	/**
+	 * 心跳超时，单位毫秒
+	 */
+	private long heartbeatTimeout = 30_000L;
+	/**
+	 * 断线重连间隔，单位毫秒
+	 */
+	private long reconnectInterval = 3_000L;
+	/**
+	 * 消息序列化，默认紧凑二进制，集群内所有节点需一致
+	 */
+	private IMessageSerializer messageSerializer = BinaryMessageSerializer.INSTANCE;
+	/**
+	 * 消息去重时间窗口，单位毫秒，默认 0 不去重
+	 */
+	private long dedupWindow = 0L;
+	/**
+	 * 消息去重最多记录的消息数
+	 */
+	private int dedupMaxSize = 100_000;
+
+	public static MqttClusterConfig create() {
+		return new MqttClusterConfig();
+	}
+
+	public String getIp() {
+		return ip;
+	}
+
+	public MqttClusterConfig ip(String ip) {
+		this.ip = ip;
+		return this;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public MqttClusterConfig port(int port) {
+		this.port = port;
+		return this;
+	}
+
+	public List<Node> getSeedNodes() {
+		return seedNodes;
+	}
+
+	public MqttClusterConfig seedNodes(List<Node> seedNodes) {
+		this.seedNodes.addAll(seedNodes);
+		return this;
+	}
+
+	/**
+	 * 添加种子节点
+	 *
+	 * @param seedNodes 种子节点，格式 ip:port
+	 * @return MqttClusterConfig
+	 */
+	public MqttClusterConfig seedNodes(String... seedNodes) {
+		for (String seedNode : seedNodes) {
+			int index = seedNode.lastIndexOf(':');
+			if (index < 1) {
+				throw new IllegalArgumentException("Mqtt cluster seed node must be ip:port, seedNode:" + seedNode);
+			}
+			String host = seedNode.substring(0, index).trim();
+			int port = Integer.parseInt(seedNode.substring(index + 1).trim());
+			this.seedNodes.add(new Node(host, port));
+		}
+		return this;
+	}
+
+	public String getMulticastGroup() {
+		return multicastGroup;
+	}
+
+	public MqttClusterConfig multicastGroup(String multicastGroup) {
+		this.multicastGroup = multicastGroup;
+		return this;
+	}
+
+	public int getMulticastPort() {
+		return multicastPort;
+	}
+
+	public MqttClusterConfig multicastPort(int multicastPort) {
+		this.multicastPort = multicastPort;
+		return this;
+	}
+
+	public long getMulticastInterval() {
+		return multicastInterval;
+	}
+
+	public MqttClusterConfig multicastInterval(long multicastInterval) {
+		this.multicastInterval = multicastInterval;
+		return this;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	public MqttClusterConfig maxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+		return this;
+	}
+
+	public int getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	public MqttClusterConfig maxBatchBytes(int maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+		return this;
+	}
+
+	public int getSendQueueSize() {
+		return sendQueueSize;
+	}
+
+	public MqttClusterConfig sendQueueSize(int sendQueueSize) {
+		this.sendQueueSize = sendQueueSize;
+		return this;
+	}
+
+	public long getHeartbeatTimeout() {
+		return heartbeatTimeout;
+	}
+
+	public MqttClusterConfig heartbeatTimeout(long heartbeatTimeout) {
+		this.heartbeatTimeout = heartbeatTimeout;
+		return this;
+	}
+
+	public long getReconnectInterval() {
+		return reconnectInterval;
+	}
+
+	public MqttClusterConfig reconnectInterval(long reconnectInterval) {
+		this.reconnectInterval = reconnectInterval;
+		return this;
+	}
+
+	public IMessageSerializer getMessageSerializer() {
+		return messageSerializer;
+	}
+
+	public MqttClusterConfig messageSerializer(IMessageSerializer messageSerializer) {
+		this.messageSerializer = messageSerializer;
+		return this;
+	}
+
+	public long getDedupWindow() {
+		return dedupWindow;
+	}
+
+	public MqttClusterConfig dedupWindow(long dedupWindow) {
+		this.dedupWindow = dedupWindow;
+		return this;
+	}
+
+	public int getDedupMaxSize() {
+		return dedupMaxSize;
+	}
+
+	public MqttClusterConfig dedupMaxSize(int dedupMaxSize) {
+		this.dedupMaxSize = dedupMaxSize;
+		return this;
+	}
+
+}
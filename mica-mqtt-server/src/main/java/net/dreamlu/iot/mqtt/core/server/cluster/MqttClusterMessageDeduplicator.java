@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * 集群消息去重，用于至少一次投递的集群传输（如重试、多通道）
+ *
+ * <p>
+ * 消息没有全局唯一 id，使用 来源节点、类型、客户端、topic、packetId、时间戳和 payload 摘要组合成消息 key，
+ * 在 window 时间内收到相同 key 的消息视为重复。最多保存 maxSize 个 key，超出时淘汰最早的。
+ * </p>
+ *
+ * @author L.cm
+ */
+public class MqttClusterMessageDeduplicator {
+	private final long windowMillis;
+	private final int maxSize;
+	/**
+	 * 消息 key: 过期时间，按插入顺序
+	 */
+	private final LinkedHashMap<MessageKey, Long> seen;
+
+	public MqttClusterMessageDeduplicator(long windowMillis, int maxSize) {
+		if (windowMillis <= 0 || maxSize <= 0) {
+			throw new IllegalArgumentException("Mqtt cluster dedup windowMillis and maxSize must be positive.");
+		}
+		this.windowMillis = windowMillis;
+		this.maxSize = maxSize;
+		this.seen = new LinkedHashMap<MessageKey, Long>(Math.min(maxSize, 1 << 16)) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<MessageKey, Long> eldest) {
+				return size() > MqttClusterMessageDeduplicator.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * 判断消息是否重复，不重复时记录该消息
+	 *
+	 * @param message Message
+	 * @return 是否重复
+	 */
+	public boolean isDuplicate(Message message) {
+		MessageKey key = new MessageKey(message);
+		long now = System.currentTimeMillis();
+		synchronized (seen) {
+			// 清理过期的 key，插入顺序即过期顺序
+			Iterator<Long> iterator = seen.values().iterator();
+			while (iterator.hasNext() && iterator.next() <= now) {
+				iterator.remove();
+			}
+			if (seen.containsKey(key)) {
+				return true;
+			}
+			seen.put(key, now + windowMillis);
+			return false;
+		}
+	}
+
+	/**
+	 * 当前记录的消息数
+	 *
+	 * @return 消息数
+	 */
+	public int size() {
+		synchronized (seen) {
+			return seen.size();
+		}
+	}
+
+	private static class MessageKey {
+		private final String node;
+		private final int messageType;
+		private final String fromClientId;
+		private final String clientId;
+		private final String topic;
+		private final int id;
+		private final long timestamp;
+		private final int payloadHash;
+		private final int hash;
+
+		private MessageKey(Message message) {
+			this.node = message.getNode();
+			this.messageType = message.getMessageType() == null ? -1 : message.getMessageType().getValue();
+			this.fromClientId = message.getFromClientId();
+			this.clientId = message.getClientId();
+			this.topic = message.getTopic();
+			// 序列化时 packetId 为空和 0 相同
+			Integer messageId = message.getId();
+			this.id = messageId == null ? 0 : messageId;
+			this.timestamp = message.getTimestamp();
+			this.payloadHash = Arrays.hashCode(message.getPayload());
+			this.hash = Objects.hash(node, messageType, fromClientId, clientId, topic, id, timestamp, payloadHash);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof MessageKey)) {
+				return false;
+			}
+			MessageKey that = (MessageKey) o;
+			return hash == that.hash
+				&& messageType == that.messageType
+				&& id == that.id
+				&& timestamp == that.timestamp
+				&& payloadHash == that.payloadHash
+				&& Objects.equals(node, that.node)
+				&& Objects.equals(fromClientId, that.fromClientId)
+				&& Objects.equals(clientId, that.clientId)
+				&& Objects.equals(topic, that.topic);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+}
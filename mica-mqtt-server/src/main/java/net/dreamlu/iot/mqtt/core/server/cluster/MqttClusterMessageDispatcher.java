@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.dispatcher.AbstractMqttMessageDispatcher;
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+
+import java.io.IOException;
+
+/**
+ * 内置集群消息转发，先处理本节点，再通过 {@link MqttCluster} 发送到其他节点，不依赖 redis 等外部服务
+ *
+ * @author L.cm
+ */
+public class MqttClusterMessageDispatcher extends AbstractMqttMessageDispatcher {
+	private final MqttClusterConfig clusterConfig;
+	private final MqttClusterClientRegistry clientRegistry = new MqttClusterClientRegistry();
+	private String nodeName;
+	private MqttCluster cluster;
+
+	public MqttClusterMessageDispatcher(MqttClusterConfig clusterConfig) {
+		this.clusterConfig = clusterConfig;
+	}
+
+	@Override
+	public void config(MqttServer mqttServer) {
+		super.config(mqttServer);
+		MqttClusterMessageDeduplicator deduplicator = null;
+		if (clusterConfig.getDedupWindow() > 0) {
+			deduplicator = new MqttClusterMessageDeduplicator(clusterConfig.getDedupWindow(), clusterConfig.getDedupMaxSize());
+		}
+		MqttClusterMessageListener messageListener = new MqttClusterMessageListener(mqttServer, deduplicator, clientRegistry);
+		this.nodeName = mqttServer.getServerCreator().getNodeName();
+		this.cluster = new MqttCluster(nodeName, clusterConfig, messageListener::onMessage);
+		this.cluster.peerLeaveListener(clientRegistry::removeNode);
+		// 集群持久 session
+		if (sessionManager instanceof MqttClusterSessionManager) {
+			((MqttClusterSessionManager) sessionManager).bind(nodeName, cluster);
+		}
+	}
+
+	@Override
+	public void sendAll(Message message) {
+		MessageType messageType = message.getMessageType();
+		String clientId = message.getClientId();
+		if (MessageType.CONNECT == messageType) {
+			// 本节点的连接，广播给所有节点更新注册表
+			String previousNode = clientRegistry.getNode(clientId);
+			message.setTimestamp(clientRegistry.nextVersion());
+			clientRegistry.update(clientId, nodeName, message.getTimestamp());
+			// 从其他节点迁移过来的客户端，持久 session 需要该节点关闭旧连接后的最终快照
+			if (previousNode != null && !nodeName.equals(previousNode) && sessionManager instanceof MqttClusterSessionManager) {
+				((MqttClusterSessionManager) sessionManager).previousNode(clientId, previousNode);
+			}
+		} else if (MessageType.OFFLINE == messageType) {
+			clientRegistry.remove(clientId, nodeName, message.getTimestamp());
+		} else if (clientId != null && (MessageType.DOWN_STREAM == messageType || MessageType.DISCONNECT == messageType)) {
+			// 指定了 clientId 的消息只发送到客户端所在节点，本节点已处理过
+			String clientNode = clientRegistry.getNode(clientId);
+			if (nodeName.equals(clientNode)) {
+				return;
+			}
+			if (clientNode != null && cluster.send(clientNode, message)) {
+				return;
+			}
+		}
+		cluster.send(message);
+	}
+
+	@Override
+	public void start() {
+		try {
+			cluster.start();
+		} catch (IOException e) {
+			throw new IllegalStateException("Mica mqtt cluster start fail.", e);
+		}
+	}
+
+	@Override
+	public void stop() {
+		cluster.stop();
+		if (sessionManager instanceof MqttClusterSessionManager) {
+			((MqttClusterSessionManager) sessionManager).stop();
+		}
+	}
+
+	public MqttCluster getCluster() {
+		return cluster;
+	}
+
+	public MqttClusterClientRegistry getClientRegistry() {
+		return clientRegistry;
+	}
+
+}
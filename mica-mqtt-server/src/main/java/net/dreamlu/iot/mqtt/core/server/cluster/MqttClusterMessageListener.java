@@ -32,11 +32,42 @@ public class MqttClusterMessageListener {
 	private final String nodeName;
 	private final IMqttSessionManager sessionManager;
 	private final MqttServer mqttServer;
+	private final MqttClusterMessageDeduplicator deduplicator;
+	private final MqttClusterClientRegistry clientRegistry;
 
 	public MqttClusterMessageListener(MqttServer mqttServer) {
+		this(mqttServer, null);
+	}
+
+	public MqttClusterMessageListener(MqttServer mqttServer, MqttClusterMessageDeduplicator deduplicator) {
+		this(mqttServer, deduplicator, null);
+	}
+
+	/**
+	 * 构造器
+	 *
+	 * @param mqttServer     MqttServer
+	 * @param deduplicator   消息去重，为 null 时不去重
+	 * @param clientRegistry 集群客户端注册表，为 null 时不记录
+	 */
+	public MqttClusterMessageListener(MqttServer mqttServer,
+									  MqttClusterMessageDeduplicator deduplicator,
+									  MqttClusterClientRegistry clientRegistry) {
 		this.nodeName = mqttServer.getServerCreator().getNodeName();
 		this.sessionManager = mqttServer.getServerCreator().getSessionManager();
 		this.mqttServer = mqttServer;
+		this.deduplicator = deduplicator;
+		this.clientRegistry = clientRegistry;
+	}
+
+	/**
+	 * 是否为本节点发出的消息，本节点的消息在转发前已经处理过了
+	 *
+	 * @param node 消息来源节点
+	 * @return 是否本节点
+	 */
+	public boolean isLocalNode(String node) {
+		return nodeName.equals(node);
 	}
 
 	/**
@@ -45,15 +76,30 @@ public class MqttClusterMessageListener {
 	 * @param message Message
 	 */
 	public void onMessage(Message message) {
+		// 本节点发出的消息已在本地处理，跳过避免重复投递
+		String node = message.getNode();
+		if (isLocalNode(node)) {
+			return;
+		}
+		if (deduplicator != null && deduplicator.isDuplicate(message)) {
+			return;
+		}
 		MessageType messageType = message.getMessageType();
 		String topic = message.getTopic();
 		if (MessageType.CONNECT == messageType) {
 			// 1. 如果一个 clientId 在集群多个服务上连接时断开其他的
-			String node = message.getNode();
-			if (nodeName.equals(node)) {
-				return;
-			}
 			String clientId = message.getClientId();
+			if (clientRegistry != null) {
+				String previousNode = clientRegistry.getNode(clientId);
+				// 旧的连接事件，忽略
+				if (!clientRegistry.update(clientId, node, message.getTimestamp())) {
+					return;
+				}
+				// 只有之前所在的节点需要断开连接
+				if (previousNode != null && !isLocalNode(previousNode)) {
+					return;
+				}
+			}
 			ChannelContext context = Tio.getByBsId(mqttServer.getServerConfig(), clientId);
 			if (context != null) {
 				Tio.remove(context, "clientId:[" + clientId + "] now bind on mqtt node:" + node);
@@ -84,6 +130,11 @@ public class MqttClusterMessageListener {
 			if (context != null) {
 				Tio.remove(context, "Mqtt server delete clients:" + clientId);
 			}
+		} else if (MessageType.OFFLINE == messageType) {
+			// 客户端在其他节点下线
+			if (clientRegistry != null) {
+				clientRegistry.remove(message.getClientId(), node, message.getTimestamp());
+			}
 		}
 	}
 
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tio.core.Node;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * mqtt 集群组播发现，定时组播本节点名和集群端口，收到其他节点的组播后主动连接
+ *
+ * @author L.cm
+ */
+class MqttClusterMulticastDiscovery {
+	private static final Logger logger = LoggerFactory.getLogger(MqttClusterMulticastDiscovery.class);
+	private static final String MAGIC = "mica-mqtt-cluster";
+	private final MqttCluster cluster;
+	private final String nodeName;
+	private final int clusterPort;
+	private final int multicastPort;
+	private final long interval;
+	private final InetAddress group;
+	private final MulticastSocket socket;
+	private volatile boolean stopped;
+
+	MqttClusterMulticastDiscovery(MqttCluster cluster) throws IOException {
+		MqttClusterConfig config = cluster.getConfig();
+		this.cluster = cluster;
+		this.nodeName = cluster.getNodeName();
+		this.clusterPort = config.getPort();
+		this.multicastPort = config.getMulticastPort();
+		this.interval = config.getMulticastInterval();
+		this.group = InetAddress.getByName(config.getMulticastGroup());
+		this.socket = new MulticastSocket(multicastPort);
+		this.socket.setSoTimeout((int) interval);
+		this.socket.joinGroup(group);
+	}
+
+	void start() {
+		Thread thread = new Thread(this::run, "mqtt-cluster-multicast");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run() {
+		byte[] announce = (MAGIC + '\n' + nodeName + '\n' + clusterPort).getBytes(StandardCharsets.UTF_8);
+		byte[] readBuf = new byte[1024];
+		long nextAnnounceTime = 0;
+		while (!stopped) {
+			try {
+				long now = System.currentTimeMillis();
+				if (now >= nextAnnounceTime) {
+					socket.send(new DatagramPacket(announce, announce.length, group, multicastPort));
+					nextAnnounceTime = now + interval;
+				}
+				DatagramPacket packet = new DatagramPacket(readBuf, readBuf.length);
+				socket.receive(packet);
+				onAnnounce(packet);
+			} catch (SocketTimeoutException e) {
+				// 超时继续下一轮组播
+			} catch (Throwable e) {
+				if (!stopped) {
+					logger.error("Mqtt cluster multicast error.", e);
+				}
+			}
+		}
+	}
+
+	private void onAnnounce(DatagramPacket packet) {
+		String text = new String(packet.getData(), packet.getOffset(), packet.getLength(), StandardCharsets.UTF_8);
+		String[] parts = text.split("\n");
+		if (parts.length != 3 || !MAGIC.equals(parts[0])) {
+			return;
+		}
+		String peerNodeName = parts[1];
+		if (nodeName.equals(peerNodeName) || cluster.isConnected(peerNodeName)) {
+			return;
+		}
+		int peerPort;
+		try {
+			peerPort = Integer.parseInt(parts[2]);
+		} catch (NumberFormatException e) {
+			return;
+		}
+		cluster.connect(new Node(packet.getAddress().getHostAddress(), peerPort));
+	}
+
+	void stop() {
+		this.stopped = true;
+		try {
+			socket.leaveGroup(group);
+		} catch (IOException e) {
+			logger.debug("Mqtt cluster multicast leave group error.", e);
+		}
+		socket.close();
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import org.tio.core.intf.Packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * mqtt 集群节点间的数据帧，格式：body 长度(4 byte) + 类型(1 byte) + body
+ *
+ * @author L.cm
+ */
+public class MqttClusterPacket extends Packet {
+	/**
+	 * 帧头长度
+	 */
+	public static final int HEADER_LENGTH = 5;
+	/**
+	 * 心跳
+	 */
+	public static final byte TYPE_PING = 0;
+	/**
+	 * 握手，body 为多行文本：节点名、集群端口、已连接节点的地址（节点名@ip:port，每行一个）
+	 */
+	public static final byte TYPE_HELLO = 1;
+	/**
+	 * 批量消息，body 为：个数(4 byte) + [长度(4 byte) + 消息]
+	 */
+	public static final byte TYPE_MESSAGES = 2;
+	/**
+	 * session 同步，body 由 {@link MqttClusterSessionManager} 编解码
+	 */
+	public static final byte TYPE_SESSION = 3;
+	private static final byte[] EMPTY_BYTES = new byte[0];
+	private static final char LINE_SEPARATOR = '\n';
+	private final byte type;
+	private final byte[] body;
+	/**
+	 * 编码后的帧，批量消息发送到多个节点时只编码一次
+	 */
+	private byte[] frame;
+
+	public MqttClusterPacket(byte type, byte[] body) {
+		this.type = type;
+		this.body = body == null ? EMPTY_BYTES : body;
+	}
+
+	public static MqttClusterPacket ping() {
+		return new MqttClusterPacket(TYPE_PING, EMPTY_BYTES);
+	}
+
+	public static MqttClusterPacket hello(String nodeName, int port, Collection<String> peerAddresses) {
+		StringBuilder builder = new StringBuilder(nodeName).append(LINE_SEPARATOR).append(port);
+		for (String peerAddress : peerAddresses) {
+			builder.append(LINE_SEPARATOR).append(peerAddress);
+		}
+		return new MqttClusterPacket(TYPE_HELLO, builder.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	public static MqttClusterPacket session(byte[] body) {
+		return new MqttClusterPacket(TYPE_SESSION, body);
+	}
+
+	public static MqttClusterPacket messages(List<byte[]> messageList) {
+		int length = 4;
+		for (byte[] message : messageList) {
+			length += 4 + message.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + length);
+		buffer.putInt(length);
+		buffer.put(TYPE_MESSAGES);
+		buffer.putInt(messageList.size());
+		for (byte[] message : messageList) {
+			buffer.putInt(message.length);
+			buffer.put(message);
+		}
+		MqttClusterPacket packet = new MqttClusterPacket(TYPE_MESSAGES, null);
+		packet.frame = buffer.array();
+		return packet;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public byte[] getBody() {
+		return body;
+	}
+
+	/**
+	 * 握手中的节点名
+	 *
+	 * @return 节点名
+	 */
+	public String getNodeName() {
+		return getHelloLines()[0];
+	}
+
+	/**
+	 * 握手中的集群端口
+	 *
+	 * @return 端口，未携带时为 -1
+	 */
+	public int getPort() {
+		String[] lines = getHelloLines();
+		return lines.length > 1 ? Integer.parseInt(lines[1]) : -1;
+	}
+
+	/**
+	 * 握手中对端已连接节点的地址，格式：节点名@ip:port
+	 *
+	 * @return 地址列表
+	 */
+	public List<String> getPeerAddresses() {
+		String[] lines = getHelloLines();
+		if (lines.length < 3) {
+			return Collections.emptyList();
+		}
+		List<String> peerAddresses = new ArrayList<>(lines.length - 2);
+		for (int i = 2; i < lines.length; i++) {
+			peerAddresses.add(lines[i]);
+		}
+		return peerAddresses;
+	}
+
+	private String[] getHelloLines() {
+		return new String(body, StandardCharsets.UTF_8).split(String.valueOf(LINE_SEPARATOR));
+	}
+
+	/**
+	 * 遍历批量消息
+	 *
+	 * @param consumer 消息消费
+	 */
+	public void forEachMessage(Consumer<byte[]> consumer) {
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		int size = buffer.getInt();
+		for (int i = 0; i < size; i++) {
+			byte[] message = new byte[buffer.getInt()];
+			buffer.get(message);
+			consumer.accept(message);
+		}
+	}
+
+	/**
+	 * 编码成帧
+	 *
+	 * @return byte 数组
+	 */
+	public byte[] toFrame() {
+		if (frame == null) {
+			ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + body.length);
+			buffer.putInt(body.length);
+			buffer.put(type);
+			buffer.put(body);
+			frame = buffer.array();
+		}
+		return frame;
+	}
+
+}
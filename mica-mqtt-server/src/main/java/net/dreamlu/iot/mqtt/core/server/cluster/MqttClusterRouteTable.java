@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * mqtt 集群订阅路由表，保存其他节点的订阅摘要（精确 topic + 通配符前缀树），
+ * 转发消息时只发送到可能存在订阅者的节点，避免全集群广播
+ *
+ * @author L.cm
+ */
+public class MqttClusterRouteTable {
+	/**
+	 * 未知版本
+	 */
+	public static final long UNKNOWN_VERSION = -1L;
+	private static final String TOPIC_LAYER = "/";
+	private static final String WILDCARD_ONE = "+";
+	private static final String WILDCARD_MORE = "#";
+	/**
+	 * 节点路由摘要 node: 摘要
+	 */
+	private final ConcurrentMap<String, NodeRoute> nodeRoutes = new ConcurrentHashMap<>();
+	/**
+	 * 精确 topic 路由 topic: 节点集合
+	 */
+	private final ConcurrentMap<String, Set<String>> exactRoutes = new ConcurrentHashMap<>();
+	/**
+	 * 通配符 topicFilter 前缀树
+	 */
+	private final TrieNode wildcardRoot = new TrieNode();
+
+	/**
+	 * 更新节点的订阅摘要，版本号一致时跳过
+	 *
+	 * @param node         节点名
+	 * @param version      摘要版本号
+	 * @param topicFilters topicFilter 集合
+	 * @return 是否有更新
+	 */
+	public synchronized boolean update(String node, long version, Collection<String> topicFilters) {
+		NodeRoute oldRoute = nodeRoutes.get(node);
+		if (oldRoute != null && oldRoute.version == version) {
+			return false;
+		}
+		Set<String> oldTopicFilters = oldRoute == null ? Collections.emptySet() : oldRoute.topicFilters;
+		Set<String> newTopicFilters = new HashSet<>(topicFilters);
+		for (String topicFilter : oldTopicFilters) {
+			if (!newTopicFilters.contains(topicFilter)) {
+				removeRoute(node, topicFilter);
+			}
+		}
+		for (String topicFilter : newTopicFilters) {
+			if (!oldTopicFilters.contains(topicFilter)) {
+				addRoute(node, topicFilter);
+			}
+		}
+		nodeRoutes.put(node, new NodeRoute(version, newTopicFilters));
+		return true;
+	}
+
+	/**
+	 * 增量更新节点的订阅，版本号必须连续
+	 *
+	 * @param node        节点名
+	 * @param version     变更后的版本号
+	 * @param topicFilter topicFilter
+	 * @param added       是否为新增，否则为删除
+	 * @return 是否成功，节点未知或版本号不连续（丢失了变更）时返回 false，需要全量同步
+	 */
+	public synchronized boolean apply(String node, long version, String topicFilter, boolean added) {
+		NodeRoute oldRoute = nodeRoutes.get(node);
+		if (oldRoute == null) {
+			return false;
+		}
+		// 重复或者已经包含在全量摘要中的变更
+		if (version <= oldRoute.version) {
+			return true;
+		}
+		if (version != oldRoute.version + 1) {
+			return false;
+		}
+		Set<String> topicFilters = new HashSet<>(oldRoute.topicFilters);
+		if (added) {
+			if (topicFilters.add(topicFilter)) {
+				addRoute(node, topicFilter);
+			}
+		} else if (topicFilters.remove(topicFilter)) {
+			removeRoute(node, topicFilter);
+		}
+		nodeRoutes.put(node, new NodeRoute(version, topicFilters));
+		return true;
+	}
+
+	/**
+	 * 删除节点，节点下线时调用
+	 *
+	 * @param node 节点名
+	 */
+	public synchronized void remove(String node) {
+		NodeRoute oldRoute = nodeRoutes.remove(node);
+		if (oldRoute == null) {
+			return;
+		}
+		for (String topicFilter : oldRoute.topicFilters) {
+			removeRoute(node, topicFilter);
+		}
+	}
+
+	/**
+	 * 获取节点摘要的版本号
+	 *
+	 * @param node 节点名
+	 * @return 版本号，不存在时为 {@link #UNKNOWN_VERSION}
+	 */
+	public long getVersion(String node) {
+		NodeRoute nodeRoute = nodeRoutes.get(node);
+		return nodeRoute == null ? UNKNOWN_VERSION : nodeRoute.version;
+	}
+
+	/**
+	 * 是否存在该节点的摘要
+	 *
+	 * @param node 节点名
+	 * @return 是否存在
+	 */
+	public boolean contains(String node) {
+		return nodeRoutes.containsKey(node);
+	}
+
+	/**
+	 * 获取所有已知节点
+	 *
+	 * @return 节点集合
+	 */
+	public Set<String> getNodes() {
+		return Collections.unmodifiableSet(nodeRoutes.keySet());
+	}
+
+	/**
+	 * 获取节点的 topicFilter 个数
+	 *
+	 * @param node 节点名
+	 * @return topicFilter 个数
+	 */
+	public int getTopicFilterCount(String node) {
+		NodeRoute nodeRoute = nodeRoutes.get(node);
+		return nodeRoute == null ? 0 : nodeRoute.topicFilters.size();
+	}
+
+	/**
+	 * 查找存在订阅者能匹配该 topic 的节点
+	 *
+	 * @param topicName topicName
+	 * @return 节点集合
+	 */
+	public Set<String> match(String topicName) {
+		Set<String> result = new HashSet<>();
+		Set<String> exactNodes = exactRoutes.get(topicName);
+		if (exactNodes != null) {
+			result.addAll(exactNodes);
+		}
+		if (!wildcardRoot.children.isEmpty()) {
+			match(wildcardRoot, topicName.split(TOPIC_LAYER, -1), 0, result);
+		}
+		return result;
+	}
+
+	private static void match(TrieNode trieNode, String[] levels, int index, Set<String> result) {
+		// # 匹配当前及以后的所有层级，a/# 也匹配 a
+		TrieNode moreNode = trieNode.children.get(WILDCARD_MORE);
+		if (moreNode != null) {
+			result.addAll(moreNode.nodes);
+		}
+		if (index == levels.length) {
+			result.addAll(trieNode.nodes);
+			return;
+		}
+		TrieNode child = trieNode.children.get(levels[index]);
+		if (child != null) {
+			match(child, levels, index + 1, result);
+		}
+		TrieNode oneNode = trieNode.children.get(WILDCARD_ONE);
+		if (oneNode != null) {
+			match(oneNode, levels, index + 1, result);
+		}
+	}
+
+	private void addRoute(String node, String topicFilter) {
+		if (!isWildcard(topicFilter)) {
+			exactRoutes.computeIfAbsent(topicFilter, (key) -> ConcurrentHashMap.newKeySet()).add(node);
+			return;
+		}
+		TrieNode trieNode = wildcardRoot;
+		for (String level : topicFilter.split(TOPIC_LAYER, -1)) {
+			trieNode = trieNode.children.computeIfAbsent(level, (key) -> new TrieNode());
+		}
+		trieNode.nodes.add(node);
+	}
+
+	private void removeRoute(String node, String topicFilter) {
+		if (!isWildcard(topicFilter)) {
+			Set<String> exactNodes = exactRoutes.get(topicFilter);
+			if (exactNodes != null) {
+				exactNodes.remove(node);
+				if (exactNodes.isEmpty()) {
+					exactRoutes.remove(topicFilter);
+				}
+			}
+			return;
+		}
+		String[] levels = topicFilter.split(TOPIC_LAYER, -1);
+		TrieNode[] path = new TrieNode[levels.length + 1];
+		path[0] = wildcardRoot;
+		for (int i = 0; i < levels.length; i++) {
+			TrieNode child = path[i].children.get(levels[i]);
+			if (child == null) {
+				return;
+			}
+			path[i + 1] = child;
+		}
+		path[levels.length].nodes.remove(node);
+		// 自底向上清理空的分支
+		for (int i = levels.length; i > 0; i--) {
+			TrieNode trieNode = path[i];
+			if (!trieNode.nodes.isEmpty() || !trieNode.children.isEmpty()) {
+				break;
+			}
+			path[i - 1].children.remove(levels[i - 1]);
+		}
+	}
+
+	private static boolean isWildcard(String topicFilter) {
+		return topicFilter.indexOf('+') >= 0 || topicFilter.indexOf('#') >= 0;
+	}
+
+	/**
+	 * 编码订阅摘要，格式：个数(4 byte) + [长度(2 byte) + topicFilter utf-8]
+	 *
+	 * @param topicFilters topicFilter 集合
+	 * @return byte 数组
+	 */
+	public static byte[] encode(Collection<String> topicFilters) {
+		List<byte[]> topicFilterBytesList = new ArrayList<>(topicFilters.size());
+		int length = 4;
+		for (String topicFilter : topicFilters) {
+			byte[] topicFilterBytes = topicFilter.getBytes(StandardCharsets.UTF_8);
+			topicFilterBytesList.add(topicFilterBytes);
+			length += 2 + topicFilterBytes.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		buffer.putInt(topicFilterBytesList.size());
+		for (byte[] topicFilterBytes : topicFilterBytesList) {
+			buffer.putShort((short) topicFilterBytes.length);
+			buffer.put(topicFilterBytes);
+		}
+		return buffer.array();
+	}
+
+	/**
+	 * 解码订阅摘要
+	 *
+	 * @param data byte 数组
+	 * @return topicFilter 集合
+	 */
+	public static Set<String> decode(byte[] data) {
+		if (data == null || data.length < 4) {
+			return Collections.emptySet();
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		int size = buffer.getInt();
+		Set<String> topicFilters = new HashSet<>(Math.max(16, size * 4 / 3 + 1));
+		for (int i = 0; i < size; i++) {
+			int length = buffer.getShort() & 0xFFFF;
+			byte[] topicFilterBytes = new byte[length];
+			buffer.get(topicFilterBytes);
+			topicFilters.add(new String(topicFilterBytes, StandardCharsets.UTF_8));
+		}
+		return topicFilters;
+	}
+
+	private static class NodeRoute {
+		private final long version;
+		private final Set<String> topicFilters;
+
+		private NodeRoute(long version, Set<String> topicFilters) {
+			this.version = version;
+			this.topicFilters = topicFilters;
+		}
+	}
+
+	private static class TrieNode {
+		private final ConcurrentMap<String, TrieNode> children = new ConcurrentHashMap<>();
+		private final Set<String> nodes = ConcurrentHashMap.newKeySet();
+	}
+
+}
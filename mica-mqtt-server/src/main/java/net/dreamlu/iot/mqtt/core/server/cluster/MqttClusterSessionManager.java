@@ -0,0 +1,986 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.codec.*;
+import net.dreamlu.iot.mqtt.core.common.MqttMessageExpiry;
+import net.dreamlu.iot.mqtt.core.common.MqttPendingPublish;
+import net.dreamlu.iot.mqtt.core.common.MqttPendingQos2Publish;
+import net.dreamlu.iot.mqtt.core.server.model.Subscribe;
+import net.dreamlu.iot.mqtt.core.server.session.IMqttSessionManager;
+import net.dreamlu.iot.mqtt.core.server.session.IMqttTopicFilterListener;
+import net.dreamlu.iot.mqtt.core.server.session.InMemoryMqttSessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * mqtt 内置集群持久 session 管理，按 clientId 一致性哈希把 session 分区到 owner 和副本节点。
+ *
+ * <p>
+ * 1. 本节点的 session 由 delegate 管理，cleanSession 为 false 的客户端订阅变化后，异步把订阅快照批量复制到 owner 和副本节点。
+ * 2. 客户端以 cleanSession 为 false 连接任意节点时，异步向 owner 和副本节点拉取 session，恢复后回复 connAck，sessionPresent 为 true。
+ *    客户端从其他节点迁移过来（旧连接还未断开）时，先向注册表中之前所在的节点请求接管，该节点关闭旧连接后回复最终快照，
+ *    未回复或者没有快照时再从 owner 和副本拉取。
+ * 3. 连接关闭时复制订阅和进行中的 qos1、qos2 消息，恢复后占用原消息 id，connAck 之后重发下行消息。
+ * 4. 离线的 session 按 mqtt5 session 过期间隔或默认过期时间过期，各节点定时清除。
+ * 5. 节点加入或离开时只迁移所属节点发生变化的 session，离开节点的副本仍在新的节点列表中，由它们推送给新的节点。
+ * </p>
+ *
+ * <p>
+ * 需要和 {@link MqttClusterMessageDispatcher} 一起使用：
+ * <pre>
+ * MqttServer.create()
+ *     .sessionManager(new MqttClusterSessionManager(1))
+ *     .messageDispatcher(new MqttClusterMessageDispatcher(clusterConfig))
+ * </pre>
+ * </p>
+ *
+ * @author L.cm
+ */
+public class MqttClusterSessionManager implements IMqttSessionManager {
+	private static final Logger logger = LoggerFactory.getLogger(MqttClusterSessionManager.class);
+	private static final byte OP_PUT = 1;
+	private static final byte OP_REMOVE = 2;
+	private static final byte OP_FETCH = 3;
+	private static final byte OP_STATE = 4;
+	private static final byte OP_TAKEOVER = 5;
+	/**
+	 * 批量复制时每帧最多的 session 数
+	 */
+	private static final int MAX_SESSIONS_PER_PACKET = 1000;
+	/**
+	 * 过期 session 最长的清除间隔，单位毫秒
+	 */
+	private static final long MAX_EXPIRE_INTERVAL = 60_000L;
+	/**
+	 * 删除标记的保留时间，拒绝删除之前发出、之后到达的复制，单位毫秒
+	 */
+	private static final long TOMBSTONE_TTL = 60_000L;
+	private final IMqttSessionManager delegate;
+	private final int replicas;
+	private final long fetchTimeout;
+	private final long sessionExpiry;
+	/**
+	 * 本节点为 owner 或副本的 session，clientId: session
+	 */
+	private final ConcurrentMap<String, SessionState> store = new ConcurrentHashMap<>();
+	/**
+	 * 本节点上以持久 session 连接的客户端
+	 */
+	private final Set<String> persistentClients = ConcurrentHashMap.newKeySet();
+	/**
+	 * 订阅变化，待复制的客户端
+	 */
+	private final Set<String> dirtyClients = ConcurrentHashMap.newKeySet();
+	/**
+	 * mqtt5 客户端的 session 过期间隔，clientId: 秒
+	 */
+	private final ConcurrentMap<String, Integer> sessionExpiries = new ConcurrentHashMap<>();
+	/**
+	 * 客户端连接之前所在的其他节点，clientId: 节点名
+	 */
+	private final ConcurrentMap<String, String> previousNodes = new ConcurrentHashMap<>();
+	/**
+	 * 等待本节点连接关闭后回复最终快照的接管请求，clientId: 请求
+	 */
+	private final ConcurrentMap<String, Takeover> takeovers = new ConcurrentHashMap<>();
+	/**
+	 * 连接关闭时的最终快照，保留 fetchTimeout 时间给晚于连接关闭到达的接管请求，clientId: 快照
+	 */
+	private final ConcurrentMap<String, Handover> handovers = new ConcurrentHashMap<>();
+	private final Object takeoverLock = new Object();
+	private final ConcurrentMap<Long, Fetch> fetches = new ConcurrentHashMap<>();
+	private final AtomicLong requestIdGenerator = new AtomicLong();
+	private final AtomicLong versionClock = new AtomicLong();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final AtomicBoolean rebalanceScheduled = new AtomicBoolean();
+	private volatile MqttClusterSessionRing ring;
+	private String nodeName;
+	private MqttCluster cluster;
+	private ScheduledExecutorService executor;
+
+	public MqttClusterSessionManager(int replicas) {
+		this(new InMemoryMqttSessionManager(), replicas, 3000L);
+	}
+
+	public MqttClusterSessionManager(IMqttSessionManager delegate, int replicas, long fetchTimeout) {
+		this(delegate, replicas, fetchTimeout, 7200);
+	}
+
+	/**
+	 * 构造器
+	 *
+	 * @param delegate      本节点的 session 管理
+	 * @param replicas      副本数，不包含 owner，0 表示只保存在 owner 节点
+	 * @param fetchTimeout  重连时拉取 session 的超时时间，单位毫秒
+	 * @param sessionExpiry 客户端离线后 session 默认的过期时间，单位秒，mqtt5 客户端使用连接时的 session 过期间隔
+	 */
+	public MqttClusterSessionManager(IMqttSessionManager delegate, int replicas, long fetchTimeout, int sessionExpiry) {
+		if (replicas < 0) {
+			throw new IllegalArgumentException("Mqtt cluster session replicas must be >= 0, replicas:" + replicas);
+		}
+		if (sessionExpiry <= 0) {
+			throw new IllegalArgumentException("Mqtt cluster session expiry must be > 0, sessionExpiry:" + sessionExpiry);
+		}
+		this.delegate = Objects.requireNonNull(delegate, "IMqttSessionManager delegate is null.");
+		this.replicas = replicas;
+		this.fetchTimeout = fetchTimeout;
+		this.sessionExpiry = TimeUnit.SECONDS.toMillis(sessionExpiry);
+	}
+
+	/**
+	 * 绑定集群，由 {@link MqttClusterMessageDispatcher} 调用
+	 *
+	 * @param nodeName 本节点名
+	 * @param cluster  MqttCluster
+	 */
+	void bind(String nodeName, MqttCluster cluster) {
+		this.nodeName = nodeName;
+		this.cluster = cluster;
+		this.ring = new MqttClusterSessionRing(Collections.singleton(nodeName));
+		this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "mqtt-cluster-session");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long expireInterval = Math.min(sessionExpiry, MAX_EXPIRE_INTERVAL);
+		this.executor.scheduleWithFixedDelay(this::expireSessions, expireInterval, expireInterval, TimeUnit.MILLISECONDS);
+		cluster.sessionPacketHandler(this::onPacket);
+		cluster.peerChangeListener(this::scheduleRebalance);
+	}
+
+	/**
+	 * 记录客户端连接之前所在的其他节点，连接时向该节点请求接管，由 {@link MqttClusterMessageDispatcher} 在广播连接事件时调用
+	 *
+	 * @param clientId     clientId
+	 * @param previousNode 之前所在的节点
+	 */
+	void previousNode(String clientId, String previousNode) {
+		previousNodes.put(clientId, previousNode);
+	}
+
+	/**
+	 * 停止
+	 */
+	void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	@Override
+	public boolean connect(String clientId, boolean cleanSession) {
+		return connectAsync(clientId, cleanSession).join();
+	}
+
+	@Override
+	public CompletableFuture<Boolean> connectAsync(String clientId, boolean cleanSession) {
+		if (cluster == null) {
+			return delegate.connectAsync(clientId, cleanSession);
+		}
+		String previousNode = previousNodes.remove(clientId);
+		if (cleanSession) {
+			// 清除集群中的 session
+			persistentClients.remove(clientId);
+			dirtyClients.remove(clientId);
+			sessionExpiries.remove(clientId);
+			removeReplicas(clientId);
+			return CompletableFuture.completedFuture(false);
+		}
+		persistentClients.add(clientId);
+		CompletableFuture<SessionState> future = previousNode == null ? fetch(clientId) : takeover(clientId, previousNode);
+		return future.thenApply(state -> {
+			if (state == null) {
+				return false;
+			}
+			restore(state);
+			// 重新复制在线的 session，取消 owner 和副本上的过期时间
+			markDirty(clientId);
+			return true;
+		});
+	}
+
+	@Override
+	public void addSubscribe(String topicFilter, String clientId, int mqttQoS) {
+		delegate.addSubscribe(topicFilter, clientId, mqttQoS);
+		markDirty(clientId);
+	}
+
+	@Override
+	public boolean addSubscribe(String topicFilter, String clientId, MqttSubscriptionOption option) {
+		boolean exists = delegate.addSubscribe(topicFilter, clientId, option);
+		markDirty(clientId);
+		return exists;
+	}
+
+	@Override
+	public void removeSubscribe(String topicFilter, String clientId) {
+		delegate.removeSubscribe(topicFilter, clientId);
+		markDirty(clientId);
+	}
+
+	@Override
+	public Integer searchSubscribe(String topicName, String clientId) {
+		return delegate.searchSubscribe(topicName, clientId);
+	}
+
+	@Override
+	public List<Subscribe> searchSubscribe(String topicName) {
+		return delegate.searchSubscribe(topicName);
+	}
+
+	@Override
+	public List<Subscribe> getSubscriptions(String clientId) {
+		return delegate.getSubscriptions(clientId);
+	}
+
+	@Override
+	public Set<String> getTopicFilters() {
+		return delegate.getTopicFilters();
+	}
+
+	@Override
+	public boolean setTopicFilterListener(IMqttTopicFilterListener listener) {
+		return delegate.setTopicFilterListener(listener);
+	}
+
+	@Override
+	public void addPendingPublish(String clientId, int messageId, MqttPendingPublish pendingPublish) {
+		delegate.addPendingPublish(clientId, messageId, pendingPublish);
+	}
+
+	@Override
+	public List<MqttPendingPublish> getPendingPublishes(String clientId) {
+		return delegate.getPendingPublishes(clientId);
+	}
+
+	@Override
+	public MqttPendingPublish getPendingPublish(String clientId, int messageId) {
+		return delegate.getPendingPublish(clientId, messageId);
+	}
+
+	@Override
+	public void removePendingPublish(String clientId, int messageId) {
+		delegate.removePendingPublish(clientId, messageId);
+	}
+
+	@Override
+	public void addPendingQos2Publish(String clientId, int messageId, MqttPendingQos2Publish pendingQos2Publish) {
+		delegate.addPendingQos2Publish(clientId, messageId, pendingQos2Publish);
+	}
+
+	@Override
+	public List<MqttPendingQos2Publish> getPendingQos2Publishes(String clientId) {
+		return delegate.getPendingQos2Publishes(clientId);
+	}
+
+	@Override
+	public MqttPendingQos2Publish getPendingQos2Publish(String clientId, int messageId) {
+		return delegate.getPendingQos2Publish(clientId, messageId);
+	}
+
+	@Override
+	public void removePendingQos2Publish(String clientId, int messageId) {
+		delegate.removePendingQos2Publish(clientId, messageId);
+	}
+
+	@Override
+	public int getMessageId(String clientId) {
+		return delegate.getMessageId(clientId);
+	}
+
+	@Override
+	public boolean isMessageIdExhausted(String clientId) {
+		return delegate.isMessageIdExhausted(clientId);
+	}
+
+	@Override
+	public boolean hasSession(String clientId) {
+		return delegate.hasSession(clientId);
+	}
+
+	@Override
+	public boolean expire(String clientId, int sessionExpirySeconds) {
+		sessionExpiries.put(clientId, sessionExpirySeconds);
+		delegate.expire(clientId, sessionExpirySeconds);
+		return true;
+	}
+
+	@Override
+	public boolean active(String clientId) {
+		return delegate.active(clientId);
+	}
+
+	@Override
+	public void remove(String clientId) {
+		// 连接关闭，同步复制订阅和进行中的消息，集群中的 session 开始过期倒计时
+		boolean persistent;
+		SessionState state = null;
+		Takeover takeover = null;
+		synchronized (takeoverLock) {
+			persistent = persistentClients.remove(clientId);
+			if (persistent) {
+				dirtyClients.remove(clientId);
+				Integer expirySeconds = sessionExpiries.remove(clientId);
+				// mqtt5 session 过期间隔为 0，连接关闭时结束
+				if (expirySeconds == null || expirySeconds != 0) {
+					long expireAt;
+					if (expirySeconds == null) {
+						expireAt = System.currentTimeMillis() + sessionExpiry;
+					} else if (expirySeconds < 0) {
+						// 0xFFFFFFFF 永不过期
+						expireAt = 0;
+					} else {
+						expireAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expirySeconds);
+					}
+					state = snapshot(clientId, expireAt);
+				}
+				// 其他节点正在接管时直接回复最终快照，否则保留给晚到的接管请求
+				takeover = takeovers.remove(clientId);
+				if (takeover == null && state != null) {
+					handovers.put(clientId, new Handover(state));
+				}
+			}
+		}
+		if (persistent) {
+			if (takeover != null) {
+				sendState(takeover.fromNode, takeover.requestId, state);
+			}
+			if (state == null) {
+				removeReplicas(clientId);
+			} else {
+				Map<String, List<SessionState>> batches = new HashMap<>();
+				route(state, batches);
+				sendPuts(batches);
+			}
+		}
+		delegate.remove(clientId);
+	}
+
+	@Override
+	public void clean() {
+		persistentClients.clear();
+		dirtyClients.clear();
+		previousNodes.clear();
+		takeovers.clear();
+		handovers.clear();
+		sessionExpiries.clear();
+		store.clear();
+		delegate.clean();
+	}
+
+	/**
+	 * 获取本节点为 owner 或副本的 session 数
+	 *
+	 * @return session 数
+	 */
+	public int getReplicaCount() {
+		return (int) store.values().stream().filter(state -> !state.removed).count();
+	}
+
+	/**
+	 * 获取当前的一致性哈希环
+	 *
+	 * @return MqttClusterSessionRing
+	 */
+	public MqttClusterSessionRing getRing() {
+		return ring;
+	}
+
+	private long nextVersion() {
+		long now = System.currentTimeMillis();
+		return versionClock.updateAndGet(last -> Math.max(last + 1, now));
+	}
+
+	private void markDirty(String clientId) {
+		if (cluster == null || !persistentClients.contains(clientId)) {
+			return;
+		}
+		dirtyClients.add(clientId);
+		if (flushScheduled.compareAndSet(false, true)) {
+			execute(this::flush);
+		}
+	}
+
+	private void flush() {
+		flushScheduled.set(false);
+		Map<String, List<SessionState>> batches = new HashMap<>();
+		Iterator<String> iterator = dirtyClients.iterator();
+		while (iterator.hasNext()) {
+			String clientId = iterator.next();
+			iterator.remove();
+			if (persistentClients.contains(clientId)) {
+				route(snapshot(clientId, 0), batches);
+			}
+		}
+		sendPuts(batches);
+	}
+
+	/**
+	 * session 快照
+	 *
+	 * @param clientId clientId
+	 * @param expireAt 过期时间，0 表示不过期
+	 * @return SessionState
+	 */
+	private SessionState snapshot(String clientId, long expireAt) {
+		Map<String, Integer> subscriptions = new HashMap<>();
+		for (Subscribe subscribe : delegate.getSubscriptions(clientId)) {
+			subscriptions.put(subscribe.getTopicFilter(), subscribe.getOption().value());
+		}
+		List<InflightPublish> publishes = new ArrayList<>();
+		for (MqttPendingPublish pendingPublish : delegate.getPendingPublishes(clientId)) {
+			MqttPublishMessage message = pendingPublish.getMessage();
+			publishes.add(new InflightPublish(message, pendingPublish.getPayload(), pendingPublish.getExpiryAt()));
+		}
+		List<InflightPublish> qos2Publishes = new ArrayList<>();
+		for (MqttPendingQos2Publish pendingQos2Publish : delegate.getPendingQos2Publishes(clientId)) {
+			MqttPublishMessage message = pendingQos2Publish.getIncomingPublish();
+			qos2Publishes.add(new InflightPublish(message, message.payload(), 0));
+		}
+		return new SessionState(clientId, nextVersion(), expireAt, subscriptions, publishes, qos2Publishes);
+	}
+
+	/**
+	 * 恢复 session，进行中的消息由 connAck 之后重发
+	 */
+	private void restore(SessionState state) {
+		String clientId = state.clientId;
+		state.subscriptions.forEach((topicFilter, options) ->
+			delegate.addSubscribe(topicFilter, clientId, MqttSubscriptionOption.valueOf(options)));
+		long now = System.currentTimeMillis();
+		for (InflightPublish publish : state.publishes) {
+			if (MqttMessageExpiry.isExpired(publish.expiryAt, now)) {
+				continue;
+			}
+			MqttPendingPublish pendingPublish = new MqttPendingPublish(publish.payload, publish.toMessage(), MqttQoS.valueOf(publish.qos), publish.expiryAt);
+			delegate.addPendingPublish(clientId, publish.messageId, pendingPublish);
+		}
+		for (InflightPublish publish : state.qos2Publishes) {
+			MqttMessage pubRecMessage = new MqttMessage(new MqttFixedHeader(MqttMessageType.PUBREC, false, MqttQoS.AT_MOST_ONCE, false, 0),
+				MqttMessageIdVariableHeader.from(publish.messageId));
+			delegate.addPendingQos2Publish(clientId, publish.messageId, new MqttPendingQos2Publish(publish.toMessage(), pubRecMessage));
+		}
+	}
+
+	/**
+	 * 获取本节点保存的 session，已经过期的直接清除
+	 */
+	private SessionState getState(String clientId) {
+		SessionState state = store.get(clientId);
+		if (state == null || state.removed) {
+			return null;
+		}
+		if (state.isExpired(System.currentTimeMillis())) {
+			store.remove(clientId, state);
+			return null;
+		}
+		return state;
+	}
+
+	/**
+	 * 定时清除过期的 session，owner 和副本的过期时间相同，各自清除
+	 */
+	private void expireSessions() {
+		try {
+			long now = System.currentTimeMillis();
+			long takeoverExpireAt = now - fetchTimeout;
+			takeovers.values().removeIf(takeover -> takeover.createdAt <= takeoverExpireAt);
+			handovers.values().removeIf(handover -> handover.createdAt <= takeoverExpireAt);
+			int size = store.size();
+			store.values().removeIf(state -> state.isExpired(now));
+			int expired = size - store.size();
+			if (expired > 0) {
+				logger.debug("Mqtt cluster session expired:{} remain:{}", expired, store.size());
+			}
+		} catch (Throwable e) {
+			logger.error("Mqtt cluster session expire error.", e);
+		}
+	}
+
+	/**
+	 * 按 owner 和副本分组，本节点直接保存
+	 */
+	private void route(SessionState state, Map<String, List<SessionState>> batches) {
+		for (String node : ring.getNodes(state.clientId, replicas + 1)) {
+			if (nodeName.equals(node)) {
+				putState(state);
+			} else {
+				batches.computeIfAbsent(node, key -> new ArrayList<>()).add(state);
+			}
+		}
+	}
+
+	private void putState(SessionState state) {
+		store.merge(state.clientId, state, (old, value) -> value.version > old.version ? value : old);
+	}
+
+	private void removeReplicas(String clientId) {
+		long version = nextVersion();
+		byte[] body = encode(out -> {
+			out.writeByte(OP_REMOVE);
+			out.writeLong(version);
+			out.writeUTF(clientId);
+		});
+		for (String node : ring.getNodes(clientId, replicas + 1)) {
+			if (nodeName.equals(node)) {
+				removeState(clientId, version);
+			} else {
+				cluster.sendPacket(node, MqttClusterPacket.session(body));
+			}
+		}
+	}
+
+	/**
+	 * 删除 session，保留删除标记，避免删除之前发出的复制晚到后又恢复 session
+	 */
+	private void removeState(String clientId, long version) {
+		SessionState tombstone = SessionState.tombstone(clientId, version, System.currentTimeMillis() + TOMBSTONE_TTL);
+		store.merge(clientId, tombstone, (old, value) -> value.version >= old.version ? value : old);
+	}
+
+	private void sendPuts(Map<String, List<SessionState>> batches) {
+		batches.forEach((node, stateList) -> {
+			for (int i = 0; i < stateList.size(); i += MAX_SESSIONS_PER_PACKET) {
+				List<SessionState> subList = stateList.subList(i, Math.min(i + MAX_SESSIONS_PER_PACKET, stateList.size()));
+				byte[] body = encode(out -> {
+					out.writeByte(OP_PUT);
+					out.writeInt(subList.size());
+					for (SessionState state : subList) {
+						writeState(out, state);
+					}
+				});
+				if (!cluster.sendPacket(node, MqttClusterPacket.session(body))) {
+					logger.warn("Mqtt cluster session replicate to node:{} fail, node not connected.", node);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 从 owner 和副本异步拉取 session，任意一个节点返回即结束，超时返回已收到的结果
+	 */
+	private CompletableFuture<SessionState> fetch(String clientId) {
+		List<String> owners = ring.getNodes(clientId, replicas + 1);
+		if (owners.contains(nodeName)) {
+			SessionState state = getState(clientId);
+			if (state != null) {
+				return CompletableFuture.completedFuture(state);
+			}
+		}
+		List<String> remoteOwners = new ArrayList<>(owners);
+		remoteOwners.remove(nodeName);
+		if (remoteOwners.isEmpty()) {
+			return CompletableFuture.completedFuture(null);
+		}
+		return request(OP_FETCH, clientId, remoteOwners);
+	}
+
+	/**
+	 * 客户端从其他节点迁移过来，向之前所在的节点请求接管，该节点关闭旧连接后回复最终快照，包含进行中的消息。
+	 * 未回复或者没有快照时再从 owner 和副本拉取
+	 */
+	private CompletableFuture<SessionState> takeover(String clientId, String previousNode) {
+		return request(OP_TAKEOVER, clientId, Collections.singletonList(previousNode))
+			.thenCompose(state -> state == null ? fetch(clientId) : CompletableFuture.completedFuture(state));
+	}
+
+	/**
+	 * 向其他节点异步请求 session，任意一个节点返回即结束，超时返回已收到的结果
+	 */
+	private CompletableFuture<SessionState> request(byte op, String clientId, List<String> nodes) {
+		long requestId = requestIdGenerator.incrementAndGet();
+		Fetch fetch = new Fetch(nodes.size());
+		fetches.put(requestId, fetch);
+		try {
+			ScheduledFuture<?> timeoutFuture = executor.schedule(() -> {
+				if (fetch.timeout()) {
+					logger.warn("Mqtt cluster session {} clientId:{} from nodes:{} timeout.", OP_FETCH == op ? "fetch" : "takeover", clientId, nodes);
+				}
+			}, fetchTimeout, TimeUnit.MILLISECONDS);
+			fetch.future.whenComplete((state, error) -> timeoutFuture.cancel(false));
+		} catch (RejectedExecutionException e) {
+			fetch.timeout();
+		}
+		fetch.future.whenComplete((state, error) -> fetches.remove(requestId));
+		byte[] body = encode(out -> {
+			out.writeByte(op);
+			out.writeLong(requestId);
+			out.writeUTF(nodeName);
+			out.writeUTF(clientId);
+		});
+		for (String node : nodes) {
+			if (!cluster.sendPacket(node, MqttClusterPacket.session(body))) {
+				fetch.onResponse(null);
+			}
+		}
+		return fetch.future;
+	}
+
+	/**
+	 * 其他节点接管客户端，本节点的旧连接关闭后回复最终快照，已经关闭时回复保留的快照
+	 */
+	private void onTakeover(long requestId, String fromNode, String clientId) {
+		SessionState state = null;
+		synchronized (takeoverLock) {
+			Handover handover = handovers.remove(clientId);
+			if (handover != null && handover.createdAt > System.currentTimeMillis() - fetchTimeout) {
+				state = handover.state;
+			} else if (persistentClients.contains(clientId)) {
+				takeovers.put(clientId, new Takeover(requestId, fromNode));
+				return;
+			}
+		}
+		sendState(fromNode, requestId, state);
+	}
+
+	private void sendState(String node, long requestId, SessionState state) {
+		byte[] body = encode(out -> {
+			out.writeByte(OP_STATE);
+			out.writeLong(requestId);
+			out.writeBoolean(state != null);
+			if (state != null) {
+				writeState(out, state);
+			}
+		});
+		cluster.sendPacket(node, MqttClusterPacket.session(body));
+	}
+
+	private void scheduleRebalance() {
+		if (rebalanceScheduled.compareAndSet(false, true)) {
+			execute(this::rebalance);
+		}
+	}
+
+	/**
+	 * 节点变化，只迁移所属节点发生变化的 session
+	 */
+	private void rebalance() {
+		rebalanceScheduled.set(false);
+		Set<String> members = cluster.getMembers();
+		members.add(nodeName);
+		MqttClusterSessionRing oldRing = this.ring;
+		if (members.equals(oldRing.getMembers())) {
+			return;
+		}
+		MqttClusterSessionRing newRing = new MqttClusterSessionRing(members);
+		this.ring = newRing;
+		int count = replicas + 1;
+		Map<String, List<SessionState>> batches = new HashMap<>();
+		List<String> removeList = new ArrayList<>();
+		for (SessionState state : store.values()) {
+			if (state.removed) {
+				continue;
+			}
+			List<String> oldOwners = oldRing.getNodes(state.clientId, count);
+			List<String> newOwners = newRing.getNodes(state.clientId, count);
+			if (oldOwners.equals(newOwners)) {
+				continue;
+			}
+			for (String node : newOwners) {
+				if (!nodeName.equals(node) && !oldOwners.contains(node)) {
+					batches.computeIfAbsent(node, key -> new ArrayList<>()).add(state);
+				}
+			}
+			if (!newOwners.contains(nodeName)) {
+				removeList.add(state.clientId);
+			}
+		}
+		sendPuts(batches);
+		store.keySet().removeAll(removeList);
+		// 本节点在线的持久 session，所属节点变化后重新复制，避免 owner 和副本同时离开时丢失
+		for (String clientId : persistentClients) {
+			if (!oldRing.getNodes(clientId, count).equals(newRing.getNodes(clientId, count))) {
+				markDirty(clientId);
+			}
+		}
+		logger.info("Mqtt cluster session rebalanced, members:{} moved:{} dropped:{}", members,
+			batches.values().stream().mapToInt(List::size).sum(), removeList.size());
+	}
+
+	private void execute(Runnable task) {
+		try {
+			executor.execute(() -> {
+				try {
+					task.run();
+				} catch (Throwable e) {
+					logger.error("Mqtt cluster session task error.", e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			logger.warn("Mqtt cluster session executor is stopped.");
+		}
+	}
+
+	/**
+	 * 处理其他节点的 session 数据帧
+	 *
+	 * @param packet MqttClusterPacket
+	 */
+	private void onPacket(MqttClusterPacket packet) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(packet.getBody()));
+			byte op = in.readByte();
+			if (OP_PUT == op) {
+				int size = in.readInt();
+				for (int i = 0; i < size; i++) {
+					putState(readState(in));
+				}
+			} else if (OP_REMOVE == op) {
+				long version = in.readLong();
+				removeState(in.readUTF(), version);
+			} else if (OP_FETCH == op) {
+				long requestId = in.readLong();
+				String fromNode = in.readUTF();
+				sendState(fromNode, requestId, getState(in.readUTF()));
+			} else if (OP_TAKEOVER == op) {
+				long requestId = in.readLong();
+				String fromNode = in.readUTF();
+				onTakeover(requestId, fromNode, in.readUTF());
+			} else if (OP_STATE == op) {
+				Fetch fetch = fetches.get(in.readLong());
+				SessionState state = in.readBoolean() ? readState(in) : null;
+				if (fetch != null) {
+					fetch.onResponse(state);
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Mqtt cluster session packet decode error.", e);
+		}
+	}
+
+	private static void writeState(DataOutputStream out, SessionState state) throws IOException {
+		out.writeLong(state.version);
+		out.writeLong(state.expireAt);
+		out.writeUTF(state.clientId);
+		out.writeInt(state.subscriptions.size());
+		for (Map.Entry<String, Integer> entry : state.subscriptions.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeByte(entry.getValue());
+		}
+		writePublishes(out, state.publishes);
+		writePublishes(out, state.qos2Publishes);
+	}
+
+	private static void writePublishes(DataOutputStream out, List<InflightPublish> publishes) throws IOException {
+		out.writeInt(publishes.size());
+		for (InflightPublish publish : publishes) {
+			out.writeShort(publish.messageId);
+			out.writeUTF(publish.topic);
+			out.writeByte(publish.qos);
+			out.writeBoolean(publish.retain);
+			out.writeLong(publish.expiryAt);
+			out.writeInt(publish.payload.length);
+			out.write(publish.payload);
+		}
+	}
+
+	private static SessionState readState(DataInputStream in) throws IOException {
+		long version = in.readLong();
+		long expireAt = in.readLong();
+		String clientId = in.readUTF();
+		int size = in.readInt();
+		Map<String, Integer> subscriptions = new HashMap<>(size * 2);
+		for (int i = 0; i < size; i++) {
+			subscriptions.put(in.readUTF(), (int) in.readByte());
+		}
+		List<InflightPublish> publishes = readPublishes(in);
+		List<InflightPublish> qos2Publishes = readPublishes(in);
+		return new SessionState(clientId, version, expireAt, subscriptions, publishes, qos2Publishes);
+	}
+
+	private static List<InflightPublish> readPublishes(DataInputStream in) throws IOException {
+		int size = in.readInt();
+		List<InflightPublish> publishes = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			int messageId = in.readUnsignedShort();
+			String topic = in.readUTF();
+			int qos = in.readByte();
+			boolean retain = in.readBoolean();
+			long expiryAt = in.readLong();
+			byte[] payload = new byte[in.readInt()];
+			in.readFully(payload);
+			publishes.add(new InflightPublish(messageId, topic, qos, retain, expiryAt, payload));
+		}
+		return publishes;
+	}
+
+	private static byte[] encode(Encoder encoder) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try {
+			encoder.encode(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	private interface Encoder {
+		void encode(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * 集群中的 session，包含订阅和进行中的消息
+	 */
+	private static class SessionState {
+		private final String clientId;
+		private final long version;
+		/**
+		 * 过期时间，0 表示在线或永不过期
+		 */
+		private final long expireAt;
+		/**
+		 * topicFilter: 订阅选项
+		 */
+		private final Map<String, Integer> subscriptions;
+		/**
+		 * 等待 ack 的下行 qos1、qos2 消息
+		 */
+		private final List<InflightPublish> publishes;
+		/**
+		 * 等待 pubRel 的上行 qos2 消息
+		 */
+		private final List<InflightPublish> qos2Publishes;
+		/**
+		 * 是否为删除标记，只保存在本节点，不复制
+		 */
+		private final boolean removed;
+
+		private SessionState(String clientId, long version, long expireAt, Map<String, Integer> subscriptions,
+							 List<InflightPublish> publishes, List<InflightPublish> qos2Publishes) {
+			this(clientId, version, expireAt, subscriptions, publishes, qos2Publishes, false);
+		}
+
+		private SessionState(String clientId, long version, long expireAt, Map<String, Integer> subscriptions,
+							 List<InflightPublish> publishes, List<InflightPublish> qos2Publishes, boolean removed) {
+			this.clientId = clientId;
+			this.version = version;
+			this.expireAt = expireAt;
+			this.subscriptions = subscriptions;
+			this.publishes = publishes;
+			this.qos2Publishes = qos2Publishes;
+			this.removed = removed;
+		}
+
+		private static SessionState tombstone(String clientId, long version, long expireAt) {
+			return new SessionState(clientId, version, expireAt, Collections.emptyMap(),
+				Collections.emptyList(), Collections.emptyList(), true);
+		}
+
+		private boolean isExpired(long now) {
+			return expireAt > 0 && expireAt <= now;
+		}
+	}
+
+	/**
+	 * 进行中的消息
+	 */
+	private static class InflightPublish {
+		private final int messageId;
+		private final String topic;
+		private final int qos;
+		private final boolean retain;
+		/**
+		 * mqtt5 消息过期时间，0 表示不过期
+		 */
+		private final long expiryAt;
+		private final byte[] payload;
+
+		private InflightPublish(MqttPublishMessage message, byte[] payload, long expiryAt) {
+			this(message.variableHeader().packetId(), message.variableHeader().topicName(),
+				message.fixedHeader().qosLevel().value(), message.fixedHeader().isRetain(), expiryAt, payload);
+		}
+
+		private InflightPublish(int messageId, String topic, int qos, boolean retain, long expiryAt, byte[] payload) {
+			this.messageId = messageId;
+			this.topic = topic;
+			this.qos = qos;
+			this.retain = retain;
+			this.expiryAt = expiryAt;
+			this.payload = payload == null ? new byte[0] : payload;
+		}
+
+		private MqttPublishMessage toMessage() {
+			return MqttMessageBuilders.publish()
+				.topicName(topic)
+				.payload(payload)
+				.qos(MqttQoS.valueOf(qos))
+				.retained(retain)
+				.messageId(messageId)
+				.build();
+		}
+	}
+
+	/**
+	 * 等待旧连接关闭的接管请求
+	 */
+	private static class Takeover {
+		private final long requestId;
+		private final String fromNode;
+		private final long createdAt = System.currentTimeMillis();
+
+		private Takeover(long requestId, String fromNode) {
+			this.requestId = requestId;
+			this.fromNode = fromNode;
+		}
+	}
+
+	/**
+	 * 连接关闭时的最终快照
+	 */
+	private static class Handover {
+		private final SessionState state;
+		private final long createdAt = System.currentTimeMillis();
+
+		private Handover(SessionState state) {
+			this.state = state;
+		}
+	}
+
+	/**
+	 * 一次拉取请求，任意节点返回 session 或所有节点都返回后结束
+	 */
+	private static class Fetch {
+		private final CompletableFuture<SessionState> future = new CompletableFuture<>();
+		private int remaining;
+		private SessionState state;
+
+		private Fetch(int nodes) {
+			this.remaining = nodes;
+		}
+
+		private synchronized void onResponse(SessionState state) {
+			if (state != null && (this.state == null || state.version > this.state.version)) {
+				this.state = state;
+			}
+			if (state != null || --remaining <= 0) {
+				future.complete(this.state);
+			}
+		}
+
+		private synchronized boolean timeout() {
+			return future.complete(this.state);
+		}
+	}
+
+}
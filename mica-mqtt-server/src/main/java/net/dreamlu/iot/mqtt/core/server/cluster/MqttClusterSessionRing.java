@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * mqtt 集群 session 一致性哈希环，按 clientId 计算 session 所属节点，不可变，节点变化时重新创建。
+ *
+ * <p>
+ * 每个节点在环上有多个虚拟节点，从 clientId 的哈希位置顺时针取不重复的节点，第一个为 owner，其后为副本。
+ * 节点加入或离开时只有相邻区间的 clientId 的所属节点发生变化，离开节点的副本仍然在新的节点列表中。
+ * </p>
+ *
+ * @author L.cm
+ */
+public class MqttClusterSessionRing {
+	/**
+	 * 默认每个节点的虚拟节点数
+	 */
+	public static final int DEFAULT_VIRTUAL_NODES = 128;
+	private final Set<String> members;
+	private final long[] hashes;
+	private final String[] nodes;
+
+	public MqttClusterSessionRing(Collection<String> members) {
+		this(members, DEFAULT_VIRTUAL_NODES);
+	}
+
+	public MqttClusterSessionRing(Collection<String> members, int virtualNodes) {
+		this.members = Collections.unmodifiableSet(new TreeSet<>(members));
+		TreeMap<Long, String> ring = new TreeMap<>();
+		for (String member : this.members) {
+			for (int i = 0; i < virtualNodes; i++) {
+				// 哈希冲突时按节点名取较小的，保证各节点计算结果一致
+				ring.merge(hash(member + '#' + i), member, (a, b) -> a.compareTo(b) <= 0 ? a : b);
+			}
+		}
+		this.hashes = new long[ring.size()];
+		this.nodes = new String[ring.size()];
+		int index = 0;
+		for (Map.Entry<Long, String> entry : ring.entrySet()) {
+			hashes[index] = entry.getKey();
+			nodes[index] = entry.getValue();
+			index++;
+		}
+	}
+
+	/**
+	 * 获取 session 所属的节点，第一个为 owner
+	 *
+	 * @param clientId clientId
+	 * @param count    节点数，owner + 副本数
+	 * @return 节点列表
+	 */
+	public List<String> getNodes(String clientId, int count) {
+		int size = Math.min(count, members.size());
+		if (size < 1) {
+			return Collections.emptyList();
+		}
+		List<String> result = new ArrayList<>(size);
+		int index = Arrays.binarySearch(hashes, hash(clientId));
+		if (index < 0) {
+			index = -index - 1;
+		}
+		for (int i = 0; i < nodes.length && result.size() < size; i++) {
+			String node = nodes[(index + i) % nodes.length];
+			if (!result.contains(node)) {
+				result.add(node);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 获取 owner 节点
+	 *
+	 * @param clientId clientId
+	 * @return 节点名，没有节点时为 null
+	 */
+	public String getOwner(String clientId) {
+		List<String> nodeList = getNodes(clientId, 1);
+		return nodeList.isEmpty() ? null : nodeList.get(0);
+	}
+
+	/**
+	 * 获取环上的节点
+	 *
+	 * @return 节点集合
+	 */
+	public Set<String> getMembers() {
+		return members;
+	}
+
+	/**
+	 * 64 位哈希，fnv-1a 后用 murmur3 的 fmix64 打散
+	 *
+	 * @param key key
+	 * @return hash
+	 */
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.delay;
+
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.serializer.BinaryMessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * 延迟消息存储，两级时间轮
+ *
+ * <p>
+ * 1. 第一级为内存中的时间轮，每格 tickMs，共 wheelSize 格，只保存当前时间段（tickMs * wheelSize）内到期的消息。
+ * 2. 第二级为本地文件，每个时间段一个文件，消息写入即追加到所属时间段的文件中，当前时间段到期完毕后删除文件，再加载下一个时间段。
+ * 3. 检查点文件记录已经触发到的 tick，重启时跳过已触发的消息，停机期间到期的消息在重启后立即触发。
+ * </p>
+ * <p>
+ * 内存占用只和当前时间段内的消息数有关，百万级的长延迟消息只占用磁盘。进程崩溃时最后一个 tick 内已触发但还未发送的消息可能丢失。
+ * </p>
+ *
+ * @author L.cm
+ */
+public class MqttDelayedMessageStore implements Closeable {
+	private static final Logger logger = LoggerFactory.getLogger(MqttDelayedMessageStore.class);
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	/**
+	 * 同时打开的时间段文件数
+	 */
+	private static final int MAX_OPEN_SEGMENTS = 16;
+	/**
+	 * 单条消息的最大长度，超过则认为文件已损坏
+	 */
+	private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+	private final File dir;
+	private final long tickMs;
+	private final int wheelSize;
+	/**
+	 * 第一级时间轮，只保存当前时间段的消息
+	 */
+	private final List<Message>[] wheel;
+	/**
+	 * 有文件的时间段
+	 */
+	private final TreeSet<Long> segments = new TreeSet<>();
+	/**
+	 * 打开的时间段文件，按访问顺序，超出时关闭最久未使用的
+	 */
+	private final LinkedHashMap<Long, DataOutputStream> appenders;
+	private final RandomAccessFile checkpointFile;
+	/**
+	 * 当前时间段
+	 */
+	private long currentSegment;
+	/**
+	 * 下一个待触发的 tick，之前的 tick 都已触发
+	 */
+	private long cursorTick;
+	/**
+	 * 待触发的消息数
+	 */
+	private long size;
+
+	public MqttDelayedMessageStore(File dir, long tickMs, int wheelSize) {
+		if (tickMs < 1 || wheelSize < 1) {
+			throw new IllegalArgumentException("Mqtt delayed store tickMs and wheelSize must be greater than 0.");
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IllegalStateException("Mqtt delayed store dir create fail:" + dir);
+		}
+		this.dir = dir;
+		this.tickMs = tickMs;
+		this.wheelSize = wheelSize;
+		this.wheel = newWheel(wheelSize);
+		this.appenders = new LinkedHashMap<Long, DataOutputStream>(MAX_OPEN_SEGMENTS, 0.75F, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, DataOutputStream> eldest) {
+				if (size() > MAX_OPEN_SEGMENTS) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+		try {
+			this.checkpointFile = new RandomAccessFile(new File(dir, CHECKPOINT_FILE), "rw");
+			recover(System.currentTimeMillis() / tickMs);
+		} catch (IOException e) {
+			throw new IllegalStateException("Mqtt delayed store recover fail:" + dir, e);
+		}
+	}
+
+	/**
+	 * 添加延迟消息
+	 *
+	 * @param message Message
+	 * @param dueAt   到期时间 (ms)
+	 * @return 是否添加，到期时间早于已触发的 tick 时返回 false，由调用方立即发送
+	 */
+	public boolean add(Message message, long dueAt) {
+		byte[] data = BinaryMessageSerializer.INSTANCE.serialize(message);
+		long dueTick = toTick(dueAt);
+		synchronized (this) {
+			if (dueTick < cursorTick) {
+				return false;
+			}
+			long segment = dueTick / wheelSize;
+			try {
+				DataOutputStream output = getAppender(segment);
+				output.writeInt(data.length);
+				output.writeLong(dueAt);
+				output.write(data);
+				output.flush();
+			} catch (IOException e) {
+				throw new IllegalStateException("Mqtt delayed message write fail, segment:" + segment, e);
+			}
+			segments.add(segment);
+			if (segment == currentSegment) {
+				addToWheel(dueTick, message);
+			}
+			size++;
+			return true;
+		}
+	}
+
+	/**
+	 * 推进时间轮，取出已经到期的消息
+	 *
+	 * @param now 当前时间 (ms)
+	 * @return 到期的消息，有到期的消息时每次最多跨过一个时间段
+	 */
+	public synchronized List<Message> advance(long now) {
+		long nowTick = now / tickMs;
+		if (cursorTick > nowTick) {
+			return Collections.emptyList();
+		}
+		List<Message> dueList = new ArrayList<>();
+		try {
+			while (cursorTick <= nowTick) {
+				long segmentStartTick = currentSegment * wheelSize;
+				long segmentEndTick = segmentStartTick + wheelSize;
+				long endTick = Math.min(nowTick + 1, segmentEndTick);
+				for (; cursorTick < endTick; cursorTick++) {
+					int index = (int) (cursorTick - segmentStartTick);
+					List<Message> bucket = wheel[index];
+					if (bucket != null) {
+						dueList.addAll(bucket);
+						wheel[index] = null;
+					}
+				}
+				if (cursorTick < segmentEndTick) {
+					break;
+				}
+				// 当前时间段已全部到期，删除文件，跳到下一个有消息的时间段或当前时间所在的时间段
+				removeSegment(currentSegment);
+				long nextSegment = Math.max(nowTick / wheelSize, currentSegment + 1);
+				Long pendingSegment = segments.ceiling(currentSegment + 1);
+				currentSegment = pendingSegment != null && pendingSegment < nextSegment ? pendingSegment : nextSegment;
+				cursorTick = Math.max(cursorTick, currentSegment * wheelSize);
+				loadSegment(currentSegment);
+				// 已有到期的消息时，下个时间段下次再处理，停机较久后恢复时避免一次取出过多的消息
+				if (!dueList.isEmpty()) {
+					break;
+				}
+			}
+			checkpointFile.seek(0);
+			checkpointFile.writeLong(cursorTick);
+		} catch (IOException e) {
+			logger.error("Mqtt delayed store advance error, segment:{}", currentSegment, e);
+		}
+		size -= dueList.size();
+		return dueList;
+	}
+
+	/**
+	 * 待触发的消息数
+	 *
+	 * @return 消息数
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	@Override
+	public synchronized void close() {
+		for (DataOutputStream output : appenders.values()) {
+			closeQuietly(output);
+		}
+		appenders.clear();
+		closeQuietly(checkpointFile);
+	}
+
+	/**
+	 * 恢复：统计各时间段文件中未触发的消息，加载第一个时间段
+	 */
+	private void recover(long nowTick) throws IOException {
+		long checkpointTick = checkpointFile.length() >= 8 ? checkpointFile.readLong() : 0L;
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				long segment;
+				try {
+					segment = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				long count = countRecords(file, checkpointTick);
+				if (count > 0) {
+					segments.add(segment);
+					size += count;
+				} else if (!file.delete()) {
+					logger.warn("Mqtt delayed store delete file fail:{}", file);
+				}
+			}
+		}
+		long nowSegment = nowTick / wheelSize;
+		currentSegment = segments.isEmpty() ? nowSegment : Math.min(segments.first(), nowSegment);
+		cursorTick = Math.max(checkpointTick, currentSegment * wheelSize);
+		loadSegment(currentSegment);
+		if (size > 0) {
+			logger.info("Mqtt delayed store recover {} messages from {} segments.", size, segments.size());
+		}
+	}
+
+	/**
+	 * 统计未触发的消息数，截断崩溃时写了一半的消息
+	 */
+	private long countRecords(File file, long checkpointTick) throws IOException {
+		long count = 0;
+		long validLength = 0;
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			while (true) {
+				int length = input.readInt();
+				if (length < 0 || length > MAX_RECORD_LENGTH) {
+					break;
+				}
+				long dueAt = input.readLong();
+				if (input.skipBytes(length) < length) {
+					break;
+				}
+				validLength += 12 + length;
+				if (toTick(dueAt) >= checkpointTick) {
+					count++;
+				}
+			}
+		} catch (EOFException e) {
+			// 文件结束
+		}
+		if (validLength < file.length()) {
+			logger.warn("Mqtt delayed store file:{} truncated from {} to {}.", file, file.length(), validLength);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(validLength);
+			}
+		}
+		return count;
+	}
+
+	private void loadSegment(long segment) throws IOException {
+		if (!segments.contains(segment)) {
+			return;
+		}
+		// 先刷出缓冲，再读取
+		DataOutputStream output = appenders.get(segment);
+		if (output != null) {
+			output.flush();
+		}
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(getFile(segment))))) {
+			while (true) {
+				int length = input.readInt();
+				long dueAt = input.readLong();
+				byte[] data = new byte[length];
+				input.readFully(data);
+				long dueTick = toTick(dueAt);
+				if (dueTick >= cursorTick) {
+					addToWheel(dueTick, BinaryMessageSerializer.INSTANCE.deserialize(data));
+				}
+			}
+		} catch (EOFException e) {
+			// 文件结束
+		}
+	}
+
+	private void removeSegment(long segment) {
+		if (!segments.remove(segment)) {
+			return;
+		}
+		DataOutputStream output = appenders.remove(segment);
+		if (output != null) {
+			closeQuietly(output);
+		}
+		File file = getFile(segment);
+		if (!file.delete()) {
+			logger.warn("Mqtt delayed store delete file fail:{}", file);
+		}
+	}
+
+	/**
+	 * 到期时间所在的 tick，向上取整，消息不会提前触发
+	 */
+	private long toTick(long dueAt) {
+		return (dueAt + tickMs - 1) / tickMs;
+	}
+
+	private void addToWheel(long dueTick, Message message) {
+		int index = (int) (dueTick - currentSegment * wheelSize);
+		List<Message> bucket = wheel[index];
+		if (bucket == null) {
+			bucket = new ArrayList<>(4);
+			wheel[index] = bucket;
+		}
+		bucket.add(message);
+	}
+
+	private DataOutputStream getAppender(long segment) throws FileNotFoundException {
+		DataOutputStream output = appenders.get(segment);
+		if (output == null) {
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getFile(segment), true)));
+			appenders.put(segment, output);
+		}
+		return output;
+	}
+
+	private File getFile(long segment) {
+		return new File(dir, segment + SEGMENT_SUFFIX);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Message>[] newWheel(int wheelSize) {
+		return (List<Message>[]) new List[wheelSize];
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			logger.error("Mqtt delayed store close error.", e);
+		}
+	}
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.delay;
+
+import net.dreamlu.iot.mqtt.codec.MqttQoS;
+import net.dreamlu.iot.mqtt.core.server.dispatcher.IMqttMessageDispatcher;
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.store.IMqttMessageStore;
+import net.dreamlu.iot.mqtt.core.util.TopicUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tio.utils.timer.TimerTask;
+import org.tio.utils.timer.TimerTaskService;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 延迟发布，发布到 $delayed/{seconds}/{topic} 的消息到期后再发布到 {topic}
+ *
+ * <p>
+ * 延迟消息在收到的节点上保存，到期后交给消息转发器，和普通消息一样流转到本机和集群的订阅者，不再回调 IMqttMessageListener。
+ * retain 消息在到期发布时才存储或清除保留消息。
+ * </p>
+ *
+ * @author L.cm
+ */
+public class MqttDelayedPublish {
+	private static final Logger logger = LoggerFactory.getLogger(MqttDelayedPublish.class);
+	/**
+	 * 延迟发布的 topic 前缀
+	 */
+	public static final String TOPIC_PREFIX = "$delayed/";
+	/**
+	 * 时间轮每格 1 秒，内存中保存 1 小时内到期的消息
+	 */
+	private static final long TICK_MS = 1000L;
+	private static final int WHEEL_SIZE = 3600;
+	private final MqttDelayedMessageStore messageStore;
+	private final long maxDelaySeconds;
+	private final TimerTaskService taskService;
+	private final Executor executor;
+	private final IMqttMessageDispatcher messageDispatcher;
+	private final IMqttMessageStore retainMessageStore;
+	private volatile boolean stopped;
+
+	public MqttDelayedPublish(File storeDir,
+							  long maxDelaySeconds,
+							  TimerTaskService taskService,
+							  Executor executor,
+							  IMqttMessageDispatcher messageDispatcher,
+							  IMqttMessageStore retainMessageStore) {
+		this.messageStore = new MqttDelayedMessageStore(storeDir, TICK_MS, WHEEL_SIZE);
+		this.maxDelaySeconds = maxDelaySeconds;
+		this.taskService = taskService;
+		this.executor = executor;
+		this.messageDispatcher = messageDispatcher;
+		this.retainMessageStore = retainMessageStore;
+	}
+
+	/**
+	 * 判断是否为延迟发布的 topic
+	 *
+	 * @param topicName topicName
+	 * @return 是否延迟发布
+	 */
+	public static boolean isDelayed(String topicName) {
+		return topicName.startsWith(TOPIC_PREFIX);
+	}
+
+	/**
+	 * 解析延迟发布的 topic，权限判断和 retain 都按解析出的 {topic} 处理
+	 *
+	 * @param topicName $delayed/{seconds}/{topic}
+	 * @return DelayedTopic，topic 不合法时返回 null
+	 */
+	public DelayedTopic parse(String topicName) {
+		int index = topicName.indexOf('/', TOPIC_PREFIX.length());
+		if (index < 0) {
+			logger.error("Mqtt delayed publish topic:{} illegal, must be $delayed/{seconds}/{topic}.", topicName);
+			return null;
+		}
+		long seconds;
+		try {
+			seconds = Long.parseLong(topicName.substring(TOPIC_PREFIX.length(), index));
+		} catch (NumberFormatException e) {
+			logger.error("Mqtt delayed publish topic:{} illegal, seconds is not a number.", topicName);
+			return null;
+		}
+		if (seconds < 0 || seconds > maxDelaySeconds) {
+			logger.error("Mqtt delayed publish topic:{} illegal, seconds must between 0 and {}.", topicName, maxDelaySeconds);
+			return null;
+		}
+		String topic = topicName.substring(index + 1);
+		try {
+			TopicUtil.validateTopicName(topic);
+		} catch (IllegalArgumentException e) {
+			logger.error("Mqtt delayed publish topic:{} illegal, {}", topicName, e.getMessage());
+			return null;
+		}
+		return new DelayedTopic(seconds, topic);
+	}
+
+	/**
+	 * 添加延迟消息
+	 *
+	 * @param topicName $delayed/{seconds}/{topic}
+	 * @param message   Message，topic 会替换为 {topic}
+	 * @return 是否添加成功，topic 不合法时丢弃
+	 */
+	public boolean offer(String topicName, Message message) {
+		DelayedTopic delayedTopic = parse(topicName);
+		return delayedTopic != null && offer(delayedTopic, message);
+	}
+
+	/**
+	 * 添加延迟消息
+	 *
+	 * @param delayedTopic DelayedTopic
+	 * @param message      Message，topic 会替换为 {topic}
+	 * @return 是否添加成功，写入文件失败时返回 false
+	 */
+	public boolean offer(DelayedTopic delayedTopic, Message message) {
+		message.setTopic(delayedTopic.getTopic());
+		boolean added;
+		try {
+			added = messageStore.add(message, System.currentTimeMillis() + delayedTopic.getSeconds() * 1000L);
+		} catch (IllegalStateException e) {
+			logger.error("Mqtt delayed publish topic:{} store error.", delayedTopic.getTopic(), e);
+			return false;
+		}
+		if (!added) {
+			dispatch(Collections.singletonList(message));
+		}
+		return true;
+	}
+
+	/**
+	 * 待发布的延迟消息数
+	 *
+	 * @return 消息数
+	 */
+	public long size() {
+		return messageStore.size();
+	}
+
+	/**
+	 * 启动，MqttServer 启动时调用
+	 */
+	public void start() {
+		scheduleAdvance();
+	}
+
+	/**
+	 * 停止，MqttServer 停止时调用，未到期的消息保留在文件中，重启后继续
+	 */
+	public void stop() {
+		this.stopped = true;
+		messageStore.close();
+	}
+
+	private void scheduleAdvance() {
+		taskService.addTask(systemTimer -> new TimerTask(TICK_MS) {
+			@Override
+			public void run() {
+				if (stopped) {
+					return;
+				}
+				try {
+					dispatch(messageStore.advance(System.currentTimeMillis()));
+				} catch (Throwable e) {
+					logger.error("Mqtt delayed publish advance error.", e);
+				}
+				scheduleAdvance();
+			}
+		});
+	}
+
+	private void dispatch(List<Message> messageList) {
+		if (messageList.isEmpty()) {
+			return;
+		}
+		executor.execute(() -> {
+			for (Message message : messageList) {
+				try {
+					if (message.isRetain()) {
+						retain(message);
+					}
+					messageDispatcher.send(message);
+				} catch (Throwable e) {
+					logger.error("Mqtt delayed publish topic:{} send error.", message.getTopic(), e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 到期发布时处理 retain 消息，和普通发布的逻辑一致
+	 *
+	 * @param message Message
+	 */
+	private void retain(Message message) {
+		String topic = message.getTopic();
+		long now = System.currentTimeMillis();
+		if (message.isExpired(now)) {
+			return;
+		}
+		byte[] payload = message.getPayload();
+		// qos == 0 or payload is none,then clear previous retain message
+		if (MqttQoS.AT_MOST_ONCE.value() == message.getQos() || payload == null || payload.length == 0) {
+			retainMessageStore.clearRetainMessage(topic);
+			return;
+		}
+		Message retainMessage = new Message();
+		retainMessage.setTopic(topic);
+		retainMessage.setQos(message.getQos());
+		retainMessage.setPayload(payload);
+		retainMessage.setFromClientId(message.getFromClientId());
+		retainMessage.setMessageType(MessageType.DOWN_STREAM);
+		retainMessage.setRetain(true);
+		retainMessage.setDup(message.isDup());
+		retainMessage.setTimestamp(now);
+		retainMessage.setPeerHost(message.getPeerHost());
+		retainMessage.setNode(message.getNode());
+		retainMessage.setExpiryAt(message.getExpiryAt());
+		retainMessageStore.addRetainMessage(topic, retainMessage);
+	}
+
+	/**
+	 * 解析后的延迟发布 topic
+	 */
+	public static final class DelayedTopic {
+		private final long seconds;
+		private final String topic;
+
+		private DelayedTopic(long seconds, String topic) {
+			this.seconds = seconds;
+			this.topic = topic;
+		}
+
+		public long getSeconds() {
+			return seconds;
+		}
+
+		public String getTopic() {
+			return topic;
+		}
+	}
+
+}
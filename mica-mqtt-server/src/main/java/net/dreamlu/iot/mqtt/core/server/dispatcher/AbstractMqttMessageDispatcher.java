@@ -39,6 +39,18 @@ public abstract class AbstractMqttMessageDispatcher implements IMqttMessageDispa
 		this.sessionManager = mqttServer.getServerCreator().getSessionManager();
 	}
 
+	/**
+	 * 启动，MqttServer 启动时调用
+	 */
+	public void start() {
+	}
+
+	/**
+	 * 停止，MqttServer 停止时调用
+	 */
+	public void stop() {
+	}
+
 	/**
 	 * 转发所有消息
 	 *
@@ -49,6 +61,13 @@ public abstract class AbstractMqttMessageDispatcher implements IMqttMessageDispa
 	@Override
 	public boolean send(Message message) {
 		Objects.requireNonNull(mqttServer, "MqttServer require not Null.");
+		// 0. 标记来源节点，集群其他节点据此跳过本节点发出的消息
+		if (message.getNode() == null) {
+			message.setNode(mqttServer.getServerCreator().getNodeName());
+		}
+		if (message.getTimestamp() == 0) {
+			message.setTimestamp(System.currentTimeMillis());
+		}
 		// 1. 先发送到本服务
 		MessageType messageType = message.getMessageType();
 		if (MessageType.SUBSCRIBE == messageType) {
@@ -47,6 +47,10 @@ public enum MessageType {
 	 * 断开连接
 	 */
 	DISCONNECT(6),
+	/**
+	 * 客户端下线，更新集群客户端注册表
+	 */
+	OFFLINE(7),
 	;
 
 	private static final MessageType[] VALUES;
@@ -25,6 +25,7 @@ import net.dreamlu.iot.mqtt.core.server.http.api.form.PublishForm;
 import net.dreamlu.iot.mqtt.core.server.http.api.form.SubscribeForm;
 import net.dreamlu.iot.mqtt.core.server.http.api.result.Result;
 import net.dreamlu.iot.mqtt.core.server.http.handler.MqttHttpRoutes;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttBackpressure;
 import net.dreamlu.iot.mqtt.core.server.model.Message;
 import net.dreamlu.iot.mqtt.core.server.model.Subscribe;
 import net.dreamlu.iot.mqtt.core.server.session.IMqttSessionManager;
@@ -37,7 +38,9 @@ import org.tio.http.common.Method;
 import org.tio.utils.hutool.StrUtil;
 import org.tio.utils.json.JsonUtil;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Function;
 
 /**
@@ -48,10 +51,12 @@ import java.util.function.Function;
 public class MqttHttpApi {
 	private final IMqttMessageDispatcher messageDispatcher;
 	private final IMqttSessionManager sessionManager;
+	private final MqttBackpressure backpressure;
 
 	public MqttHttpApi(MqttServerCreator serverCreator) {
 		this.messageDispatcher = serverCreator.getMessageDispatcher();
 		this.sessionManager = serverCreator.getSessionManager();
+		this.backpressure = serverCreator.getBackpressure();
 	}
 
 	/**
@@ -292,6 +297,30 @@ public class MqttHttpApi {
 		return Result.ok(new HttpResponse(request), subscribeList);
 	}
 
+	/**
+	 * 获取背压统计，未开启背压时只返回 enabled: false
+	 * <p>
+	 * GET /api/v1/stats/backpressure
+	 *
+	 * @param request HttpRequest
+	 * @return HttpResponse
+	 */
+	public HttpResponse getBackpressureStats(HttpRequest request) {
+		Map<String, Object> stats = new LinkedHashMap<>();
+		stats.put("enabled", backpressure != null);
+		if (backpressure != null) {
+			stats.put("executorQueueSize", backpressure.getExecutorQueueSize());
+			stats.put("executorOverloaded", backpressure.isExecutorOverloaded());
+			stats.put("pausedConnections", backpressure.getPausedConnections());
+			stats.put("pauseCount", backpressure.getPauseCount());
+			stats.put("resumeCount", backpressure.getResumeCount());
+			stats.put("congestedConnections", backpressure.getCongestedConnections());
+			stats.put("droppedCount", backpressure.getDroppedCount());
+			stats.put("congestionDisconnectCount", backpressure.getCongestionDisconnectCount());
+		}
+		return Result.ok(new HttpResponse(request), stats);
+	}
+
 	private void sendSubOrUnSubscribe(BaseForm form) {
 		Message message = new Message();
 		message.setFromClientId(form.getClientId());
@@ -365,6 +394,7 @@ public class MqttHttpApi {
 		MqttHttpRoutes.register(Method.POST, "/api/v1/mqtt/unsubscribe/batch", this::unsubscribeBatch);
 		MqttHttpRoutes.register(Method.POST, "/api/v1/clients/delete", this::deleteClients);
 		MqttHttpRoutes.register(Method.GET, "/api/v1/client/subscriptions", this::getClientSubscriptions);
+		MqttHttpRoutes.register(Method.GET, "/api/v1/stats/backpressure", this::getBackpressureStats);
 		// @formatter:on
 	}
 
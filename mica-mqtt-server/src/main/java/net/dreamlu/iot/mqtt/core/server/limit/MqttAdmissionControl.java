@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import net.dreamlu.iot.mqtt.core.server.MqttConst;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tio.core.ChannelContext;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * mqtt 连接准入控制，避免大量设备同时重连时认证、session、集群广播等堆积导致心跳超时，进而反复重连。
+ *
+ * <p>
+ * 1. tcp 连接：全局和单个 ip 的令牌桶，超过时直接关闭连接。
+ * 2. CONNECT：全局和单个 ip 的令牌桶，超过时快速拒绝，mqtt5 回复 connAck 服务繁忙后关闭，mqtt3 直接关闭。
+ * 3. 握手并发数：tcp 连接建立到 connAck 成功之间的连接数，超过时直接关闭新的 tcp 连接。
+ * </p>
+ * 速率小于等于 0 时不限制。拒绝时只计数，由 MqttServer 定时调用 {@link #maintain()} 清理空闲的 ip 令牌桶并汇总输出拒绝日志。
+ *
+ * @author L.cm
+ */
+public class MqttAdmissionControl {
+	private static final Logger logger = LoggerFactory.getLogger(MqttAdmissionControl.class);
+	/**
+	 * 单个 ip 令牌桶的最大数量，超过时新的 ip 只受全局速率限制，直到定时清理
+	 */
+	private static final int MAX_IP_BUCKETS = 100_000;
+	private long maintainInterval = 10_000L;
+	private double acceptRate;
+	private double acceptBurst;
+	private double ipAcceptRate;
+	private double ipAcceptBurst;
+	private double connectRate;
+	private double connectBurst;
+	private double ipConnectRate;
+	private double ipConnectBurst;
+	private int maxHandshakes;
+	private TokenBucket acceptBucket;
+	private TokenBucket connectBucket;
+	private final ConcurrentMap<String, TokenBucket> ipAcceptBuckets = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, TokenBucket> ipConnectBuckets = new ConcurrentHashMap<>();
+	private final AtomicInteger handshakes = new AtomicInteger();
+	private final LongAdder rejectedAccepts = new LongAdder();
+	private final LongAdder rejectedConnects = new LongAdder();
+	private final LongAdder rejectedHandshakes = new LongAdder();
+	/**
+	 * 上次汇总日志时的拒绝数
+	 */
+	private long lastRejected;
+
+	public static MqttAdmissionControl create() {
+		return new MqttAdmissionControl();
+	}
+
+	/**
+	 * 全局 tcp 连接速率
+	 *
+	 * @param rate  每秒连接数
+	 * @param burst 突发数
+	 * @return MqttAdmissionControl
+	 */
+	public MqttAdmissionControl acceptRate(double rate, double burst) {
+		this.acceptRate = rate;
+		this.acceptBurst = burst;
+		this.acceptBucket = newBucket(rate, burst);
+		return this;
+	}
+
+	/**
+	 * 单个 ip 的 tcp 连接速率
+	 *
+	 * @param rate  每秒连接数
+	 * @param burst 突发数
+	 * @return MqttAdmissionControl
+	 */
+	public MqttAdmissionControl ipAcceptRate(double rate, double burst) {
+		this.ipAcceptRate = rate;
+		this.ipAcceptBurst = burst;
+		this.ipAcceptBuckets.clear();
+		return this;
+	}
+
+	/**
+	 * 全局 CONNECT 处理速率
+	 *
+	 * @param rate  每秒 CONNECT 数
+	 * @param burst 突发数
+	 * @return MqttAdmissionControl
+	 */
+	public MqttAdmissionControl connectRate(double rate, double burst) {
+		this.connectRate = rate;
+		this.connectBurst = burst;
+		this.connectBucket = newBucket(rate, burst);
+		return this;
+	}
+
+	/**
+	 * 单个 ip 的 CONNECT 处理速率
+	 *
+	 * @param rate  每秒 CONNECT 数
+	 * @param burst 突发数
+	 * @return MqttAdmissionControl
+	 */
+	public MqttAdmissionControl ipConnectRate(double rate, double burst) {
+		this.ipConnectRate = rate;
+		this.ipConnectBurst = burst;
+		this.ipConnectBuckets.clear();
+		return this;
+	}
+
+	/**
+	 * 最大握手并发数
+	 *
+	 * @param maxHandshakes 握手并发数，小于等于 0 不限制
+	 * @return MqttAdmissionControl
+	 */
+	public MqttAdmissionControl maxHandshakes(int maxHandshakes) {
+		this.maxHandshakes = maxHandshakes;
+		return this;
+	}
+
+	/**
+	 * 定时维护的间隔
+	 *
+	 * @param maintainInterval 间隔，单位毫秒，小于等于 0 时不定时维护
+	 * @return MqttAdmissionControl
+	 */
+	public MqttAdmissionControl maintainInterval(long maintainInterval) {
+		this.maintainInterval = maintainInterval;
+		return this;
+	}
+
+	/**
+	 * tcp 连接准入，成功后开始握手
+	 *
+	 * @param ip 客户端 ip
+	 * @return 是否允许
+	 */
+	public boolean tryAccept(String ip) {
+		if (!tryAcquire(acceptBucket, ipAcceptBuckets, ipAcceptRate, ipAcceptBurst, ip)) {
+			rejectedAccepts.increment();
+			return false;
+		}
+		if (maxHandshakes <= 0) {
+			handshakes.incrementAndGet();
+			return true;
+		}
+		while (true) {
+			int current = handshakes.get();
+			if (current >= maxHandshakes) {
+				rejectedHandshakes.increment();
+				return false;
+			}
+			if (handshakes.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * tcp 连接准入，成功后在连接上标记握手中
+	 *
+	 * @param context ChannelContext
+	 * @param ip      客户端 ip
+	 * @return 是否允许
+	 */
+	public boolean tryAccept(ChannelContext context, String ip) {
+		if (!tryAccept(ip)) {
+			return false;
+		}
+		context.set(MqttConst.HANDSHAKE, new AtomicBoolean(true));
+		return true;
+	}
+
+	/**
+	 * CONNECT 准入
+	 *
+	 * @param ip 客户端 ip
+	 * @return 是否允许
+	 */
+	public boolean tryConnect(String ip) {
+		if (!tryAcquire(connectBucket, ipConnectBuckets, ipConnectRate, ipConnectBurst, ip)) {
+			rejectedConnects.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 握手结束，connAck 成功或连接关闭，每个 tryAccept 成功的连接只调用一次
+	 */
+	public void releaseHandshake() {
+		handshakes.decrementAndGet();
+	}
+
+	/**
+	 * 释放连接上的握手名额，可重复调用
+	 *
+	 * @param context ChannelContext
+	 */
+	public void releaseHandshake(ChannelContext context) {
+		AtomicBoolean handshake = (AtomicBoolean) context.get(MqttConst.HANDSHAKE);
+		if (handshake != null && handshake.compareAndSet(true, false)) {
+			releaseHandshake();
+		}
+	}
+
+	/**
+	 * 定时维护，清理令牌已满即空闲的 ip 令牌桶，有拒绝时汇总输出一条日志
+	 */
+	public void maintain() {
+		ipAcceptBuckets.values().removeIf(TokenBucket::isFull);
+		ipConnectBuckets.values().removeIf(TokenBucket::isFull);
+		long accepts = rejectedAccepts.sum();
+		long connects = rejectedConnects.sum();
+		long rejectedHandshakeCount = rejectedHandshakes.sum();
+		long rejected = accepts + connects + rejectedHandshakeCount;
+		if (rejected > lastRejected) {
+			logger.warn("Mqtt admission rejected {} in last {}ms, total accepts:{} connects:{} handshakes:{}, current handshakes:{}",
+				rejected - lastRejected, maintainInterval, accepts, connects, rejectedHandshakeCount, handshakes.get());
+		}
+		lastRejected = rejected;
+	}
+
+	private static boolean tryAcquire(TokenBucket globalBucket, ConcurrentMap<String, TokenBucket> ipBuckets,
+									  double ipRate, double ipBurst, String ip) {
+		if (ipRate > 0 && ip != null) {
+			TokenBucket ipBucket = ipBuckets.get(ip);
+			if (ipBucket == null && ipBuckets.size() < MAX_IP_BUCKETS) {
+				ipBucket = ipBuckets.computeIfAbsent(ip, key -> newBucket(ipRate, ipBurst));
+			}
+			if (ipBucket != null && !ipBucket.tryAcquire()) {
+				return false;
+			}
+		}
+		return globalBucket == null || globalBucket.tryAcquire();
+	}
+
+	private static TokenBucket newBucket(double rate, double burst) {
+		return rate > 0 ? new TokenBucket(rate, Math.max(1, burst)) : null;
+	}
+
+	public double getAcceptRate() {
+		return acceptRate;
+	}
+
+	public double getAcceptBurst() {
+		return acceptBurst;
+	}
+
+	public double getIpAcceptRate() {
+		return ipAcceptRate;
+	}
+
+	public double getIpAcceptBurst() {
+		return ipAcceptBurst;
+	}
+
+	public double getConnectRate() {
+		return connectRate;
+	}
+
+	public double getConnectBurst() {
+		return connectBurst;
+	}
+
+	public double getIpConnectRate() {
+		return ipConnectRate;
+	}
+
+	public double getIpConnectBurst() {
+		return ipConnectBurst;
+	}
+
+	public int getMaxHandshakes() {
+		return maxHandshakes;
+	}
+
+	public long getMaintainInterval() {
+		return maintainInterval;
+	}
+
+	/**
+	 * ip 令牌桶数量
+	 *
+	 * @return 数量
+	 */
+	public int getIpBucketCount() {
+		return ipAcceptBuckets.size() + ipConnectBuckets.size();
+	}
+
+	/**
+	 * 当前握手中的连接数
+	 *
+	 * @return 连接数
+	 */
+	public int getHandshakes() {
+		return handshakes.get();
+	}
+
+	public long getRejectedAccepts() {
+		return rejectedAccepts.sum();
+	}
+
+	public long getRejectedConnects() {
+		return rejectedConnects.sum();
+	}
+
+	public long getRejectedHandshakes() {
+		return rejectedHandshakes.sum();
+	}
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 背压配置和指标，业务线程池积压或连接待发送的字节数过多时限流，避免堆内存持续增长。
+ *
+ * <p>
+ * 1. 业务线程池：队列有界，积压的任务数超过高水位时进入过载，降到低水位以下时解除。过载时暂停读取收到 PUBLISH 的连接，解除后恢复读取。
+ * 2. 连接：待发送的 PUBLISH 字节数超过高水位时该连接拥塞，降到低水位以下时解除。拥塞只影响该订阅者，不暂停发布者：
+ * 发给它的 qos0 消息直接丢弃，持续拥塞超过 congestionTimeout 时断开该连接。
+ * </p>
+ * 暂停期间客户端的数据留在 tcp 缓冲区中，暂停时间过长时可能触发心跳超时，请按业务设置水位。
+ *
+ * @author L.cm
+ */
+public class MqttBackpressure {
+	private int executorQueueCapacity = 100_000;
+	private int executorLowWatermark = 10_000;
+	private int executorHighWatermark = 50_000;
+	private long connectionLowWatermark = 256 * 1024;
+	private long connectionHighWatermark = 1024 * 1024;
+	/**
+	 * 检查是否可以恢复读取的间隔 (ms)
+	 */
+	private long checkInterval = 100L;
+	/**
+	 * 连接持续拥塞超过该时间 (ms) 时断开，0 不断开
+	 */
+	private long congestionTimeout = 30_000L;
+	private volatile int executorQueueSize;
+	private volatile boolean executorOverloaded;
+	private final AtomicInteger congestedConnections = new AtomicInteger();
+	private final AtomicInteger pausedConnections = new AtomicInteger();
+	private final LongAdder pauseCount = new LongAdder();
+	private final LongAdder resumeCount = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+	private final LongAdder congestionDisconnectCount = new LongAdder();
+
+	public static MqttBackpressure create() {
+		return new MqttBackpressure();
+	}
+
+	/**
+	 * 业务线程池的队列大小，队列满时由提交任务的线程执行
+	 *
+	 * @param executorQueueCapacity 队列大小
+	 * @return MqttBackpressure
+	 */
+	public MqttBackpressure executorQueueCapacity(int executorQueueCapacity) {
+		if (executorQueueCapacity < 1) {
+			throw new IllegalArgumentException("Mqtt executorQueueCapacity must be greater than 0.");
+		}
+		this.executorQueueCapacity = executorQueueCapacity;
+		return this;
+	}
+
+	/**
+	 * 业务线程池积压任务数的水位
+	 *
+	 * @param low  低水位
+	 * @param high 高水位
+	 * @return MqttBackpressure
+	 */
+	public MqttBackpressure executorWatermark(int low, int high) {
+		if (low < 0 || low > high) {
+			throw new IllegalArgumentException("Mqtt executor watermark low must between 0 and high.");
+		}
+		this.executorLowWatermark = low;
+		this.executorHighWatermark = high;
+		return this;
+	}
+
+	/**
+	 * 单个连接待发送的 PUBLISH 消息体字节数的水位
+	 *
+	 * @param low  低水位
+	 * @param high 高水位
+	 * @return MqttBackpressure
+	 */
+	public MqttBackpressure connectionWatermark(long low, long high) {
+		if (low < 0 || low > high) {
+			throw new IllegalArgumentException("Mqtt connection watermark low must between 0 and high.");
+		}
+		this.connectionLowWatermark = low;
+		this.connectionHighWatermark = high;
+		return this;
+	}
+
+	public MqttBackpressure checkInterval(long checkInterval) {
+		if (checkInterval < 1) {
+			throw new IllegalArgumentException("Mqtt backpressure checkInterval must be greater than 0.");
+		}
+		this.checkInterval = checkInterval;
+		return this;
+	}
+
+	/**
+	 * 连接持续拥塞超过该时间时断开，拥塞期间 qos1、qos2 消息仍然排队发送
+	 *
+	 * @param congestionTimeout 时间 (ms)，0 不断开
+	 * @return MqttBackpressure
+	 */
+	public MqttBackpressure congestionTimeout(long congestionTimeout) {
+		if (congestionTimeout < 0) {
+			throw new IllegalArgumentException("Mqtt backpressure congestionTimeout must be greater than or equal to 0.");
+		}
+		this.congestionTimeout = congestionTimeout;
+		return this;
+	}
+
+	public int getExecutorQueueCapacity() {
+		return executorQueueCapacity;
+	}
+
+	public int getExecutorLowWatermark() {
+		return executorLowWatermark;
+	}
+
+	public int getExecutorHighWatermark() {
+		return executorHighWatermark;
+	}
+
+	public long getConnectionLowWatermark() {
+		return connectionLowWatermark;
+	}
+
+	public long getConnectionHighWatermark() {
+		return connectionHighWatermark;
+	}
+
+	public long getCheckInterval() {
+		return checkInterval;
+	}
+
+	public long getCongestionTimeout() {
+		return congestionTimeout;
+	}
+
+	/**
+	 * 最近一次检查时业务线程池积压的任务数
+	 *
+	 * @return 任务数
+	 */
+	public int getExecutorQueueSize() {
+		return executorQueueSize;
+	}
+
+	/**
+	 * 业务线程池是否过载
+	 *
+	 * @return 是否过载
+	 */
+	public boolean isExecutorOverloaded() {
+		return executorOverloaded;
+	}
+
+	/**
+	 * 当前拥塞的连接数
+	 *
+	 * @return 连接数
+	 */
+	public int getCongestedConnections() {
+		return congestedConnections.get();
+	}
+
+	/**
+	 * 当前暂停读取的连接数
+	 *
+	 * @return 连接数
+	 */
+	public int getPausedConnections() {
+		return pausedConnections.get();
+	}
+
+	/**
+	 * 暂停读取的次数
+	 *
+	 * @return 次数
+	 */
+	public long getPauseCount() {
+		return pauseCount.sum();
+	}
+
+	/**
+	 * 恢复读取的次数
+	 *
+	 * @return 次数
+	 */
+	public long getResumeCount() {
+		return resumeCount.sum();
+	}
+
+	/**
+	 * 连接拥塞时丢弃的 qos0 消息数
+	 *
+	 * @return 消息数
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * 持续拥塞超时断开的连接数
+	 *
+	 * @return 连接数
+	 */
+	public long getCongestionDisconnectCount() {
+		return congestionDisconnectCount.sum();
+	}
+
+	/**
+	 * 是否需要暂停读取发布者，只由业务线程池过载触发，连接拥塞单独处理
+	 *
+	 * @return 业务线程池是否过载
+	 */
+	public boolean isOverloaded() {
+		return executorOverloaded;
+	}
+
+	/**
+	 * 更新业务线程池积压的任务数，超过高水位时过载，降到低水位以下时解除
+	 */
+	void updateExecutorQueueSize(int queueSize) {
+		this.executorQueueSize = queueSize;
+		if (executorOverloaded) {
+			if (queueSize <= executorLowWatermark) {
+				executorOverloaded = false;
+			}
+		} else if (queueSize >= executorHighWatermark) {
+			executorOverloaded = true;
+		}
+	}
+
+	void onCongested() {
+		congestedConnections.incrementAndGet();
+	}
+
+	void onDecongested() {
+		congestedConnections.decrementAndGet();
+	}
+
+	void onPaused() {
+		pausedConnections.incrementAndGet();
+		pauseCount.increment();
+	}
+
+	void onResumed() {
+		pausedConnections.decrementAndGet();
+		resumeCount.increment();
+	}
+
+	void onDropped() {
+		droppedCount.increment();
+	}
+
+	void onCongestionDisconnect() {
+		congestionDisconnectCount.increment();
+	}
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import net.dreamlu.iot.mqtt.codec.MqttPublishMessage;
+import net.dreamlu.iot.mqtt.codec.MqttQoS;
+import net.dreamlu.iot.mqtt.core.server.MqttConst;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
+import org.tio.core.intf.Packet;
+import org.tio.utils.timer.TimerTask;
+import org.tio.utils.timer.TimerTaskService;
+
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 背压控制，业务线程池过载时暂停读取发布消息的连接，定时检查，解除后恢复读取。
+ * 拥塞的订阅者单独处理，丢弃发给它的 qos0 消息，持续拥塞超时后断开。
+ *
+ * @author L.cm
+ */
+public class MqttBackpressureController {
+	private static final Logger logger = LoggerFactory.getLogger(MqttBackpressureController.class);
+	private final MqttBackpressure backpressure;
+	private final ThreadPoolExecutor executor;
+	private final TimerTaskService taskService;
+	private final Set<ChannelContext> pausedContexts = ConcurrentHashMap.newKeySet();
+	private final Set<ChannelContext> congestedContexts = ConcurrentHashMap.newKeySet();
+	private volatile boolean stopped;
+
+	public MqttBackpressureController(MqttBackpressure backpressure,
+									  ThreadPoolExecutor executor,
+									  TimerTaskService taskService) {
+		this.backpressure = backpressure;
+		this.executor = executor;
+		this.taskService = taskService;
+	}
+
+	public MqttBackpressure getBackpressure() {
+		return backpressure;
+	}
+
+	/**
+	 * 连接建立，替换为可暂停读取的 channel
+	 *
+	 * @param context ChannelContext
+	 */
+	public void onConnected(ChannelContext context) {
+		MqttPausableSocketChannel.wrap(context);
+	}
+
+	/**
+	 * 收到 PUBLISH，过载时暂停读取该连接
+	 *
+	 * @param context ChannelContext
+	 */
+	public void onPublish(ChannelContext context) {
+		backpressure.updateExecutorQueueSize(executor.getQueue().size());
+		if (!backpressure.isOverloaded()) {
+			return;
+		}
+		AsynchronousSocketChannel channel = context.asynchronousSocketChannel;
+		if (channel instanceof MqttPausableSocketChannel && ((MqttPausableSocketChannel) channel).pause(MqttPausableSocketChannel.PAUSE_BACKPRESSURE)) {
+			pausedContexts.add(context);
+			backpressure.onPaused();
+			logger.debug("Mqtt clientId:{} read paused, executor queue:{} congested connections:{}",
+				context.getBsId(), backpressure.getExecutorQueueSize(), backpressure.getCongestedConnections());
+		}
+	}
+
+	/**
+	 * 连接拥塞时丢弃 qos0 消息，需要在 topic alias 之前判断，避免丢弃携带 topic 的首条消息
+	 *
+	 * @param context ChannelContext
+	 * @param message MqttPublishMessage
+	 * @return 是否丢弃
+	 */
+	public boolean tryDrop(ChannelContext context, MqttPublishMessage message) {
+		MqttOutboundBytes outboundBytes = (MqttOutboundBytes) context.get(MqttConst.OUTBOUND_BYTES);
+		if (outboundBytes == null || !outboundBytes.isCongested() || MqttQoS.AT_MOST_ONCE != message.fixedHeader().qosLevel()) {
+			return false;
+		}
+		backpressure.onDropped();
+		return true;
+	}
+
+	/**
+	 * 发送 PUBLISH 或预先编码的批量 PUBLISH，统计连接待发送的字节数
+	 *
+	 * @param context ChannelContext
+	 * @param packet  MqttPublishMessage 或预先编码的 Packet
+	 * @return 是否加入发送队列
+	 */
+	public boolean send(ChannelContext context, Packet packet) {
+		MqttOutboundBytes outboundBytes = (MqttOutboundBytes) context.get(MqttConst.OUTBOUND_BYTES);
+		if (outboundBytes == null) {
+			synchronized (context) {
+				outboundBytes = (MqttOutboundBytes) context.get(MqttConst.OUTBOUND_BYTES);
+				if (outboundBytes == null) {
+					outboundBytes = new MqttOutboundBytes(backpressure);
+					context.set(MqttConst.OUTBOUND_BYTES, outboundBytes);
+				}
+			}
+		}
+		boolean added = outboundBytes.add(packet);
+		if (outboundBytes.isCongested()) {
+			congestedContexts.add(context);
+		}
+		boolean result = Tio.send(context, packet);
+		// 连接已关闭时不会回调发送结果
+		if (!result && added) {
+			outboundBytes.onAfterSent(context, packet, false);
+		}
+		return result;
+	}
+
+	/**
+	 * 连接待发送的 PUBLISH 消息体字节数
+	 *
+	 * @param context ChannelContext
+	 * @return 字节数
+	 */
+	public long getOutboundBytes(ChannelContext context) {
+		MqttOutboundBytes outboundBytes = (MqttOutboundBytes) context.get(MqttConst.OUTBOUND_BYTES);
+		return outboundBytes == null ? 0 : outboundBytes.getBytes();
+	}
+
+	/**
+	 * 连接关闭，解除拥塞和暂停
+	 *
+	 * @param context ChannelContext
+	 */
+	public void onClose(ChannelContext context) {
+		MqttOutboundBytes outboundBytes = (MqttOutboundBytes) context.get(MqttConst.OUTBOUND_BYTES);
+		if (outboundBytes != null) {
+			outboundBytes.clear();
+		}
+		congestedContexts.remove(context);
+		if (pausedContexts.remove(context)) {
+			backpressure.onResumed();
+		}
+	}
+
+	/**
+	 * 启动，MqttServer 启动时调用
+	 */
+	public void start() {
+		scheduleCheck();
+	}
+
+	/**
+	 * 停止，MqttServer 停止时调用
+	 */
+	public void stop() {
+		this.stopped = true;
+	}
+
+	private void scheduleCheck() {
+		taskService.addTask(systemTimer -> new TimerTask(backpressure.getCheckInterval()) {
+			@Override
+			public void run() {
+				if (stopped) {
+					return;
+				}
+				try {
+					check();
+				} catch (Throwable e) {
+					logger.error("Mqtt backpressure check error.", e);
+				}
+				scheduleCheck();
+			}
+		});
+	}
+
+	private void check() {
+		checkCongested();
+		backpressure.updateExecutorQueueSize(executor.getQueue().size());
+		if (pausedContexts.isEmpty() || backpressure.isOverloaded()) {
+			return;
+		}
+		for (ChannelContext context : pausedContexts) {
+			if (pausedContexts.remove(context)) {
+				backpressure.onResumed();
+				AsynchronousSocketChannel channel = context.asynchronousSocketChannel;
+				if (channel instanceof MqttPausableSocketChannel && !context.isClosed) {
+					((MqttPausableSocketChannel) channel).resume(MqttPausableSocketChannel.PAUSE_BACKPRESSURE);
+				}
+			}
+		}
+		logger.debug("Mqtt backpressure resumed, paused connections:{}", backpressure.getPausedConnections());
+	}
+
+	/**
+	 * 断开持续拥塞超时的连接
+	 */
+	private void checkCongested() {
+		if (congestedContexts.isEmpty()) {
+			return;
+		}
+		long congestionTimeout = backpressure.getCongestionTimeout();
+		long now = System.currentTimeMillis();
+		for (ChannelContext context : congestedContexts) {
+			MqttOutboundBytes outboundBytes = (MqttOutboundBytes) context.get(MqttConst.OUTBOUND_BYTES);
+			long congestedAt = outboundBytes == null ? 0 : outboundBytes.getCongestedAt();
+			if (congestedAt == 0 || context.isClosed) {
+				congestedContexts.remove(context);
+			} else if (congestionTimeout > 0 && now - congestedAt >= congestionTimeout && congestedContexts.remove(context)) {
+				backpressure.onCongestionDisconnect();
+				logger.warn("Mqtt clientId:{} congested for {}ms, outbound bytes:{}, disconnect.",
+					context.getBsId(), now - congestedAt, outboundBytes.getBytes());
+				Tio.remove(context, "Mqtt congestion timeout");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+/**
+ * 超过限流时的处理方式
+ *
+ * @author L.cm
+ */
+public enum MqttLimitMode {
+
+	/**
+	 * 延迟处理，暂停读取该连接，由 tcp 流控让客户端降速，令牌足够时按顺序处理已读到的消息后恢复读取
+	 */
+	DELAY,
+	/**
+	 * 丢弃消息
+	 */
+	DROP,
+	/**
+	 * 断开连接
+	 */
+	DISCONNECT
+
+}
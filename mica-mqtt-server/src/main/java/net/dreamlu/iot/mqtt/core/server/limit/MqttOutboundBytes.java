@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import net.dreamlu.iot.mqtt.codec.MqttPublishMessage;
+import org.tio.core.ChannelContext;
+import org.tio.core.intf.Packet;
+import org.tio.core.intf.PacketListener;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 连接待发送的 PUBLISH 字节数，发送完成或连接关闭清理队列时减少。单条 PUBLISH 按消息体统计，预先编码的批量发送按编码后的字节数统计。
+ *
+ * @author L.cm
+ */
+class MqttOutboundBytes implements PacketListener {
+	private final MqttBackpressure backpressure;
+	private final AtomicLong bytes = new AtomicLong();
+	/**
+	 * 进入拥塞的时间 (ms)，0 未拥塞
+	 */
+	private final AtomicLong congestedAt = new AtomicLong();
+
+	MqttOutboundBytes(MqttBackpressure backpressure) {
+		this.backpressure = backpressure;
+	}
+
+	/**
+	 * 消息加入发送队列
+	 *
+	 * @param packet MqttPublishMessage 或预先编码的 Packet
+	 * @return 是否统计，重发时复用同一个消息，只统计一次
+	 */
+	boolean add(Packet packet) {
+		if (packet.getPacketListener() != null) {
+			return false;
+		}
+		packet.setPacketListener(this);
+		if (bytes.addAndGet(getBytes(packet)) >= backpressure.getConnectionHighWatermark() && congestedAt.compareAndSet(0, System.currentTimeMillis())) {
+			backpressure.onCongested();
+		}
+		return true;
+	}
+
+	@Override
+	public void onAfterSent(ChannelContext context, Packet packet, boolean isSentSuccess) {
+		packet.setPacketListener(null);
+		if (bytes.addAndGet(-getBytes(packet)) <= backpressure.getConnectionLowWatermark() && congestedAt.getAndSet(0) != 0) {
+			backpressure.onDecongested();
+		}
+	}
+
+	/**
+	 * 连接关闭，解除拥塞
+	 */
+	void clear() {
+		if (congestedAt.getAndSet(0) != 0) {
+			backpressure.onDecongested();
+		}
+	}
+
+	long getBytes() {
+		return bytes.get();
+	}
+
+	boolean isCongested() {
+		return congestedAt.get() != 0;
+	}
+
+	long getCongestedAt() {
+		return congestedAt.get();
+	}
+
+	private static int getBytes(Packet packet) {
+		if (packet instanceof MqttPublishMessage) {
+			byte[] payload = ((MqttPublishMessage) packet).payload();
+			return payload == null ? 0 : payload.length;
+		}
+		// 发送时只移动 position，limit 不变
+		ByteBuffer buffer = packet.getPreEncodedByteBuffer();
+		return buffer == null ? 0 : buffer.limit();
+	}
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import org.tio.core.ChannelContext;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 可暂停读取的 AsynchronousSocketChannel
+ *
+ * <p>
+ * t-io 在处理完一次读取的数据后才发起下一次读取，暂停时不发起下一次读取而是暂存，恢复时再发起，
+ * 对端的数据留在 tcp 缓冲区中，由 tcp 流控让对端降速。读取以外的方法全部委托给原 channel。
+ * 背压和限流分别按原因暂停，所有原因都解除后才恢复读取。
+ * </p>
+ *
+ * @author L.cm
+ */
+class MqttPausableSocketChannel extends AsynchronousSocketChannel {
+	/**
+	 * 背压暂停
+	 */
+	static final int PAUSE_BACKPRESSURE = 1;
+	/**
+	 * 上行限流暂停
+	 */
+	static final int PAUSE_RATE_LIMIT = 1 << 1;
+	private final AsynchronousSocketChannel delegate;
+	private int pausedReasons;
+	private Runnable pendingRead;
+
+	MqttPausableSocketChannel(AsynchronousSocketChannel delegate) {
+		super(delegate.provider());
+		this.delegate = delegate;
+	}
+
+	/**
+	 * 替换连接的 channel 为可暂停读取的 channel
+	 *
+	 * @param context ChannelContext
+	 */
+	static void wrap(ChannelContext context) {
+		AsynchronousSocketChannel channel = context.asynchronousSocketChannel;
+		if (channel != null && !(channel instanceof MqttPausableSocketChannel)) {
+			context.asynchronousSocketChannel = new MqttPausableSocketChannel(channel);
+		}
+	}
+
+	/**
+	 * 暂停读取，当前进行中的读取不受影响
+	 *
+	 * @param reason 暂停原因
+	 * @return 该原因是否由未暂停变为暂停
+	 */
+	synchronized boolean pause(int reason) {
+		if ((pausedReasons & reason) != 0) {
+			return false;
+		}
+		pausedReasons |= reason;
+		return true;
+	}
+
+	/**
+	 * 解除暂停，所有原因都解除后发起暂存的读取
+	 *
+	 * @param reason 暂停原因
+	 * @return 该原因是否由暂停变为未暂停
+	 */
+	boolean resume(int reason) {
+		Runnable read;
+		synchronized (this) {
+			if ((pausedReasons & reason) == 0) {
+				return false;
+			}
+			pausedReasons &= ~reason;
+			if (pausedReasons != 0) {
+				return true;
+			}
+			read = pendingRead;
+			pendingRead = null;
+		}
+		if (read != null) {
+			read.run();
+		}
+		return true;
+	}
+
+	synchronized boolean isPaused() {
+		return pausedReasons != 0;
+	}
+
+	@Override
+	public <A> void read(ByteBuffer dst, long timeout, TimeUnit unit, A attachment, CompletionHandler<Integer, ? super A> handler) {
+		synchronized (this) {
+			if (pausedReasons != 0) {
+				pendingRead = () -> delegate.read(dst, timeout, unit, attachment, handler);
+				return;
+			}
+		}
+		delegate.read(dst, timeout, unit, attachment, handler);
+	}
+
+	@Override
+	public Future<Integer> read(ByteBuffer dst) {
+		return delegate.read(dst);
+	}
+
+	@Override
+	public <A> void read(ByteBuffer[] dsts, int offset, int length, long timeout, TimeUnit unit, A attachment, CompletionHandler<Long, ? super A> handler) {
+		delegate.read(dsts, offset, length, timeout, unit, attachment, handler);
+	}
+
+	@Override
+	public <A> void write(ByteBuffer src, long timeout, TimeUnit unit, A attachment, CompletionHandler<Integer, ? super A> handler) {
+		delegate.write(src, timeout, unit, attachment, handler);
+	}
+
+	@Override
+	public Future<Integer> write(ByteBuffer src) {
+		return delegate.write(src);
+	}
+
+	@Override
+	public <A> void write(ByteBuffer[] srcs, int offset, int length, long timeout, TimeUnit unit, A attachment, CompletionHandler<Long, ? super A> handler) {
+		delegate.write(srcs, offset, length, timeout, unit, attachment, handler);
+	}
+
+	@Override
+	public AsynchronousSocketChannel bind(SocketAddress local) throws IOException {
+		delegate.bind(local);
+		return this;
+	}
+
+	@Override
+	public <T> AsynchronousSocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+		delegate.setOption(name, value);
+		return this;
+	}
+
+	@Override
+	public <T> T getOption(SocketOption<T> name) throws IOException {
+		return delegate.getOption(name);
+	}
+
+	@Override
+	public Set<SocketOption<?>> supportedOptions() {
+		return delegate.supportedOptions();
+	}
+
+	@Override
+	public AsynchronousSocketChannel shutdownInput() throws IOException {
+		delegate.shutdownInput();
+		return this;
+	}
+
+	@Override
+	public AsynchronousSocketChannel shutdownOutput() throws IOException {
+		delegate.shutdownOutput();
+		return this;
+	}
+
+	@Override
+	public SocketAddress getRemoteAddress() throws IOException {
+		return delegate.getRemoteAddress();
+	}
+
+	@Override
+	public <A> void connect(SocketAddress remote, A attachment, CompletionHandler<Void, ? super A> handler) {
+		delegate.connect(remote, attachment, handler);
+	}
+
+	@Override
+	public Future<Void> connect(SocketAddress remote) {
+		return delegate.connect(remote);
+	}
+
+	@Override
+	public SocketAddress getLocalAddress() throws IOException {
+		return delegate.getLocalAddress();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return delegate.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			pendingRead = null;
+		}
+		delegate.close();
+	}
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 上行 PUBLISH 限流配置，按 clientId 限制每秒消息数和字节数，另外可以按 topic 前缀配置规则（第一个匹配的规则生效）。
+ *
+ * <p>
+ * 速率小于等于 0 时不限制，单条消息超过字节突发数时允许透支，之后的消息需要等待令牌补足。
+ * </p>
+ *
+ * @author L.cm
+ */
+public class MqttPublishLimit {
+	private double messageRate;
+	private double messageBurst;
+	private double byteRate;
+	private double byteBurst;
+	private final List<MqttPublishLimitRule> rules = new ArrayList<>();
+	/**
+	 * 超过限流时的处理方式，默认延迟处理
+	 */
+	private MqttLimitMode mode = MqttLimitMode.DELAY;
+	/**
+	 * 延迟处理时，暂停读取前已经读到的消息按顺序暂存，单个连接最多暂存的消息数，超过时断开连接
+	 */
+	private int maxDelayedMessages = 1000;
+	private final ConcurrentMap<String, MqttPublishQuota> throttledClients = new ConcurrentHashMap<>();
+	private final LongAdder throttledCount = new LongAdder();
+	private final LongAdder delayedCount = new LongAdder();
+	private final LongAdder pausedCount = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+	private final LongAdder disconnectedCount = new LongAdder();
+
+	public static MqttPublishLimit create() {
+		return new MqttPublishLimit();
+	}
+
+	/**
+	 * 单个客户端每秒消息数
+	 *
+	 * @param rate  每秒消息数
+	 * @param burst 突发数
+	 * @return MqttPublishLimit
+	 */
+	public MqttPublishLimit messageRate(double rate, double burst) {
+		this.messageRate = rate;
+		this.messageBurst = burst;
+		return this;
+	}
+
+	/**
+	 * 单个客户端每秒字节数，按 payload 计算
+	 *
+	 * @param rate  每秒字节数
+	 * @param burst 突发字节数
+	 * @return MqttPublishLimit
+	 */
+	public MqttPublishLimit byteRate(double rate, double burst) {
+		this.byteRate = rate;
+		this.byteBurst = burst;
+		return this;
+	}
+
+	/**
+	 * 添加 topic 前缀规则
+	 *
+	 * @param rule MqttPublishLimitRule
+	 * @return MqttPublishLimit
+	 */
+	public MqttPublishLimit rule(MqttPublishLimitRule rule) {
+		this.rules.add(Objects.requireNonNull(rule, "MqttPublishLimitRule is null."));
+		return this;
+	}
+
+	public MqttPublishLimit mode(MqttLimitMode mode) {
+		this.mode = Objects.requireNonNull(mode, "MqttLimitMode is null.");
+		return this;
+	}
+
+	public MqttPublishLimit maxDelayedMessages(int maxDelayedMessages) {
+		this.maxDelayedMessages = maxDelayedMessages;
+		return this;
+	}
+
+	public double getMessageRate() {
+		return messageRate;
+	}
+
+	public double getMessageBurst() {
+		return messageBurst;
+	}
+
+	public double getByteRate() {
+		return byteRate;
+	}
+
+	public double getByteBurst() {
+		return byteBurst;
+	}
+
+	public List<MqttPublishLimitRule> getRules() {
+		return Collections.unmodifiableList(rules);
+	}
+
+	public MqttLimitMode getMode() {
+		return mode;
+	}
+
+	public int getMaxDelayedMessages() {
+		return maxDelayedMessages;
+	}
+
+	/**
+	 * 被限流的次数
+	 *
+	 * @return 次数
+	 */
+	public long getThrottledCount() {
+		return throttledCount.sum();
+	}
+
+	/**
+	 * 延迟处理的消息数
+	 *
+	 * @return 消息数
+	 */
+	public long getDelayedCount() {
+		return delayedCount.sum();
+	}
+
+	/**
+	 * 延迟模式下暂停读取的次数
+	 *
+	 * @return 次数
+	 */
+	public long getPausedCount() {
+		return pausedCount.sum();
+	}
+
+	/**
+	 * 丢弃的消息数
+	 *
+	 * @return 消息数
+	 */
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * 因限流断开的连接数
+	 *
+	 * @return 连接数
+	 */
+	public long getDisconnectedCount() {
+		return disconnectedCount.sum();
+	}
+
+	/**
+	 * 在线且被限流过的客户端，及其被限流的次数
+	 *
+	 * @return clientId 和限流次数
+	 */
+	public Map<String, Long> getThrottledClients() {
+		Map<String, Long> clients = new HashMap<>(throttledClients.size());
+		throttledClients.forEach((clientId, quota) -> clients.put(clientId, quota.getThrottledCount()));
+		return clients;
+	}
+
+	/**
+	 * 创建客户端的配额
+	 */
+	MqttPublishQuota newQuota() {
+		return new MqttPublishQuota(this);
+	}
+
+	void onThrottled(String clientId, MqttPublishQuota quota) {
+		throttledCount.increment();
+		if (quota.incrementThrottled() == 1L && clientId != null) {
+			throttledClients.put(clientId, quota);
+		}
+	}
+
+	void onDelayed() {
+		delayedCount.increment();
+	}
+
+	void onPaused() {
+		pausedCount.increment();
+	}
+
+	void onDropped() {
+		droppedCount.increment();
+	}
+
+	void onDisconnected() {
+		disconnectedCount.increment();
+	}
+
+	void onClosed(String clientId, MqttPublishQuota quota) {
+		if (clientId != null) {
+			throttledClients.remove(clientId, quota);
+		}
+	}
+
+}
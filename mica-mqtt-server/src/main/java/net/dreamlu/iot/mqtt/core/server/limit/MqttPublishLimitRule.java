@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import java.util.Objects;
+
+/**
+ * 按 topic 前缀的发布限流规则，每个客户端单独计算
+ *
+ * @author L.cm
+ */
+public class MqttPublishLimitRule {
+	/**
+	 * topic 前缀
+	 */
+	private final String topicPrefix;
+	/**
+	 * 每秒消息数，小于等于 0 不限制
+	 */
+	private double messageRate;
+	private double messageBurst;
+	/**
+	 * 每秒字节数，小于等于 0 不限制
+	 */
+	private double byteRate;
+	private double byteBurst;
+
+	public MqttPublishLimitRule(String topicPrefix) {
+		this.topicPrefix = Objects.requireNonNull(topicPrefix, "MqttPublishLimitRule topicPrefix is null.");
+	}
+
+	public static MqttPublishLimitRule of(String topicPrefix) {
+		return new MqttPublishLimitRule(topicPrefix);
+	}
+
+	public String getTopicPrefix() {
+		return topicPrefix;
+	}
+
+	public double getMessageRate() {
+		return messageRate;
+	}
+
+	public double getMessageBurst() {
+		return messageBurst;
+	}
+
+	public MqttPublishLimitRule messageRate(double rate, double burst) {
+		this.messageRate = rate;
+		this.messageBurst = burst;
+		return this;
+	}
+
+	public double getByteRate() {
+		return byteRate;
+	}
+
+	public double getByteBurst() {
+		return byteBurst;
+	}
+
+	public MqttPublishLimitRule byteRate(double rate, double burst) {
+		this.byteRate = rate;
+		this.byteBurst = burst;
+		return this;
+	}
+
+	/**
+	 * topic 是否匹配
+	 *
+	 * @param topic topic
+	 * @return 是否匹配
+	 */
+	public boolean matches(String topic) {
+		return topic.startsWith(topicPrefix);
+	}
+
+	@Override
+	public String toString() {
+		return "MqttPublishLimitRule{" +
+			"topicPrefix='" + topicPrefix + '\'' +
+			", messageRate=" + messageRate +
+			", messageBurst=" + messageBurst +
+			", byteRate=" + byteRate +
+			", byteBurst=" + byteBurst +
+			'}';
+	}
+}
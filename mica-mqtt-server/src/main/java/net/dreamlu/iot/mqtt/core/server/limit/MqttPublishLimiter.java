@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import net.dreamlu.iot.mqtt.codec.MqttPublishMessage;
+import net.dreamlu.iot.mqtt.core.server.MqttConst;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
+import org.tio.utils.timer.TimerTask;
+import org.tio.utils.timer.TimerTaskService;
+
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * 上行 PUBLISH 限流
+ *
+ * <p>
+ * 延迟模式下超过限流时暂停读取该连接（{@link MqttPausableSocketChannel}），客户端的数据留在 tcp 缓冲区中，由 tcp 流控降速。
+ * 暂停只对下一次读取生效，同一次读取中已经解码的消息按顺序暂存，最多为一个读缓冲区的消息，
+ * 定时任务在令牌足够时按顺序处理，处理完后恢复读取。不能暂停的连接（例如 websocket）只暂存，暂存过多时断开连接。
+ * </p>
+ *
+ * @author L.cm
+ */
+public class MqttPublishLimiter {
+	private static final Logger logger = LoggerFactory.getLogger(MqttPublishLimiter.class);
+	private final MqttPublishLimit publishLimit;
+	private final TimerTaskService taskService;
+	private final Executor executor;
+	private final BiConsumer<ChannelContext, MqttPublishMessage> publishHandler;
+
+	public MqttPublishLimiter(MqttPublishLimit publishLimit,
+							  TimerTaskService taskService,
+							  Executor executor,
+							  BiConsumer<ChannelContext, MqttPublishMessage> publishHandler) {
+		this.publishLimit = publishLimit;
+		this.taskService = taskService;
+		this.executor = executor;
+		this.publishHandler = publishHandler;
+	}
+
+	/**
+	 * 连接建立，替换为可暂停读取的 channel，限流方式可以动态修改，所以总是替换
+	 *
+	 * @param context ChannelContext
+	 */
+	public void onConnected(ChannelContext context) {
+		MqttPausableSocketChannel.wrap(context);
+	}
+
+	/**
+	 * 获取发布令牌
+	 *
+	 * @param context ChannelContext
+	 * @param message MqttPublishMessage
+	 * @return 是否立即处理，延迟、丢弃或断开时返回 false
+	 */
+	public boolean tryAcquire(ChannelContext context, MqttPublishMessage message) {
+		MqttPublishQuota quota = getQuota(context);
+		synchronized (quota) {
+			// 0. 已经触发断开，同一批次中剩余的消息直接忽略
+			if (quota.isDisconnected()) {
+				return false;
+			}
+			String clientId = context.getBsId();
+			// 1. 已经有延迟的消息，排在其后保证顺序
+			if (quota.hasDelayed()) {
+				offerDelayed(context, quota, message);
+				return false;
+			}
+			long waitNanos = quota.tryAcquire(message.variableHeader().topicName(), getBytes(message));
+			if (waitNanos == 0) {
+				return true;
+			}
+			// 2. 超过限流
+			publishLimit.onThrottled(clientId, quota);
+			MqttLimitMode mode = publishLimit.getMode();
+			if (MqttLimitMode.DROP == mode) {
+				publishLimit.onDropped();
+				logger.debug("Mqtt clientId:{} publish throttled, message dropped.", clientId);
+			} else if (MqttLimitMode.DISCONNECT == mode) {
+				disconnect(context, quota, clientId);
+			} else if (offerDelayed(context, quota, message)) {
+				pause(context);
+				scheduleDrain(context, quota, waitNanos);
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * 连接关闭，清理暂存的消息
+	 *
+	 * @param context ChannelContext
+	 */
+	public void onClose(ChannelContext context) {
+		MqttPublishQuota quota = (MqttPublishQuota) context.get(MqttConst.PUBLISH_QUOTA);
+		if (quota == null) {
+			return;
+		}
+		synchronized (quota) {
+			quota.clearDelayed();
+		}
+		publishLimit.onClosed(context.getBsId(), quota);
+	}
+
+	private MqttPublishQuota getQuota(ChannelContext context) {
+		MqttPublishQuota quota = (MqttPublishQuota) context.get(MqttConst.PUBLISH_QUOTA);
+		if (quota == null) {
+			// 同一连接的消息在同一线程中解码和处理，无需加锁
+			quota = publishLimit.newQuota();
+			context.set(MqttConst.PUBLISH_QUOTA, quota);
+		}
+		return quota;
+	}
+
+	private boolean offerDelayed(ChannelContext context, MqttPublishQuota quota, MqttPublishMessage message) {
+		if (quota.offerDelayed(message, publishLimit.getMaxDelayedMessages())) {
+			publishLimit.onDelayed();
+			return true;
+		}
+		quota.clearDelayed();
+		disconnect(context, quota, context.getBsId());
+		return false;
+	}
+
+	/**
+	 * 暂停读取，之后的消息留在 tcp 缓冲区中
+	 */
+	private void pause(ChannelContext context) {
+		AsynchronousSocketChannel channel = context.asynchronousSocketChannel;
+		if (channel instanceof MqttPausableSocketChannel
+			&& ((MqttPausableSocketChannel) channel).pause(MqttPausableSocketChannel.PAUSE_RATE_LIMIT)) {
+			publishLimit.onPaused();
+			logger.debug("Mqtt clientId:{} publish throttled, read paused.", context.getBsId());
+		}
+	}
+
+	private static void resume(ChannelContext context) {
+		AsynchronousSocketChannel channel = context.asynchronousSocketChannel;
+		if (channel instanceof MqttPausableSocketChannel) {
+			((MqttPausableSocketChannel) channel).resume(MqttPausableSocketChannel.PAUSE_RATE_LIMIT);
+		}
+	}
+
+	private void disconnect(ChannelContext context, MqttPublishQuota quota, String clientId) {
+		quota.setDisconnected();
+		publishLimit.onDisconnected();
+		logger.warn("Mqtt clientId:{} publish throttled, disconnect.", clientId);
+		Tio.remove(context, "Mqtt publish rate limit exceeded");
+	}
+
+	private void scheduleDrain(ChannelContext context, MqttPublishQuota quota, long waitNanos) {
+		if (quota.isDrainScheduled()) {
+			return;
+		}
+		quota.setDrainScheduled(true);
+		long delayMs = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+		taskService.addTask(systemTimer -> new TimerTask(delayMs) {
+			@Override
+			public void run() {
+				executor.execute(() -> drain(context, quota));
+			}
+		});
+	}
+
+	/**
+	 * 按顺序处理延迟的消息，在锁内处理，保证和之后收到的消息的顺序
+	 */
+	private void drain(ChannelContext context, MqttPublishQuota quota) {
+		synchronized (quota) {
+			quota.setDrainScheduled(false);
+			if (context.isClosed || context.isRemoved) {
+				quota.clearDelayed();
+				return;
+			}
+			MqttPublishMessage message;
+			while ((message = quota.peekDelayed()) != null) {
+				long waitNanos = quota.tryAcquire(message.variableHeader().topicName(), getBytes(message));
+				if (waitNanos > 0) {
+					scheduleDrain(context, quota, waitNanos);
+					return;
+				}
+				quota.pollDelayed();
+				try {
+					publishHandler.accept(context, message);
+				} catch (Throwable e) {
+					logger.error("Mqtt clientId:{} delayed publish error.", context.getBsId(), e);
+				}
+			}
+			// 暂存的消息处理完，恢复读取
+			resume(context);
+		}
+	}
+
+	private static int getBytes(MqttPublishMessage message) {
+		byte[] payload = message.payload();
+		return payload == null ? 0 : payload.length;
+	}
+
+}
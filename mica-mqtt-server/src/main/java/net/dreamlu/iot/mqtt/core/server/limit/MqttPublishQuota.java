@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import net.dreamlu.iot.mqtt.codec.MqttPublishMessage;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * 单个连接的发布配额，令牌存放在数组中，限流判断时不创建对象，调用方需要持有本对象的锁
+ *
+ * @author L.cm
+ */
+final class MqttPublishQuota {
+	private static final double NANOS_PER_SECOND = 1e9;
+	private final List<MqttPublishLimitRule> rules;
+	/**
+	 * 0：消息数，1：字节数，之后每个规则依次为消息数和字节数
+	 */
+	private final double[] rates;
+	private final double[] capacities;
+	private final double[] tokens;
+	private long lastRefillNanos;
+	private volatile long throttledCount;
+	private ArrayDeque<MqttPublishMessage> delayedMessages;
+	private boolean drainScheduled;
+	private boolean disconnected;
+
+	MqttPublishQuota(MqttPublishLimit publishLimit) {
+		this.rules = publishLimit.getRules();
+		int size = 2 + rules.size() * 2;
+		this.rates = new double[size];
+		this.capacities = new double[size];
+		this.tokens = new double[size];
+		init(0, publishLimit.getMessageRate(), publishLimit.getMessageBurst());
+		init(1, publishLimit.getByteRate(), publishLimit.getByteBurst());
+		for (int i = 0; i < rules.size(); i++) {
+			MqttPublishLimitRule rule = rules.get(i);
+			init(2 + i * 2, rule.getMessageRate(), rule.getMessageBurst());
+			init(3 + i * 2, rule.getByteRate(), rule.getByteBurst());
+		}
+		this.lastRefillNanos = System.nanoTime();
+	}
+
+	private void init(int index, double rate, double burst) {
+		if (rate > 0) {
+			rates[index] = rate / NANOS_PER_SECOND;
+			capacities[index] = Math.max(1, burst);
+			tokens[index] = capacities[index];
+		}
+	}
+
+	/**
+	 * 获取令牌
+	 *
+	 * @param topic topic
+	 * @param bytes payload 字节数
+	 * @return 0 表示成功，否则为需要等待的纳秒数
+	 */
+	long tryAcquire(String topic, int bytes) {
+		long now = System.nanoTime();
+		long elapsed = now - lastRefillNanos;
+		lastRefillNanos = now;
+		for (int i = 0; i < rates.length; i++) {
+			if (rates[i] > 0) {
+				tokens[i] = Math.min(capacities[i], tokens[i] + elapsed * rates[i]);
+			}
+		}
+		int ruleIndex = -1;
+		for (int i = 0; i < rules.size(); i++) {
+			if (rules.get(i).matches(topic)) {
+				ruleIndex = 2 + i * 2;
+				break;
+			}
+		}
+		long waitNanos = Math.max(waitNanos(0, 1), waitNanos(1, bytes));
+		if (ruleIndex > 0) {
+			waitNanos = Math.max(waitNanos, Math.max(waitNanos(ruleIndex, 1), waitNanos(ruleIndex + 1, bytes)));
+		}
+		if (waitNanos > 0) {
+			return waitNanos;
+		}
+		tokens[0] -= 1;
+		tokens[1] -= bytes;
+		if (ruleIndex > 0) {
+			tokens[ruleIndex] -= 1;
+			tokens[ruleIndex + 1] -= bytes;
+		}
+		return 0;
+	}
+
+	private long waitNanos(int index, int permits) {
+		double rate = rates[index];
+		if (rate <= 0) {
+			return 0;
+		}
+		// 超过突发数时允许透支
+		double need = Math.min(permits, capacities[index]);
+		double lack = need - tokens[index];
+		return lack <= 0 ? 0 : (long) Math.ceil(lack / rate);
+	}
+
+	long incrementThrottled() {
+		return ++throttledCount;
+	}
+
+	long getThrottledCount() {
+		return throttledCount;
+	}
+
+	boolean hasDelayed() {
+		return delayedMessages != null && !delayedMessages.isEmpty();
+	}
+
+	/**
+	 * 暂存延迟处理的消息
+	 *
+	 * @param message    MqttPublishMessage
+	 * @param maxDelayed 最多暂存的消息数
+	 * @return 是否成功
+	 */
+	boolean offerDelayed(MqttPublishMessage message, int maxDelayed) {
+		if (delayedMessages == null) {
+			delayedMessages = new ArrayDeque<>();
+		} else if (delayedMessages.size() >= maxDelayed) {
+			return false;
+		}
+		delayedMessages.add(message);
+		return true;
+	}
+
+	MqttPublishMessage peekDelayed() {
+		return delayedMessages == null ? null : delayedMessages.peek();
+	}
+
+	void pollDelayed() {
+		delayedMessages.poll();
+	}
+
+	void clearDelayed() {
+		if (delayedMessages != null) {
+			delayedMessages.clear();
+		}
+	}
+
+	boolean isDrainScheduled() {
+		return drainScheduled;
+	}
+
+	void setDrainScheduled(boolean drainScheduled) {
+		this.drainScheduled = drainScheduled;
+	}
+
+	boolean isDisconnected() {
+		return disconnected;
+	}
+
+	void setDisconnected() {
+		this.disconnected = true;
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+/**
+ * 令牌桶，按速率补充令牌，最多累积 capacity 个，用于限流
+ *
+ * @author L.cm
+ */
+public class TokenBucket {
+	private final double ratePerNanos;
+	private final double capacity;
+	private double tokens;
+	private long lastRefillNanos;
+
+	/**
+	 * 构造器
+	 *
+	 * @param ratePerSecond 每秒补充的令牌数
+	 * @param capacity      最多累积的令牌数，即允许的突发
+	 */
+	public TokenBucket(double ratePerSecond, double capacity) {
+		if (ratePerSecond <= 0 || capacity < 1) {
+			throw new IllegalArgumentException("TokenBucket ratePerSecond must be > 0 and capacity >= 1.");
+		}
+		this.ratePerNanos = ratePerSecond / 1e9;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefillNanos = System.nanoTime();
+	}
+
+	/**
+	 * 获取一个令牌
+	 *
+	 * @return 是否成功
+	 */
+	public boolean tryAcquire() {
+		return tryAcquire(1);
+	}
+
+	/**
+	 * 获取令牌
+	 *
+	 * @param permits 令牌数
+	 * @return 是否成功
+	 */
+	public synchronized boolean tryAcquire(double permits) {
+		refill();
+		if (tokens < permits) {
+			return false;
+		}
+		tokens -= permits;
+		return true;
+	}
+
+	/**
+	 * 令牌是否已满，即一段时间内没有使用
+	 *
+	 * @return 是否已满
+	 */
+	public synchronized boolean isFull() {
+		refill();
+		return tokens >= capacity;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * ratePerNanos);
+		lastRefillNanos = now;
+	}
+
+}
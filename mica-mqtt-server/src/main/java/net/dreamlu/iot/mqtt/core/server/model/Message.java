@@ -16,6 +16,7 @@
 
 package net.dreamlu.iot.mqtt.core.server.model;
 
+import net.dreamlu.iot.mqtt.core.common.MqttMessageExpiry;
 import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
 
 import java.io.Serializable;
@@ -89,6 +90,10 @@ public class Message implements Serializable {
 	 * PUBLISH 消息到达 Broker 的时间 (ms)
 	 */
 	private Long publishReceivedAt;
+	/**
+	 * mqtt5 消息过期时间 (ms)，为 null 时不过期
+	 */
+	private Long expiryAt;
 
 	public String getNode() {
 		return node;
@@ -210,6 +215,24 @@ public class Message implements Serializable {
 		this.publishReceivedAt = publishReceivedAt;
 	}
 
+	public Long getExpiryAt() {
+		return expiryAt;
+	}
+
+	public void setExpiryAt(Long expiryAt) {
+		this.expiryAt = expiryAt;
+	}
+
+	/**
+	 * 是否已经过期
+	 *
+	 * @param now 当前时间 (ms)
+	 * @return 是否过期
+	 */
+	public boolean isExpired(long now) {
+		return expiryAt != null && MqttMessageExpiry.isExpired(expiryAt, now);
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) {
@@ -219,12 +242,12 @@ public class Message implements Serializable {
 			return false;
 		}
 		Message message = (Message) o;
-		return dup == message.dup && qos == message.qos && retain == message.retain && timestamp == message.timestamp && Objects.equals(node, message.node) && Objects.equals(id, message.id) && Objects.equals(fromClientId, message.fromClientId) && Objects.equals(fromUsername, message.fromUsername) && Objects.equals(clientId, message.clientId) && Objects.equals(username, message.username) && Objects.equals(topic, message.topic) && messageType == message.messageType && Arrays.equals(payload, message.payload) && Objects.equals(peerHost, message.peerHost) && Objects.equals(publishReceivedAt, message.publishReceivedAt);
+		return dup == message.dup && qos == message.qos && retain == message.retain && timestamp == message.timestamp && Objects.equals(node, message.node) && Objects.equals(id, message.id) && Objects.equals(fromClientId, message.fromClientId) && Objects.equals(fromUsername, message.fromUsername) && Objects.equals(clientId, message.clientId) && Objects.equals(username, message.username) && Objects.equals(topic, message.topic) && messageType == message.messageType && Arrays.equals(payload, message.payload) && Objects.equals(peerHost, message.peerHost) && Objects.equals(publishReceivedAt, message.publishReceivedAt) && Objects.equals(expiryAt, message.expiryAt);
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(node, id, fromClientId, fromUsername, clientId, username, topic, messageType, dup, qos, retain, Arrays.hashCode(payload), peerHost, timestamp, publishReceivedAt);
+		return Objects.hash(node, id, fromClientId, fromUsername, clientId, username, topic, messageType, dup, qos, retain, Arrays.hashCode(payload), peerHost, timestamp, publishReceivedAt, expiryAt);
 	}
 
 	@Override
@@ -245,6 +268,7 @@ public class Message implements Serializable {
 			", peerHost='" + peerHost + '\'' +
 			", timestamp=" + timestamp +
 			", publishReceivedAt=" + publishReceivedAt +
+			", expiryAt=" + expiryAt +
 			'}';
 	}
 
@@ -16,6 +16,9 @@
 
 package net.dreamlu.iot.mqtt.core.server.model;
 
+import net.dreamlu.iot.mqtt.codec.MqttQoS;
+import net.dreamlu.iot.mqtt.codec.MqttSubscriptionOption;
+
 import java.io.Serializable;
 import java.util.Objects;
 
@@ -28,6 +31,18 @@ public class Subscribe implements Serializable {
 	private String topicFilter;
 	private String clientId;
 	private int mqttQoS;
+	/**
+	 * mqtt5 订阅选项，不接收自己发布的消息
+	 */
+	private boolean noLocal;
+	/**
+	 * mqtt5 订阅选项，转发时保持发布时的 retain 标记
+	 */
+	private boolean retainAsPublished;
+	/**
+	 * mqtt5 订阅选项，保留消息处理方式
+	 */
+	private int retainHandling;
 
 	public Subscribe() {
 	}
@@ -43,6 +58,15 @@ public class Subscribe implements Serializable {
 		this.mqttQoS = mqttQoS;
 	}
 
+	public Subscribe(String topicFilter, String clientId, MqttSubscriptionOption option) {
+		this.topicFilter = topicFilter;
+		this.clientId = clientId;
+		this.mqttQoS = option.qos().value();
+		this.noLocal = option.isNoLocal();
+		this.retainAsPublished = option.isRetainAsPublished();
+		this.retainHandling = option.retainHandling().value();
+	}
+
 	public String getTopicFilter() {
 		return topicFilter;
 	}
@@ -67,6 +91,40 @@ public class Subscribe implements Serializable {
 		this.mqttQoS = mqttQoS;
 	}
 
+	public boolean isNoLocal() {
+		return noLocal;
+	}
+
+	public void setNoLocal(boolean noLocal) {
+		this.noLocal = noLocal;
+	}
+
+	public boolean isRetainAsPublished() {
+		return retainAsPublished;
+	}
+
+	public void setRetainAsPublished(boolean retainAsPublished) {
+		this.retainAsPublished = retainAsPublished;
+	}
+
+	public int getRetainHandling() {
+		return retainHandling;
+	}
+
+	public void setRetainHandling(int retainHandling) {
+		this.retainHandling = retainHandling;
+	}
+
+	/**
+	 * 获取订阅选项
+	 *
+	 * @return MqttSubscriptionOption
+	 */
+	public MqttSubscriptionOption getOption() {
+		return new MqttSubscriptionOption(MqttQoS.valueOf(mqttQoS), noLocal, retainAsPublished,
+			MqttSubscriptionOption.RetainedHandlingPolicy.valueOf(retainHandling));
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) {
@@ -91,6 +149,9 @@ public class Subscribe implements Serializable {
 			"topicFilter='" + topicFilter + '\'' +
 			", clientId='" + clientId + '\'' +
 			", mqttQoS=" + mqttQoS +
+			", noLocal=" + noLocal +
+			", retainAsPublished=" + retainAsPublished +
+			", retainHandling=" + retainHandling +
 			'}';
 	}
 }
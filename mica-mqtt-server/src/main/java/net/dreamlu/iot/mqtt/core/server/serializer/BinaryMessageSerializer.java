@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.serializer;
+
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * mica mqtt 紧凑二进制消息序列化，支持多条消息批量编码
+ *
+ * <p>
+ * 格式（版本 1）：
+ * <pre>
+ * batch   = version(1 byte, 0xB1) count(varint) message*
+ * message = type(1 byte) flags(1 byte) fields(1 byte) [id(varint)] timestamp(zigzag varlong, 与上一条消息的差值)
+ *           [publishReceivedAt(zigzag varlong, 与 timestamp 的差值)] [expiryAt(zigzag varlong, 与 timestamp 的差值)]
+ *           string* [payload(varint 长度 + 内容)]
+ * string  = varint，最低位为 1 时为字典引用，值右移一位为字典下标；为 0 时为新字符串，右移一位为 utf-8 长度，后跟内容，并加入字典
+ * </pre>
+ * 字典在一个批次内有效，node、clientId、topic 等重复的字符串只写一次，解码时也只创建一次。
+ * 所有长度均为 varint，可以写入调用方提供的（池化的）ByteBuffer。
+ * </p>
+ *
+ * @author L.cm
+ */
+public enum BinaryMessageSerializer implements IMessageSerializer {
+
+	/**
+	 * 单例
+	 */
+	INSTANCE;
+
+	/**
+	 * 格式版本，和 {@link DefaultMessageSerializer} 的消息类型（1~7）区分开
+	 */
+	public static final byte VERSION_1 = (byte) 0xB1;
+	/**
+	 * 一个批次的字典最多的字符串数，超出后的新字符串不再加入字典
+	 */
+	private static final int MAX_DICTIONARY_SIZE = 4096;
+	/**
+	 * 线程内复用的缓冲区初始和最大保留大小
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+	private static final int MAX_CACHED_BUFFER_SIZE = 1024 * 1024;
+	private static final ThreadLocal<ByteBuffer> BUFFER_CACHE = ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+	// flags
+	private static final int FLAG_DUP = 0x01;
+	private static final int FLAG_RETAIN = 0x02;
+	private static final int FLAG_QOS_SHIFT = 2;
+	private static final int FLAG_HAS_ID = 0x10;
+	private static final int FLAG_HAS_RECEIVED_AT = 0x20;
+	private static final int FLAG_HAS_EXPIRY_AT = 0x40;
+	// fields
+	private static final int FIELD_NODE = 0x01;
+	private static final int FIELD_FROM_CLIENT_ID = 0x02;
+	private static final int FIELD_FROM_USERNAME = 0x04;
+	private static final int FIELD_CLIENT_ID = 0x08;
+	private static final int FIELD_USERNAME = 0x10;
+	private static final int FIELD_TOPIC = 0x20;
+	private static final int FIELD_PEER_HOST = 0x40;
+	private static final int FIELD_PAYLOAD = 0x80;
+
+	@Override
+	public byte[] serialize(Message message) {
+		return serialize(Collections.singletonList(message));
+	}
+
+	@Override
+	public Message deserialize(byte[] data) {
+		if (data == null || data.length < 1) {
+			return null;
+		}
+		List<Message> messageList = deserializeBatch(ByteBuffer.wrap(data));
+		return messageList.isEmpty() ? null : messageList.get(0);
+	}
+
+	/**
+	 * 批量序列化，使用线程内复用的缓冲区
+	 *
+	 * @param messages 消息集合
+	 * @return byte array
+	 */
+	public byte[] serialize(List<Message> messages) {
+		ByteBuffer buffer = BUFFER_CACHE.get();
+		while (true) {
+			buffer.clear();
+			try {
+				serialize(messages, buffer);
+				break;
+			} catch (BufferOverflowException e) {
+				buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+			}
+		}
+		if (buffer.capacity() <= MAX_CACHED_BUFFER_SIZE) {
+			BUFFER_CACHE.set(buffer);
+		}
+		buffer.flip();
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		return data;
+	}
+
+	/**
+	 * 批量序列化到调用方提供的缓冲区，从 position 开始写入
+	 *
+	 * @param messages 消息集合
+	 * @param buffer   ByteBuffer
+	 * @throws BufferOverflowException 缓冲区空间不足时，调用方可扩容后重试
+	 */
+	public void serialize(List<Message> messages, ByteBuffer buffer) {
+		buffer.put(VERSION_1);
+		writeVarLong(buffer, messages.size());
+		// 单条消息时重复的字符串很少，不使用字典
+		Map<String, Integer> dictionary = messages.size() > 1 ? new HashMap<>() : null;
+		long lastTimestamp = 0;
+		for (Message message : messages) {
+			MessageType messageType = Objects.requireNonNull(message.getMessageType(), "message type is null.");
+			buffer.put((byte) messageType.getValue());
+			Integer id = message.getId();
+			Long publishReceivedAt = message.getPublishReceivedAt();
+			Long expiryAt = message.getExpiryAt();
+			int flags = (message.getQos() & 0x03) << FLAG_QOS_SHIFT;
+			if (message.isDup()) {
+				flags |= FLAG_DUP;
+			}
+			if (message.isRetain()) {
+				flags |= FLAG_RETAIN;
+			}
+			if (id != null) {
+				flags |= FLAG_HAS_ID;
+			}
+			if (publishReceivedAt != null) {
+				flags |= FLAG_HAS_RECEIVED_AT;
+			}
+			if (expiryAt != null) {
+				flags |= FLAG_HAS_EXPIRY_AT;
+			}
+			buffer.put((byte) flags);
+			int fields = 0;
+			fields |= message.getNode() != null ? FIELD_NODE : 0;
+			fields |= message.getFromClientId() != null ? FIELD_FROM_CLIENT_ID : 0;
+			fields |= message.getFromUsername() != null ? FIELD_FROM_USERNAME : 0;
+			fields |= message.getClientId() != null ? FIELD_CLIENT_ID : 0;
+			fields |= message.getUsername() != null ? FIELD_USERNAME : 0;
+			fields |= message.getTopic() != null ? FIELD_TOPIC : 0;
+			fields |= message.getPeerHost() != null ? FIELD_PEER_HOST : 0;
+			fields |= message.getPayload() != null ? FIELD_PAYLOAD : 0;
+			buffer.put((byte) fields);
+			if (id != null) {
+				writeVarLong(buffer, id & 0xFFFFFFFFL);
+			}
+			long timestamp = message.getTimestamp();
+			writeVarLong(buffer, zigZag(timestamp - lastTimestamp));
+			lastTimestamp = timestamp;
+			if (publishReceivedAt != null) {
+				writeVarLong(buffer, zigZag(publishReceivedAt - timestamp));
+			}
+			if (expiryAt != null) {
+				writeVarLong(buffer, zigZag(expiryAt - timestamp));
+			}
+			writeString(buffer, dictionary, message.getNode());
+			writeString(buffer, dictionary, message.getFromClientId());
+			writeString(buffer, dictionary, message.getFromUsername());
+			writeString(buffer, dictionary, message.getClientId());
+			writeString(buffer, dictionary, message.getUsername());
+			writeString(buffer, dictionary, message.getTopic());
+			writeString(buffer, dictionary, message.getPeerHost());
+			byte[] payload = message.getPayload();
+			if (payload != null) {
+				writeVarLong(buffer, payload.length);
+				buffer.put(payload);
+			}
+		}
+	}
+
+	/**
+	 * 批量反序列化
+	 *
+	 * @param data byte array
+	 * @return 消息集合
+	 */
+	public List<Message> deserializeBatch(byte[] data) {
+		if (data == null || data.length < 1) {
+			return Collections.emptyList();
+		}
+		return deserializeBatch(ByteBuffer.wrap(data));
+	}
+
+	/**
+	 * 从缓冲区批量反序列化，从 position 开始读取，支持堆外和只读的缓冲区
+	 *
+	 * @param buffer ByteBuffer
+	 * @return 消息集合
+	 * @throws IllegalArgumentException 版本或数据格式错误时
+	 */
+	public List<Message> deserializeBatch(ByteBuffer buffer) {
+		try {
+			byte version = buffer.get();
+			if (version != VERSION_1) {
+				throw new IllegalArgumentException("unknown message batch version: " + (version & 0xFF));
+			}
+			int count = readLength(buffer);
+			List<Message> messageList = new ArrayList<>(Math.min(count, 1024));
+			List<String> dictionary = new ArrayList<>();
+			long lastTimestamp = 0;
+			for (int i = 0; i < count; i++) {
+				Message message = new Message();
+				message.setMessageType(MessageType.valueOf(buffer.get()));
+				int flags = buffer.get() & 0xFF;
+				int fields = buffer.get() & 0xFF;
+				message.setDup((flags & FLAG_DUP) != 0);
+				message.setRetain((flags & FLAG_RETAIN) != 0);
+				message.setQos((flags >> FLAG_QOS_SHIFT) & 0x03);
+				if ((flags & FLAG_HAS_ID) != 0) {
+					message.setId((int) readVarLong(buffer));
+				}
+				long timestamp = lastTimestamp + unZigZag(readVarLong(buffer));
+				message.setTimestamp(timestamp);
+				lastTimestamp = timestamp;
+				if ((flags & FLAG_HAS_RECEIVED_AT) != 0) {
+					message.setPublishReceivedAt(timestamp + unZigZag(readVarLong(buffer)));
+				}
+				if ((flags & FLAG_HAS_EXPIRY_AT) != 0) {
+					message.setExpiryAt(timestamp + unZigZag(readVarLong(buffer)));
+				}
+				if ((fields & FIELD_NODE) != 0) {
+					message.setNode(readString(buffer, dictionary));
+				}
+				if ((fields & FIELD_FROM_CLIENT_ID) != 0) {
+					message.setFromClientId(readString(buffer, dictionary));
+				}
+				if ((fields & FIELD_FROM_USERNAME) != 0) {
+					message.setFromUsername(readString(buffer, dictionary));
+				}
+				if ((fields & FIELD_CLIENT_ID) != 0) {
+					message.setClientId(readString(buffer, dictionary));
+				}
+				if ((fields & FIELD_USERNAME) != 0) {
+					message.setUsername(readString(buffer, dictionary));
+				}
+				if ((fields & FIELD_TOPIC) != 0) {
+					message.setTopic(readString(buffer, dictionary));
+				}
+				if ((fields & FIELD_PEER_HOST) != 0) {
+					message.setPeerHost(readString(buffer, dictionary));
+				}
+				if ((fields & FIELD_PAYLOAD) != 0) {
+					byte[] payload = new byte[readLength(buffer)];
+					buffer.get(payload);
+					message.setPayload(payload);
+				}
+				messageList.add(message);
+			}
+			return messageList;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("message batch is truncated.", e);
+		}
+	}
+
+	private static void writeString(ByteBuffer buffer, Map<String, Integer> dictionary, String value) {
+		if (value == null) {
+			return;
+		}
+		Integer index = dictionary == null ? null : dictionary.get(value);
+		if (index != null) {
+			writeVarLong(buffer, ((long) index << 1) | 1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(buffer, (long) bytes.length << 1);
+		buffer.put(bytes);
+		if (dictionary != null && dictionary.size() < MAX_DICTIONARY_SIZE) {
+			dictionary.put(value, dictionary.size());
+		}
+	}
+
+	private static String readString(ByteBuffer buffer, List<String> dictionary) {
+		long value = readVarLong(buffer);
+		if ((value & 1) != 0) {
+			long index = value >>> 1;
+			if (index >= dictionary.size()) {
+				throw new IllegalArgumentException("message batch dictionary index out of range: " + index);
+			}
+			return dictionary.get((int) index);
+		}
+		int length = checkLength(value >>> 1, buffer);
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		String string = new String(bytes, StandardCharsets.UTF_8);
+		if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+			dictionary.add(string);
+		}
+		return string;
+	}
+
+	private static int readLength(ByteBuffer buffer) {
+		return checkLength(readVarLong(buffer), buffer);
+	}
+
+	private static int checkLength(long length, ByteBuffer buffer) {
+		if (length < 0 || length > buffer.remaining()) {
+			throw new IllegalArgumentException("message batch length out of range: " + length);
+		}
+		return (int) length;
+	}
+
+	private static void writeVarLong(ByteBuffer buffer, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static long readVarLong(ByteBuffer buffer) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("message batch varint is too long.");
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
@@ -63,6 +63,7 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 		switch (messageType) {
 			case CONNECT:
 			case DISCONNECT:
+			case OFFLINE:
 				return serializeConnect(messageType, message);
 			case SUBSCRIBE:
 				return serializeSubscribe(messageType, message);
@@ -138,7 +139,7 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 			buffer.put((byte) peerHostBytes.length);
 			buffer.put(peerHostBytes);
 		} else {
-			buffer.put(EMPTY_BYTES);
+			buffer.put((byte) 0);
 		}
 		// 存储时间
 		buffer.putLong(message.getTimestamp());
@@ -208,7 +209,7 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 			buffer.put((byte) peerHostBytes.length);
 			buffer.put(peerHostBytes);
 		} else {
-			buffer.put(EMPTY_BYTES);
+			buffer.put((byte) 0);
 		}
 		// 存储时间
 		buffer.putLong(message.getTimestamp());
@@ -276,7 +277,7 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 			buffer.put((byte) peerHostBytes.length);
 			buffer.put(peerHostBytes);
 		} else {
-			buffer.put(EMPTY_BYTES);
+			buffer.put((byte) 0);
 		}
 		// 存储时间
 		buffer.putLong(message.getTimestamp());
@@ -341,6 +342,11 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 			nodeBytes = node.getBytes(StandardCharsets.UTF_8);
 			protocolLength += nodeBytes.length;
 		}
+		// mqtt5 消息过期时间，追加在最后，兼容旧版本
+		Long expiryAt = message.getExpiryAt();
+		if (expiryAt != null) {
+			protocolLength += 8;
+		}
 		ByteBuffer buffer = ByteBuffer.allocate(protocolLength);
 		// 消息类型
 		buffer.put((byte) messageType.getValue());
@@ -415,7 +421,7 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 			buffer.put((byte) peerHostBytes.length);
 			buffer.put(peerHostBytes);
 		} else {
-			buffer.put(EMPTY_BYTES);
+			buffer.put((byte) 0);
 		}
 		// 存储时间
 		buffer.putLong(message.getTimestamp());
@@ -426,6 +432,9 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 		} else {
 			buffer.put(EMPTY_LONG_BYTES);
 		}
+		if (expiryAt != null) {
+			buffer.putLong(expiryAt);
+		}
 		return buffer.array();
 	}
 
@@ -472,6 +481,11 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 			peerHostBytes = peerHost.getBytes(StandardCharsets.UTF_8);
 			protocolLength += peerHostBytes.length;
 		}
+		// mqtt5 消息过期时间，追加在最后，兼容旧版本
+		Long expiryAt = message.getExpiryAt();
+		if (expiryAt != null) {
+			protocolLength += 8;
+		}
 		ByteBuffer buffer = ByteBuffer.allocate(protocolLength);
 		// 消息类型
 		buffer.put((byte) messageType.getValue());
@@ -532,7 +546,7 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 			buffer.put((byte) peerHostBytes.length);
 			buffer.put(peerHostBytes);
 		} else {
-			buffer.put(EMPTY_BYTES);
+			buffer.put((byte) 0);
 		}
 		// 存储时间
 		buffer.putLong(message.getTimestamp());
@@ -543,6 +557,9 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 		} else {
 			buffer.put(EMPTY_LONG_BYTES);
 		}
+		if (expiryAt != null) {
+			buffer.putLong(expiryAt);
+		}
 		return buffer.array();
 	}
 
@@ -560,6 +577,7 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 		switch (messageType) {
 			case CONNECT:
 			case DISCONNECT:
+			case OFFLINE:
 				return deserializeConnect(buffer, message);
 			case SUBSCRIBE:
 				return deserializeSubscribe(buffer, message);
@@ -761,6 +779,10 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 		if (publishReceivedAt > 0) {
 			message.setPublishReceivedAt(publishReceivedAt);
 		}
+		// mqtt5 消息过期时间
+		if (buffer.remaining() >= 8) {
+			message.setExpiryAt(buffer.getLong());
+		}
 		return message;
 	}
 
@@ -830,6 +852,10 @@ public enum DefaultMessageSerializer implements IMessageSerializer {
 		if (publishReceivedAt > 0) {
 			message.setPublishReceivedAt(publishReceivedAt);
 		}
+		// mqtt5 消息过期时间
+		if (buffer.remaining() >= 8) {
+			message.setExpiryAt(buffer.getLong());
+		}
 		return message;
 	}
 
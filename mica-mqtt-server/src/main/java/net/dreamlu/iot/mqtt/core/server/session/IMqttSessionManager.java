@@ -16,11 +16,15 @@
 
 package net.dreamlu.iot.mqtt.core.server.session;
 
+import net.dreamlu.iot.mqtt.codec.MqttSubscriptionOption;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingPublish;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingQos2Publish;
 import net.dreamlu.iot.mqtt.core.server.model.Subscribe;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * session 管理，不封装 MqttSession 实体，方便 redis 等集群处理
@@ -38,6 +42,21 @@ public interface IMqttSessionManager {
 	 */
 	void addSubscribe(String topicFilter, String clientId, int mqttQoS);
 
+	/**
+	 * 添加订阅存储，带 mqtt5 订阅选项，已经存在的订阅按新的选项替换。默认只存储 qos，不支持订阅选项
+	 *
+	 * @param topicFilter topicFilter
+	 * @param clientId    客户端 Id
+	 * @param option      订阅选项
+	 * @return 之前是否已经存在该订阅
+	 */
+	default boolean addSubscribe(String topicFilter, String clientId, MqttSubscriptionOption option) {
+		boolean exists = getSubscriptions(clientId).stream()
+			.anyMatch(subscribe -> topicFilter.equals(subscribe.getTopicFilter()));
+		addSubscribe(topicFilter, clientId, option.qos().value());
+		return exists;
+	}
+
 	/**
 	 * 删除订阅
 	 *
@@ -71,6 +90,25 @@ public interface IMqttSessionManager {
 	 */
 	List<Subscribe> getSubscriptions(String clientId);
 
+	/**
+	 * 获取本节点所有存在订阅者的 topicFilter，用于集群按订阅路由
+	 *
+	 * @return topicFilter 集合，null 表示不支持，集群会把所有消息转发到本节点
+	 */
+	default Set<String> getTopicFilters() {
+		return null;
+	}
+
+	/**
+	 * 设置 topicFilter 变化监听，本节点第一个订阅者订阅和最后一个订阅者取消时回调
+	 *
+	 * @param listener IMqttTopicFilterListener
+	 * @return 是否支持，不支持时集群只能定时全量同步 {@link #getTopicFilters()}
+	 */
+	default boolean setTopicFilterListener(IMqttTopicFilterListener listener) {
+		return false;
+	}
+
 	/**
 	 * 添加发布过程存储
 	 *
@@ -97,6 +135,16 @@ public interface IMqttSessionManager {
 	 */
 	void removePendingPublish(String clientId, int messageId);
 
+	/**
+	 * 获取客户端所有等待 ack 的下行 qos1、qos2 消息，集群迁移 session 时使用
+	 *
+	 * @param clientId clientId
+	 * @return MqttPendingPublish 列表，默认不支持返回空列表
+	 */
+	default List<MqttPendingPublish> getPendingPublishes(String clientId) {
+		return Collections.emptyList();
+	}
+
 	/**
 	 * 添加发布过程存储
 	 *
@@ -123,14 +171,34 @@ public interface IMqttSessionManager {
 	 */
 	void removePendingQos2Publish(String clientId, int messageId);
 
+	/**
+	 * 获取客户端所有等待 pubRel 的上行 qos2 消息，集群迁移 session 时使用
+	 *
+	 * @param clientId clientId
+	 * @return MqttPendingQos2Publish 列表，默认不支持返回空列表
+	 */
+	default List<MqttPendingQos2Publish> getPendingQos2Publishes(String clientId) {
+		return Collections.emptyList();
+	}
+
 	/**
 	 * 生成消息 Id
 	 *
 	 * @param clientId clientId
-	 * @return messageId
+	 * @return messageId，0 表示 messageId 已耗尽
 	 */
 	int getMessageId(String clientId);
 
+	/**
+	 * 消息 Id 是否已经耗尽，即所有消息 Id 都在等待 ack，可用于背压
+	 *
+	 * @param clientId clientId
+	 * @return 是否耗尽
+	 */
+	default boolean isMessageIdExhausted(String clientId) {
+		return false;
+	}
+
 	/**
 	 * 判断是否存在 session
 	 *
@@ -139,6 +207,29 @@ public interface IMqttSessionManager {
 	 */
 	boolean hasSession(String clientId);
 
+	/**
+	 * 客户端连接，在 connAck 之前调用，集群时可以从其他节点恢复 session
+	 *
+	 * @param clientId     clientId
+	 * @param cleanSession 是否清除 session，mqtt5 为 cleanStart
+	 * @return 是否存在 session，即 connAck 的 sessionPresent
+	 */
+	default boolean connect(String clientId, boolean cleanSession) {
+		return false;
+	}
+
+	/**
+	 * 客户端异步连接，集群从其他节点恢复 session 时不阻塞 io 线程，完成后再回复 connAck。
+	 * 恢复的 session 中等待 ack 的下行消息通过 {@link #getPendingPublishes(String)} 获取，由 connAck 之后重发
+	 *
+	 * @param clientId     clientId
+	 * @param cleanSession 是否清除 session，mqtt5 为 cleanStart
+	 * @return 是否存在 session，即 connAck 的 sessionPresent
+	 */
+	default CompletableFuture<Boolean> connectAsync(String clientId, boolean cleanSession) {
+		return CompletableFuture.completedFuture(connect(clientId, cleanSession));
+	}
+
 	/**
 	 * 标记 session 超时时间
 	 *
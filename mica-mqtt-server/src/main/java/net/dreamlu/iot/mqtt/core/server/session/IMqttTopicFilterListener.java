@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.session;
+
+/**
+ * 本节点 topicFilter 变化监听，用于集群增量同步订阅路由
+ *
+ * @author L.cm
+ */
+public interface IMqttTopicFilterListener {
+
+	/**
+	 * topicFilter 有了第一个订阅者
+	 *
+	 * @param topicFilter topicFilter
+	 */
+	void onAdded(String topicFilter);
+
+	/**
+	 * topicFilter 的最后一个订阅者取消订阅
+	 *
+	 * @param topicFilter topicFilter
+	 */
+	void onRemoved(String topicFilter);
+
+}
@@ -16,6 +16,8 @@
 
 package net.dreamlu.iot.mqtt.core.server.session;
 
+import net.dreamlu.iot.mqtt.codec.MqttSubscriptionOption;
+import net.dreamlu.iot.mqtt.core.common.MqttMessageIdAllocator;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingPublish;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingQos2Publish;
 import net.dreamlu.iot.mqtt.core.server.model.Subscribe;
@@ -26,7 +28,6 @@ import org.tio.utils.collection.IntObjectMap;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 内存 session 管理
@@ -35,11 +36,15 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public class InMemoryMqttSessionManager implements IMqttSessionManager {
 	/**
-	 * messageId 存储 clientId: messageId
+	 * 订阅选项中 qos 的位
 	 */
-	private final ConcurrentMap<String, AtomicInteger> messageIdStore = new ConcurrentHashMap<>();
+	private static final int QOS_MASK = 0x03;
 	/**
-	 * 订阅存储 topicFilter: {clientId: qos}
+	 * messageId 存储 clientId: messageId 分配器
+	 */
+	private final ConcurrentMap<String, MqttMessageIdAllocator> messageIdStore = new ConcurrentHashMap<>();
+	/**
+	 * 订阅存储 topicFilter: {clientId: 订阅选项}，订阅选项同 mqtt5 协议的订阅选项字节，低 2 位为 qos
 	 */
 	private final ConcurrentMap<String, ConcurrentMap<String, Integer>> subscribeStore = new ConcurrentHashMap<>();
 	/**
@@ -50,28 +55,72 @@ public class InMemoryMqttSessionManager implements IMqttSessionManager {
 	 * qos2 消息过程存储 clientId: {msgId: Object}
 	 */
 	private final ConcurrentMap<String, IntObjectMap<MqttPendingQos2Publish>> pendingQos2PublishStore = new ConcurrentHashMap<>();
+	/**
+	 * topicFilter 变化监听
+	 */
+	private volatile IMqttTopicFilterListener topicFilterListener;
 
 	@Override
 	public void addSubscribe(String topicFilter, String clientId, int mqttQoS) {
-		Map<String, Integer> data = subscribeStore.computeIfAbsent(topicFilter, (key) -> new ConcurrentHashMap<>(16));
-		// 如果不存在或者老的订阅 qos 比较小也重新设置
-		Integer existingQos = data.get(clientId);
-		if (existingQos == null || existingQos < mqttQoS) {
-			data.put(clientId, mqttQoS);
+		boolean[] added = new boolean[1];
+		subscribeStore.compute(topicFilter, (key, data) -> {
+			if (data == null) {
+				data = new ConcurrentHashMap<>(16);
+				added[0] = true;
+			}
+			// 如果不存在或者老的订阅 qos 比较小也重新设置，保留老的订阅选项
+			Integer existing = data.get(clientId);
+			if (existing == null) {
+				data.put(clientId, mqttQoS);
+			} else if ((existing & QOS_MASK) < mqttQoS) {
+				data.put(clientId, (existing & ~QOS_MASK) | mqttQoS);
+			}
+			return data;
+		});
+		if (added[0]) {
+			onTopicFilterAdded(topicFilter);
+		}
+	}
+
+	@Override
+	public boolean addSubscribe(String topicFilter, String clientId, MqttSubscriptionOption option) {
+		boolean[] added = new boolean[1];
+		boolean[] exists = new boolean[1];
+		subscribeStore.compute(topicFilter, (key, data) -> {
+			if (data == null) {
+				data = new ConcurrentHashMap<>(16);
+				added[0] = true;
+			}
+			exists[0] = data.put(clientId, option.value()) != null;
+			return data;
+		});
+		if (added[0]) {
+			onTopicFilterAdded(topicFilter);
 		}
+		return exists[0];
 	}
 
 	@Override
 	public void removeSubscribe(String topicFilter, String clientId) {
-		ConcurrentMap<String, Integer> map = subscribeStore.get(topicFilter);
-		if (map == null) {
-			return;
+		boolean[] removed = new boolean[1];
+		// 没有订阅者时删除 topicFilter，保证增删 topicFilter 和监听回调一一对应
+		subscribeStore.computeIfPresent(topicFilter, (key, data) -> {
+			data.remove(clientId);
+			if (data.isEmpty()) {
+				removed[0] = true;
+				return null;
+			}
+			return data;
+		});
+		if (removed[0]) {
+			onTopicFilterRemoved(topicFilter);
 		}
-		map.remove(clientId);
 	}
 
 	public void removeSubscribe(String clientId) {
-		subscribeStore.forEach((key, value) -> value.remove(clientId));
+		for (String topicFilter : subscribeStore.keySet()) {
+			removeSubscribe(topicFilter, clientId);
+		}
 	}
 
 	@Override
@@ -80,9 +129,9 @@ public class InMemoryMqttSessionManager implements IMqttSessionManager {
 		// 1. 如果订阅的就是普通的 topic
 		ConcurrentMap<String, Integer> subscribeData = subscribeStore.get(topicName);
 		if (subscribeData != null && !subscribeData.isEmpty()) {
-			Integer qos = subscribeData.get(clientId);
-			if (qos != null) {
-				return qos;
+			Integer options = subscribeData.get(clientId);
+			if (options != null) {
+				return options & QOS_MASK;
 			}
 		}
 		// 2. 如果订阅的事通配符
@@ -92,8 +141,9 @@ public class InMemoryMqttSessionManager implements IMqttSessionManager {
 			if (TopicUtil.match(topicFilter, topicName)) {
 				ConcurrentMap<String, Integer> data = subscribeStore.get(topicFilter);
 				if (data != null && !data.isEmpty()) {
-					Integer mqttQoS = data.get(clientId);
-					if (mqttQoS != null) {
+					Integer options = data.get(clientId);
+					if (options != null) {
+						int mqttQoS = options & QOS_MASK;
 						if (qosValue == null) {
 							qosValue = mqttQoS;
 						} else {
@@ -108,27 +158,38 @@ public class InMemoryMqttSessionManager implements IMqttSessionManager {
 
 	@Override
 	public List<Subscribe> searchSubscribe(String topicName) {
-		// 排除重复订阅，例如： /test/# 和 /# 只发一份
+		// 排除重复订阅，例如： /test/# 和 /# 只发一份，qos 取小的，
+		// 只要有一个订阅没有 noLocal 就投递，有一个订阅有 retainAsPublished 就保持 retain 标记
 		Map<String, Integer> subscribeMap = new HashMap<>(32);
 		Set<String> topicFilterSet = subscribeStore.keySet();
 		for (String topicFilter : topicFilterSet) {
 			if (TopicUtil.match(topicFilter, topicName)) {
 				ConcurrentMap<String, Integer> data = subscribeStore.get(topicFilter);
 				if (data != null && !data.isEmpty()) {
-					data.forEach((clientId, qos) -> {
-						subscribeMap.merge(clientId, qos, Math::min);
+					data.forEach((clientId, options) -> {
+						subscribeMap.merge(clientId, options, InMemoryMqttSessionManager::mergeOptions);
 					});
 				}
 			}
 		}
 		List<Subscribe> subscribeList = new ArrayList<>();
-		subscribeMap.forEach((clientId, qos) -> {
-			subscribeList.add(new Subscribe(clientId, qos));
+		subscribeMap.forEach((clientId, options) -> {
+			Subscribe subscribe = new Subscribe(clientId, options & QOS_MASK);
+			subscribe.setNoLocal((options & 0x04) != 0);
+			subscribe.setRetainAsPublished((options & 0x08) != 0);
+			subscribeList.add(subscribe);
 		});
 		subscribeMap.clear();
 		return subscribeList;
 	}
 
+	private static int mergeOptions(int options1, int options2) {
+		int qos = Math.min(options1 & QOS_MASK, options2 & QOS_MASK);
+		int noLocal = options1 & options2 & 0x04;
+		int retainAsPublished = (options1 | options2) & 0x08;
+		return qos | noLocal | retainAsPublished;
+	}
+
 	@Override
 	public List<Subscribe> getSubscriptions(String clientId) {
 		List<Subscribe> subscribeList = new ArrayList<>();
@@ -138,20 +199,59 @@ public class InMemoryMqttSessionManager implements IMqttSessionManager {
 			if (mapEntryValue == null || mapEntryValue.isEmpty()) {
 				continue;
 			}
-			Integer qos = mapEntryValue.get(clientId);
-			if (qos == null) {
+			Integer options = mapEntryValue.get(clientId);
+			if (options == null) {
 				continue;
 			}
 			String topicFilter = mapEntry.getKey();
-			subscribeList.add(new Subscribe(topicFilter, clientId, qos));
+			subscribeList.add(new Subscribe(topicFilter, clientId, MqttSubscriptionOption.valueOf(options)));
 		}
 		return subscribeList;
 	}
 
+	@Override
+	public Set<String> getTopicFilters() {
+		Set<String> topicFilterSet = new HashSet<>();
+		subscribeStore.forEach((topicFilter, data) -> {
+			if (!data.isEmpty()) {
+				topicFilterSet.add(topicFilter);
+			}
+		});
+		return topicFilterSet;
+	}
+
+	@Override
+	public boolean setTopicFilterListener(IMqttTopicFilterListener listener) {
+		this.topicFilterListener = listener;
+		return true;
+	}
+
+	private void onTopicFilterAdded(String topicFilter) {
+		IMqttTopicFilterListener listener = this.topicFilterListener;
+		if (listener != null) {
+			listener.onAdded(topicFilter);
+		}
+	}
+
+	private void onTopicFilterRemoved(String topicFilter) {
+		IMqttTopicFilterListener listener = this.topicFilterListener;
+		if (listener != null) {
+			listener.onRemoved(topicFilter);
+		}
+	}
+
 	@Override
 	public void addPendingPublish(String clientId, int messageId, MqttPendingPublish pendingPublish) {
 		Map<Integer, MqttPendingPublish> data = pendingPublishStore.computeIfAbsent(clientId, (key) -> new IntObjectHashMap<>(16));
 		data.put(messageId, pendingPublish);
+		// 恢复的 session 中的消息，占用 messageId，避免重复分配
+		messageIdStore.computeIfAbsent(clientId, (key) -> new MqttMessageIdAllocator()).reserve(messageId);
+	}
+
+	@Override
+	public List<MqttPendingPublish> getPendingPublishes(String clientId) {
+		Map<Integer, MqttPendingPublish> data = pendingPublishStore.get(clientId);
+		return data == null ? Collections.emptyList() : new ArrayList<>(data.values());
 	}
 
 	@Override
@@ -166,8 +266,12 @@ public class InMemoryMqttSessionManager implements IMqttSessionManager {
 	@Override
 	public void removePendingPublish(String clientId, int messageId) {
 		Map<Integer, MqttPendingPublish> data = pendingPublishStore.get(clientId);
-		if (data != null) {
-			data.remove(messageId);
+		if (data != null && data.remove(messageId) != null) {
+			// 收到 ack，释放 messageId
+			MqttMessageIdAllocator allocator = messageIdStore.get(clientId);
+			if (allocator != null) {
+				allocator.release(messageId);
+			}
 		}
 	}
 
@@ -186,6 +290,12 @@ public class InMemoryMqttSessionManager implements IMqttSessionManager {
 		return data.get(messageId);
 	}
 
+	@Override
+	public List<MqttPendingQos2Publish> getPendingQos2Publishes(String clientId) {
+		Map<Integer, MqttPendingQos2Publish> data = pendingQos2PublishStore.get(clientId);
+		return data == null ? Collections.emptyList() : new ArrayList<>(data.values());
+	}
+
 	@Override
 	public void removePendingQos2Publish(String clientId, int messageId) {
 		Map<Integer, MqttPendingQos2Publish> data = pendingQos2PublishStore.get(clientId);
@@ -196,9 +306,14 @@ public class InMemoryMqttSessionManager implements IMqttSessionManager {
 
 	@Override
 	public int getMessageId(String clientId) {
-		AtomicInteger value = messageIdStore.computeIfAbsent(clientId, (key) -> new AtomicInteger(1));
-		value.compareAndSet(0xffff, 1);
-		return value.getAndIncrement();
+		MqttMessageIdAllocator allocator = messageIdStore.computeIfAbsent(clientId, (key) -> new MqttMessageIdAllocator());
+		return allocator.allocate();
+	}
+
+	@Override
+	public boolean isMessageIdExhausted(String clientId) {
+		MqttMessageIdAllocator allocator = messageIdStore.get(clientId);
+		return allocator != null && allocator.isExhausted();
 	}
 
 	@Override
@@ -229,7 +344,11 @@ public class InMemoryMqttSessionManager implements IMqttSessionManager {
 
 	@Override
 	public void clean() {
-		subscribeStore.clear();
+		for (String topicFilter : subscribeStore.keySet()) {
+			if (subscribeStore.remove(topicFilter) != null) {
+				onTopicFilterRemoved(topicFilter);
+			}
+		}
 		pendingPublishStore.clear();
 		pendingQos2PublishStore.clear();
 		messageIdStore.clear();
@@ -77,4 +77,15 @@ public interface IMqttMessageStore {
 	 */
 	List<Message> getRetainMessage(String topicFilter);
 
+	/**
+	 * 清理过期的 retain 消息，每次只检查一部分，由服务端定时调用
+	 *
+	 * @param now   当前时间 (ms)
+	 * @param limit 本次最多检查的消息数
+	 * @return 清理的消息数
+	 */
+	default int removeExpiredRetainMessage(long now, int limit) {
+		return 0;
+	}
+
 }
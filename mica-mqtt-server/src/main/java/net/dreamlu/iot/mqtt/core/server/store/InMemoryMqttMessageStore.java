@@ -21,7 +21,9 @@ import net.dreamlu.iot.mqtt.core.server.model.Message;
 import net.dreamlu.iot.mqtt.core.util.TopicUtil;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -39,6 +41,10 @@ public class InMemoryMqttMessageStore implements IMqttMessageStore {
 	 * 保持消息 topic: Message
 	 */
 	private final ConcurrentMap<String, Message> retainStore = new ConcurrentHashMap<>();
+	/**
+	 * 清理过期 retain 消息的游标，下次从上次结束的位置继续
+	 */
+	private Iterator<Map.Entry<String, Message>> expiryCursor;
 
 	@Override
 	public boolean addWillMessage(String clientId, Message message) {
@@ -71,13 +77,37 @@ public class InMemoryMqttMessageStore implements IMqttMessageStore {
 
 	@Override
 	public List<Message> getRetainMessage(String topicFilter) {
+		long now = System.currentTimeMillis();
 		List<Message> retainMessageList = new ArrayList<>();
 		retainStore.forEach((topic, message) -> {
 			if (TopicUtil.match(topicFilter, topic)) {
-				retainMessageList.add(message);
+				if (message.isExpired(now)) {
+					retainStore.remove(topic, message);
+				} else {
+					retainMessageList.add(message);
+				}
 			}
 		});
 		return retainMessageList;
 	}
 
+	@Override
+	public synchronized int removeExpiredRetainMessage(long now, int limit) {
+		Iterator<Map.Entry<String, Message>> iterator = expiryCursor;
+		if (iterator == null || !iterator.hasNext()) {
+			iterator = retainStore.entrySet().iterator();
+		}
+		int removed = 0;
+		for (int i = 0; i < limit && iterator.hasNext(); i++) {
+			Map.Entry<String, Message> entry = iterator.next();
+			Message message = entry.getValue();
+			// 只删除过期的这条，期间被替换的新消息保留
+			if (message.isExpired(now) && retainStore.remove(entry.getKey(), message)) {
+				removed++;
+			}
+		}
+		expiryCursor = iterator;
+		return removed;
+	}
+
 }
@@ -17,20 +17,21 @@
 package net.dreamlu.iot.mqtt.core.server.support;
 
 import net.dreamlu.iot.mqtt.codec.*;
+import net.dreamlu.iot.mqtt.core.common.MqttMessageExpiry;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingPublish;
 import net.dreamlu.iot.mqtt.core.common.MqttPendingQos2Publish;
+import net.dreamlu.iot.mqtt.core.common.MqttTopicAliases;
 import net.dreamlu.iot.mqtt.core.server.MqttConst;
 import net.dreamlu.iot.mqtt.core.server.MqttServerCreator;
 import net.dreamlu.iot.mqtt.core.server.MqttServerProcessor;
-import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerAuthHandler;
-import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerPublishPermission;
-import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerSubscribeValidator;
-import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerUniqueIdService;
+import net.dreamlu.iot.mqtt.core.server.auth.*;
+import net.dreamlu.iot.mqtt.core.server.delay.MqttDelayedPublish;
 import net.dreamlu.iot.mqtt.core.server.dispatcher.IMqttMessageDispatcher;
 import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
 import net.dreamlu.iot.mqtt.core.server.event.IMqttConnectStatusListener;
 import net.dreamlu.iot.mqtt.core.server.event.IMqttMessageListener;
 import net.dreamlu.iot.mqtt.core.server.event.IMqttSessionListener;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttAdmissionControl;
 import net.dreamlu.iot.mqtt.core.server.model.Message;
 import net.dreamlu.iot.mqtt.core.server.session.IMqttSessionManager;
 import net.dreamlu.iot.mqtt.core.server.store.IMqttMessageStore;
@@ -41,11 +42,14 @@ import org.tio.core.ChannelContext;
 import org.tio.core.Node;
 import org.tio.core.Tio;
 import org.tio.utils.hutool.StrUtil;
+import org.tio.utils.timer.TimerTask;
 import org.tio.utils.timer.TimerTaskService;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
 
 /**
  * mqtt broker 处理器
@@ -67,6 +71,12 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 	private final IMqttMessageStore messageStore;
 	private final IMqttSessionManager sessionManager;
 	private final IMqttServerAuthHandler authHandler;
+	private final IMqttServerAsyncAuthHandler asyncAuthHandler;
+	private final MqttServerAuthCache authCache;
+	private final MqttServerAuthMetrics authMetrics;
+	private final int maxPendingAuth;
+	private final long authTimeout;
+	private final MqttAdmissionControl admissionControl;
 	private final IMqttServerUniqueIdService uniqueIdService;
 	private final IMqttServerSubscribeValidator subscribeValidator;
 	private final IMqttServerPublishPermission publishPermission;
@@ -74,6 +84,8 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 	private final IMqttConnectStatusListener connectStatusListener;
 	private final IMqttSessionListener sessionListener;
 	private final IMqttMessageListener messageListener;
+	private final MqttRetainMessageDelivery retainMessageDelivery;
+	private final MqttDelayedPublish delayedPublish;
 	private final TimerTaskService taskService;
 	private final ThreadPoolExecutor executor;
 
@@ -83,6 +95,12 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		this.messageStore = serverCreator.getMessageStore();
 		this.sessionManager = serverCreator.getSessionManager();
 		this.authHandler = serverCreator.getAuthHandler();
+		this.asyncAuthHandler = serverCreator.getAsyncAuthHandler();
+		this.authCache = serverCreator.getAuthCache();
+		this.authMetrics = serverCreator.getAuthMetrics();
+		this.maxPendingAuth = serverCreator.getMaxPendingAuth();
+		this.authTimeout = serverCreator.getAuthTimeout();
+		this.admissionControl = serverCreator.getAdmissionControl();
 		this.uniqueIdService = serverCreator.getUniqueIdService();
 		this.subscribeValidator = serverCreator.getSubscribeValidator();
 		this.publishPermission = serverCreator.getPublishPermission();
@@ -90,7 +108,9 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		this.connectStatusListener = serverCreator.getConnectStatusListener();
 		this.sessionListener = serverCreator.getSessionListener();
 		this.messageListener = serverCreator.getMessageListener();
+		this.retainMessageDelivery = new MqttRetainMessageDelivery(serverCreator, taskService, executor);
 		this.taskService = taskService;
+		this.delayedPublish = serverCreator.getDelayedPublish();
 		this.executor = executor;
 	}
 
@@ -101,6 +121,11 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		String clientId = payload.clientIdentifier();
 		String userName = payload.userName();
 		String password = payload.password();
+		// 0. CONNECT 限流，快速拒绝，避免认证和 session 处理堆积
+		if (admissionControl != null && !admissionControl.tryConnect(context.getClientNode().getIp())) {
+			rejectConnect(context, clientId);
+			return;
+		}
 		// 1. 获取唯一id，用于 mqtt 内部绑定，部分用户的业务采用 userName 作为唯一id，故抽象之，默认：uniqueId == clientId
 		String uniqueId = uniqueIdService.getUniqueId(context, clientId, userName, password);
 		// 2. 客户端必须提供 uniqueId, 不管 cleanSession 是否为1, 此处没有参考标准协议实现
@@ -108,11 +133,122 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 			connAckByReturnCode(clientId, uniqueId, context, MqttConnectReasonCode.CONNECTION_REFUSED_IDENTIFIER_REJECTED);
 			return;
 		}
-		// 3. 认证
-		if (authHandler != null && !authHandler.verifyAuthenticate(context, uniqueId, clientId, userName, password)) {
-			connAckByReturnCode(clientId, uniqueId, context, MqttConnectReasonCode.CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD);
+		// 3. 认证，优先使用缓存的认证结果
+		if (authHandler == null && asyncAuthHandler == null) {
+			processConnected(context, mqttMessage, uniqueId);
+			return;
+		}
+		String cacheKey = null;
+		if (authCache != null) {
+			String clientIp = authCache.isBindIp() ? context.getClientNode().getIp() : null;
+			cacheKey = MqttServerAuthCache.getKey(clientIp, clientId, userName, password);
+		}
+		Boolean cachedResult = cacheKey == null ? null : authCache.get(cacheKey);
+		if (cachedResult != null) {
+			processAuthenticated(context, mqttMessage, uniqueId, cachedResult);
+			return;
+		}
+		if (asyncAuthHandler != null) {
+			processAsyncAuthenticate(context, mqttMessage, uniqueId, cacheKey);
+			return;
+		}
+		long startNanos = System.nanoTime();
+		boolean authenticated = authHandler.verifyAuthenticate(context, uniqueId, clientId, userName, password);
+		authMetrics.record(authenticated, startNanos);
+		if (cacheKey != null) {
+			authCache.put(cacheKey, authenticated);
+		}
+		processAuthenticated(context, mqttMessage, uniqueId, authenticated);
+	}
+
+	/**
+	 * 异步认证，认证完成后在业务线程池中继续处理连接
+	 */
+	private void processAsyncAuthenticate(ChannelContext context, MqttConnectMessage mqttMessage, String uniqueId, String cacheKey) {
+		MqttConnectPayload payload = mqttMessage.payload();
+		String clientId = payload.clientIdentifier();
+		// 1. 并发认证数限制
+		if (!authMetrics.tryBegin(maxPendingAuth)) {
+			logger.warn("Mqtt clientId:{} uniqueId:{} rejected, pending auth exceeds:{}", clientId, uniqueId, maxPendingAuth);
+			connAckByReturnCode(clientId, uniqueId, context, MqttConnectReasonCode.CONNECTION_REFUSED_SERVER_UNAVAILABLE);
 			return;
 		}
+		// 2. 认证完成前暂存客户端的其他消息
+		MqttConnectPending connectPending = new MqttConnectPending();
+		context.set(MqttConst.CONNECT_PENDING, connectPending);
+		long startNanos = System.nanoTime();
+		CompletableFuture<Boolean> future = new CompletableFuture<>();
+		TimerTask timeoutTask = taskService.addTask(systemTimer -> new TimerTask(authTimeout) {
+			@Override
+			public void run() {
+				future.completeExceptionally(new TimeoutException("Mqtt async authenticate timeout:" + authTimeout + "ms"));
+			}
+		});
+		try {
+			asyncAuthHandler.authenticate(context, uniqueId, clientId, payload.userName(), payload.password())
+				.whenComplete((result, error) -> {
+					if (error == null) {
+						future.complete(result);
+					} else {
+						future.completeExceptionally(error);
+					}
+				});
+		} catch (Throwable e) {
+			future.completeExceptionally(e);
+		}
+		// 3. 认证完成，connAck 之后再处理暂存的消息
+		future.whenCompleteAsync((result, error) -> {
+			timeoutTask.cancel();
+			authMetrics.end();
+			boolean authenticated = error == null && Boolean.TRUE.equals(result);
+			if (error != null) {
+				logger.error("Mqtt async authenticate error, clientId:{} uniqueId:{}", clientId, uniqueId, error);
+			} else if (cacheKey != null) {
+				authCache.put(cacheKey, authenticated);
+			}
+			authMetrics.record(authenticated, startNanos);
+			CompletableFuture<Boolean> connected;
+			try {
+				if (context.isClosed || context.isRemoved) {
+					connected = CompletableFuture.completedFuture(false);
+				} else {
+					connected = processAuthenticated(context, mqttMessage, uniqueId, authenticated);
+				}
+			} catch (Throwable e) {
+				connected = CompletableFuture.completedFuture(false);
+				logger.error("Mqtt clientId:{} uniqueId:{} connect error.", clientId, uniqueId, e);
+			}
+			connected.whenComplete((accepted, connectError) -> {
+				context.remove(MqttConst.CONNECT_PENDING);
+				connectPending.complete(connectError == null && Boolean.TRUE.equals(accepted));
+			});
+		}, executor);
+	}
+
+	/**
+	 * 认证结果处理
+	 *
+	 * @return 是否已经接受连接，在回复 connAck 之后完成
+	 */
+	private CompletableFuture<Boolean> processAuthenticated(ChannelContext context, MqttConnectMessage mqttMessage, String uniqueId, boolean authenticated) {
+		if (authenticated) {
+			return processConnected(context, mqttMessage, uniqueId);
+		} else {
+			String clientId = mqttMessage.payload().clientIdentifier();
+			connAckByReturnCode(clientId, uniqueId, context, MqttConnectReasonCode.CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD);
+			return CompletableFuture.completedFuture(false);
+		}
+	}
+
+	/**
+	 * 认证通过，处理连接
+	 *
+	 * @return 是否已经接受连接，在回复 connAck 之后完成
+	 */
+	private CompletableFuture<Boolean> processConnected(ChannelContext context, MqttConnectMessage mqttMessage, String uniqueId) {
+		MqttConnectPayload payload = mqttMessage.payload();
+		String clientId = payload.clientIdentifier();
+		String userName = payload.userName();
 		// 4. 判断 uniqueId 是否在多个地方使用，如果在其他地方有使用，先解绑
 		ChannelContext otherContext = Tio.getByBsId(context.getTioConfig(), uniqueId);
 		if (otherContext != null) {
@@ -139,14 +275,57 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		}
 		// 7. session 处理，先默认全部连接关闭时清除，mqtt5 为 CleanStart，
 		// 按照 mqtt 协议的规则是下一次连接时清除，emq 是添加了全局 session 超时，关闭时激活 session 有效期倒计时
-//		boolean cleanSession = variableHeader.isCleanSession();
-//		if (cleanSession) {
-//			// TODO L.cm 考虑 session 处理 可参数： https://www.emqx.com/zh/blog/mqtt-session
-//			// mqtt v5.0 会话超时时间
-//			MqttProperties properties = variableHeader.properties();
-//			Integer sessionExpiryInterval = properties.getPropertyValue(MqttProperties.MqttPropertyType.SESSION_EXPIRY_INTERVAL);
-//			System.out.println(sessionExpiryInterval);
-//		}
+		// mqtt5 会话过期间隔，集群 session 离线后按此过期
+		if (MqttVersion.MQTT_5 == MqttCodecUtil.getMqttVersion(context)) {
+			Integer sessionExpiryInterval = variableHeader.properties().getPropertyValue(MqttProperties.MqttPropertyType.SESSION_EXPIRY_INTERVAL);
+			if (sessionExpiryInterval != null) {
+				sessionManager.expire(uniqueId, sessionExpiryInterval);
+			}
+		}
+		CompletableFuture<Boolean> sessionFuture = connectSession(uniqueId, variableHeader.isCleanSession());
+		if (sessionFuture.isDone()) {
+			connectSessionCompleted(context, mqttMessage, uniqueId, sessionFuture.join());
+			return CompletableFuture.completedFuture(true);
+		}
+		// 集群从其他节点恢复 session，不阻塞 io 线程，恢复完成前暂存客户端的其他消息
+		MqttConnectPending pending = context.get(MqttConst.CONNECT_PENDING);
+		MqttConnectPending connectPending;
+		if (pending == null) {
+			connectPending = new MqttConnectPending();
+			context.set(MqttConst.CONNECT_PENDING, connectPending);
+		} else {
+			connectPending = null;
+		}
+		return sessionFuture.handleAsync((sessionPresent, error) -> {
+			boolean accepted = false;
+			try {
+				if (!context.isClosed && !context.isRemoved) {
+					connectSessionCompleted(context, mqttMessage, uniqueId, Boolean.TRUE.equals(sessionPresent));
+					accepted = true;
+				} else if (Tio.getByBsId(context.getTioConfig(), uniqueId) == null) {
+					// 恢复完成前连接已经关闭，清理恢复的 session
+					cleanSession(uniqueId);
+				}
+			} catch (Throwable e) {
+				logger.error("Mqtt clientId:{} uniqueId:{} connect error.", clientId, uniqueId, e);
+			} finally {
+				if (connectPending != null) {
+					context.remove(MqttConst.CONNECT_PENDING);
+					connectPending.complete(accepted);
+				}
+			}
+			return accepted;
+		}, executor);
+	}
+
+	/**
+	 * session 处理完成，回复 connAck
+	 */
+	private void connectSessionCompleted(ChannelContext context, MqttConnectMessage mqttMessage, String uniqueId, boolean sessionPresent) {
+		MqttConnectPayload payload = mqttMessage.payload();
+		String clientId = payload.clientIdentifier();
+		String userName = payload.userName();
+		MqttConnectVariableHeader variableHeader = mqttMessage.variableHeader();
 		// 8. 存储遗嘱消息
 		boolean willFlag = variableHeader.isWillFlag();
 		if (willFlag) {
@@ -168,9 +347,25 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 			willMessage.setNode(serverCreator.getNodeName());
 			messageStore.addWillMessage(uniqueId, willMessage);
 		}
-		// 9. 返回 ack
-		connAckByReturnCode(clientId, uniqueId, context, MqttConnectReasonCode.CONNECTION_ACCEPTED);
-		// 10. 在线状态
+		// 9. mqtt5 topic alias，下发时 alias 数取双方的最小值
+		MqttProperties connAckProperties = MqttProperties.NO_PROPERTIES;
+		int topicAliasMaximum = serverCreator.getTopicAliasMaximum();
+		if (topicAliasMaximum > 0 && MqttVersion.MQTT_5 == MqttCodecUtil.getMqttVersion(context)) {
+			int clientAliasMaximum = MqttTopicAliases.getTopicAliasMaximum(variableHeader.properties());
+			context.set(MqttConst.TOPIC_ALIAS, new MqttTopicAliases(topicAliasMaximum, Math.min(clientAliasMaximum, topicAliasMaximum)));
+			connAckProperties = new MqttProperties();
+			connAckProperties.add(new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.TOPIC_ALIAS_MAXIMUM, topicAliasMaximum));
+		}
+		// 10. 握手完成，返回 ack
+		if (admissionControl != null) {
+			admissionControl.releaseHandshake(context);
+		}
+		connAckByReturnCode(clientId, uniqueId, context, MqttConnectReasonCode.CONNECTION_ACCEPTED, sessionPresent, connAckProperties);
+		// 10.5 恢复的 session 中等待 ack 的消息，按 dup 重发
+		if (sessionPresent) {
+			resendPendingPublishes(context, uniqueId);
+		}
+		// 11. 在线状态
 		executor.execute(() -> {
 			try {
 				connectStatusListener.online(context, uniqueId, userName);
@@ -180,10 +375,35 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		});
 	}
 
+	/**
+	 * CONNECT 限流拒绝，mqtt5 回复服务繁忙，mqtt3 没有对应的返回码直接关闭
+	 */
+	private static void rejectConnect(ChannelContext context, String clientId) {
+		logger.debug("Mqtt clientId:{} connect rejected by rate limit.", clientId);
+		if (MqttVersion.MQTT_5 == MqttCodecUtil.getMqttVersion(context)) {
+			MqttConnAckMessage message = MqttMessageBuilders.connAck()
+				.returnCode(MqttConnectReasonCode.CONNECTION_REFUSED_SERVER_BUSY)
+				.build();
+			Tio.bSend(context, message);
+		}
+		Tio.remove(context, "Mqtt connect rejected by rate limit");
+	}
+
 	private static void connAckByReturnCode(String clientId, String uniqueId, ChannelContext context, MqttConnectReasonCode returnCode) {
+		connAckByReturnCode(clientId, uniqueId, context, returnCode, false);
+	}
+
+	private static void connAckByReturnCode(String clientId, String uniqueId, ChannelContext context,
+											MqttConnectReasonCode returnCode, boolean sessionPresent) {
+		connAckByReturnCode(clientId, uniqueId, context, returnCode, sessionPresent, MqttProperties.NO_PROPERTIES);
+	}
+
+	private static void connAckByReturnCode(String clientId, String uniqueId, ChannelContext context,
+											MqttConnectReasonCode returnCode, boolean sessionPresent, MqttProperties properties) {
 		MqttConnAckMessage message = MqttMessageBuilders.connAck()
 			.returnCode(returnCode)
-			.sessionPresent(false)
+			.sessionPresent(sessionPresent)
+			.properties(properties)
 			.build();
 		Tio.send(context, message);
 		if (MqttConnectReasonCode.CONNECTION_ACCEPTED == returnCode) {
@@ -202,6 +422,39 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		Node clientNode = context.getClientNode();
 		message.setPeerHost(clientNode.getIp() + ':' + clientNode.getPort());
 		messageDispatcher.send(message);
+		// 集群转发器会把时间戳替换为注册表的版本
+		context.set(MqttConst.CONNECT_VERSION, message.getTimestamp());
+	}
+
+	private CompletableFuture<Boolean> connectSession(String clientId, boolean cleanSession) {
+		try {
+			return sessionManager.connectAsync(clientId, cleanSession)
+				.exceptionally(throwable -> {
+					logger.error("Mqtt server clientId:{} session connect error.", clientId, throwable);
+					return false;
+				});
+		} catch (Throwable throwable) {
+			logger.error("Mqtt server clientId:{} session connect error.", clientId, throwable);
+			return CompletableFuture.completedFuture(false);
+		}
+	}
+
+	private void resendPendingPublishes(ChannelContext context, String clientId) {
+		long now = System.currentTimeMillis();
+		for (MqttPendingPublish pendingPublish : sessionManager.getPendingPublishes(clientId)) {
+			MqttPublishMessage message = pendingPublish.getMessage();
+			int messageId = message.variableHeader().packetId();
+			if (MqttMessageExpiry.isExpired(pendingPublish.getExpiryAt(), now)) {
+				sessionManager.removePendingPublish(clientId, messageId);
+				continue;
+			}
+			MqttFixedHeader fixedHeader = message.fixedHeader();
+			MqttFixedHeader dupFixedHeader = new MqttFixedHeader(MqttMessageType.PUBLISH, true, fixedHeader.qosLevel(), fixedHeader.isRetain(), 0);
+			MqttPublishMessage dupMessage = new MqttPublishMessage(dupFixedHeader, message.variableHeader(), pendingPublish.getPayload());
+			Tio.send(context, MqttMessageExpiry.withRemaining(dupMessage, pendingPublish.getExpiryAt(), now));
+			pendingPublish.startPublishRetransmissionTimer(taskService, msg -> Tio.send(context, msg),
+				() -> sessionManager.removePendingPublish(clientId, messageId));
+		}
 	}
 
 	private void cleanSession(String clientId) {
@@ -219,20 +472,34 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		MqttQoS mqttQoS = fixedHeader.qosLevel();
 		MqttPublishVariableHeader variableHeader = message.variableHeader();
 		String topicName = variableHeader.topicName();
-		// 1. 权限判断，在 MQTT v3.1 和 v3.1.1 协议中，发布操作被拒绝后服务器无任何报文错误返回，这是协议设计的一个缺陷。但在 MQTT v5.0 协议上已经支持应答一个相应的错误报文。
-		if (publishPermission != null && !publishPermission.verifyPermission(context, clientId, topicName, mqttQoS, fixedHeader.isRetain())) {
+		int packetId = variableHeader.packetId();
+		// 1. 延迟发布，先解析出实际发布的 topic，权限按实际 topic 判断
+		String publishTopic = topicName;
+		if (delayedPublish != null && MqttDelayedPublish.isDelayed(topicName)) {
+			MqttDelayedPublish.DelayedTopic delayedTopic = delayedPublish.parse(topicName);
+			if (delayedTopic == null) {
+				rejectPublish(context, mqttQoS, packetId, MqttPubAckReasonCode.TOPIC_NAME_INVALID.value());
+				return;
+			}
+			publishTopic = delayedTopic.getTopic();
+		}
+		// 2. 权限判断，在 MQTT v3.1 和 v3.1.1 协议中，发布操作被拒绝后服务器无任何报文错误返回，这是协议设计的一个缺陷。但在 MQTT v5.0 协议上已经支持应答一个相应的错误报文。
+		if (publishPermission != null && !publishPermission.verifyPermission(context, clientId, publishTopic, mqttQoS, fixedHeader.isRetain())) {
 			logger.error("Mqtt clientId:{} topic:{} no publish permission.", clientId, topicName);
+			rejectPublish(context, mqttQoS, packetId, MqttPubAckReasonCode.NOT_AUTHORIZED.value());
 			return;
 		}
-		// 2. 处理发布逻辑
-		int packetId = variableHeader.packetId();
+		// 3. 处理发布逻辑
 		logger.debug("Publish - clientId:{} topicName:{} mqttQoS:{} packetId:{}", clientId, topicName, mqttQoS, packetId);
 		switch (mqttQoS) {
 			case AT_MOST_ONCE:
 				invokeListenerForPublish(context, clientId, mqttQoS, topicName, message);
 				break;
 			case AT_LEAST_ONCE:
-				invokeListenerForPublish(context, clientId, mqttQoS, topicName, message);
+				if (!invokeListenerForPublish(context, clientId, mqttQoS, topicName, message)) {
+					rejectPublish(context, mqttQoS, packetId, MqttPubAckReasonCode.IMPLEMENTATION_SPECIFIC_ERROR.value());
+					break;
+				}
 				if (packetId != -1) {
 					MqttMessage messageAck = MqttMessageBuilders.pubAck()
 						.packetId(packetId)
@@ -258,6 +525,29 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		}
 	}
 
+	/**
+	 * 拒绝发布，mqtt5 按 qos 应答 PubAck 或 PubRec 的错误码，mqtt3 没有错误报文，不做应答
+	 *
+	 * @param context    ChannelContext
+	 * @param mqttQoS    MqttQoS
+	 * @param packetId   packetId
+	 * @param reasonCode reasonCode，PubAck 和 PubRec 的错误码相同
+	 */
+	private static void rejectPublish(ChannelContext context, MqttQoS mqttQoS, int packetId, byte reasonCode) {
+		if (packetId == -1 || MqttVersion.MQTT_5 != MqttCodecUtil.getMqttVersion(context)) {
+			return;
+		}
+		if (MqttQoS.AT_LEAST_ONCE == mqttQoS) {
+			Tio.send(context, MqttMessageBuilders.pubAck()
+				.packetId(packetId)
+				.reasonCode(reasonCode)
+				.build());
+		} else if (MqttQoS.EXACTLY_ONCE == mqttQoS) {
+			MqttFixedHeader pubRecFixedHeader = new MqttFixedHeader(MqttMessageType.PUBREC, false, MqttQoS.AT_MOST_ONCE, false, 0);
+			Tio.send(context, new MqttMessage(pubRecFixedHeader, new MqttPubReplyMessageVariableHeader(packetId, reasonCode, null)));
+		}
+	}
+
 	@Override
 	public void processPubAck(ChannelContext context, MqttMessageIdVariableHeader variableHeader) {
 		int messageId = variableHeader.messageId();
@@ -331,7 +621,7 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		List<MqttTopicSubscription> topicSubscriptionList = message.payload().topicSubscriptions();
 		List<MqttQoS> grantedQosList = new ArrayList<>();
 		// 校验订阅
-		List<String> subscribedTopicList = new ArrayList<>();
+		List<MqttTopicSubscription> retainSubscriptionList = new ArrayList<>();
 		boolean enableSubscribeValidator = subscribeValidator != null;
 		for (MqttTopicSubscription subscription : topicSubscriptionList) {
 			String topicFilter = subscription.topicName();
@@ -344,8 +634,12 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 				logger.error("Subscribe - clientId:{} topicFilter:{} mqttQoS:{} valid failed messageId:{}", clientId, topicFilter, mqttQoS, messageId);
 			} else {
 				grantedQosList.add(mqttQoS);
-				subscribedTopicList.add(topicFilter);
-				sessionManager.addSubscribe(topicFilter, clientId, mqttQoS.value());
+				// mqtt5 订阅选项，mqtt3 的为默认值
+				MqttSubscriptionOption option = subscription.option();
+				boolean exists = sessionManager.addSubscribe(topicFilter, clientId, option);
+				if (isSendRetain(option.retainHandling(), exists)) {
+					retainSubscriptionList.add(subscription);
+				}
 				logger.info("Subscribe - clientId:{} topicFilter:{} mqttQoS:{} messageId:{}", clientId, topicFilter, mqttQoS, messageId);
 				publishSubscribedEvent(context, clientId, topicFilter, mqttQoS);
 			}
@@ -356,16 +650,27 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 			.packetId(messageId)
 			.build();
 		Tio.send(context, subAckMessage);
-		// 4. 发送保留消息
-		for (String topic : subscribedTopicList) {
-			executor.submit(() -> {
-				List<Message> retainMessageList = messageStore.getRetainMessage(topic);
-				if (retainMessageList != null && !retainMessageList.isEmpty()) {
-					for (Message retainMessage : retainMessageList) {
-						messageDispatcher.send(clientId, retainMessage);
-					}
-				}
-			});
+		// 4. 发送保留消息，直接发送到本地的订阅者
+		for (MqttTopicSubscription subscription : retainSubscriptionList) {
+			retainMessageDelivery.deliver(context, clientId, subscription.topicName(), subscription.qualityOfService());
+		}
+	}
+
+	/**
+	 * 按 mqtt5 的保留消息处理方式判断订阅时是否发送保留消息
+	 *
+	 * @param retainHandling 保留消息处理方式
+	 * @param exists         订阅之前是否已经存在
+	 * @return 是否发送
+	 */
+	private static boolean isSendRetain(MqttSubscriptionOption.RetainedHandlingPolicy retainHandling, boolean exists) {
+		switch (retainHandling) {
+			case SEND_AT_SUBSCRIBE_IF_NOT_YET_EXISTS:
+				return !exists;
+			case DONT_SEND_AT_SUBSCRIBE:
+				return false;
+			default:
+				return true;
 		}
 	}
 
@@ -449,14 +754,19 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 	 * @param clientId       clientId
 	 * @param topicName      topicName
 	 * @param publishMessage MqttPublishMessage
+	 * @return 是否接收，延迟消息存储失败时返回 false
 	 */
-	private void invokeListenerForPublish(ChannelContext context, String clientId, MqttQoS mqttQoS,
+	private boolean invokeListenerForPublish(ChannelContext context, String clientId, MqttQoS mqttQoS,
 										  String topicName, MqttPublishMessage publishMessage) {
 		MqttFixedHeader fixedHeader = publishMessage.fixedHeader();
 		boolean isRetain = fixedHeader.isRetain();
 		byte[] payload = publishMessage.payload();
+		// mqtt5 消息过期时间，转换成绝对时间
+		long expiryAt = MqttMessageExpiry.getExpiryAt(publishMessage.variableHeader().properties(), System.currentTimeMillis());
+		// 延迟发布，retain 消息到期发布时再存储
+		boolean delayed = delayedPublish != null && MqttDelayedPublish.isDelayed(topicName);
 		// 1. retain 消息逻辑
-		if (isRetain) {
+		if (isRetain && !delayed) {
 			// qos == 0 or payload is none,then clear previous retain message
 			if (MqttQoS.AT_MOST_ONCE == mqttQoS || payload == null || payload.length == 0) {
 				this.messageStore.clearRetainMessage(topicName);
@@ -474,6 +784,9 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 				// 客户端 ip:端口
 				retainMessage.setPeerHost(clientNode.getIp() + ':' + clientNode.getPort());
 				retainMessage.setNode(serverCreator.getNodeName());
+				if (expiryAt > 0) {
+					retainMessage.setExpiryAt(expiryAt);
+				}
 				this.messageStore.addRetainMessage(topicName, retainMessage);
 			}
 		}
@@ -498,6 +811,14 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 		// 客户端 ip:端口
 		message.setPeerHost(clientNode.getIp() + ':' + clientNode.getPort());
 		message.setNode(serverCreator.getNodeName());
+		if (expiryAt > 0) {
+			message.setExpiryAt(expiryAt);
+		}
+		if (delayed) {
+			// topic 已在 processPublish 中校验过
+			MqttDelayedPublish.DelayedTopic delayedTopic = delayedPublish.parse(topicName);
+			return delayedTopic != null && delayedPublish.offer(delayedTopic, message);
+		}
 		// 3. 消息发布
 		if (messageListener != null) {
 			executor.submit(() -> {
@@ -516,6 +837,7 @@ public class DefaultMqttServerProcessor implements MqttServerProcessor {
 				logger.error(e.getMessage(), e);
 			}
 		});
+		return true;
 	}
 
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.support;
+
+import net.dreamlu.iot.mqtt.codec.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 异步认证期间客户端在 connAck 之前发送的消息，认证成功后按顺序处理，失败时丢弃
+ *
+ * @author L.cm
+ */
+public class MqttConnectPending {
+	/**
+	 * 最多暂存的消息数
+	 */
+	private static final int MAX_MESSAGES = 64;
+	private final List<MqttMessage> messageList = new ArrayList<>();
+	private Consumer<MqttMessage> messageHandler;
+	private boolean completed;
+
+	/**
+	 * 暂存消息
+	 *
+	 * @param message        MqttMessage
+	 * @param messageHandler 认证成功后的消息处理
+	 * @return 是否暂存，认证已经完成时返回 false
+	 * @throws IllegalStateException 暂存的消息过多
+	 */
+	public synchronized boolean offer(MqttMessage message, Consumer<MqttMessage> messageHandler) {
+		if (completed) {
+			return false;
+		}
+		if (messageList.size() >= MAX_MESSAGES) {
+			throw new IllegalStateException("Mqtt too many messages before connAck, max:" + MAX_MESSAGES);
+		}
+		this.messageList.add(message);
+		this.messageHandler = messageHandler;
+		return true;
+	}
+
+	/**
+	 * 认证完成，在锁内处理暂存的消息，保证和之后收到的消息的顺序
+	 *
+	 * @param authenticated 是否认证成功
+	 */
+	public synchronized void complete(boolean authenticated) {
+		this.completed = true;
+		if (authenticated && messageHandler != null) {
+			messageList.forEach(messageHandler);
+		}
+		messageList.clear();
+	}
+
+}
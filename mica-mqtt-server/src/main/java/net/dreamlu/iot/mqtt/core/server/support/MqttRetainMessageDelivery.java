@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.support;
+
+import net.dreamlu.iot.mqtt.codec.MqttEncoder;
+import net.dreamlu.iot.mqtt.codec.MqttMessageBuilders;
+import net.dreamlu.iot.mqtt.codec.MqttPublishMessage;
+import net.dreamlu.iot.mqtt.codec.MqttQoS;
+import net.dreamlu.iot.mqtt.core.common.MqttMessageExpiry;
+import net.dreamlu.iot.mqtt.core.common.MqttPendingPublish;
+import net.dreamlu.iot.mqtt.core.server.MqttServerCreator;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttBackpressureController;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.session.IMqttSessionManager;
+import net.dreamlu.iot.mqtt.core.server.store.IMqttMessageStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.tio.core.ChannelContext;
+import org.tio.core.Tio;
+import org.tio.core.intf.Packet;
+import org.tio.utils.buffer.ByteBufferAllocator;
+import org.tio.utils.timer.TimerTask;
+import org.tio.utils.timer.TimerTaskService;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * 订阅后直接发送保留消息到本地的订阅者，不经过消息分发（集群）。
+ *
+ * <p>
+ * 1. 多条保留消息编码到一个 ByteBuffer 中，一次写出。
+ * 2. 单次订阅最多发送 maxRetainPerSubscribe 条。
+ * 3. qos1、qos2 的保留消息按飞行窗口发送，窗口满时等待客户端 ack 后再继续。
+ * 4. 跳过已经过期的保留消息，发送时使用剩余的过期间隔。
+ * 5. 开启背压时，批量写出的字节数计入连接待发送的字节数。
+ * </p>
+ *
+ * @author L.cm
+ */
+final class MqttRetainMessageDelivery {
+	private static final Logger logger = LoggerFactory.getLogger(MqttRetainMessageDelivery.class);
+	/**
+	 * 单次写出的最大字节数
+	 */
+	private static final int MAX_BATCH_BYTES = 64 * 1024;
+	/**
+	 * 飞行窗口满时，重试的间隔
+	 */
+	private static final long WINDOW_RETRY_DELAY = 100L;
+	private final IMqttMessageStore messageStore;
+	private final IMqttSessionManager sessionManager;
+	private final ByteBufferAllocator allocator;
+	private final int maxRetainPerSubscribe;
+	private final int inflightWindow;
+	private final TimerTaskService taskService;
+	private final Executor executor;
+	private final MqttBackpressureController backpressureController;
+
+	MqttRetainMessageDelivery(MqttServerCreator serverCreator, TimerTaskService taskService, Executor executor) {
+		this.messageStore = serverCreator.getMessageStore();
+		this.sessionManager = serverCreator.getSessionManager();
+		this.allocator = serverCreator.getBufferAllocator();
+		this.maxRetainPerSubscribe = serverCreator.getMaxRetainPerSubscribe();
+		this.inflightWindow = serverCreator.getRetainInflightWindow();
+		this.taskService = taskService;
+		this.executor = executor;
+		this.backpressureController = serverCreator.getBackpressureController();
+	}
+
+	/**
+	 * 发送 topicFilter 匹配的保留消息
+	 *
+	 * @param context     ChannelContext
+	 * @param clientId    clientId
+	 * @param topicFilter topicFilter
+	 * @param mqttQoS     订阅的 qos
+	 */
+	void deliver(ChannelContext context, String clientId, String topicFilter, MqttQoS mqttQoS) {
+		executor.execute(() -> {
+			List<Message> retainMessageList = messageStore.getRetainMessage(topicFilter);
+			if (retainMessageList == null || retainMessageList.isEmpty()) {
+				return;
+			}
+			if (maxRetainPerSubscribe > 0 && retainMessageList.size() > maxRetainPerSubscribe) {
+				logger.warn("Mqtt clientId:{} topicFilter:{} retain messages:{} exceeds max:{}, truncated.",
+					clientId, topicFilter, retainMessageList.size(), maxRetainPerSubscribe);
+				retainMessageList = retainMessageList.subList(0, maxRetainPerSubscribe);
+			}
+			new Delivery(context, clientId, mqttQoS, retainMessageList).run();
+		});
+	}
+
+	/**
+	 * 单次订阅的保留消息发送进度
+	 */
+	private class Delivery implements Runnable {
+		private final ChannelContext context;
+		private final String clientId;
+		private final MqttQoS mqttQoS;
+		private final List<Message> messageList;
+		/**
+		 * 已发送未 ack 的 messageId
+		 */
+		private final List<Integer> inflightIds = new ArrayList<>();
+		private int index;
+
+		private Delivery(ChannelContext context, String clientId, MqttQoS mqttQoS, List<Message> messageList) {
+			this.context = context;
+			this.clientId = clientId;
+			this.mqttQoS = mqttQoS;
+			this.messageList = messageList;
+		}
+
+		@Override
+		public void run() {
+			List<ByteBuffer> batch = new ArrayList<>();
+			int batchBytes = 0;
+			while (index < messageList.size()) {
+				if (context.isClosed || context.isRemoved) {
+					return;
+				}
+				Message retainMessage = messageList.get(index);
+				// 0. 等待飞行窗口期间可能过期
+				long now = System.currentTimeMillis();
+				if (retainMessage.isExpired(now)) {
+					index++;
+					continue;
+				}
+				long expiryAt = retainMessage.getExpiryAt() == null ? 0 : retainMessage.getExpiryAt();
+				MqttQoS qos = MqttQoS.valueOf(Math.min(retainMessage.getQos(), mqttQoS.value()));
+				int messageId = -1;
+				if (MqttQoS.AT_MOST_ONCE != qos) {
+					// 1. 飞行窗口已满，先写出已编码的，稍后继续
+					if (getInflight() >= inflightWindow) {
+						flush(batch);
+						scheduleRetry();
+						return;
+					}
+					messageId = sessionManager.getMessageId(clientId);
+					// messageId 耗尽
+					if (messageId == 0) {
+						logger.warn("Mqtt clientId:{} retain messages stopped, messageId exhausted.", clientId);
+						break;
+					}
+				}
+				byte[] payload = retainMessage.getPayload();
+				MqttPublishMessage message = MqttMessageBuilders.publish()
+					.topicName(retainMessage.getTopic())
+					.payload(payload)
+					.qos(qos)
+					.retained(true)
+					.messageId(messageId)
+					.build();
+				message = MqttMessageExpiry.withRemaining(message, expiryAt, now);
+				// 2. 编码到批次中
+				ByteBuffer buffer = encode(message);
+				batch.add(buffer);
+				batchBytes += buffer.remaining();
+				if (messageId > 0) {
+					MqttPendingPublish pendingPublish = new MqttPendingPublish(payload, message, qos, expiryAt);
+					sessionManager.addPendingPublish(clientId, messageId, pendingPublish);
+					int pendingId = messageId;
+					pendingPublish.startPublishRetransmissionTimer(taskService, msg -> Tio.send(context, msg),
+						() -> sessionManager.removePendingPublish(clientId, pendingId));
+					inflightIds.add(messageId);
+				}
+				index++;
+				if (batchBytes >= MAX_BATCH_BYTES) {
+					flush(batch);
+					batch.clear();
+					batchBytes = 0;
+				}
+			}
+			flush(batch);
+		}
+
+		private int getInflight() {
+			inflightIds.removeIf(messageId -> sessionManager.getPendingPublish(clientId, messageId) == null);
+			return inflightIds.size();
+		}
+
+		private void scheduleRetry() {
+			taskService.addTask(systemTimer -> new TimerTask(WINDOW_RETRY_DELAY) {
+				@Override
+				public void run() {
+					executor.execute(Delivery.this);
+				}
+			});
+		}
+
+		private ByteBuffer encode(MqttPublishMessage message) {
+			ByteBuffer buffer = MqttEncoder.INSTANCE.doEncode(context, message, allocator);
+			if (!buffer.hasRemaining()) {
+				buffer.flip();
+			}
+			return buffer;
+		}
+
+		/**
+		 * 合并为一个 ByteBuffer 写出
+		 */
+		private void flush(List<ByteBuffer> batch) {
+			if (batch.isEmpty()) {
+				return;
+			}
+			ByteBuffer byteBuffer;
+			if (batch.size() == 1) {
+				byteBuffer = batch.get(0);
+			} else {
+				int capacity = 0;
+				for (ByteBuffer buffer : batch) {
+					capacity += buffer.remaining();
+				}
+				byteBuffer = ByteBuffer.allocate(capacity);
+				for (ByteBuffer buffer : batch) {
+					byteBuffer.put(buffer);
+				}
+				byteBuffer.flip();
+			}
+			Packet packet = new Packet();
+			packet.setPreEncodedByteBuffer(byteBuffer);
+			if (backpressureController == null) {
+				Tio.send(context, packet);
+			} else {
+				backpressureController.send(context, packet);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,669 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server;
+
+import org.junit.jupiter.api.Assertions;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 测试用的 mqtt 客户端，直接读写 socket，可以构造任意报文，支持 mqtt 3.1.1 和 mqtt5
+ *
+ * @author L.cm
+ */
+public class MqttRawClient implements Closeable {
+	public static final int CONNACK = 2;
+	public static final int PUBLISH = 3;
+	public static final int PUBACK = 4;
+	public static final int PUBREC = 5;
+	public static final int SUBACK = 9;
+	public static final int DISCONNECT = 14;
+	private static final long ACK_TIMEOUT = 10_000L;
+	private final Socket socket;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final AtomicInteger published = new AtomicInteger();
+	private final AtomicInteger dupPublished = new AtomicInteger();
+	private final AtomicLong readBytes = new AtomicLong();
+	private volatile int protocolLevel = 4;
+	/**
+	 * 批量发送时缓存的报文
+	 */
+	private ByteArrayOutputStream batch;
+	/**
+	 * 开启后台读取后，报文从队列中获取
+	 */
+	private volatile BlockingQueue<Packet> packetQueue;
+
+	public MqttRawClient(int port) throws IOException {
+		this(port, 0);
+	}
+
+	/**
+	 * @param port              端口
+	 * @param receiveBufferSize socket 接收缓冲区大小，0 为默认
+	 * @throws IOException IOException
+	 */
+	public MqttRawClient(int port, int receiveBufferSize) throws IOException {
+		this.socket = new Socket();
+		if (receiveBufferSize > 0) {
+			this.socket.setReceiveBufferSize(receiveBufferSize);
+		}
+		this.socket.connect(new InetSocketAddress("127.0.0.1", port), (int) ACK_TIMEOUT);
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = socket.getOutputStream();
+	}
+
+	/**
+	 * 启动后台线程读取报文，用于统计收到的 publish
+	 *
+	 * @return MqttRawClient
+	 */
+	public MqttRawClient startReader() {
+		BlockingQueue<Packet> queue = new LinkedBlockingQueue<>();
+		this.packetQueue = queue;
+		Thread reader = new Thread(() -> {
+			try {
+				while (true) {
+					queue.add(readPacket());
+				}
+			} catch (IOException ignored) {
+				// 连接关闭
+			}
+		}, "mqtt-raw-client");
+		reader.setDaemon(true);
+		reader.start();
+		return this;
+	}
+
+	/**
+	 * mqtt 3.1.1 clean session 连接
+	 *
+	 * @param clientId clientId
+	 * @return connAck
+	 * @throws IOException IOException
+	 */
+	public Packet connect(String clientId) throws IOException {
+		return connect(clientId, true);
+	}
+
+	public Packet connect(String clientId, boolean cleanSession) throws IOException {
+		sendConnect(4, clientId, cleanSession, null, null, null);
+		return readAck(CONNACK);
+	}
+
+	/**
+	 * mqtt5 clean start 连接
+	 *
+	 * @param clientId clientId
+	 * @return connAck
+	 * @throws IOException IOException
+	 */
+	public Packet connect5(String clientId) throws IOException {
+		return connect5(clientId, null);
+	}
+
+	/**
+	 * mqtt5 clean start 连接
+	 *
+	 * @param clientId   clientId
+	 * @param properties 连接属性，不含长度
+	 * @return connAck
+	 * @throws IOException IOException
+	 */
+	public Packet connect5(String clientId, byte[] properties) throws IOException {
+		sendConnect(5, clientId, true, null, null, properties);
+		return readAck(CONNACK);
+	}
+
+	/**
+	 * 发送 CONNECT，不等待 connAck，keepalive 60s
+	 *
+	 * @param protocolLevel 协议级别，4 或 5
+	 * @param clientId      clientId
+	 * @param cleanSession  cleanSession
+	 * @param userName      用户名，可为 null
+	 * @param password      密码，可为 null
+	 * @param properties    mqtt5 连接属性，不含长度，可为 null
+	 * @throws IOException IOException
+	 */
+	public void sendConnect(int protocolLevel, String clientId, boolean cleanSession,
+							String userName, String password, byte[] properties) throws IOException {
+		this.protocolLevel = protocolLevel;
+		int flags = cleanSession ? 0x02 : 0;
+		if (userName != null) {
+			flags |= 0x80;
+		}
+		if (password != null) {
+			flags |= 0x40;
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		writeString(body, "MQTT");
+		body.write(new byte[]{(byte) protocolLevel, (byte) flags, 0, 60});
+		writeProperties(body, properties);
+		writeString(body, clientId);
+		if (userName != null) {
+			writeString(body, userName);
+		}
+		if (password != null) {
+			writeString(body, password);
+		}
+		write(0x10, body.toByteArray());
+	}
+
+	/**
+	 * qos0 订阅并等待 subAck
+	 *
+	 * @param topicFilter topicFilter
+	 * @return subAck
+	 * @throws IOException IOException
+	 */
+	public Packet subscribe(String topicFilter) throws IOException {
+		return subscribe(1, topicFilter, 0);
+	}
+
+	/**
+	 * 订阅并等待 subAck，等待时跳过其他报文
+	 *
+	 * @param packetId    packetId
+	 * @param topicFilter topicFilter
+	 * @param options     订阅选项，qos 和 mqtt5 的 No Local 等
+	 * @return subAck
+	 * @throws IOException IOException
+	 */
+	public Packet subscribe(int packetId, String topicFilter, int options) throws IOException {
+		sendSubscribe(packetId, topicFilter, options);
+		return readAck(SUBACK);
+	}
+
+	public void sendSubscribe(int packetId, String topicFilter, int options) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		writeShort(body, packetId);
+		writeProperties(body, null);
+		writeString(body, topicFilter);
+		body.write(options);
+		write(0x82, body.toByteArray());
+	}
+
+	/**
+	 * qos0 发布
+	 *
+	 * @param topic   topic
+	 * @param payload payload
+	 * @throws IOException IOException
+	 */
+	public void publish(String topic, byte[] payload) throws IOException {
+		publish(0x30, topic, 0, null, payload);
+	}
+
+	public void publish(String topic, String payload) throws IOException {
+		publish(topic, payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * 发布
+	 *
+	 * @param header     固定头，包含 qos、retain 等标识
+	 * @param topic      topic
+	 * @param packetId   packetId，qos0 时忽略
+	 * @param properties mqtt5 属性，不含长度，可为 null
+	 * @param payload    payload
+	 * @throws IOException IOException
+	 */
+	public void publish(int header, String topic, int packetId, byte[] properties, byte[] payload) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		writeString(body, topic);
+		if ((header & 0x06) != 0) {
+			writeShort(body, packetId);
+		}
+		writeProperties(body, properties);
+		body.write(payload, 0, payload.length);
+		write(header, body.toByteArray());
+	}
+
+	public void pubAck(int packetId) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		writeShort(body, packetId);
+		write(0x40, body.toByteArray());
+	}
+
+	/**
+	 * 发送报文，剩余长度为变长编码
+	 *
+	 * @param header 固定头
+	 * @param body   可变头和 payload
+	 * @throws IOException IOException
+	 */
+	public synchronized void write(int header, byte[] body) throws IOException {
+		ByteArrayOutputStream packet = batch == null ? new ByteArrayOutputStream(body.length + 5) : batch;
+		packet.write(header);
+		writeVariableInt(packet, body.length);
+		packet.write(body, 0, body.length);
+		if (batch == null) {
+			out.write(packet.toByteArray());
+			out.flush();
+		}
+	}
+
+	/**
+	 * 开始批量发送，之后的报文缓存到 flush 时一次性写入
+	 */
+	public synchronized void batch() {
+		this.batch = new ByteArrayOutputStream();
+	}
+
+	public synchronized void flush() throws IOException {
+		if (batch != null) {
+			out.write(batch.toByteArray());
+			out.flush();
+			batch = null;
+		}
+	}
+
+	/**
+	 * 读取下一个报文
+	 *
+	 * @param timeoutMillis 超时时间
+	 * @return 报文，超时返回 null
+	 * @throws IOException 连接关闭时抛出 EOFException
+	 */
+	public Packet read(long timeoutMillis) throws IOException {
+		BlockingQueue<Packet> queue = this.packetQueue;
+		if (queue != null) {
+			try {
+				return queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		socket.setSoTimeout((int) timeoutMillis);
+		try {
+			in.mark(1);
+			in.readUnsignedByte();
+			in.reset();
+		} catch (SocketTimeoutException e) {
+			return null;
+		} finally {
+			socket.setSoTimeout(0);
+		}
+		return readPacket();
+	}
+
+	/**
+	 * 读取指定类型的报文，跳过其他报文
+	 *
+	 * @param type          报文类型
+	 * @param timeoutMillis 超时时间
+	 * @return 报文，超时返回 null
+	 * @throws IOException IOException
+	 */
+	public Packet read(int type, long timeoutMillis) throws IOException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (remaining > 0) {
+			Packet packet = read(remaining);
+			if (packet == null) {
+				return null;
+			}
+			if (packet.getType() == type) {
+				return packet;
+			}
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return null;
+	}
+
+	/**
+	 * 读取 publish 直到空闲超时，跳过其他报文
+	 *
+	 * @param idleMillis 空闲超时时间
+	 * @return publish 列表
+	 * @throws IOException IOException
+	 */
+	public List<Packet> readPublishes(long idleMillis) throws IOException {
+		List<Packet> publishes = new ArrayList<>();
+		Packet packet;
+		while ((packet = read(idleMillis)) != null) {
+			if (packet.getType() == PUBLISH) {
+				publishes.add(packet);
+			}
+		}
+		return publishes;
+	}
+
+	/**
+	 * 读取并丢弃所有报文直到连接关闭，只统计数量和字节数
+	 */
+	public void drain() {
+		try {
+			while (true) {
+				readPacket();
+			}
+		} catch (IOException ignored) {
+			// 连接关闭
+		}
+	}
+
+	/**
+	 * 等待收到的 publish 达到指定数量
+	 *
+	 * @param count         数量
+	 * @param timeoutMillis 超时时间
+	 * @return 是否达到
+	 * @throws InterruptedException InterruptedException
+	 */
+	public boolean awaitPublished(int count, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (published.get() < count && System.currentTimeMillis() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		return published.get() >= count;
+	}
+
+	public int getPublished() {
+		return published.get();
+	}
+
+	public int getDupPublished() {
+		return dupPublished.get();
+	}
+
+	/**
+	 * @return 从 socket 读取的报文总字节数
+	 */
+	public long getReadBytes() {
+		return readBytes.get();
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+			// ignore
+		}
+	}
+
+	private Packet readAck(int type) throws IOException {
+		Packet packet = read(type, ACK_TIMEOUT);
+		Assertions.assertNotNull(packet, "Wait packet type " + type + " timeout");
+		return packet;
+	}
+
+	private Packet readPacket() throws IOException {
+		int header = in.readUnsignedByte();
+		int length = 0;
+		int multiplier = 1;
+		int lengthBytes = 0;
+		int digit;
+		do {
+			digit = in.readUnsignedByte();
+			length += (digit & 0x7F) * multiplier;
+			multiplier *= 128;
+			lengthBytes++;
+		} while ((digit & 0x80) != 0);
+		byte[] body = new byte[length];
+		in.readFully(body);
+		readBytes.addAndGet(1 + lengthBytes + length);
+		Packet packet = new Packet(header, body, protocolLevel);
+		if (packet.getType() == PUBLISH) {
+			published.incrementAndGet();
+			if (packet.isDup()) {
+				dupPublished.incrementAndGet();
+			}
+		}
+		return packet;
+	}
+
+	private void writeProperties(ByteArrayOutputStream out, byte[] properties) {
+		if (protocolLevel != 5) {
+			return;
+		}
+		if (properties == null) {
+			out.write(0);
+		} else {
+			writeVariableInt(out, properties.length);
+			out.write(properties, 0, properties.length);
+		}
+	}
+
+	private static void writeString(ByteArrayOutputStream out, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeShort(out, bytes.length);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeShort(ByteArrayOutputStream out, int value) {
+		out.write(value >> 8);
+		out.write(value & 0xFF);
+	}
+
+	private static void writeVariableInt(ByteArrayOutputStream out, int value) {
+		do {
+			int digit = value % 128;
+			value /= 128;
+			out.write(value > 0 ? digit | 0x80 : digit);
+		} while (value > 0);
+	}
+
+	/**
+	 * 收到的报文
+	 */
+	public static class Packet {
+		private final int header;
+		private final byte[] body;
+		private final int protocolLevel;
+
+		private Packet(int header, byte[] body, int protocolLevel) {
+			this.header = header;
+			this.body = body;
+			this.protocolLevel = protocolLevel;
+		}
+
+		public int getHeader() {
+			return header;
+		}
+
+		public byte[] getBody() {
+			return body;
+		}
+
+		public int getType() {
+			return header >> 4;
+		}
+
+		public boolean isDup() {
+			return (header & 0x08) != 0;
+		}
+
+		public int getQos() {
+			return (header >> 1) & 0x03;
+		}
+
+		public boolean isRetain() {
+			return (header & 0x01) != 0;
+		}
+
+		/**
+		 * @return connAck 的 session present
+		 */
+		public boolean isSessionPresent() {
+			return (body[0] & 0x01) != 0;
+		}
+
+		/**
+		 * @return publish 的 topic
+		 */
+		public String getTopic() {
+			return new String(body, 2, readShort(0), StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * @return publish 和各种 ack 的 packetId
+		 */
+		public int getPacketId() {
+			return getType() == PUBLISH ? readShort(2 + readShort(0)) : readShort(0);
+		}
+
+		/**
+		 * @return publish 的 payload
+		 */
+		public byte[] getPayload() {
+			int offset = propertiesOffset();
+			if (protocolLevel == 5) {
+				int length = 0;
+				int multiplier = 1;
+				int digit;
+				do {
+					digit = body[offset++] & 0xFF;
+					length += (digit & 0x7F) * multiplier;
+					multiplier *= 128;
+				} while ((digit & 0x80) != 0);
+				offset += length;
+			}
+			byte[] payload = new byte[body.length - offset];
+			System.arraycopy(body, offset, payload, 0, payload.length);
+			return payload;
+		}
+
+		/**
+		 * connAck 的返回码，subAck 最后一个订阅的结果，mqtt5 pubAck、pubRec、disconnect 的 reason code
+		 *
+		 * @return reason code
+		 */
+		public int getReasonCode() {
+			switch (getType()) {
+				case CONNACK:
+					return body[1] & 0xFF;
+				case SUBACK:
+					return body[body.length - 1] & 0xFF;
+				case DISCONNECT:
+					return body.length > 0 ? body[0] & 0xFF : 0;
+				default:
+					// 长度为 2 时为成功
+					return body.length > 2 ? body[2] & 0xFF : 0;
+			}
+		}
+
+		/**
+		 * 读取 mqtt5 整数类型的属性，其他类型的属性跳过
+		 *
+		 * @param propertyId 属性 id
+		 * @return 属性值，不存在时为 null
+		 */
+		public Long getProperty(int propertyId) {
+			int offset = propertiesOffset();
+			if (protocolLevel != 5 || offset >= body.length) {
+				return null;
+			}
+			int length = 0;
+			int multiplier = 1;
+			int digit;
+			do {
+				digit = body[offset++] & 0xFF;
+				length += (digit & 0x7F) * multiplier;
+				multiplier *= 128;
+			} while ((digit & 0x80) != 0);
+			int end = offset + length;
+			while (offset < end) {
+				int id = body[offset++];
+				long value;
+				switch (id) {
+					case 0x01:
+					case 0x17:
+					case 0x19:
+					case 0x24:
+					case 0x25:
+					case 0x28:
+					case 0x29:
+					case 0x2A:
+						value = body[offset] & 0xFF;
+						offset += 1;
+						break;
+					case 0x13:
+					case 0x21:
+					case 0x22:
+					case 0x23:
+						value = readShort(offset);
+						offset += 2;
+						break;
+					case 0x02:
+					case 0x11:
+					case 0x18:
+					case 0x27:
+						value = ((long) readShort(offset) << 16) | readShort(offset + 2);
+						offset += 4;
+						break;
+					case 0x0B:
+						// 订阅标识符，变长编码
+						value = 0;
+						multiplier = 1;
+						do {
+							digit = body[offset++] & 0xFF;
+							value += (digit & 0x7F) * multiplier;
+							multiplier *= 128;
+						} while ((digit & 0x80) != 0);
+						break;
+					case 0x26:
+						// 用户属性，两个字符串
+						offset += 2 + readShort(offset);
+						offset += 2 + readShort(offset);
+						continue;
+					default:
+						// 字符串和二进制属性
+						offset += 2 + readShort(offset);
+						continue;
+				}
+				if (id == propertyId) {
+					return value;
+				}
+			}
+			return null;
+		}
+
+		private int propertiesOffset() {
+			switch (getType()) {
+				case CONNACK:
+					return 2;
+				case PUBLISH:
+					int offset = 2 + readShort(0);
+					return getQos() > 0 ? offset + 2 : offset;
+				case DISCONNECT:
+					return 1;
+				default:
+					return 3;
+			}
+		}
+
+		private int readShort(int offset) {
+			return ((body[offset] & 0xFF) << 8) | (body[offset + 1] & 0xFF);
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server;
+
+import net.dreamlu.iot.mqtt.core.common.MqttTopicAliases;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * mqtt5 Topic Alias 下行流量测算：40~80 字节的 topic，16 字节的消息体，统计订阅端从 socket 读取的字节数
+ *
+ * @author L.cm
+ */
+public class MqttTopicAliasBenchmark {
+	private static final Logger logger = LoggerFactory.getLogger(MqttTopicAliasBenchmark.class);
+	private static final int PORT = 21897;
+	private static final int MESSAGES = 20000;
+	private static final int ALIAS_MAXIMUM = 16;
+
+	public static void main(String[] args) throws Exception {
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.topicAliasMaximum(ALIAS_MAXIMUM)
+			.start();
+		try {
+			for (int topicCount : new int[]{1, 4, 16, 64}) {
+				String[] topics = topics(topicCount);
+				double before = run(server, topics, 0)[0];
+				double[] after = run(server, topics, ALIAS_MAXIMUM);
+				logger.info("topics:{} no alias:{}B/msg alias:{}B/msg saved:{}% hits:{}%", topicCount, String.format("%.1f", before),
+					String.format("%.1f", after[0]), String.format("%.1f", (before - after[0]) * 100 / before), String.format("%.1f", after[1]));
+			}
+		} finally {
+			server.stop();
+		}
+		// 业务线程池不是守护线程
+		System.exit(0);
+	}
+
+	/**
+	 * 发送消息并统计
+	 *
+	 * @return 每条消息的字节数、alias 命中率
+	 */
+	private static double[] run(MqttServer server, String[] topics, int topicAliasMaximum) throws Exception {
+		String clientId = "alias-bench-" + topicAliasMaximum + '-' + topics.length;
+		Random random = new Random(topics.length);
+		byte[] payload = new byte[16];
+		try (MqttRawClient client = MqttTopicAliasTest.connect(PORT, clientId, topicAliasMaximum)) {
+			client.subscribe("bench/#");
+			long start = client.getReadBytes();
+			for (int i = 0; i < MESSAGES; i++) {
+				server.publish(clientId, topics[random.nextInt(topics.length)], payload);
+			}
+			int received = 0;
+			while (received < MESSAGES) {
+				int size = client.readPublishes(300).size();
+				if (size == 0) {
+					throw new IllegalStateException("Received " + received + " of " + MESSAGES);
+				}
+				received += size;
+			}
+			MqttTopicAliases topicAliases = (MqttTopicAliases) server.getChannelContext(clientId).get(MqttConst.TOPIC_ALIAS);
+			double hitRate = topicAliases == null ? 0 : topicAliases.getOutboundHits() * 100.0 / MESSAGES;
+			return new double[]{(double) (client.getReadBytes() - start) / MESSAGES, hitRate};
+		}
+	}
+
+	/**
+	 * 生成 40~80 字节的 topic
+	 */
+	private static String[] topics(int count) {
+		Random random = new Random(count);
+		String[] topics = new String[count];
+		for (int i = 0; i < count; i++) {
+			String topic = "bench/site-" + i + "/device/" + new UUID(random.nextLong(), random.nextLong()) + "/telemetry/temperature/celsius";
+			topics[i] = topic.substring(0, 40 + random.nextInt(41));
+		}
+		return topics;
+	}
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * mqtt5 Topic Alias 测试
+ *
+ * @author L.cm
+ */
+class MqttTopicAliasTest {
+	private static final int PORT = 21896;
+	private static MqttServer server;
+
+	@BeforeAll
+	static void start() {
+		server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.topicAliasMaximum(4)
+			.start();
+	}
+
+	@AfterAll
+	static void stop() {
+		server.stop();
+	}
+
+	@Test
+	void testInbound() throws Exception {
+		try (MqttRawClient publisher = new MqttRawClient(PORT); MqttRawClient subscriber = connect(PORT, "alias-in-sub", 0)) {
+			Assertions.assertEquals(Long.valueOf(4), publisher.connect5("alias-in-pub").getProperty(0x22));
+			subscriber.subscribe("/alias/in/#");
+			publish(publisher, "/alias/in/device/0001/telemetry", 1);
+			publish(publisher, "", 1);
+			publish(publisher, "/alias/in/device/0002/telemetry", 1);
+			publish(publisher, "", 1);
+			// 转发在线程池中执行，不保证顺序
+			List<String> topics = new ArrayList<>();
+			for (MqttRawClient.Packet publish : subscriber.readPublishes(300)) {
+				// 订阅者未开启 alias
+				Assertions.assertEquals(0, alias(publish));
+				topics.add(publish.getTopic());
+			}
+			Collections.sort(topics);
+			Assertions.assertEquals(Arrays.asList("/alias/in/device/0001/telemetry", "/alias/in/device/0001/telemetry",
+				"/alias/in/device/0002/telemetry", "/alias/in/device/0002/telemetry"), topics);
+		}
+	}
+
+	@Test
+	void testOutbound() throws Exception {
+		try (MqttRawClient subscriber = connect(PORT, "alias-out-sub", 16)) {
+			subscriber.subscribe("/alias/out/#");
+			byte[] payload = "hello".getBytes(StandardCharsets.UTF_8);
+			server.publishAll("/alias/out/device/0001/telemetry", payload);
+			server.publishAll("/alias/out/device/0001/telemetry", payload);
+			List<MqttRawClient.Packet> publishes = subscriber.readPublishes(300);
+			Assertions.assertEquals(2, publishes.size());
+			// 双方最小值为 4，首次发送完整 topic，之后只发送 alias
+			Assertions.assertEquals("/alias/out/device/0001/telemetry", publishes.get(0).getTopic());
+			Assertions.assertEquals(1, alias(publishes.get(0)));
+			Assertions.assertEquals("", publishes.get(1).getTopic());
+			Assertions.assertEquals(1, alias(publishes.get(1)));
+		}
+	}
+
+	@Test
+	void testInvalid() throws Exception {
+		try (MqttRawClient client = connect(PORT, "alias-invalid-unknown", 0)) {
+			publish(client, "", 2);
+			Assertions.assertEquals(0x94, readDisconnect(client));
+		}
+		try (MqttRawClient client = connect(PORT, "alias-invalid-maximum", 0)) {
+			publish(client, "/alias/invalid", 5);
+			Assertions.assertEquals(0x94, readDisconnect(client));
+		}
+	}
+
+	/**
+	 * mqtt5 连接
+	 *
+	 * @param port              端口
+	 * @param clientId          clientId
+	 * @param topicAliasMaximum 客户端的 Topic Alias Maximum，0 为不开启
+	 * @return MqttRawClient
+	 * @throws IOException IOException
+	 */
+	static MqttRawClient connect(int port, String clientId, int topicAliasMaximum) throws IOException {
+		MqttRawClient client = new MqttRawClient(port);
+		client.connect5(clientId, topicAliasMaximum > 0 ? new byte[]{0x22, (byte) (topicAliasMaximum >> 8), (byte) topicAliasMaximum} : null);
+		return client;
+	}
+
+	/**
+	 * qos0 publish，带 Topic Alias 属性
+	 */
+	private static void publish(MqttRawClient client, String topic, int alias) throws IOException {
+		client.publish(0x30, topic, 0, new byte[]{0x23, (byte) (alias >> 8), (byte) alias}, new byte[]{1, 2, 3, 4});
+	}
+
+	private static int alias(MqttRawClient.Packet publish) {
+		Long alias = publish.getProperty(0x23);
+		return alias == null ? 0 : alias.intValue();
+	}
+
+	/**
+	 * 读取 disconnect 的 reason code
+	 */
+	private static int readDisconnect(MqttRawClient client) throws IOException {
+		MqttRawClient.Packet disconnect = client.read(MqttRawClient.DISCONNECT, 5000);
+		Assertions.assertNotNull(disconnect);
+		Assertions.assertEquals(0xE0, disconnect.getHeader());
+		return disconnect.getReasonCode();
+	}
+
+}
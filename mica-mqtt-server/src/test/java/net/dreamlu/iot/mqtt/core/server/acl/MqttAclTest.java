@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.acl;
+
+import net.dreamlu.iot.mqtt.codec.MqttQoS;
+import net.dreamlu.iot.mqtt.core.server.MqttConst;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.tio.core.ChannelContext;
+import org.tio.server.ServerChannelContext;
+import org.tio.server.TioServerConfig;
+import org.tio.server.intf.TioServerHandler;
+import org.tio.server.intf.TioServerListener;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * acl 测试
+ *
+ * @author L.cm
+ */
+class MqttAclTest {
+
+	@Test
+	void testRules() {
+		List<MqttAclRule> rules = Arrays.asList(
+			MqttAclRule.deny(MqttAclAction.ALL, "device/+/secret"),
+			MqttAclRule.allow(MqttAclAction.ALL, "#").username("admin"),
+			MqttAclRule.allow(MqttAclAction.PUBLISH, "device/${clientId}/up"),
+			MqttAclRule.allow(MqttAclAction.SUBSCRIBE, "device/${clientId}/down/#"),
+			MqttAclRule.allow(MqttAclAction.SUBSCRIBE, "user/${username}/+"),
+			MqttAclRule.allow(MqttAclAction.PUBLISH, "log/dev-${clientId}"),
+			MqttAclRule.allow(MqttAclAction.SUBSCRIBE, "public/#").clientId("viewer")
+		);
+		MqttAcl acl = new MqttAcl(rules);
+		// 1. 占位符
+		Assertions.assertTrue(acl.isAllowed(MqttAclAction.PUBLISH, "d1", null, "device/d1/up"));
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.PUBLISH, "d1", null, "device/d2/up"));
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.SUBSCRIBE, "d1", null, "device/d1/up"));
+		Assertions.assertTrue(acl.isAllowed(MqttAclAction.PUBLISH, "d1", null, "log/dev-d1"));
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.PUBLISH, "d1", null, "log/d1"));
+		Assertions.assertTrue(acl.isAllowed(MqttAclAction.SUBSCRIBE, "d1", "u1", "user/u1/x"));
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.SUBSCRIBE, "d1", null, "user//x"));
+		// clientId 中的 / 不能跨层级匹配
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.PUBLISH, "a/b", null, "device/a/b/up"));
+		// 2. 订阅的 topicFilter 需要被规则完全覆盖，# 包括父级
+		Assertions.assertTrue(acl.isAllowed(MqttAclAction.SUBSCRIBE, "d1", null, "device/d1/down"));
+		Assertions.assertTrue(acl.isAllowed(MqttAclAction.SUBSCRIBE, "d1", null, "device/d1/down/+/cmd"));
+		Assertions.assertTrue(acl.isAllowed(MqttAclAction.SUBSCRIBE, "d1", null, "device/d1/down/#"));
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.SUBSCRIBE, "d1", null, "device/+/down/#"));
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.SUBSCRIBE, "d1", "u1", "user/u1/#"));
+		// 3. 按顺序第一条匹配的规则生效
+		Assertions.assertTrue(acl.isAllowed(MqttAclAction.SUBSCRIBE, "any", "admin", "a/b/#"));
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.PUBLISH, "any", "admin", "device/d1/secret"));
+		// 订阅 device/+/+ 时可能收到 device/d1/secret，deny 规则不能覆盖它，按后续 allow 规则
+		Assertions.assertTrue(acl.isAllowed(MqttAclAction.SUBSCRIBE, "any", "admin", "device/+/+"));
+		// 4. 指定 clientId，$ 开头的 topic 不被首层通配符匹配
+		Assertions.assertTrue(acl.isAllowed(MqttAclAction.SUBSCRIBE, "viewer", null, "public/a"));
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.SUBSCRIBE, "other", null, "public/a"));
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.SUBSCRIBE, "any", "admin", "$SYS/brokers"));
+		// 5. 默认结果
+		Assertions.assertFalse(acl.isAllowed(MqttAclAction.PUBLISH, "d1", null, "other"));
+		Assertions.assertTrue(new MqttAcl(Collections.emptyList(), true).isAllowed(MqttAclAction.PUBLISH, "d1", null, "other"));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> acl.reload(Collections.singletonList(MqttAclRule.allow(MqttAclAction.ALL, "a/#/b"))));
+	}
+
+	@Test
+	void testCache() {
+		MqttAcl acl = new MqttAcl(Collections.singletonList(MqttAclRule.allow(MqttAclAction.PUBLISH, "device/${clientId}/up")));
+		TioServerConfig tioConfig = new TioServerConfig((TioServerHandler) null, (TioServerListener) null);
+		ChannelContext context = new ServerChannelContext(tioConfig, "acl-test");
+		context.set(MqttConst.USER_NAME_KEY, "user");
+		for (int i = 0; i < 1000; i++) {
+			Assertions.assertTrue(acl.hasPermission(context, "d1", "device/d1/up", MqttQoS.AT_MOST_ONCE, false));
+			Assertions.assertFalse(acl.hasPermission(context, "d1", "device/d2/up", MqttQoS.AT_MOST_ONCE, false));
+		}
+		Assertions.assertEquals(2, acl.getEvaluateCount());
+		// 重新加载规则后缓存失效
+		acl.reload(Collections.singletonList(MqttAclRule.deny(MqttAclAction.PUBLISH, "#")));
+		Assertions.assertFalse(acl.hasPermission(context, "d1", "device/d1/up", MqttQoS.AT_MOST_ONCE, false));
+		Assertions.assertEquals(3, acl.getEvaluateCount());
+	}
+
+}
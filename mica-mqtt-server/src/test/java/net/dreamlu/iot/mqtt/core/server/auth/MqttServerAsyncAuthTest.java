@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.auth;
+
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * 异步认证测试，认证后端耗时 20ms，模拟重连风暴
+ *
+ * @author L.cm
+ */
+class MqttServerAsyncAuthTest {
+	private static final int PORT = 21890;
+	private static final String PASSWORD = "secret";
+
+	@Test
+	void testAsyncAuth() throws Exception {
+		ScheduledExecutorService authBackend = Executors.newScheduledThreadPool(2);
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.authCache(10_000, 60_000, 1_000)
+			.asyncAuthHandler((context, uniqueId, clientId, userName, password) -> {
+				CompletableFuture<Boolean> future = new CompletableFuture<>();
+				authBackend.schedule(() -> future.complete(PASSWORD.equals(password)), 20, TimeUnit.MILLISECONDS);
+				return future;
+			})
+			.start();
+		MqttServerAuthMetrics metrics = server.getServerCreator().getAuthMetrics();
+		try {
+			// 1. 并发连接，认证不阻塞 t-io 线程
+			int clients = 200;
+			for (int round = 0; round < 2; round++) {
+				List<MqttRawClient> clientList = new ArrayList<>();
+				for (int i = 0; i < clients; i++) {
+					clientList.add(connect("client" + i, PASSWORD));
+				}
+				for (MqttRawClient client : clientList) {
+					Assertions.assertEquals(0, awaitConnAck(client));
+					client.close();
+				}
+			}
+			// 第二轮全部命中缓存
+			Assertions.assertEquals(clients, metrics.getSuccessCount());
+			Assertions.assertEquals(clients, server.getServerCreator().getAuthCache().getHitCount());
+			Assertions.assertEquals(0, metrics.getPending());
+			// 2. 密码错误
+			MqttRawClient badClient = connect("bad", "wrong");
+			Assertions.assertEquals(4, awaitConnAck(badClient));
+			badClient.close();
+			Assertions.assertEquals(1, metrics.getFailureCount());
+			// 3. connAck 之前发送的订阅在认证成功后处理
+			MqttRawClient pipelined = connect("pipelined", PASSWORD);
+			pipelined.sendSubscribe(1, "/test/pipelined", 0);
+			Assertions.assertEquals(0, awaitConnAck(pipelined));
+			Assertions.assertNotNull(pipelined.read(MqttRawClient.SUBACK, 5000));
+			Assertions.assertEquals(1, server.getServerCreator().getSessionManager().getSubscriptions("pipelined").size());
+			pipelined.close();
+		} finally {
+			server.stop();
+			authBackend.shutdownNow();
+		}
+	}
+
+	private static MqttRawClient connect(String clientId, String password) throws IOException {
+		MqttRawClient client = new MqttRawClient(PORT);
+		client.sendConnect(4, clientId, true, "user", password, null);
+		return client;
+	}
+
+	private static int awaitConnAck(MqttRawClient client) throws IOException {
+		MqttRawClient.Packet connAck = client.read(MqttRawClient.CONNACK, 10_000);
+		Assertions.assertNotNull(connAck);
+		return connAck.getReasonCode();
+	}
+
+}
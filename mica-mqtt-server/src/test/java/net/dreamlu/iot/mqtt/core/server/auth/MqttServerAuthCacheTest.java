@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.auth;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 认证结果缓存测试
+ *
+ * @author L.cm
+ */
+class MqttServerAuthCacheTest {
+
+	@Test
+	void testTtlAndEviction() throws InterruptedException {
+		MqttServerAuthCache cache = new MqttServerAuthCache(2, 60_000, 50);
+		String key1 = MqttServerAuthCache.getKey("client1", "user", "password");
+		String key2 = MqttServerAuthCache.getKey("client2", "user", "password");
+		String key3 = MqttServerAuthCache.getKey("client3", "user", "password");
+		// 不保存明文密码，密码不同 key 不同
+		Assertions.assertFalse(key1.contains("password"));
+		Assertions.assertNotEquals(key1, MqttServerAuthCache.getKey("client1", "user", "password2"));
+		Assertions.assertNull(cache.get(key1));
+		cache.put(key1, true);
+		cache.put(key2, false);
+		Assertions.assertEquals(Boolean.TRUE, cache.get(key1));
+		Assertions.assertEquals(Boolean.FALSE, cache.get(key2));
+		// 失败结果较早过期
+		TimeUnit.MILLISECONDS.sleep(100);
+		Assertions.assertNull(cache.get(key2));
+		Assertions.assertEquals(Boolean.TRUE, cache.get(key1));
+		// 超过最大数量淘汰最久未使用的
+		cache.put(key2, true);
+		cache.get(key1);
+		cache.put(key3, true);
+		Assertions.assertEquals(2, cache.size());
+		Assertions.assertNull(cache.get(key2));
+		Assertions.assertEquals(4, cache.getHitCount());
+		Assertions.assertEquals(3, cache.getMissCount());
+		// 不缓存失败结果
+		MqttServerAuthCache positiveOnly = new MqttServerAuthCache(10, 60_000, 0);
+		positiveOnly.put(key1, false);
+		Assertions.assertEquals(0, positiveOnly.size());
+	}
+
+	@Test
+	void testKey() {
+		// 没有密码和密码为字符串 "null" 不同
+		Assertions.assertNotEquals(MqttServerAuthCache.getKey("client1", "user", null),
+			MqttServerAuthCache.getKey("client1", "user", "null"));
+		Assertions.assertNotEquals(MqttServerAuthCache.getKey("client1", null, "password"),
+			MqttServerAuthCache.getKey("client1", "null", "password"));
+		// 字段边界不会混淆
+		Assertions.assertNotEquals(MqttServerAuthCache.getKey("a\nb", "c", "password"),
+			MqttServerAuthCache.getKey("a", "b\nc", "password"));
+		// 包含 ip 时不同 ip 的 key 不同
+		Assertions.assertNotEquals(MqttServerAuthCache.getKey("127.0.0.1", "client1", "user", "password"),
+			MqttServerAuthCache.getKey("127.0.0.2", "client1", "user", "password"));
+		Assertions.assertEquals(MqttServerAuthCache.getKey("client1", "user", "password"),
+			MqttServerAuthCache.getKey(null, "client1", "user", "password"));
+		Assertions.assertTrue(new MqttServerAuthCache(10, 60_000, 0).isBindIp());
+		Assertions.assertFalse(new MqttServerAuthCache(10, 60_000, 0).bindIp(false).isBindIp());
+	}
+
+}
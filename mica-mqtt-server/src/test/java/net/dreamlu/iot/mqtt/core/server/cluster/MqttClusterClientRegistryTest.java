@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 集群客户端注册表测试
+ *
+ * @author L.cm
+ */
+class MqttClusterClientRegistryTest {
+
+	@Test
+	void testUpdate() {
+		MqttClusterClientRegistry registry = new MqttClusterClientRegistry();
+		Assertions.assertNull(registry.getNode("client1"));
+		Assertions.assertTrue(registry.update("client1", "node1", 100));
+		Assertions.assertEquals("node1", registry.getNode("client1"));
+		// 新的连接覆盖
+		Assertions.assertTrue(registry.update("client1", "node2", 200));
+		Assertions.assertEquals("node2", registry.getNode("client1"));
+		// 乱序到达的旧连接忽略
+		Assertions.assertFalse(registry.update("client1", "node1", 150));
+		Assertions.assertEquals("node2", registry.getNode("client1"));
+		// 版本相同时按节点名，和到达顺序无关
+		Assertions.assertTrue(registry.update("client1", "node3", 200));
+		Assertions.assertFalse(registry.update("client1", "node2", 200));
+		Assertions.assertEquals("node3", registry.getNode("client1"));
+	}
+
+	@Test
+	void testRemove() {
+		MqttClusterClientRegistry registry = new MqttClusterClientRegistry();
+		registry.update("client1", "node1", 100);
+		registry.update("client2", "node1", 100);
+		registry.update("client3", "node2", 100);
+		// 已经连到其他节点时不删除
+		Assertions.assertFalse(registry.remove("client3", "node1", 100));
+		// 同一节点上有更新的连接时不删除
+		registry.update("client3", "node2", 200);
+		Assertions.assertFalse(registry.remove("client3", "node2", 100));
+		Assertions.assertTrue(registry.remove("client3", "node2", 200));
+		registry.removeNode("node1");
+		Assertions.assertEquals(0, registry.size());
+	}
+
+	@Test
+	void testNextVersion() {
+		MqttClusterClientRegistry registry = new MqttClusterClientRegistry();
+		long version = registry.nextVersion();
+		Assertions.assertTrue(registry.nextVersion() > version);
+		// 收到时钟超前的节点的连接后，本节点之后的连接仍然更新
+		long remoteVersion = System.currentTimeMillis() + 60_000L;
+		Assertions.assertTrue(registry.update("client1", "node1", remoteVersion));
+		long localVersion = registry.nextVersion();
+		Assertions.assertTrue(localVersion > remoteVersion);
+		Assertions.assertTrue(registry.update("client1", "node0", localVersion));
+		Assertions.assertEquals("node0", registry.getNode("client1"));
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.dispatcher.AbstractMqttMessageDispatcher;
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.serializer.DefaultMessageSerializer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群消息去重测试，模拟 redis stream 广播：消息投递到包括来源节点在内的所有节点，并且每条消息投递两次
+ *
+ * @author L.cm
+ */
+class MqttClusterMessageListenerTest {
+	private static final String TOPIC = "/cluster/dedup";
+
+	@Test
+	void testDeliveriesPerSubscriber() throws Exception {
+		List<MqttClusterMessageListener> listeners = new CopyOnWriteArrayList<>();
+		List<MqttServer> servers = new ArrayList<>();
+		List<MqttRawClient> clients = new ArrayList<>();
+		try {
+			for (int i = 0; i < 2; i++) {
+				MqttServer server = MqttServer.create()
+					.port(21885 + i)
+					.nodeName("dedup" + i)
+					.websocketEnable(false)
+					.messageDispatcher(new BroadcastMessageDispatcher(listeners))
+					.start();
+				servers.add(server);
+			}
+			MqttRawClient subscriber0 = new MqttRawClient(21885).startReader();
+			MqttRawClient subscriber1 = new MqttRawClient(21886).startReader();
+			MqttRawClient publisher = new MqttRawClient(21885).startReader();
+			clients.add(subscriber0);
+			clients.add(subscriber1);
+			clients.add(publisher);
+			subscriber0.connect("subscriber0");
+			subscriber1.connect("subscriber1");
+			publisher.connect("publisher");
+			subscriber0.subscribe(TOPIC);
+			subscriber1.subscribe(TOPIC);
+			int count = 20;
+			for (int i = 0; i < count; i++) {
+				publisher.publish(TOPIC, ("message" + i).getBytes(StandardCharsets.UTF_8));
+			}
+			Assertions.assertTrue(subscriber0.awaitPublished(count, 10_000));
+			Assertions.assertTrue(subscriber1.awaitPublished(count, 10_000));
+			// 等待可能的重复投递
+			TimeUnit.MILLISECONDS.sleep(500);
+			Assertions.assertEquals(count, subscriber0.getPublished());
+			Assertions.assertEquals(count, subscriber1.getPublished());
+			Assertions.assertEquals(0, publisher.getPublished());
+		} finally {
+			clients.forEach(MqttRawClient::close);
+			servers.forEach(MqttServer::stop);
+		}
+	}
+
+	@Test
+	void testDeduplicator() {
+		MqttClusterMessageDeduplicator deduplicator = new MqttClusterMessageDeduplicator(60_000, 2);
+		Message message1 = newMessage("payload1");
+		Message message2 = newMessage("payload2");
+		Message message3 = newMessage("payload3");
+		Assertions.assertFalse(deduplicator.isDuplicate(message1));
+		Assertions.assertTrue(deduplicator.isDuplicate(message1));
+		// 反序列化后的副本也视为重复
+		Message copy = DefaultMessageSerializer.INSTANCE.deserialize(DefaultMessageSerializer.INSTANCE.serialize(message1));
+		Assertions.assertTrue(deduplicator.isDuplicate(copy));
+		Assertions.assertFalse(deduplicator.isDuplicate(message2));
+		// 超过 maxSize 时淘汰最早的
+		Assertions.assertFalse(deduplicator.isDuplicate(message3));
+		Assertions.assertEquals(2, deduplicator.size());
+		Assertions.assertFalse(deduplicator.isDuplicate(message1));
+	}
+
+	private static Message newMessage(String payload) {
+		Message message = new Message();
+		message.setMessageType(MessageType.UP_STREAM);
+		message.setNode("node0");
+		message.setFromClientId("client0");
+		message.setTopic(TOPIC);
+		message.setPayload(payload.getBytes(StandardCharsets.UTF_8));
+		message.setTimestamp(1L);
+		return message;
+	}
+
+	/**
+	 * 模拟至少一次的广播传输：发送到所有节点（包括自己），每条消息发送两次
+	 */
+	private static class BroadcastMessageDispatcher extends AbstractMqttMessageDispatcher {
+		private final List<MqttClusterMessageListener> listeners;
+
+		private BroadcastMessageDispatcher(List<MqttClusterMessageListener> listeners) {
+			this.listeners = listeners;
+		}
+
+		@Override
+		public void config(MqttServer mqttServer) {
+			super.config(mqttServer);
+			listeners.add(new MqttClusterMessageListener(mqttServer, new MqttClusterMessageDeduplicator(60_000, 1000)));
+		}
+
+		@Override
+		public void sendAll(Message message) {
+			byte[] data = DefaultMessageSerializer.INSTANCE.serialize(message);
+			for (int i = 0; i < 2; i++) {
+				for (MqttClusterMessageListener listener : listeners) {
+					listener.onMessage(DefaultMessageSerializer.INSTANCE.deserialize(data));
+				}
+			}
+		}
+	}
+
+}
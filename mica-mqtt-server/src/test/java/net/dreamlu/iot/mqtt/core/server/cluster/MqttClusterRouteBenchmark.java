@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.serializer.DefaultMessageSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * 集群跨节点流量测算：广播 vs 按订阅路由，每个节点 1 万设备订阅 device/{id}/down，
+ * 节点 0 上的业务端订阅 device/+/up
+ *
+ * @author L.cm
+ */
+public class MqttClusterRouteBenchmark {
+	private static final Logger logger = LoggerFactory.getLogger(MqttClusterRouteBenchmark.class);
+	private static final int DEVICES_PER_NODE = 10000;
+	private static final int MESSAGES = 100000;
+
+	public static void main(String[] args) {
+		for (int nodeCount : new int[]{2, 4, 8, 16, 32}) {
+			MqttClusterRouteTable routeTable = new MqttClusterRouteTable();
+			for (int i = 0; i < nodeCount; i++) {
+				Set<String> topicFilters = new HashSet<>();
+				for (int j = 0; j < DEVICES_PER_NODE; j++) {
+					topicFilters.add("device/" + (i * DEVICES_PER_NODE + j) + "/down");
+				}
+				if (i == 0) {
+					topicFilters.add("device/+/up");
+				}
+				routeTable.update("node" + i, 1, topicFilters);
+			}
+			run(routeTable, nodeCount, "up");
+			run(routeTable, nodeCount, "down");
+		}
+	}
+
+	private static void run(MqttClusterRouteTable routeTable, int nodeCount, String type) {
+		Random random = new Random(nodeCount);
+		byte[] payload = new byte[128];
+		long broadcastBytes = 0;
+		long routedBytes = 0;
+		for (int i = 0; i < MESSAGES; i++) {
+			int originNode = random.nextInt(nodeCount);
+			int deviceId = random.nextInt(nodeCount * DEVICES_PER_NODE);
+			Message message = new Message();
+			message.setMessageType(MessageType.UP_STREAM);
+			message.setTopic("device/" + deviceId + '/' + type);
+			message.setPayload(payload);
+			message.setNode("node" + originNode);
+			message.setTimestamp(System.currentTimeMillis());
+			int size = DefaultMessageSerializer.INSTANCE.serialize(message).length;
+			// 跨节点流量：发出节点以外的节点读取的字节数
+			broadcastBytes += (long) size * (nodeCount - 1);
+			Set<String> nodes = routeTable.match(message.getTopic());
+			nodes.remove(message.getNode());
+			routedBytes += (long) size * nodes.size();
+		}
+		double broadcast = (double) broadcastBytes / MESSAGES;
+		double routed = (double) routedBytes / MESSAGES;
+		logger.info("nodes:{} type:{} broadcast:{}B/msg routed:{}B/msg ratio:{}x", nodeCount, type, String.format("%.1f", broadcast),
+			String.format("%.1f", routed), String.format("%.1f", routed == 0 ? 0 : broadcast / routed));
+	}
+
+}
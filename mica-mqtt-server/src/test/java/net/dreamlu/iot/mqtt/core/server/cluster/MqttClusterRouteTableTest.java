@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.core.server.session.IMqttTopicFilterListener;
+import net.dreamlu.iot.mqtt.core.server.session.InMemoryMqttSessionManager;
+import net.dreamlu.iot.mqtt.core.util.TopicUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * MqttClusterRouteTable 测试
+ *
+ * @author L.cm
+ */
+class MqttClusterRouteTableTest {
+
+	@Test
+	void testMatch() {
+		List<String> topicFilters = Arrays.asList("#", "+", "/iot/test/+", "/iot/+/test", "/iot/+/+/+", "/iot/test/#",
+			"/iot/test", "iot/test", "+/test", "/iot/test/+/", "device/+/up", "device/123/down");
+		List<String> topicNames = Arrays.asList("/iot/test", "iot/test", "/iot", "/iot/test/123", "/iot/test/123/",
+			"/iot/abc/test", "/iot/abc/test1", "/iot/abc/123/test", "/iot/a//test/", "/iot/test/", "device/123/up",
+			"device/123/down", "device/123", "a");
+		// 每个 topicFilter 一个节点，路由结果必须包含 TopicUtil 能匹配的节点，多出的节点只会多转发一次
+		MqttClusterRouteTable routeTable = new MqttClusterRouteTable();
+		for (String topicFilter : topicFilters) {
+			routeTable.update(topicFilter, 1, Collections.singleton(topicFilter));
+		}
+		for (String topicName : topicNames) {
+			Set<String> expected = new HashSet<>();
+			for (String topicFilter : topicFilters) {
+				if (TopicUtil.match(topicFilter, topicName)) {
+					expected.add(topicFilter);
+				}
+			}
+			Assertions.assertTrue(routeTable.match(topicName).containsAll(expected), topicName);
+		}
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("#", "/iot/test/#", "/iot/test/+", "/iot/+/test")), routeTable.match("/iot/test/test"));
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("#", "+")), routeTable.match("a"));
+	}
+
+	@Test
+	void testUpdate() {
+		MqttClusterRouteTable routeTable = new MqttClusterRouteTable();
+		routeTable.update("node1", 1, Arrays.asList("device/1/down", "device/+/up"));
+		routeTable.update("node2", 1, Arrays.asList("device/2/down", "device/+/up"));
+		Assertions.assertEquals(Collections.singleton("node1"), routeTable.match("device/1/down"));
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("node1", "node2")), routeTable.match("device/2/up"));
+		// 版本号不变时不更新
+		Assertions.assertFalse(routeTable.update("node1", 1, Collections.emptyList()));
+		Assertions.assertEquals(2, routeTable.getTopicFilterCount("node1"));
+		Assertions.assertTrue(routeTable.update("node1", 2, Collections.singletonList("device/3/down")));
+		Assertions.assertTrue(routeTable.match("device/1/down").isEmpty());
+		Assertions.assertEquals(Collections.singleton("node2"), routeTable.match("device/2/up"));
+		Assertions.assertEquals(2L, routeTable.getVersion("node1"));
+		routeTable.remove("node2");
+		Assertions.assertTrue(routeTable.match("device/2/up").isEmpty());
+		Assertions.assertEquals(MqttClusterRouteTable.UNKNOWN_VERSION, routeTable.getVersion("node2"));
+	}
+
+	@Test
+	void testApply() {
+		MqttClusterRouteTable routeTable = new MqttClusterRouteTable();
+		// 未知节点需要先全量同步
+		Assertions.assertFalse(routeTable.apply("node1", 1, "device/+/up", true));
+		routeTable.update("node1", 1, Collections.singletonList("device/1/down"));
+		// 本节点的 topicFilter 变化按顺序增量同步
+		InMemoryMqttSessionManager sessionManager = new InMemoryMqttSessionManager();
+		long[] version = {1};
+		sessionManager.setTopicFilterListener(new IMqttTopicFilterListener() {
+			@Override
+			public void onAdded(String topicFilter) {
+				Assertions.assertTrue(routeTable.apply("node1", ++version[0], topicFilter, true));
+			}
+
+			@Override
+			public void onRemoved(String topicFilter) {
+				Assertions.assertTrue(routeTable.apply("node1", ++version[0], topicFilter, false));
+			}
+		});
+		sessionManager.addSubscribe("device/+/up", "c1", 0);
+		sessionManager.addSubscribe("device/+/up", "c2", 1);
+		Assertions.assertEquals(2L, routeTable.getVersion("node1"));
+		Assertions.assertEquals(Collections.singleton("node1"), routeTable.match("device/2/up"));
+		sessionManager.removeSubscribe("device/+/up", "c1");
+		Assertions.assertEquals(Collections.singleton("node1"), routeTable.match("device/2/up"));
+		sessionManager.remove("c2");
+		Assertions.assertEquals(3L, routeTable.getVersion("node1"));
+		Assertions.assertTrue(routeTable.match("device/2/up").isEmpty());
+		// 重复的变更忽略，不连续的变更需要全量同步
+		Assertions.assertTrue(routeTable.apply("node1", 3, "device/+/up", true));
+		Assertions.assertTrue(routeTable.match("device/2/up").isEmpty());
+		Assertions.assertFalse(routeTable.apply("node1", 5, "device/+/up", true));
+		Assertions.assertEquals(Collections.singleton("node1"), routeTable.match("device/1/down"));
+	}
+
+	@Test
+	void testCodec() {
+		Set<String> topicFilters = new HashSet<>(Arrays.asList("device/+/up", "/iot/测试/#", ""));
+		Assertions.assertEquals(topicFilters, MqttClusterRouteTable.decode(MqttClusterRouteTable.encode(topicFilters)));
+		Assertions.assertTrue(MqttClusterRouteTable.decode(MqttClusterRouteTable.encode(Collections.emptySet())).isEmpty());
+	}
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.codec.MqttQoS;
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.session.InMemoryMqttSessionManager;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.tio.core.Tio;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 集群持久 session 故障转移测试，同一进程内启动 3 个节点，1 个副本，
+ * 客户端所在节点停止后重连到其他节点，不重新订阅也能收到消息
+ *
+ * @author L.cm
+ */
+class MqttClusterSessionManagerTest {
+	private static final int NODES = 3;
+	private static final int MQTT_PORT = 21887;
+	private static final int CLUSTER_PORT = 29121;
+	private static final int INFLIGHT_MQTT_PORT = 21914;
+	private static final int INFLIGHT_CLUSTER_PORT = 29131;
+	private static final int TAKEOVER_MQTT_PORT = 21916;
+	private static final int TAKEOVER_CLUSTER_PORT = 29141;
+	private static final String TOPIC = "/cluster/session";
+
+	@Test
+	void testFailover() throws Exception {
+		String[] seedNodes = new String[NODES];
+		for (int i = 0; i < NODES; i++) {
+			seedNodes[i] = "127.0.0.1:" + (CLUSTER_PORT + i);
+		}
+		List<MqttServer> servers = new ArrayList<>();
+		List<MqttClusterSessionManager> sessionManagers = new ArrayList<>();
+		List<MqttRawClient> clients = new ArrayList<>();
+		try {
+			for (int i = 0; i < NODES; i++) {
+				MqttClusterConfig clusterConfig = MqttClusterConfig.create()
+					.port(CLUSTER_PORT + i)
+					.reconnectInterval(200)
+					.seedNodes(seedNodes);
+				MqttClusterSessionManager sessionManager = new MqttClusterSessionManager(1);
+				MqttServer server = MqttServer.create()
+					.port(MQTT_PORT + i)
+					.nodeName("session" + i)
+					.websocketEnable(false)
+					.sessionManager(sessionManager)
+					.messageDispatcher(new MqttClusterMessageDispatcher(clusterConfig))
+					.start();
+				servers.add(server);
+				sessionManagers.add(sessionManager);
+			}
+			Assertions.assertTrue(await(() -> sessionManagers.stream().allMatch(m -> m.getRing().getMembers().size() == NODES), 10_000));
+			// 1. 持久 session 连接节点 0 并订阅，等待复制到 owner 和副本
+			MqttRawClient client = new MqttRawClient(MQTT_PORT).startReader();
+			clients.add(client);
+			Assertions.assertFalse(client.connect("device1", false).isSessionPresent());
+			client.subscribe(TOPIC);
+			Assertions.assertTrue(await(() -> sessionManagers.stream().mapToInt(MqttClusterSessionManager::getReplicaCount).sum() == 2, 10_000));
+			// 2. 节点 0 故障，客户端重连到仍存活的节点
+			client.close();
+			servers.get(0).stop();
+			MqttRawClient reconnected = new MqttRawClient(MQTT_PORT + 1).startReader();
+			clients.add(reconnected);
+			Assertions.assertTrue(reconnected.connect("device1", false).isSessionPresent());
+			// 3. 不重新订阅，节点 2 上发布的消息也能收到
+			MqttRawClient publisher = new MqttRawClient(MQTT_PORT + 2);
+			clients.add(publisher);
+			publisher.connect("publisher");
+			publisher.publish(TOPIC, "hello".getBytes(StandardCharsets.UTF_8));
+			Assertions.assertTrue(await(() -> reconnected.getPublished() == 1, 10_000));
+			// 4. 剩余节点重新平衡，仍然保持 2 份
+			Assertions.assertTrue(await(() -> sessionManagers.get(1).getReplicaCount() + sessionManagers.get(2).getReplicaCount() == 2, 10_000));
+			// 5. cleanSession 连接清除集群中的 session
+			reconnected.close();
+			Assertions.assertTrue(await(() -> Tio.getByBsId(servers.get(1).getServerConfig(), "device1") == null, 10_000));
+			MqttRawClient cleaned = new MqttRawClient(MQTT_PORT + 2);
+			clients.add(cleaned);
+			Assertions.assertFalse(cleaned.connect("device1").isSessionPresent());
+			Assertions.assertTrue(await(() -> sessionManagers.get(1).getReplicaCount() + sessionManagers.get(2).getReplicaCount() == 0, 10_000));
+		} finally {
+			clients.forEach(MqttRawClient::close);
+			servers.forEach(MqttServer::stop);
+		}
+	}
+
+	@Test
+	void testInflightAndExpiry() throws Exception {
+		String[] seedNodes = {"127.0.0.1:" + INFLIGHT_CLUSTER_PORT, "127.0.0.1:" + (INFLIGHT_CLUSTER_PORT + 1)};
+		List<MqttServer> servers = new ArrayList<>();
+		List<MqttClusterSessionManager> sessionManagers = new ArrayList<>();
+		List<MqttRawClient> clients = new ArrayList<>();
+		try {
+			for (int i = 0; i < 2; i++) {
+				MqttClusterConfig clusterConfig = MqttClusterConfig.create()
+					.port(INFLIGHT_CLUSTER_PORT + i)
+					.reconnectInterval(200)
+					.seedNodes(seedNodes);
+				// 离线 1 秒后过期
+				MqttClusterSessionManager sessionManager = new MqttClusterSessionManager(new InMemoryMqttSessionManager(), 1, 3000L, 1);
+				MqttServer server = MqttServer.create()
+					.port(INFLIGHT_MQTT_PORT + i)
+					.nodeName("inflight" + i)
+					.websocketEnable(false)
+					.sessionManager(sessionManager)
+					.messageDispatcher(new MqttClusterMessageDispatcher(clusterConfig))
+					.start();
+				servers.add(server);
+				sessionManagers.add(sessionManager);
+			}
+			Assertions.assertTrue(await(() -> sessionManagers.stream().allMatch(m -> m.getRing().getMembers().size() == 2), 10_000));
+			// 1. 下行 qos1 消息客户端不回复 ack，连接关闭时和 session 一起复制
+			MqttRawClient client = new MqttRawClient(INFLIGHT_MQTT_PORT).startReader();
+			clients.add(client);
+			client.connect("device2", false);
+			client.subscribe(1, TOPIC, 1);
+			servers.get(0).publish("device2", TOPIC, "inflight".getBytes(StandardCharsets.UTF_8), MqttQoS.AT_LEAST_ONCE);
+			Assertions.assertTrue(await(() -> client.getPublished() == 1, 10_000));
+			client.close();
+			Assertions.assertTrue(await(() -> Tio.getByBsId(servers.get(0).getServerConfig(), "device2") == null, 10_000));
+			// 等待连接关闭时的复制到达
+			TimeUnit.MILLISECONDS.sleep(200);
+			// 2. 重连到其他节点，connAck 之后按 dup 重发
+			MqttRawClient reconnected = new MqttRawClient(INFLIGHT_MQTT_PORT + 1).startReader();
+			clients.add(reconnected);
+			Assertions.assertTrue(reconnected.connect("device2", false).isSessionPresent());
+			Assertions.assertTrue(await(() -> reconnected.getDupPublished() >= 1, 10_000));
+			// 3. 在线的 session 不过期
+			TimeUnit.MILLISECONDS.sleep(1500);
+			Assertions.assertEquals(2, sessionManagers.get(0).getReplicaCount() + sessionManagers.get(1).getReplicaCount());
+			// 4. 离线后过期清除
+			reconnected.close();
+			Assertions.assertTrue(await(() -> sessionManagers.get(0).getReplicaCount() + sessionManagers.get(1).getReplicaCount() == 0, 10_000));
+		} finally {
+			clients.forEach(MqttRawClient::close);
+			servers.forEach(MqttServer::stop);
+		}
+	}
+
+	@Test
+	void testTakeover() throws Exception {
+		String[] seedNodes = {"127.0.0.1:" + TAKEOVER_CLUSTER_PORT, "127.0.0.1:" + (TAKEOVER_CLUSTER_PORT + 1)};
+		List<MqttServer> servers = new ArrayList<>();
+		List<MqttClusterSessionManager> sessionManagers = new ArrayList<>();
+		List<MqttClusterMessageDispatcher> dispatchers = new ArrayList<>();
+		List<MqttRawClient> clients = new ArrayList<>();
+		try {
+			for (int i = 0; i < 2; i++) {
+				MqttClusterConfig clusterConfig = MqttClusterConfig.create()
+					.port(TAKEOVER_CLUSTER_PORT + i)
+					.reconnectInterval(200)
+					.seedNodes(seedNodes);
+				MqttClusterSessionManager sessionManager = new MqttClusterSessionManager(1);
+				MqttClusterMessageDispatcher dispatcher = new MqttClusterMessageDispatcher(clusterConfig);
+				MqttServer server = MqttServer.create()
+					.port(TAKEOVER_MQTT_PORT + i)
+					.nodeName("takeover" + i)
+					.websocketEnable(false)
+					.sessionManager(sessionManager)
+					.messageDispatcher(dispatcher)
+					.start();
+				servers.add(server);
+				sessionManagers.add(sessionManager);
+				dispatchers.add(dispatcher);
+			}
+			Assertions.assertTrue(await(() -> sessionManagers.stream().allMatch(m -> m.getRing().getMembers().size() == 2), 10_000));
+			// 1. 订阅复制到两个节点之后，下行 qos1 消息客户端不回复 ack，只存在于节点 0
+			MqttRawClient client = new MqttRawClient(TAKEOVER_MQTT_PORT).startReader();
+			clients.add(client);
+			client.connect("device3", false);
+			client.subscribe(1, TOPIC, 1);
+			Assertions.assertTrue(await(() -> sessionManagers.get(0).getReplicaCount() + sessionManagers.get(1).getReplicaCount() == 2, 10_000));
+			Assertions.assertTrue(await(() -> "takeover0".equals(dispatchers.get(1).getClientRegistry().getNode("device3")), 10_000));
+			servers.get(0).publish("device3", TOPIC, "takeover".getBytes(StandardCharsets.UTF_8), MqttQoS.AT_LEAST_ONCE);
+			Assertions.assertTrue(await(() -> client.getPublished() == 1, 10_000));
+			// 2. 旧连接未断开就连接节点 1，节点 1 等待节点 0 关闭旧连接后的最终快照再回复 connAck
+			MqttRawClient reconnected = new MqttRawClient(TAKEOVER_MQTT_PORT + 1).startReader();
+			clients.add(reconnected);
+			Assertions.assertTrue(reconnected.connect("device3", false).isSessionPresent());
+			Assertions.assertTrue(await(() -> reconnected.getDupPublished() >= 1, 10_000));
+			Assertions.assertTrue(await(() -> Tio.getByBsId(servers.get(0).getServerConfig(), "device3") == null, 10_000));
+		} finally {
+			clients.forEach(MqttRawClient::close);
+			servers.forEach(MqttServer::stop);
+		}
+	}
+
+	private static boolean await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			TimeUnit.MILLISECONDS.sleep(10);
+		}
+		return true;
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+/**
+ * 一致性哈希环测试
+ *
+ * @author L.cm
+ */
+class MqttClusterSessionRingTest {
+	private static final int CLIENTS = 100_000;
+
+	@Test
+	void testBalance() {
+		MqttClusterSessionRing ring = new MqttClusterSessionRing(Arrays.asList("node0", "node1", "node2", "node3"));
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < CLIENTS; i++) {
+			counts.merge(ring.getOwner("client" + i), 1, Integer::sum);
+		}
+		Assertions.assertEquals(4, counts.size());
+		// 每个节点的 owner 数在平均值的 ±25% 以内
+		counts.values().forEach(count -> Assertions.assertTrue(Math.abs(count - CLIENTS / 4) < CLIENTS / 16, counts.toString()));
+		List<String> nodes = ring.getNodes("client0", 3);
+		Assertions.assertEquals(3, new HashSet<>(nodes).size());
+		Assertions.assertEquals(4, ring.getNodes("client0", 10).size());
+		Assertions.assertTrue(new MqttClusterSessionRing(Collections.emptyList()).getNodes("client0", 2).isEmpty());
+	}
+
+	@Test
+	void testMembershipChange() {
+		List<String> members = Arrays.asList("node0", "node1", "node2", "node3");
+		MqttClusterSessionRing ring = new MqttClusterSessionRing(members);
+		// 节点顺序不影响结果
+		MqttClusterSessionRing reversed = new MqttClusterSessionRing(Arrays.asList("node3", "node2", "node1", "node0"));
+		List<String> joined = new ArrayList<>(members);
+		joined.add("node4");
+		MqttClusterSessionRing joinRing = new MqttClusterSessionRing(joined);
+		MqttClusterSessionRing leaveRing = new MqttClusterSessionRing(Arrays.asList("node0", "node2", "node3"));
+		int moved = 0;
+		for (int i = 0; i < CLIENTS; i++) {
+			String clientId = "client" + i;
+			List<String> owners = ring.getNodes(clientId, 2);
+			Assertions.assertEquals(owners, reversed.getNodes(clientId, 2));
+			// 加入节点时，owner 只会变成新节点
+			String joinOwner = joinRing.getOwner(clientId);
+			if (!joinOwner.equals(owners.get(0))) {
+				Assertions.assertEquals("node4", joinOwner);
+				moved++;
+			}
+			// 离开节点后，剩余的副本仍在新的节点列表中
+			List<String> leaveOwners = leaveRing.getNodes(clientId, 2);
+			for (String owner : owners) {
+				if (!"node1".equals(owner)) {
+					Assertions.assertTrue(leaveOwners.contains(owner));
+				}
+			}
+		}
+		// 约 1/5 的 session 迁移
+		Assertions.assertTrue(moved > CLIENTS / 8 && moved < CLIENTS / 3, String.valueOf(moved));
+	}
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.cluster;
+
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 内置集群测试，同一进程内启动多个节点，测试跨节点延迟和批量发送
+ *
+ * @author L.cm
+ */
+class MqttClusterTest {
+	private static final int NODES = 3;
+	private static final int BASE_PORT = 29101;
+
+	@Test
+	void testLatencyAndThroughput() throws Exception {
+		String[] seedNodes = new String[NODES];
+		for (int i = 0; i < NODES; i++) {
+			seedNodes[i] = "127.0.0.1:" + (BASE_PORT + i);
+		}
+		List<MqttCluster> clusters = new ArrayList<>();
+		List<LongAdder> receivedList = new ArrayList<>();
+		ConcurrentLinkedQueue<Long> latencyQueue = new ConcurrentLinkedQueue<>();
+		try {
+			for (int i = 0; i < NODES; i++) {
+				LongAdder received = new LongAdder();
+				boolean recordLatency = i == 1;
+				// 种子节点包含自身，验证自连接会被关闭
+				MqttClusterConfig config = MqttClusterConfig.create()
+					.port(BASE_PORT + i)
+					.reconnectInterval(200)
+					.seedNodes(seedNodes);
+				MqttCluster cluster = new MqttCluster("node" + i, config, message -> {
+					received.increment();
+					if (recordLatency && message.getMessageType() == MessageType.DOWN_STREAM) {
+						long sendTime = ByteBuffer.wrap(message.getPayload()).getLong();
+						latencyQueue.add(System.nanoTime() - sendTime);
+					}
+				});
+				cluster.start();
+				clusters.add(cluster);
+				receivedList.add(received);
+			}
+			Assertions.assertTrue(await(() -> clusters.stream().allMatch(c -> c.getPeers().size() == NODES - 1), 10_000));
+			MqttCluster sender = clusters.get(0);
+			// 1. 延迟，逐条发送
+			int latencyMessages = 2000;
+			for (int i = 0; i < latencyMessages; i++) {
+				Message message = newMessage(MessageType.DOWN_STREAM, ByteBuffer.allocate(8).putLong(System.nanoTime()).array());
+				sender.send(message);
+				LockSupport.parkNanos(200_000);
+			}
+			Assertions.assertTrue(await(() -> latencyQueue.size() == latencyMessages, 10_000));
+			long[] latencies = latencyQueue.stream().mapToLong(Long::longValue).sorted().toArray();
+			long p50 = latencies[latencies.length / 2];
+			Assertions.assertTrue(p50 < TimeUnit.MILLISECONDS.toNanos(100), "p50:" + p50);
+			// 2. 吞吐，批量发送
+			int throughputMessages = 200_000;
+			long receivedBefore = receivedList.get(1).sum();
+			long batchBefore = sender.getBatchCount();
+			byte[] payload = new byte[256];
+			for (int i = 0; i < throughputMessages; i++) {
+				Message message = newMessage(MessageType.UP_STREAM, payload);
+				while (!sender.send(message)) {
+					Thread.yield();
+				}
+			}
+			Assertions.assertTrue(await(() -> receivedList.stream().skip(1)
+				.allMatch(received -> received.sum() - receivedBefore >= throughputMessages), 60_000));
+			// 连续发送时合并为批量
+			long batches = sender.getBatchCount() - batchBefore;
+			Assertions.assertTrue(batches < throughputMessages, "batches:" + batches);
+			// 3. 指定节点发送，只有该节点收到
+			long received1 = receivedList.get(1).sum();
+			long received2 = receivedList.get(2).sum();
+			for (int i = 0; i < 100; i++) {
+				Assertions.assertTrue(sender.send("node2", newMessage(MessageType.DOWN_STREAM, new byte[8])));
+			}
+			Assertions.assertTrue(await(() -> receivedList.get(2).sum() - received2 == 100, 10_000));
+			Assertions.assertEquals(received1, receivedList.get(1).sum());
+			Assertions.assertFalse(sender.send("node3", newMessage(MessageType.DOWN_STREAM, new byte[8])));
+			// 发送节点不会收到自己的消息
+			Assertions.assertEquals(0, receivedList.get(0).sum());
+		} finally {
+			clusters.forEach(MqttCluster::stop);
+		}
+	}
+
+	@Test
+	void testDispatcher() throws Exception {
+		int clusterPort = BASE_PORT + 10;
+		List<MqttServer> servers = new ArrayList<>();
+		try {
+			for (int i = 0; i < 2; i++) {
+				MqttClusterConfig clusterConfig = MqttClusterConfig.create()
+					.port(clusterPort + i)
+					.reconnectInterval(200)
+					.seedNodes("127.0.0.1:" + clusterPort, "127.0.0.1:" + (clusterPort + 1));
+				MqttServer server = MqttServer.create()
+					.port(21883 + i)
+					.nodeName("mqtt" + i)
+					.websocketEnable(false)
+					.messageDispatcher(new MqttClusterMessageDispatcher(clusterConfig))
+					.start();
+				servers.add(server);
+			}
+			MqttClusterMessageDispatcher dispatcher = (MqttClusterMessageDispatcher) servers.get(0).getServerCreator().getMessageDispatcher();
+			Assertions.assertTrue(await(() -> dispatcher.getCluster().isConnected("mqtt1"), 10_000));
+			// 节点 0 上的上行消息转发到节点 1
+			MqttCluster cluster1 = ((MqttClusterMessageDispatcher) servers.get(1).getServerCreator().getMessageDispatcher()).getCluster();
+			Message message = newMessage(MessageType.UP_STREAM, new byte[16]);
+			message.setNode("mqtt0");
+			Assertions.assertTrue(dispatcher.send(message));
+			Assertions.assertTrue(await(() -> cluster1.getReceivedCount() == 1, 10_000));
+			Assertions.assertEquals(0, dispatcher.getCluster().getReceivedCount());
+		} finally {
+			servers.forEach(MqttServer::stop);
+		}
+	}
+
+	@Test
+	void testPartialSeedNodes() throws Exception {
+		int clusterPort = BASE_PORT + 20;
+		List<MqttCluster> clusters = new ArrayList<>();
+		try {
+			// 只有 node0 作为种子节点，node1、node2 通过反向连接和握手中的节点地址组成全连接
+			for (int i = 0; i < NODES; i++) {
+				MqttClusterConfig config = MqttClusterConfig.create()
+					.port(clusterPort + i)
+					.reconnectInterval(200);
+				if (i > 0) {
+					config.seedNodes("127.0.0.1:" + clusterPort);
+				}
+				MqttCluster cluster = new MqttCluster("node" + i, config, message -> {
+				});
+				cluster.start();
+				clusters.add(cluster);
+			}
+			Assertions.assertTrue(await(() -> clusters.stream().allMatch(c -> c.getPeers().size() == NODES - 1), 10_000));
+			Assertions.assertTrue(clusters.get(1).isConnected("node2"));
+			Assertions.assertTrue(clusters.get(2).isConnected("node1"));
+			// 指定节点发送到非种子节点
+			Assertions.assertTrue(clusters.get(1).send("node2", newMessage(MessageType.DOWN_STREAM, new byte[8])));
+			Assertions.assertTrue(await(() -> clusters.get(2).getReceivedCount() == 1, 10_000));
+		} finally {
+			clusters.forEach(MqttCluster::stop);
+		}
+	}
+
+	private static Message newMessage(MessageType messageType, byte[] payload) {
+		Message message = new Message();
+		message.setMessageType(messageType);
+		message.setTopic("/cluster/test");
+		message.setQos(0);
+		message.setPayload(payload);
+		message.setNode("node0");
+		message.setTimestamp(System.currentTimeMillis());
+		return message;
+	}
+
+	private static boolean await(BooleanSupplier condition, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (System.currentTimeMillis() < deadline) {
+			if (condition.getAsBoolean()) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return condition.getAsBoolean();
+	}
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.delay;
+
+import net.dreamlu.iot.mqtt.codec.MqttPubAckReasonCode;
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.store.IMqttMessageStore;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 延迟发布测试
+ *
+ * @author L.cm
+ */
+class MqttDelayedPublishTest {
+	private static final int PORT = 21899;
+
+	@TempDir
+	File tempDir;
+
+	@Test
+	void testStore() {
+		long now = System.currentTimeMillis();
+		// 每个时间段 10 秒
+		MqttDelayedMessageStore store = new MqttDelayedMessageStore(tempDir, 1000L, 10);
+		Assertions.assertTrue(store.add(message("/delay/1"), now + 1000L));
+		Assertions.assertTrue(store.add(message("/delay/25"), now + 25_000L));
+		Assertions.assertTrue(store.add(message("/delay/100"), now + 100_000L));
+		// 已经到期
+		Assertions.assertFalse(store.add(message("/delay/0"), now - 20_000L));
+		Assertions.assertTrue(store.advance(now).isEmpty());
+		Assertions.assertEquals(topics(store.advance(now + 2000L)), listOf("/delay/1"));
+		store.close();
+		// 重启，已触发的消息不再恢复
+		store = new MqttDelayedMessageStore(tempDir, 1000L, 10);
+		Assertions.assertEquals(2, store.size());
+		Assertions.assertEquals(listOf("/delay/25"), drain(store, now + 30_000L));
+		Assertions.assertEquals(listOf("/delay/100"), drain(store, now + 200_000L));
+		Assertions.assertEquals(0, store.size());
+		store.close();
+		File[] files = tempDir.listFiles((dir, name) -> name.endsWith(".dat"));
+		Assertions.assertNotNull(files);
+		Assertions.assertEquals(0, files.length);
+	}
+
+	/**
+	 * 100 万条延迟消息，耗时较长，mvn test -Pslow-test 时执行
+	 */
+	@Test
+	@Tag("slow")
+	void testMillion() {
+		int count = 1_000_000;
+		Random random = new Random(0);
+		long now = System.currentTimeMillis();
+		long usedBefore = usedMemory();
+		MqttDelayedMessageStore store = new MqttDelayedMessageStore(tempDir, 1000L, 3600);
+		for (int i = 0; i < count; i++) {
+			// 1 秒到 1 天内随机
+			store.add(message("/device/" + (i % 10000) + "/command"), now + 1000L + random.nextInt(86400) * 1000L);
+		}
+		long footprint = usedMemory() - usedBefore;
+		Assertions.assertEquals(count, store.size());
+		// 内存中只有 1 小时内到期的消息，约 1/24
+		Assertions.assertTrue(footprint < 64 * 1024 * 1024, "heap:" + footprint);
+		store.close();
+		// 重启后恢复，并全部触发
+		store = new MqttDelayedMessageStore(tempDir, 1000L, 3600);
+		Assertions.assertEquals(count, store.size());
+		long released = 0;
+		List<Message> dueList;
+		while (!(dueList = store.advance(now + 2 * 86400_000L)).isEmpty()) {
+			released += dueList.size();
+		}
+		Assertions.assertEquals(count, released);
+		Assertions.assertEquals(0, store.size());
+		store.close();
+	}
+
+	@Test
+	void testPublish() throws Exception {
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.delayedPublishEnable(true)
+			.delayedPublishStoreDir(tempDir.getAbsolutePath())
+			.start();
+		try (MqttRawClient client = new MqttRawClient(PORT)) {
+			client.connect("delayed");
+			client.sendSubscribe(1, "delay/#", 0);
+			client.publish("$delayed/2/delay/a", "off");
+			// 不合法的延迟 topic 丢弃
+			client.publish("$delayed/x/delay/b", "off");
+			client.publish("$delayed/2", "off");
+			Assertions.assertTrue(readTopics(client, 1000).isEmpty());
+			Assertions.assertEquals(1, server.getServerCreator().getDelayedPublish().size());
+			Assertions.assertEquals(listOf("delay/a"), readTopics(client, 3000));
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	void testRetain() throws Exception {
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.delayedPublishEnable(true)
+			.delayedPublishStoreDir(tempDir.getAbsolutePath())
+			.start();
+		IMqttMessageStore messageStore = server.getServerCreator().getMessageStore();
+		try (MqttRawClient client = new MqttRawClient(PORT)) {
+			client.connect("delayed");
+			// 1. 到期发布时才存储保留消息
+			client.publish(0x33, "$delayed/1/delay/r", 1, null, "on".getBytes(StandardCharsets.UTF_8));
+			Thread.sleep(200);
+			Assertions.assertTrue(messageStore.getRetainMessage("delay/r").isEmpty());
+			waitFor(() -> !messageStore.getRetainMessage("delay/r").isEmpty());
+			Message retainMessage = messageStore.getRetainMessage("delay/r").get(0);
+			Assertions.assertEquals("delay/r", retainMessage.getTopic());
+			Assertions.assertArrayEquals("on".getBytes(StandardCharsets.UTF_8), retainMessage.getPayload());
+			// 2. 空的 payload 到期发布时清除保留消息
+			client.publish(0x33, "$delayed/1/delay/r", 2, null, new byte[0]);
+			Thread.sleep(200);
+			Assertions.assertFalse(messageStore.getRetainMessage("delay/r").isEmpty());
+			waitFor(() -> messageStore.getRetainMessage("delay/r").isEmpty());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	void testPermission() throws Exception {
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.delayedPublishEnable(true)
+			.delayedPublishStoreDir(tempDir.getAbsolutePath())
+			.publishPermission((context, clientId, topic, qoS, isRetain) -> !topic.startsWith("secret/"))
+			.start();
+		try (MqttRawClient client = new MqttRawClient(PORT)) {
+			client.connect("delayed");
+			client.sendSubscribe(1, "delay/#", 0);
+			client.sendSubscribe(2, "secret/#", 0);
+			// 按实际发布的 topic 判断权限
+			client.publish("$delayed/1/secret/a", "off");
+			client.publish("$delayed/1/delay/a", "off");
+			Assertions.assertEquals(listOf("delay/a"), readTopics(client, 3000));
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	void testReasonCode() throws Exception {
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.delayedPublishEnable(true)
+			.delayedPublishStoreDir(tempDir.getAbsolutePath())
+			.publishPermission((context, clientId, topic, qoS, isRetain) -> !topic.startsWith("secret/"))
+			.start();
+		try (MqttRawClient client = new MqttRawClient(PORT)) {
+			Assertions.assertEquals(0, client.connect5("delayed5").getReasonCode());
+			// mqtt5 应答错误码
+			byte[] payload = "off".getBytes(StandardCharsets.UTF_8);
+			client.publish(0x32, "$delayed/x/delay/a", 1, null, payload);
+			Assertions.assertEquals(MqttPubAckReasonCode.TOPIC_NAME_INVALID.value(), readPubAckReasonCode(client, 1));
+			client.publish(0x32, "$delayed/1/secret/a", 2, null, payload);
+			Assertions.assertEquals(MqttPubAckReasonCode.NOT_AUTHORIZED.value(), readPubAckReasonCode(client, 2));
+			client.publish(0x32, "$delayed/1/delay/a", 3, null, payload);
+			Assertions.assertEquals(MqttPubAckReasonCode.SUCCESS.value(), readPubAckReasonCode(client, 3));
+			Assertions.assertEquals(1, server.getServerCreator().getDelayedPublish().size());
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static Message message(String topic) {
+		Message message = new Message();
+		message.setMessageType(MessageType.UP_STREAM);
+		message.setTopic(topic);
+		message.setQos(1);
+		message.setPayload("off".getBytes(StandardCharsets.UTF_8));
+		message.setTimestamp(System.currentTimeMillis());
+		return message;
+	}
+
+	private static List<String> drain(MqttDelayedMessageStore store, long now) {
+		List<String> topics = new ArrayList<>();
+		List<Message> dueList;
+		while (!(dueList = store.advance(now)).isEmpty()) {
+			topics.addAll(topics(dueList));
+		}
+		return topics;
+	}
+
+	private static List<String> topics(List<Message> messageList) {
+		List<String> topics = new ArrayList<>();
+		for (Message message : messageList) {
+			topics.add(message.getTopic());
+		}
+		return topics;
+	}
+
+	private static List<String> listOf(String topic) {
+		List<String> topics = new ArrayList<>();
+		topics.add(topic);
+		return topics;
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * 读取 mqtt5 PubAck 的错误码
+	 */
+	private static byte readPubAckReasonCode(MqttRawClient client, int packetId) throws IOException {
+		MqttRawClient.Packet pubAck = client.read(MqttRawClient.PUBACK, 5000);
+		Assertions.assertNotNull(pubAck);
+		Assertions.assertEquals(packetId, pubAck.getPacketId());
+		return (byte) pubAck.getReasonCode();
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		Assertions.assertTrue(condition.getAsBoolean());
+	}
+
+	/**
+	 * 读取 publish 的 topic 直到超时，跳过 subAck
+	 */
+	private static List<String> readTopics(MqttRawClient client, long idleMillis) throws IOException {
+		List<String> topics = new ArrayList<>();
+		for (MqttRawClient.Packet publish : client.readPublishes(idleMillis)) {
+			topics.add(publish.getTopic());
+		}
+		return topics;
+	}
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 连接准入控制测试，模拟重连风暴
+ *
+ * @author L.cm
+ */
+class MqttAdmissionControlTest {
+	private static final int PORT = 21891;
+
+	@Test
+	void testReconnectStorm() throws Exception {
+		MqttAdmissionControl admissionControl = MqttAdmissionControl.create()
+			.acceptRate(2000, 200)
+			.connectRate(1000, 100)
+			.maxHandshakes(32);
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.admissionControl(admissionControl)
+			.start();
+		int clients = 1000;
+		ExecutorService executor = Executors.newFixedThreadPool(64);
+		Queue<MqttRawClient> connected = new ConcurrentLinkedQueue<>();
+		AtomicInteger maxHandshakes = new AtomicInteger();
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < clients; i++) {
+				String clientId = "storm" + i;
+				futures.add(executor.submit(() -> {
+					// 被拒绝时随机退避重连
+					long backoff = 10;
+					while (true) {
+						maxHandshakes.accumulateAndGet(admissionControl.getHandshakes(), Math::max);
+						MqttRawClient client = connect(clientId);
+						if (client != null) {
+							connected.add(client);
+							return null;
+						}
+						Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+						backoff = Math.min(backoff * 2, 500);
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(60, TimeUnit.SECONDS);
+			}
+			Assertions.assertEquals(clients, connected.size());
+			Assertions.assertTrue(maxHandshakes.get() <= 32);
+			Assertions.assertEquals(0, admissionControl.getHandshakes());
+		} finally {
+			executor.shutdownNow();
+			connected.forEach(MqttRawClient::close);
+			server.stop();
+		}
+	}
+
+	@Test
+	void testConnectRejected() throws Exception {
+		MqttAdmissionControl admissionControl = MqttAdmissionControl.create()
+			.ipConnectRate(0.01, 1);
+		MqttServer server = MqttServer.create()
+			.port(PORT + 1)
+			.websocketEnable(false)
+			.admissionControl(admissionControl)
+			.start();
+		try {
+			MqttRawClient client = new MqttRawClient(PORT + 1);
+			Assertions.assertEquals(0, sendConnect(client, "mqtt5", 5));
+			// mqtt5 回复服务繁忙
+			MqttRawClient busy = new MqttRawClient(PORT + 1);
+			Assertions.assertEquals(0x89, sendConnect(busy, "mqtt5-busy", 5));
+			// mqtt3 直接关闭
+			MqttRawClient closed = new MqttRawClient(PORT + 1);
+			Assertions.assertEquals(-1, sendConnect(closed, "mqtt3-busy", 4));
+			Assertions.assertEquals(2, admissionControl.getRejectedConnects());
+			client.close();
+			busy.close();
+			closed.close();
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	void testTokenBucket() throws Exception {
+		TokenBucket bucket = new TokenBucket(100, 10);
+		for (int i = 0; i < 10; i++) {
+			Assertions.assertTrue(bucket.tryAcquire());
+		}
+		Assertions.assertFalse(bucket.tryAcquire());
+		Thread.sleep(50);
+		Assertions.assertTrue(bucket.tryAcquire());
+	}
+
+	@Test
+	void testMaintain() throws Exception {
+		MqttAdmissionControl admissionControl = MqttAdmissionControl.create()
+			.ipConnectRate(1000, 1);
+		Assertions.assertTrue(admissionControl.tryConnect("127.0.0.1"));
+		Assertions.assertFalse(admissionControl.tryConnect("127.0.0.1"));
+		Assertions.assertTrue(admissionControl.tryConnect("127.0.0.2"));
+		Assertions.assertEquals(2, admissionControl.getIpBucketCount());
+		Assertions.assertEquals(1, admissionControl.getRejectedConnects());
+		// 令牌恢复满后为空闲的令牌桶，定时清理
+		Thread.sleep(50);
+		admissionControl.maintain();
+		Assertions.assertEquals(0, admissionControl.getIpBucketCount());
+	}
+
+	/**
+	 * 连接并等待 connAck，被拒绝时返回 null
+	 */
+	private static MqttRawClient connect(String clientId) {
+		MqttRawClient client = null;
+		try {
+			client = new MqttRawClient(PORT);
+			if (sendConnect(client, clientId, 4) == 0) {
+				return client;
+			}
+		} catch (IOException ignored) {
+			// 连接被关闭
+		}
+		if (client != null) {
+			client.close();
+		}
+		return null;
+	}
+
+	/**
+	 * 发送 CONNECT，返回 connAck 的返回码，连接关闭时返回 -1
+	 */
+	private static int sendConnect(MqttRawClient client, String clientId, int protocolLevel) throws IOException {
+		client.sendConnect(protocolLevel, clientId, true, null, null, null);
+		try {
+			MqttRawClient.Packet connAck = client.read(10_000);
+			Assertions.assertNotNull(connAck);
+			Assertions.assertEquals(MqttRawClient.CONNACK, connAck.getType());
+			return connAck.getReasonCode();
+		} catch (EOFException e) {
+			return -1;
+		}
+	}
+
+}
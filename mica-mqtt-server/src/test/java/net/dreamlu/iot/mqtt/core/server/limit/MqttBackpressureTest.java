@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.tio.core.ChannelContext;
+import org.tio.core.intf.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 背压测试，慢消费者只影响自己，堆内存保持稳定
+ *
+ * @author L.cm
+ */
+class MqttBackpressureTest {
+	private static final int PORT = 21900;
+
+	@Test
+	void testWatermark() {
+		MqttBackpressure backpressure = MqttBackpressure.create().executorWatermark(10, 100);
+		backpressure.updateExecutorQueueSize(99);
+		Assertions.assertFalse(backpressure.isOverloaded());
+		backpressure.updateExecutorQueueSize(100);
+		Assertions.assertTrue(backpressure.isOverloaded());
+		// 低水位以上仍然过载
+		backpressure.updateExecutorQueueSize(50);
+		Assertions.assertTrue(backpressure.isOverloaded());
+		backpressure.updateExecutorQueueSize(10);
+		Assertions.assertFalse(backpressure.isOverloaded());
+		Assertions.assertThrows(IllegalArgumentException.class, () -> backpressure.executorWatermark(100, 10));
+	}
+
+	@Test
+	void testOutboundBytes() {
+		MqttBackpressure backpressure = MqttBackpressure.create().connectionWatermark(100, 1000);
+		MqttOutboundBytes outboundBytes = new MqttOutboundBytes(backpressure);
+		// 保留消息预先编码的批量发送按编码后的字节数统计
+		Packet packet = new Packet();
+		packet.setPreEncodedByteBuffer(ByteBuffer.allocate(1200));
+		Assertions.assertTrue(outboundBytes.add(packet));
+		Assertions.assertFalse(outboundBytes.add(packet));
+		Assertions.assertEquals(1200, outboundBytes.getBytes());
+		Assertions.assertTrue(outboundBytes.isCongested());
+		Assertions.assertEquals(1, backpressure.getCongestedConnections());
+		// 连接拥塞不暂停发布者
+		Assertions.assertFalse(backpressure.isOverloaded());
+		packet.getPreEncodedByteBuffer().position(1200);
+		outboundBytes.onAfterSent(null, packet, true);
+		Assertions.assertEquals(0, outboundBytes.getBytes());
+		Assertions.assertFalse(outboundBytes.isCongested());
+		Assertions.assertEquals(0, backpressure.getCongestedConnections());
+	}
+
+	@Test
+	void testSlowConsumer() throws Exception {
+		MqttBackpressure backpressure = MqttBackpressure.create()
+			.connectionWatermark(64 * 1024, 256 * 1024)
+			.congestionTimeout(0)
+			.checkInterval(50);
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.backpressure(backpressure)
+			.start();
+		MqttBackpressureController controller = server.getServerCreator().getBackpressureController();
+		AtomicLong published = new AtomicLong();
+		try (MqttRawClient consumer = new MqttRawClient(PORT, 4096); MqttRawClient fastConsumer = new MqttRawClient(PORT); MqttRawClient publisher = new MqttRawClient(PORT)) {
+			// 1. 慢消费者，不读取
+			consumer.connect("slow");
+			consumer.subscribe("/soak/#");
+			ChannelContext consumerContext = server.getChannelContext("slow");
+			// 2. 正常的消费者
+			fastConsumer.connect("fast");
+			fastConsumer.subscribe("/soak/#");
+			startThread(fastConsumer::drain, "soak-fast-consumer");
+			// 3. 发布者持续发送 1KB 的 qos0 消息
+			publisher.connect("publisher");
+			startThread(() -> {
+				byte[] payload = new byte[1024];
+				try {
+					while (true) {
+						publisher.publish("/soak/data", payload);
+						published.incrementAndGet();
+					}
+				} catch (IOException e) {
+					// 关闭
+				}
+			}, "soak-publisher");
+			long heapBefore = usedMemory();
+			long maxOutboundBytes = 0;
+			long publishedAtCongested = 0;
+			long receivedAtCongested = 0;
+			for (int i = 0; i < 30; i++) {
+				Thread.sleep(100);
+				maxOutboundBytes = Math.max(maxOutboundBytes, controller.getOutboundBytes(consumerContext));
+				if (i == 10) {
+					publishedAtCongested = published.get();
+					receivedAtCongested = fastConsumer.getReadBytes();
+				}
+			}
+			long heapGrowth = usedMemory() - heapBefore;
+			// 慢消费者拥塞，丢弃发给它的 qos0 消息，待发送的字节数有上限
+			Assertions.assertTrue(backpressure.getCongestedConnections() >= 1);
+			Assertions.assertTrue(backpressure.getDroppedCount() > 0);
+			Assertions.assertTrue(maxOutboundBytes < 4 * 1024 * 1024, "outbound:" + maxOutboundBytes);
+			Assertions.assertTrue(heapGrowth < 64 * 1024 * 1024, "heap:" + heapGrowth);
+			// 发布者和其他消费者不受影响
+			Assertions.assertTrue(published.get() - publishedAtCongested >= 10_000, "published:" + published.get());
+			Assertions.assertTrue(fastConsumer.getReadBytes() - receivedAtCongested >= 10 * 1024 * 1024, "received:" + fastConsumer.getReadBytes());
+			Assertions.assertEquals(0, backpressure.getCongestionDisconnectCount());
+			// 4. 慢消费者开始读取，解除拥塞
+			startThread(consumer::drain, "soak-slow-consumer");
+			waitFor(() -> backpressure.getCongestedConnections() == 0);
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	void testCongestionTimeout() throws Exception {
+		MqttBackpressure backpressure = MqttBackpressure.create()
+			.connectionWatermark(64 * 1024, 256 * 1024)
+			.congestionTimeout(500)
+			.checkInterval(50);
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.backpressure(backpressure)
+			.start();
+		try (MqttRawClient consumer = new MqttRawClient(PORT, 4096); MqttRawClient publisher = new MqttRawClient(PORT)) {
+			consumer.connect("slow");
+			consumer.subscribe("/soak/#");
+			publisher.connect("publisher");
+			startThread(() -> {
+				byte[] payload = new byte[1024];
+				try {
+					while (true) {
+						publisher.publish("/soak/data", payload);
+					}
+				} catch (IOException e) {
+					// 关闭
+				}
+			}, "soak-publisher");
+			// 持续拥塞超时后断开慢消费者
+			waitFor(() -> backpressure.getCongestionDisconnectCount() == 1);
+			waitFor(() -> server.getChannelContext("slow") == null);
+			Assertions.assertNotNull(server.getChannelContext("publisher"));
+			Assertions.assertEquals(0, backpressure.getCongestedConnections());
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static void startThread(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		Assertions.assertTrue(condition.getAsBoolean());
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.limit;
+
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 上行 PUBLISH 限流测试
+ *
+ * @author L.cm
+ */
+class MqttPublishLimiterTest {
+	private static final int PORT = 21893;
+
+	@Test
+	void testQuota() {
+		MqttPublishLimit publishLimit = MqttPublishLimit.create()
+			.messageRate(1000, 100)
+			.byteRate(1000, 100)
+			.rule(MqttPublishLimitRule.of("/slow/").messageRate(1, 2));
+		MqttPublishQuota quota = publishLimit.newQuota();
+		// 1. topic 规则
+		Assertions.assertEquals(0, quota.tryAcquire("/slow/a", 1));
+		Assertions.assertEquals(0, quota.tryAcquire("/slow/b", 1));
+		Assertions.assertTrue(quota.tryAcquire("/slow/c", 1) > 0);
+		Assertions.assertEquals(0, quota.tryAcquire("/fast/a", 1));
+		// 2. 超过字节突发数时透支，之后需要等待
+		quota = publishLimit.newQuota();
+		Assertions.assertEquals(0, quota.tryAcquire("/fast/a", 500));
+		long waitNanos = quota.tryAcquire("/fast/a", 10);
+		Assertions.assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(300), "wait:" + waitNanos);
+	}
+
+	@Test
+	void testDelay() throws Exception {
+		MqttPublishLimit publishLimit = MqttPublishLimit.create()
+			.messageRate(100, 10);
+		List<String> received = new CopyOnWriteArrayList<>();
+		MqttServer server = startServer(publishLimit, received);
+		try (MqttRawClient client = connect("delay")) {
+			long startTime = System.nanoTime();
+			publish(client, 50);
+			waitFor(received, 50);
+			long costMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+			// 全部处理，超过突发的部分按速率延迟，监听器在业务线程池中回调，不保证顺序
+			Assertions.assertEquals(50, received.size());
+			Set<String> expected = new HashSet<>();
+			for (int i = 0; i < 50; i++) {
+				expected.add(String.valueOf(i));
+			}
+			Assertions.assertEquals(expected, new HashSet<>(received));
+			Assertions.assertTrue(costMillis >= 300, "cost:" + costMillis);
+			Assertions.assertTrue(publishLimit.getDelayedCount() >= 35);
+			// 超过限流时暂停读取，而不是暂存所有消息
+			Assertions.assertTrue(publishLimit.getPausedCount() >= 1);
+			Assertions.assertTrue(publishLimit.getThrottledClients().containsKey("delay"));
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	void testDropAndDisconnect() throws Exception {
+		MqttPublishLimit publishLimit = MqttPublishLimit.create()
+			.messageRate(1, 10)
+			.mode(MqttLimitMode.DROP);
+		List<String> received = new CopyOnWriteArrayList<>();
+		MqttServer server = startServer(publishLimit, received);
+		try (MqttRawClient client = connect("drop")) {
+			publish(client, 50);
+			waitFor(received, 10);
+			Thread.sleep(200);
+			Assertions.assertTrue(received.size() < 15, "received:" + received.size());
+			Assertions.assertEquals(50 - received.size(), publishLimit.getDroppedCount());
+			// 断开连接
+			publishLimit.mode(MqttLimitMode.DISCONNECT);
+			publish(client, 50);
+			Assertions.assertThrows(EOFException.class, () -> client.read(5000));
+			Assertions.assertEquals(1, publishLimit.getDisconnectedCount());
+			// 关闭回调是异步的
+			long deadline = System.currentTimeMillis() + 5000;
+			while (publishLimit.getThrottledClients().containsKey("drop") && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			Assertions.assertFalse(publishLimit.getThrottledClients().containsKey("drop"));
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static MqttServer startServer(MqttPublishLimit publishLimit, List<String> received) {
+		return MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.publishLimit(publishLimit)
+			.messageListener((context, clientId, topic, qoS, message) ->
+				received.add(new String(message.payload(), StandardCharsets.UTF_8)))
+			.start();
+	}
+
+	private static void waitFor(List<String> received, int count) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (received.size() < count && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static MqttRawClient connect(String clientId) throws IOException {
+		MqttRawClient client = new MqttRawClient(PORT);
+		Assertions.assertEquals(0, client.connect(clientId).getReasonCode());
+		return client;
+	}
+
+	/**
+	 * 一次性发送 qos0 消息，payload 为序号
+	 */
+	private static void publish(MqttRawClient client, int count) throws IOException {
+		client.batch();
+		for (int i = 0; i < count; i++) {
+			client.publish("/test/limit", String.valueOf(i));
+		}
+		client.flush();
+	}
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.serializer;
+
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 序列化大小和吞吐测算：DefaultMessageSerializer 逐条 vs BinaryMessageSerializer 批量，
+ * 模拟 1 个节点上 1000 个设备上报 device/{id}/up，payload 32 字节
+ *
+ * @author L.cm
+ */
+public class BinaryMessageSerializerBenchmark {
+	private static final Logger logger = LoggerFactory.getLogger(BinaryMessageSerializerBenchmark.class);
+	private static final int ROUNDS = 20000;
+	/**
+	 * 保存计算结果，避免被 JIT 优化掉
+	 */
+	private static volatile int blackhole;
+
+	public static void main(String[] args) {
+		for (int batchSize : new int[]{1, 8, 64, 512}) {
+			run(batchSize);
+		}
+	}
+
+	private static void run(int batchSize) {
+		List<Message> messages = newMessages(batchSize);
+		long defaultBytes = 0;
+		long binaryBytes = 0;
+		for (Message message : messages) {
+			defaultBytes += DefaultMessageSerializer.INSTANCE.serialize(message).length;
+		}
+		binaryBytes += BinaryMessageSerializer.INSTANCE.serialize(messages).length;
+		// 预热
+		int rounds = ROUNDS * 64 / batchSize;
+		runDefault(messages, rounds);
+		runBinary(messages, rounds);
+		long defaultNanos = runDefault(messages, rounds);
+		long binaryNanos = runBinary(messages, rounds);
+		long total = (long) rounds * batchSize;
+		logger.info("batch:{} default:{}B/msg binary:{}B/msg ratio:{} default:{}msg/s binary:{}msg/s", batchSize,
+			String.format("%.1f", defaultBytes / (double) batchSize), String.format("%.1f", binaryBytes / (double) batchSize),
+			String.format("%.2f", binaryBytes / (double) defaultBytes), String.format("%.0f", total * 1e9 / defaultNanos),
+			String.format("%.0f", total * 1e9 / binaryNanos));
+	}
+
+	private static long runDefault(List<Message> messages, int rounds) {
+		long start = System.nanoTime();
+		int check = 0;
+		for (int i = 0; i < rounds; i++) {
+			for (Message message : messages) {
+				check += DefaultMessageSerializer.INSTANCE.deserialize(DefaultMessageSerializer.INSTANCE.serialize(message)).getQos();
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		blackhole += check;
+		return nanos;
+	}
+
+	private static long runBinary(List<Message> messages, int rounds) {
+		long start = System.nanoTime();
+		int check = 0;
+		for (int i = 0; i < rounds; i++) {
+			check += BinaryMessageSerializer.INSTANCE.deserializeBatch(BinaryMessageSerializer.INSTANCE.serialize(messages)).size();
+		}
+		long nanos = System.nanoTime() - start;
+		blackhole += check;
+		return nanos;
+	}
+
+	private static List<Message> newMessages(int batchSize) {
+		Random random = new Random(batchSize);
+		List<Message> messages = new ArrayList<>(batchSize);
+		long timestamp = System.currentTimeMillis();
+		for (int i = 0; i < batchSize; i++) {
+			int deviceId = random.nextInt(1000);
+			Message message = new Message();
+			message.setMessageType(MessageType.UP_STREAM);
+			message.setNode("mqtt-node-1");
+			message.setFromClientId("device-" + deviceId);
+			message.setFromUsername("device");
+			message.setTopic("device/" + deviceId + "/up");
+			message.setQos(1);
+			message.setId(random.nextInt(65535) + 1);
+			message.setPeerHost("10.0.0." + (deviceId % 250) + ":" + (40000 + deviceId));
+			timestamp += random.nextInt(5);
+			message.setTimestamp(timestamp);
+			message.setPublishReceivedAt(timestamp);
+			byte[] payload = new byte[32];
+			random.nextBytes(payload);
+			message.setPayload(payload);
+			messages.add(message);
+		}
+		return messages;
+	}
+
+}
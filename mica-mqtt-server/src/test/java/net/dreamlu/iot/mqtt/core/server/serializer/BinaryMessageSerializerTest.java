@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.serializer;
+
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 二进制序列化随机往返测试
+ *
+ * @author L.cm
+ */
+class BinaryMessageSerializerTest {
+	private static final String[] STRINGS = {"", "node1", "client-1", "设备/温度", "a/b/c", "😀emoji", "127.0.0.1:1883"};
+	private static final MessageType[] TYPES = MessageType.values();
+
+	@Test
+	void testRoundTrip() {
+		Random random = new Random(20261019L);
+		for (int i = 0; i < 2000; i++) {
+			List<Message> messages = new ArrayList<>();
+			int count = random.nextInt(20);
+			for (int j = 0; j < count; j++) {
+				messages.add(randomMessage(random));
+			}
+			byte[] data = BinaryMessageSerializer.INSTANCE.serialize(messages);
+			Assertions.assertEquals(messages, BinaryMessageSerializer.INSTANCE.deserializeBatch(data));
+			if (count > 0) {
+				Message message = messages.get(0);
+				Assertions.assertEquals(message, BinaryMessageSerializer.INSTANCE.deserialize(BinaryMessageSerializer.INSTANCE.serialize(message)));
+			}
+		}
+	}
+
+	@Test
+	void testLargeBatch() {
+		Random random = new Random(1L);
+		List<Message> messages = new ArrayList<>();
+		// 超过字典上限和线程缓冲区初始大小
+		for (int i = 0; i < 10000; i++) {
+			Message message = randomMessage(random);
+			message.setClientId("client" + i);
+			messages.add(message);
+		}
+		byte[] data = BinaryMessageSerializer.INSTANCE.serialize(messages);
+		Assertions.assertEquals(messages, BinaryMessageSerializer.INSTANCE.deserializeBatch(data));
+	}
+
+	@Test
+	void testProvidedBuffer() {
+		Random random = new Random(2L);
+		List<Message> messages = Arrays.asList(randomMessage(random), randomMessage(random));
+		ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+		buffer.put((byte) 0x7F);
+		BinaryMessageSerializer.INSTANCE.serialize(messages, buffer);
+		buffer.flip();
+		buffer.get();
+		Assertions.assertEquals(messages, BinaryMessageSerializer.INSTANCE.deserializeBatch(buffer));
+		Assertions.assertThrows(BufferOverflowException.class, () -> BinaryMessageSerializer.INSTANCE.serialize(messages, ByteBuffer.allocate(8)));
+	}
+
+	@Test
+	void testDirectAndReadOnlyBuffer() {
+		Random random = new Random(4L);
+		List<Message> messages = Arrays.asList(randomMessage(random), randomMessage(random), randomMessage(random));
+		byte[] data = BinaryMessageSerializer.INSTANCE.serialize(messages);
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+		direct.put(data);
+		direct.flip();
+		Assertions.assertEquals(messages, BinaryMessageSerializer.INSTANCE.deserializeBatch(direct));
+		Assertions.assertEquals(messages, BinaryMessageSerializer.INSTANCE.deserializeBatch(ByteBuffer.wrap(data).asReadOnlyBuffer()));
+	}
+
+	@Test
+	void testInvalidData() {
+		Random random = new Random(3L);
+		byte[] data = BinaryMessageSerializer.INSTANCE.serialize(Arrays.asList(randomMessage(random), randomMessage(random)));
+		for (int i = 1; i < data.length; i++) {
+			byte[] truncated = Arrays.copyOf(data, i);
+			Assertions.assertThrows(IllegalArgumentException.class, () -> BinaryMessageSerializer.INSTANCE.deserializeBatch(truncated));
+		}
+		// DefaultMessageSerializer 的数据
+		byte[] defaultData = DefaultMessageSerializer.INSTANCE.serialize(randomMessage(random));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> BinaryMessageSerializer.INSTANCE.deserializeBatch(defaultData));
+	}
+
+	private static Message randomMessage(Random random) {
+		Message message = new Message();
+		message.setMessageType(TYPES[random.nextInt(TYPES.length)]);
+		message.setNode(randomString(random));
+		message.setFromClientId(randomString(random));
+		message.setFromUsername(randomString(random));
+		message.setClientId(randomString(random));
+		message.setUsername(randomString(random));
+		message.setTopic(randomString(random));
+		message.setPeerHost(randomString(random));
+		message.setDup(random.nextBoolean());
+		message.setRetain(random.nextBoolean());
+		message.setQos(random.nextInt(3));
+		if (random.nextBoolean()) {
+			message.setId(random.nextBoolean() ? random.nextInt(65536) : random.nextInt());
+		}
+		message.setTimestamp(random.nextBoolean() ? System.currentTimeMillis() + random.nextInt(1000) : random.nextLong());
+		if (random.nextBoolean()) {
+			message.setPublishReceivedAt(random.nextBoolean() ? message.getTimestamp() - random.nextInt(100) : random.nextLong());
+		}
+		if (random.nextBoolean()) {
+			message.setExpiryAt(message.getTimestamp() + random.nextInt(3600_000));
+		}
+		if (random.nextInt(4) > 0) {
+			byte[] payload = new byte[random.nextInt(random.nextInt(10) == 0 ? 70000 : 256)];
+			random.nextBytes(payload);
+			message.setPayload(payload);
+		}
+		return message;
+	}
+
+	private static String randomString(Random random) {
+		int type = random.nextInt(4);
+		if (type == 0) {
+			return null;
+		} else if (type == 1) {
+			StringBuilder builder = new StringBuilder();
+			int length = random.nextInt(40);
+			for (int i = 0; i < length; i++) {
+				// 跳过代理区，避免生成不合法的 utf-16
+				char c = (char) random.nextInt(0xD800);
+				builder.append(c);
+			}
+			return builder.toString();
+		}
+		return STRINGS[random.nextInt(STRINGS.length)];
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.serializer;
+
+import net.dreamlu.iot.mqtt.core.server.enums.MessageType;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * 默认序列化测试
+ *
+ * @author L.cm
+ */
+class DefaultMessageSerializerTest {
+
+	@Test
+	void testExpiry() {
+		Message message = new Message();
+		message.setMessageType(MessageType.UP_STREAM);
+		message.setTopic("a/b");
+		message.setTimestamp(System.currentTimeMillis());
+		// 1. 没有过期时间，和旧版本格式一致
+		byte[] data = DefaultMessageSerializer.INSTANCE.serialize(message);
+		Assertions.assertNull(DefaultMessageSerializer.INSTANCE.deserialize(data).getExpiryAt());
+		// 2. 过期时间追加在最后
+		message.setExpiryAt(message.getTimestamp() + 60_000L);
+		byte[] expiryData = DefaultMessageSerializer.INSTANCE.serialize(message);
+		Assertions.assertEquals(data.length + 8, expiryData.length);
+		Assertions.assertEquals(message, DefaultMessageSerializer.INSTANCE.deserialize(expiryData));
+		message.setMessageType(MessageType.DOWN_STREAM);
+		Assertions.assertEquals(message, DefaultMessageSerializer.INSTANCE.deserialize(DefaultMessageSerializer.INSTANCE.serialize(message)));
+	}
+
+}
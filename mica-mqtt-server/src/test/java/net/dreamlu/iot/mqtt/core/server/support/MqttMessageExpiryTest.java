@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.dreamlu.iot.mqtt.core.server.support;
+
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.store.IMqttMessageStore;
+import net.dreamlu.iot.mqtt.core.server.store.InMemoryMqttMessageStore;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * mqtt5 消息过期测试
+ *
+ * @author L.cm
+ */
+class MqttMessageExpiryTest {
+	private static final int PORT = 21898;
+
+	@Test
+	void testRetainExpiry() throws Exception {
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.start();
+		IMqttMessageStore messageStore = server.getServerCreator().getMessageStore();
+		long now = System.currentTimeMillis();
+		messageStore.addRetainMessage("/expiry/expired", retainMessage("/expiry/expired", now - 1));
+		messageStore.addRetainMessage("/expiry/alive", retainMessage("/expiry/alive", now + 60_000L));
+		messageStore.addRetainMessage("/expiry/forever", retainMessage("/expiry/forever", 0));
+		try (MqttRawClient client = new MqttRawClient(PORT)) {
+			client.connect5("expiry");
+			client.sendSubscribe(1, "/expiry/#", 0);
+			// topic -> 剩余的过期时间，-1 为没有过期时间
+			Map<String, Long> publishes = new HashMap<>();
+			for (MqttRawClient.Packet publish : client.readPublishes(500)) {
+				Long remaining = publish.getProperty(0x02);
+				publishes.put(publish.getTopic(), remaining == null ? -1L : remaining);
+			}
+			Assertions.assertEquals(2, publishes.size());
+			long remaining = publishes.get("/expiry/alive");
+			Assertions.assertTrue(remaining > 0 && remaining <= 60, "remaining:" + remaining);
+			Assertions.assertEquals(-1L, publishes.get("/expiry/forever"));
+			// 已过期的保留消息被删除
+			Assertions.assertTrue(messageStore.getRetainMessage("/expiry/expired").isEmpty());
+		} finally {
+			server.stop();
+		}
+	}
+
+	@Test
+	void testRemoveExpiredRetainMessage() {
+		InMemoryMqttMessageStore messageStore = new InMemoryMqttMessageStore();
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < 2500; i++) {
+			String topic = "/expiry/" + i;
+			messageStore.addRetainMessage(topic, retainMessage(topic, now - 1));
+		}
+		messageStore.addRetainMessage("/expiry/alive", retainMessage("/expiry/alive", now + 60_000L));
+		// 每次最多扫描 1000 条，游标续扫
+		int removed = 0;
+		for (int i = 0; i < 3; i++) {
+			int count = messageStore.removeExpiredRetainMessage(now, 1000);
+			Assertions.assertTrue(count <= 1000, "count:" + count);
+			removed += count;
+		}
+		Assertions.assertEquals(2500, removed);
+		Assertions.assertEquals(0, messageStore.removeExpiredRetainMessage(now, 1000));
+		Assertions.assertEquals(1, messageStore.getRetainMessage("/expiry/#").size());
+	}
+
+	private static Message retainMessage(String topic, long expiryAt) {
+		Message message = new Message();
+		message.setTopic(topic);
+		message.setQos(0);
+		message.setRetain(true);
+		message.setPayload(topic.getBytes(StandardCharsets.UTF_8));
+		if (expiryAt > 0) {
+			message.setExpiryAt(expiryAt);
+		}
+		return message;
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.support;
+
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import net.dreamlu.iot.mqtt.core.server.store.IMqttMessageStore;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 保留消息发送测试，上限和飞行窗口
+ *
+ * @author L.cm
+ */
+class MqttRetainMessageDeliveryTest {
+	private static final int PORT = 21894;
+
+	@Test
+	void testDeliver() throws Exception {
+		MqttServer server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.maxRetainPerSubscribe(100)
+			.retainInflightWindow(8)
+			.start();
+		IMqttMessageStore messageStore = server.getServerCreator().getMessageStore();
+		for (int i = 0; i < 150; i++) {
+			Message message = new Message();
+			message.setTopic("/retain/" + i);
+			message.setQos(1);
+			message.setRetain(true);
+			message.setPayload(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+			messageStore.addRetainMessage(message.getTopic(), message);
+		}
+		try (MqttRawClient client = new MqttRawClient(PORT)) {
+			client.connect("retain");
+			// 1. qos0 订阅，不受飞行窗口限制，最多 100 条
+			client.sendSubscribe(1, "/retain/#", 0);
+			Assertions.assertEquals(100, readPublishes(client).size());
+			// 2. qos1 订阅，飞行窗口为 8
+			client.sendSubscribe(2, "/retain/#", 1);
+			int received = 0;
+			List<MqttRawClient.Packet> publishes;
+			while (!(publishes = readPublishes(client)).isEmpty()) {
+				Assertions.assertTrue(publishes.size() <= 8, "count:" + publishes.size());
+				received += publishes.size();
+				for (MqttRawClient.Packet publish : publishes) {
+					client.pubAck(publish.getPacketId());
+				}
+			}
+			Assertions.assertEquals(100, received);
+		} finally {
+			server.stop();
+		}
+	}
+
+	/**
+	 * 读取 publish 直到超时，跳过 subAck
+	 */
+	private static List<MqttRawClient.Packet> readPublishes(MqttRawClient client) throws IOException {
+		List<MqttRawClient.Packet> publishes = client.readPublishes(500);
+		for (MqttRawClient.Packet publish : publishes) {
+			Assertions.assertTrue(publish.isRetain());
+		}
+		return publishes;
+	}
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2019-2029, Dreamlu 卢春梦 (596392912@qq.com & dreamlu.net).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.dreamlu.iot.mqtt.core.server.support;
+
+import net.dreamlu.iot.mqtt.core.server.MqttRawClient;
+import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.model.Message;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * mqtt5 订阅选项测试：No Local、Retain As Published、Retain Handling
+ *
+ * @author L.cm
+ */
+class MqttSubscriptionOptionTest {
+	private static final int PORT = 21895;
+	private static MqttServer server;
+
+	@BeforeAll
+	static void start() {
+		server = MqttServer.create()
+			.port(PORT)
+			.websocketEnable(false)
+			.start();
+	}
+
+	@AfterAll
+	static void stop() {
+		server.stop();
+	}
+
+	@Test
+	void testNoLocal() throws Exception {
+		try (MqttRawClient self = connect("noLocal-self"); MqttRawClient other = connect("noLocal-other")) {
+			self.subscribe(1, "/option/noLocal", 0x04);
+			other.subscribe(1, "/option/noLocal", 0);
+			self.publish("/option/noLocal", "hello");
+			Assertions.assertEquals(1, other.readPublishes(300).size());
+			Assertions.assertTrue(self.readPublishes(300).isEmpty());
+		}
+	}
+
+	@Test
+	void testRetainAsPublished() throws Exception {
+		try (MqttRawClient rap = connect("rap"); MqttRawClient normal = connect("rap-normal"); MqttRawClient publisher = connect("rap-publisher")) {
+			rap.subscribe(1, "/option/rap", 0x08 | 0x20);
+			normal.subscribe(1, "/option/rap", 0x20);
+			publisher.publish(0x31, "/option/rap", 0, null, "retained".getBytes(StandardCharsets.UTF_8));
+			List<MqttRawClient.Packet> rapPublishes = rap.readPublishes(300);
+			List<MqttRawClient.Packet> normalPublishes = normal.readPublishes(300);
+			Assertions.assertEquals(1, rapPublishes.size());
+			Assertions.assertTrue(rapPublishes.get(0).isRetain());
+			Assertions.assertEquals(1, normalPublishes.size());
+			Assertions.assertFalse(normalPublishes.get(0).isRetain());
+		}
+	}
+
+	@Test
+	void testRetainHandling() throws Exception {
+		Message message = new Message();
+		message.setTopic("/option/rh/1");
+		message.setRetain(true);
+		message.setPayload("retained".getBytes(StandardCharsets.UTF_8));
+		server.getServerCreator().getMessageStore().addRetainMessage(message.getTopic(), message);
+		try (MqttRawClient client = connect("rh")) {
+			// 1. 不存在时发送
+			client.subscribe(1, "/option/rh/#", 0x10);
+			Assertions.assertEquals(1, client.readPublishes(300).size());
+			// 2. 已经存在，不发送
+			client.subscribe(2, "/option/rh/#", 0x10);
+			Assertions.assertTrue(client.readPublishes(300).isEmpty());
+			// 3. 订阅时发送
+			client.subscribe(3, "/option/rh/#", 0);
+			List<MqttRawClient.Packet> publishes = client.readPublishes(300);
+			Assertions.assertEquals(1, publishes.size());
+			Assertions.assertTrue(publishes.get(0).isRetain());
+			// 4. 不发送
+			client.subscribe(4, "/option/rh/+", 0x20);
+			Assertions.assertTrue(client.readPublishes(300).isEmpty());
+		}
+	}
+
+	private static MqttRawClient connect(String clientId) throws IOException {
+		MqttRawClient client = new MqttRawClient(PORT);
+		client.connect5(clientId);
+		return client;
+	}
+
+}
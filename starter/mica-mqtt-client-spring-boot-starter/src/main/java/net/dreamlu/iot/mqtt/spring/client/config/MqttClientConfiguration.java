@@ -16,6 +16,7 @@
 
 package net.dreamlu.iot.mqtt.spring.client.config;
 
+import net.dreamlu.iot.mqtt.core.client.ExponentialBackoffReconnectPolicy;
 import net.dreamlu.iot.mqtt.core.client.IMqttClientConnectListener;
 import net.dreamlu.iot.mqtt.core.client.IMqttClientSession;
 import net.dreamlu.iot.mqtt.core.client.MqttClient;
@@ -75,6 +76,7 @@ public class MqttClientConfiguration {
 			.reInterval(properties.getReInterval())
 			.retryCount(properties.getRetryCount())
 			.reSubscribeBatchSize(properties.getReSubscribeBatchSize())
+			.reSubscribeInterval(properties.getReSubscribeInterval())
 			.version(properties.getVersion())
 			.cleanSession(properties.isCleanSession())
 			.bufferAllocator(properties.getBufferAllocator())
@@ -86,6 +88,11 @@ public class MqttClientConfiguration {
 		if (properties.isDebug()) {
 			clientCreator.debug();
 		}
+		// 指数退避重连
+		long reMaxInterval = properties.getReMaxInterval();
+		if (reMaxInterval > properties.getReInterval()) {
+			clientCreator.reconnectPolicy(new ExponentialBackoffReconnectPolicy(properties.getReInterval(), reMaxInterval, properties.getReJitter()));
+		}
 		// 开启 ssl
 		MqttClientProperties.Ssl ssl = properties.getSsl();
 		if (ssl.isEnabled()) {
@@ -21,6 +21,7 @@ import lombok.Setter;
 import net.dreamlu.iot.mqtt.codec.MqttConstant;
 import net.dreamlu.iot.mqtt.codec.MqttQoS;
 import net.dreamlu.iot.mqtt.codec.MqttVersion;
+import net.dreamlu.iot.mqtt.core.client.ExponentialBackoffReconnectPolicy;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.util.unit.DataSize;
 import org.tio.utils.buffer.ByteBufferAllocator;
@@ -103,6 +104,18 @@ public class MqttClientProperties {
 	 * 重连，重新订阅一个批次大小，默认：20
 	 */
 	private int reSubscribeBatchSize = 20;
+	/**
+	 * 重连，重新订阅批次之间的间隔时间，单位毫秒，默认：0 不间隔
+	 */
+	private long reSubscribeInterval = 0;
+	/**
+	 * 重连的最大间隔时间，单位毫秒，大于 reInterval 时开启指数退避重连，默认：0 不开启
+	 */
+	private long reMaxInterval = 0;
+	/**
+	 * 指数退避重连的抖动方式，默认：FULL
+	 */
+	private ExponentialBackoffReconnectPolicy.Jitter reJitter = ExponentialBackoffReconnectPolicy.Jitter.FULL;
 	/**
 	 * mqtt 协议，默认：MQTT_3_1_1
 	 */
@@ -18,6 +18,7 @@ package net.dreamlu.iot.mqtt.spring.server.config;
 
 import net.dreamlu.iot.mqtt.core.server.MqttServer;
 import net.dreamlu.iot.mqtt.core.server.MqttServerCreator;
+import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerAsyncAuthHandler;
 import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerAuthHandler;
 import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerPublishPermission;
 import net.dreamlu.iot.mqtt.core.server.auth.IMqttServerSubscribeValidator;
@@ -72,6 +73,7 @@ public class MqttServerConfiguration {
 	@Bean
 	public MqttServerCreator mqttServerCreator(MqttServerProperties properties,
 											   ObjectProvider<IMqttServerAuthHandler> authHandlerObjectProvider,
+											   ObjectProvider<IMqttServerAsyncAuthHandler> asyncAuthHandlerObjectProvider,
 											   ObjectProvider<IMqttServerUniqueIdService> uniqueIdServiceObjectProvider,
 											   ObjectProvider<IMqttServerSubscribeValidator> subscribeValidatorObjectProvider,
 											   ObjectProvider<IMqttServerPublishPermission> publishPermissionObjectProvider,
@@ -120,6 +122,8 @@ public class MqttServerConfiguration {
 			return mqttAuth.isEnable() ? new DefaultMqttServerAuthHandler(mqttAuth.getUsername(), mqttAuth.getPassword()) : null;
 		});
 		serverCreator.authHandler(authHandler);
+		// 异步认证处理器
+		asyncAuthHandlerObjectProvider.ifAvailable(serverCreator::asyncAuthHandler);
 		// mqtt 内唯一id
 		uniqueIdServiceObjectProvider.ifAvailable(serverCreator::uniqueIdService);
 		// 订阅校验
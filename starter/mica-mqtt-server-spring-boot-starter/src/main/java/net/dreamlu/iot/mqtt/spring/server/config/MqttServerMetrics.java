@@ -21,6 +21,7 @@ import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tag;
 import lombok.RequiredArgsConstructor;
 import net.dreamlu.iot.mqtt.core.server.MqttServer;
+import net.dreamlu.iot.mqtt.core.server.limit.MqttBackpressure;
 import org.springframework.boot.context.event.ApplicationStartedEvent;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.ConfigurableApplicationContext;
@@ -56,6 +57,15 @@ public class MqttServerMetrics implements ApplicationListener<ApplicationStarted
 	private static final String MQTT_MESSAGES_RECEIVED_BYTES = MQTT_METRIC_NAME_PREFIX + ".messages.received.bytes";
 	private static final String MQTT_MESSAGES_SEND_PACKETS = MQTT_METRIC_NAME_PREFIX + ".messages.send.packets";
 	private static final String MQTT_MESSAGES_SEND_BYTES = MQTT_METRIC_NAME_PREFIX + ".messages.send.bytes";
+	/**
+	 * 背压统计
+	 */
+	private static final String MQTT_BACKPRESSURE_EXECUTOR_QUEUE = MQTT_METRIC_NAME_PREFIX + ".backpressure.executor.queue";
+	private static final String MQTT_BACKPRESSURE_PAUSED = MQTT_METRIC_NAME_PREFIX + ".backpressure.connections.paused";
+	private static final String MQTT_BACKPRESSURE_CONGESTED = MQTT_METRIC_NAME_PREFIX + ".backpressure.connections.congested";
+	private static final String MQTT_BACKPRESSURE_PAUSE_COUNT = MQTT_METRIC_NAME_PREFIX + ".backpressure.pause.count";
+	private static final String MQTT_BACKPRESSURE_DROPPED = MQTT_METRIC_NAME_PREFIX + ".backpressure.messages.dropped";
+	private static final String MQTT_BACKPRESSURE_DISCONNECTED = MQTT_METRIC_NAME_PREFIX + ".backpressure.connections.disconnected";
 
 	private final Iterable<Tag> tags;
 
@@ -70,6 +80,10 @@ public class MqttServerMetrics implements ApplicationListener<ApplicationStarted
 		MeterRegistry registry = applicationContext.getBean(MeterRegistry.class);
 		TioServerConfig serverConfig = mqttServer.getServerConfig();
 		bindTo(registry, serverConfig);
+		MqttBackpressure backpressure = mqttServer.getServerCreator().getBackpressure();
+		if (backpressure != null) {
+			bindTo(registry, backpressure);
+		}
 	}
 
 	private void bindTo(MeterRegistry meterRegistry, TioServerConfig serverConfig) {
@@ -115,4 +129,31 @@ public class MqttServerMetrics implements ApplicationListener<ApplicationStarted
 			.register(meterRegistry);
 	}
 
+	private void bindTo(MeterRegistry meterRegistry, MqttBackpressure backpressure) {
+		Gauge.builder(MQTT_BACKPRESSURE_EXECUTOR_QUEUE, backpressure, MqttBackpressure::getExecutorQueueSize)
+			.description("Mqtt server backpressure executor queue size")
+			.tags(tags)
+			.register(meterRegistry);
+		Gauge.builder(MQTT_BACKPRESSURE_PAUSED, backpressure, MqttBackpressure::getPausedConnections)
+			.description("Mqtt server backpressure paused connections")
+			.tags(tags)
+			.register(meterRegistry);
+		Gauge.builder(MQTT_BACKPRESSURE_CONGESTED, backpressure, MqttBackpressure::getCongestedConnections)
+			.description("Mqtt server backpressure congested connections")
+			.tags(tags)
+			.register(meterRegistry);
+		Gauge.builder(MQTT_BACKPRESSURE_PAUSE_COUNT, backpressure, MqttBackpressure::getPauseCount)
+			.description("Mqtt server backpressure pause count")
+			.tags(tags)
+			.register(meterRegistry);
+		Gauge.builder(MQTT_BACKPRESSURE_DROPPED, backpressure, MqttBackpressure::getDroppedCount)
+			.description("Mqtt server backpressure dropped qos0 messages")
+			.tags(tags)
+			.register(meterRegistry);
+		Gauge.builder(MQTT_BACKPRESSURE_DISCONNECTED, backpressure, MqttBackpressure::getCongestionDisconnectCount)
+			.description("Mqtt server backpressure congestion disconnects")
+			.tags(tags)
+			.register(meterRegistry);
+	}
+
 }